@@ -8,6 +8,8 @@ import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.mappers.LabelMapper;
 import org.campagnelab.dl.framework.models.ModelLoader;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
@@ -16,6 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -72,6 +75,78 @@ public abstract class DomainDescriptor<RecordType> {
      * @return A label mapper.
      */
     public abstract LabelMapper getLabelMapper(String outputName, int sampleIndex);
+
+    /**
+     * Determine if this domain can create mapper instances that are not shared with other callers (see
+     * newFeatureMapper and newLabelMapper). Mappers keep state about the record being mapped, so threads that map
+     * records concurrently must each use their own instances.
+     *
+     * @return True when newFeatureMapper and newLabelMapper return new instances.
+     */
+    public boolean supportsParallelMapping() {
+        return false;
+    }
+
+    /**
+     * Create a new feature mapper for a given model graph input. In contrast to getFeatureMapper, the mapper must not
+     * be cached or returned to other callers. Domains that do not support parallel mapping return the shared mapper
+     * of getFeatureMapper, which callers must only use on one thread.
+     *
+     * @param inputName The name of a graph input. Must match an input of the computational graph.
+     * @return A feature mapper owned by the caller, when this domain supports parallel mapping.
+     */
+    public FeatureMapper newFeatureMapper(String inputName) {
+        return getFeatureMapper(inputName);
+    }
+
+    /**
+     * Create a new label mapper for a given model graph output. In contrast to getLabelMapper, the mapper must not
+     * be cached or returned to other callers. Domains that do not support parallel mapping return the shared mapper
+     * of getLabelMapper, which callers must only use on one thread.
+     *
+     * @param outputName The name of a graph output. Must match an output of the computational graph.
+     * @return A label mapper owned by the caller, when this domain supports parallel mapping.
+     */
+    public LabelMapper newLabelMapper(String outputName) {
+        return getLabelMapper(outputName);
+    }
+
+    /**
+     * Determine if the record files of this domain can be split into shards of about the same size (see
+     * getShardRecordIterable). Domains whose records are stored in .sbi files only need to return true.
+     *
+     * @return True when getShardRecordIterable splits files in shards of about the same size.
+     */
+    public boolean supportsSharding() {
+        return false;
+    }
+
+    /**
+     * Returns an iterable over one shard of a record file. Each record belongs to exactly one shard, and iterating
+     * over the shards in order returns the records in the order of the file. When this domain supports sharding, the
+     * .sbi file is split into numShards byte ranges of about the same size, and a record belongs to the range its
+     * chunk starts in. Otherwise, the first shard holds all the records of the file and the other shards are empty.
+     *
+     * @param inputFilename name of a record file.
+     * @param shardIndex    index of the shard, in [0, numShards[.
+     * @param numShards     number of shards.
+     * @return an iterable over the records of the shard.
+     */
+    @SuppressWarnings("unchecked")
+    public Iterable<RecordType> getShardRecordIterable(String inputFilename, int shardIndex, int numShards) {
+        if (!supportsSharding()) {
+            return shardIndex == 0 ? getRecordIterable().apply(inputFilename) : Collections.emptyList();
+        }
+        final String sbiFilename = BasenameUtils.getBasename(inputFilename, ".sbi", ".sbip") + ".sbi";
+        final long length = new File(sbiFilename).length();
+        try {
+            return (Iterable<RecordType>) new SequenceBaseInformationReader(length * shardIndex / numShards,
+                    length * (shardIndex + 1) / numShards, sbiFilename);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read records from " + inputFilename, e);
+        }
+    }
+
     /**
      * Get the prediction/model output interpreter. A prediction interpreter converts the raw
      * INDArray numeric predictions to instances of the BinaryClassPrediction class, in the process converting
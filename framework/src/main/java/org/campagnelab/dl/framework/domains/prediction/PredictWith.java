@@ -24,13 +24,27 @@ public abstract class PredictWith<RecordType> {
     public PredictWith(DomainDescriptor<RecordType> domainDescriptor) {
         this.domainDescriptor = domainDescriptor;
         outputHelper = new ModelOutputHelper<RecordType>(domainDescriptor);
-        int outputIndex = 0;
+        interpretors = newInterpreters();
+    }
 
+    /**
+     * Create a set of interpreters, one per model output. Interpreters may keep state while they interpret a
+     * prediction, so each thread that interprets predictions must use its own set.
+     */
+    public PredictionInterpreter[] newInterpreters() {
+        int outputIndex = 0;
         String[] outputNames = domainDescriptor.getComputationalGraph().getOutputNames();
-        interpretors = new PredictionInterpreter[outputNames.length];
+        PredictionInterpreter[] interpretors = new PredictionInterpreter[outputNames.length];
         for (String outputName : outputNames) {
             interpretors[outputIndex++] = domainDescriptor.getPredictionInterpreter(outputName);
         }
+        return interpretors;
+    }
+
+    /**
+     * Release the resources held by this predictor (for instance, the connection to an inference server).
+     */
+    public void close() {
     }
 
     public abstract INDArray[] getModelOutputs(Predict<RecordType> predict,int numOutputs, MultiDataSet dataSet, int batchSize, List<RecordType> records);
@@ -69,6 +83,43 @@ public abstract class PredictWith<RecordType> {
 
     }
 
+    /**
+     * Interpret the model outputs for a minibatch of records. Unlike makePredictions, each record gets its own list
+     * of predictions, so the result can be consumed after the next minibatch has been interpreted. This method
+     * can be called from several threads, each with its own interpreters (see newInterpreters()).
+     *
+     * @param outputPredictions model outputs for the minibatch (see getModelOutputs).
+     * @param records           records of the minibatch.
+     * @param stopIfTrue        tested with the index of each record after it has been interpreted.
+     * @param index             index of the first record of the minibatch.
+     * @param interpretors      interpreters to use.
+     * @return the predictions of the records, in the order of the records.
+     */
+    public List<RecordPredictions<RecordType>> interpretPredictions(INDArray[] outputPredictions, List<RecordType> records,
+                                                                    Predicate<Integer> stopIfTrue, int index,
+                                                                    PredictionInterpreter[] interpretors) {
+        List<RecordPredictions<RecordType>> result = new ArrayList<>(records.size());
+        for (int exampleIndex = 0; exampleIndex < records.size(); exampleIndex++) {
+            RecordType currentRecord = records.get(exampleIndex);
+            List<Prediction> predictions = new ArrayList<>();
+            for (int outputIndex = 0; outputIndex < domainDescriptor.getNumModelOutputs(); outputIndex++) {
+                if (interpretors[outputIndex] != null) {
+                    Prediction prediction = interpretors[outputIndex].interpret(currentRecord,
+                            outputPredictions[outputIndex].slice(exampleIndex));
+                    prediction.outputIndex = outputIndex;
+                    prediction.index = index;
+                    predictions.add(prediction);
+                }
+            }
+            result.add(new RecordPredictions<>(currentRecord, predictions));
+            index++;
+            if (stopIfTrue.test(index)) {
+                break;
+            }
+        }
+        return result;
+    }
+
     public void makePredictions(Iterator<RecordType> iterator,
                                 Consumer<RecordType> observeRecord,
                                 Consumer<RecordPredictions<RecordType>> doForEachPrediction,
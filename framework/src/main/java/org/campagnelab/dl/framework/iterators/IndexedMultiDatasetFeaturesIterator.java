@@ -0,0 +1,296 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.campagnelab.dl.framework.iterators.cache.IndexedCacheWriter;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.util.ArrayUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+/**
+ * An iterator over mapped features stored in the indexed format (.cf/.cfi/.cfp files, see IndexedCacheWriter).
+ * The .cf file is memory-mapped and INDArrays are created directly over the mapped float regions when the
+ * backend uses float data in little-endian order. The .cfi index makes it possible to seek to any minibatch
+ * in constant time. Caches built in shards are read in the order of their .cfm manifest.
+ * <p>
+ * The file is mapped copy-on-write when it can be opened for writing, so that pre-processors and layers are
+ * free to modify the arrays in place without changing the cache. When the file is read-only, minibatches are
+ * copied out of the mapped region instead.
+ *
+ * @author Fabien Campagne
+ */
+public class IndexedMultiDatasetFeaturesIterator implements MultiDataSetIterator {
+    static private Logger LOG = LoggerFactory.getLogger(IndexedMultiDatasetFeaturesIterator.class);
+    /**
+     * Size limit of one mapped region. A single MappedByteBuffer cannot address more than 2GB.
+     */
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+    private final int numExamples;
+    private final int miniBatchSize;
+    private final int cacheN;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final int[] numExamplesInDataset;
+    /**
+     * Index of the first example of each minibatch, used to seek in constant time.
+     */
+    private final int[] firstExample;
+    private final MappedByteBuffer[] regions;
+    private final int[] regionOfDataset;
+    private final long[] regionStart;
+    private final boolean zeroCopy;
+    private int datasetIndex;
+    private int index;
+    private MultiDataSetPreProcessor preProcessor;
+
+    public IndexedMultiDatasetFeaturesIterator(String basename) {
+        this(basename, Integer.MAX_VALUE);
+    }
+
+    public IndexedMultiDatasetFeaturesIterator(String basename, int cacheN) {
+        try {
+            Properties cfProperties = new Properties();
+            try (FileReader reader = new FileReader(basename + ".cfp")) {
+                cfProperties.load(reader);
+            }
+            miniBatchSize = Integer.parseInt(cfProperties.getProperty("miniBatchSize", "0"));
+            numExamples = Integer.parseInt(cfProperties.getProperty("numRecords", "0"));
+            this.cacheN = cacheN;
+
+            // a cache built in parallel has several segments, each with its own .cf/.cfi files:
+            List<String> segments = IndexedCacheWriter.readSegments(basename);
+            LongArrayList offsetList = new LongArrayList();
+            LongArrayList lengthList = new LongArrayList();
+            IntArrayList numExamplesList = new IntArrayList();
+            IntArrayList segmentList = new IntArrayList();
+            for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+                try (DataInputStream indexStream = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(segments.get(segmentIndex) + IndexedCacheWriter.INDEX_EXTENSION)))) {
+                    int version = indexStream.readInt();
+                    if (version != IndexedCacheWriter.INDEX_VERSION) {
+                        throw new IOException("Unsupported cache index version: " + version);
+                    }
+                    int numDatasets = indexStream.readInt();
+                    for (int i = 0; i < numDatasets; i++) {
+                        offsetList.add(indexStream.readLong());
+                        lengthList.add(indexStream.readLong());
+                        numExamplesList.add(indexStream.readInt());
+                        segmentList.add(segmentIndex);
+                    }
+                }
+            }
+            offsets = offsetList.toLongArray();
+            lengths = lengthList.toLongArray();
+            numExamplesInDataset = numExamplesList.toIntArray();
+            firstExample = new int[offsets.length + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                firstExample[i + 1] = firstExample[i] + numExamplesInDataset[i];
+            }
+            // group consecutive minibatches of a segment into regions that can be mapped with one MappedByteBuffer:
+            regionOfDataset = new int[offsets.length];
+            long[] starts = new long[offsets.length];
+            long[] ends = new long[offsets.length];
+            int[] segmentOfRegion = new int[offsets.length];
+            int numRegions = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                if (lengths[i] > MAX_REGION_SIZE) {
+                    throw new IOException("Minibatch " + i + " is too large to be memory-mapped: " + lengths[i]);
+                }
+                if (numRegions == 0 || segmentOfRegion[numRegions - 1] != segmentList.getInt(i) ||
+                        offsets[i] + lengths[i] - starts[numRegions - 1] > MAX_REGION_SIZE) {
+                    segmentOfRegion[numRegions] = segmentList.getInt(i);
+                    starts[numRegions++] = offsets[i];
+                }
+                ends[numRegions - 1] = offsets[i] + lengths[i];
+                regionOfDataset[i] = numRegions - 1;
+            }
+            regionStart = new long[numRegions];
+            regions = new MappedByteBuffer[numRegions];
+            boolean copyOnWrite = true;
+            for (String segment : segments) {
+                copyOnWrite &= new File(segment + ".cf").canWrite();
+            }
+            for (int r = 0; r < numRegions; r++) {
+                File dataFile = new File(segments.get(segmentOfRegion[r]) + ".cf");
+                try (RandomAccessFile file = new RandomAccessFile(dataFile, copyOnWrite ? "rw" : "r")) {
+                    regionStart[r] = starts[r];
+                    regions[r] = file.getChannel().map(copyOnWrite ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY,
+                            starts[r], ends[r] - starts[r]);
+                }
+            }
+            zeroCopy = copyOnWrite && Nd4j.dataType() == DataBuffer.Type.FLOAT &&
+                    ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+            if (!zeroCopy) {
+                LOG.info("Minibatches will be copied out of the memory-mapped cache " + basename);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to create IndexedMultiDatasetFeaturesIterator ", e);
+        }
+    }
+
+    /**
+     * @return the number of minibatches in the cache.
+     */
+    public int numDatasets() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the number of minibatches that a full pass of this iterator returns, given cacheN.
+     */
+    public int numIteratedDatasets() {
+        int limit = Math.min(numExamples, cacheN);
+        int n = 0;
+        while (n < offsets.length && firstExample[n] < limit) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of examples per minibatch when the cache was built.
+     */
+    public int getMiniBatchSize() {
+        return miniBatchSize;
+    }
+
+    /**
+     * @param datasetIndex index of a minibatch in the cache.
+     * @return the number of examples in this minibatch.
+     */
+    public int numExamples(int datasetIndex) {
+        return numExamplesInDataset[datasetIndex];
+    }
+
+    /**
+     * Position the iterator so that the next call to next() returns the minibatch at datasetIndex.
+     *
+     * @param datasetIndex index of a minibatch in the cache.
+     */
+    public void seek(int datasetIndex) {
+        if (datasetIndex < 0 || datasetIndex > offsets.length) {
+            throw new IndexOutOfBoundsException("No minibatch at index " + datasetIndex);
+        }
+        this.datasetIndex = datasetIndex;
+        index = firstExample[datasetIndex];
+    }
+
+    /**
+     * Return the minibatch at the given index, without changing the position of the iterator. The pre-processor
+     * is not applied.
+     *
+     * @param datasetIndex index of a minibatch in the cache.
+     * @return the minibatch.
+     */
+    public MultiDataSet get(int datasetIndex) {
+        ByteBuffer region = regions[regionOfDataset[datasetIndex]].duplicate();
+        int start = (int) (offsets[datasetIndex] - regionStart[regionOfDataset[datasetIndex]]);
+        region.position(start);
+        region.limit(start + (int) lengths[datasetIndex]);
+        region = region.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        INDArray[][] groups = new INDArray[IndexedCacheWriter.NUM_GROUPS][];
+        for (int g = 0; g < groups.length; g++) {
+            int numArrays = region.getInt();
+            if (numArrays == -1) continue;
+            groups[g] = new INDArray[numArrays];
+            for (int a = 0; a < numArrays; a++) {
+                groups[g][a] = readArray(region);
+            }
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(groups[0], groups[1], groups[2], groups[3]);
+    }
+
+    private INDArray readArray(ByteBuffer region) {
+        int rank = region.getInt();
+        if (rank == -1) {
+            return null;
+        }
+        char ordering = (char) region.getInt();
+        int[] shape = new int[rank];
+        int length = 1;
+        for (int d = 0; d < rank; d++) {
+            shape[d] = region.getInt();
+            length *= shape[d];
+        }
+        ByteBuffer elements = region.slice().order(ByteOrder.LITTLE_ENDIAN);
+        elements.limit(length * 4);
+        region.position(region.position() + length * 4);
+        if (zeroCopy) {
+            DataBuffer data = Nd4j.createBuffer(elements, DataBuffer.Type.FLOAT, length);
+            int[] stride = ordering == 'c' ? ArrayUtil.calcStrides(shape) : ArrayUtil.calcStridesFortran(shape);
+            return Nd4j.create(data, shape, stride, 0, ordering);
+        } else {
+            float[] values = new float[length];
+            elements.asFloatBuffer().get(values);
+            return Nd4j.create(values, shape, ordering);
+        }
+    }
+
+    @Override
+    public MultiDataSet next(int miniBatchSize) {
+        if (miniBatchSize != this.miniBatchSize) {
+            throw new IllegalArgumentException("numExamples must match the cached minibatchSize: " + miniBatchSize);
+        }
+        return next();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return this.preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        seek(0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return datasetIndex < offsets.length && index < Math.min(numExamples, cacheN);
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet ds = get(datasetIndex);
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        index += numExamplesInDataset[datasetIndex];
+        datasetIndex++;
+        return ds;
+    }
+}
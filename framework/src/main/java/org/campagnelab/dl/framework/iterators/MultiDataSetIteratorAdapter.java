@@ -1,5 +1,6 @@
 package org.campagnelab.dl.framework.iterators;
 
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
@@ -11,14 +12,21 @@ import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.function.Function;
 
 /**
  * Make a multi dataset iterator from an iterable over records.
  */
-public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDataSetIterator, Iterable<MultiDataSet> {
+public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDataSetIterator, Iterable<MultiDataSet>,
+        Closeable {
 
     private final DomainDescriptor domainDescriptor;
     private final Iterable<RecordType> iterable;
@@ -31,6 +39,23 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
 
     protected int batchSize = 32;
     private MultiDataSetPreProcessor preProcessor;
+    private boolean useOwnMappers;
+    private final Map<String, FeatureMapper> ownFeatureMappers = new Object2ObjectOpenHashMap<>();
+    private final Map<String, LabelMapper> ownLabelMappers = new Object2ObjectOpenHashMap<>();
+    /**
+     * Buffers that receive the features of a minibatch for inputs mapped with the bulk path. Reused across minibatches.
+     */
+    private float[][] featureBuffers;
+    private int numThreads = 1;
+    private boolean ordered = true;
+    private ExecutorService executor;
+    private List<Mappers> workerMappers;
+    private CompletionService<MultiDataSet> completionService;
+    private BlockingQueue<Mappers> availableMappers;
+    /**
+     * Number of minibatches submitted to the workers and not yet returned (unordered mode).
+     */
+    private int pending;
 
     protected MultiDataSetIteratorAdapter(DomainDescriptor domainDescriptor,Iterable<RecordType> iterable) {
         this.domainDescriptor=domainDescriptor;
@@ -53,14 +78,186 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
 
     abstract public String getBasename();
 
+    /**
+     * Use mappers created for this adapter (see DomainDescriptor.newFeatureMapper) rather than the mappers shared
+     * through the domain descriptor. Must be set when several adapters map records concurrently.
+     *
+     * @param useOwnMappers True to create mappers owned by this adapter.
+     */
+    public void setUseOwnMappers(boolean useOwnMappers) {
+        this.useOwnMappers = useOwnMappers;
+    }
+
+    protected FeatureMapper getFeatureMapper(String inputName) {
+        if (!useOwnMappers) {
+            return domainDescriptor.getFeatureMapper(inputName);
+        }
+        return ownFeatureMappers.computeIfAbsent(inputName, domainDescriptor::newFeatureMapper);
+    }
+
+    protected LabelMapper getLabelMapper(String outputName) {
+        if (!useOwnMappers) {
+            return domainDescriptor.getLabelMapper(outputName);
+        }
+        return ownLabelMappers.computeIfAbsent(outputName, domainDescriptor::newLabelMapper);
+    }
+
     public MultiDataSet next(int batchSize) {
+        if (isParallel() && !ordered) {
+            return nextUnordered();
+        }
+        ObjectList<RecordType> buffer = nextRecords();
+        int size = buffer.size();
+        if (featureBuffers == null) {
+            featureBuffers = new float[domainDescriptor.getComputationalGraph().getInputNames().length][];
+        }
+        final Minibatch minibatch;
+        if (isParallel()) {
+            // each worker maps a disjoint range of rows of the minibatch, with its own mappers:
+            minibatch = allocate(size, workerMappers().get(0), featureBuffers);
+            final int rowsPerWorker = (size + numThreads - 1) / numThreads;
+            List<Future<?>> futures = new ArrayList<>();
+            for (int worker = 0; worker < numThreads && worker * rowsPerWorker < size; worker++) {
+                final int from = worker * rowsPerWorker;
+                final int to = Math.min(size, from + rowsPerWorker);
+                final Mappers mappers = workerMappers().get(worker);
+                futures.add(executor().submit(() -> {
+                    for (int row = from; row < to; row++) {
+                        mapRecord(buffer.get(row), row, mappers, minibatch);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                waitFor(future);
+            }
+        } else {
+            Mappers mappers = new Mappers(this::getFeatureMapper, this::getLabelMapper);
+            minibatch = allocate(size, mappers, featureBuffers);
+            int recordIndexInBatch = 0;
+            for (RecordType record : buffer) {
+                mapRecord(record, recordIndexInBatch, mappers, minibatch);
+                recordIndexInBatch += 1;
+            }
+        }
+        final MultiDataSet result = minibatch.toMultiDataSet();
+        if (preProcessor != null) preProcessor.preProcess(result);
+        return result;
+    }
+
+    /**
+     * Map records with several threads. In ordered mode, each minibatch is split in disjoint row ranges mapped
+     * concurrently, and minibatches are returned in the order of the records. In unordered mode, up to numThreads
+     * minibatches are mapped concurrently (each by one thread) and are returned as soon as they are ready, so that
+     * the order of minibatches may differ from the order of the records. Records are read on the thread that calls
+     * next(). Mapping is only parallel when the domain descriptor supports parallel mapping
+     * (see DomainDescriptor.supportsParallelMapping). The mapping threads are stopped by close().
+     *
+     * @param numThreads number of threads used to map records.
+     * @param ordered    True to return minibatches in the order of the records.
+     */
+    public void setNumThreads(int numThreads, boolean ordered) {
+        this.numThreads = numThreads;
+        this.ordered = ordered;
+    }
+
+    private boolean isParallel() {
+        return numThreads > 1 && domainDescriptor.supportsParallelMapping();
+    }
+
+    private ObjectList<RecordType> nextRecords() {
         ObjectList<RecordType> buffer = new ObjectArrayList<RecordType>();
         // allocate a new dataset with batchSize records and fill it with features and labels.
         while (recordIterator.hasNext() && buffer.size() < this.batchSize) {
             buffer.add(recordIterator.next());
         }
-        int size = buffer.size();
+        return buffer;
+    }
+
+    private MultiDataSet nextUnordered() {
+        // keep every worker busy with one minibatch:
+        while (pending < numThreads && recordIterator.hasNext()) {
+            final ObjectList<RecordType> buffer = nextRecords();
+            completionService().submit(() -> {
+                Mappers mappers = availableMappers.take();
+                try {
+                    final int numInputs = domainDescriptor.getComputationalGraph().getInputNames().length;
+                    Minibatch minibatch = allocate(buffer.size(), mappers, new float[numInputs][]);
+                    for (int row = 0; row < buffer.size(); row++) {
+                        mapRecord(buffer.get(row), row, mappers, minibatch);
+                    }
+                    return minibatch.toMultiDataSet();
+                } finally {
+                    availableMappers.put(mappers);
+                }
+            });
+            pending++;
+        }
+        if (pending == 0) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet result = waitFor(takeCompleted());
+        pending--;
+        if (preProcessor != null) preProcessor.preProcess(result);
+        return result;
+    }
+
+    private Future<MultiDataSet> takeCompleted() {
+        try {
+            return completionService().take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while mapping records.", e);
+        }
+    }
+
+    private <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while mapping records.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to map records.", e.getCause());
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "map-records");
+                // adapters that are not closed must not prevent the JVM from exiting:
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
 
+    private CompletionService<MultiDataSet> completionService() {
+        if (completionService == null) {
+            completionService = new ExecutorCompletionService<>(executor());
+            availableMappers = new ArrayBlockingQueue<>(numThreads, false, workerMappers());
+        }
+        return completionService;
+    }
+
+    /**
+     * Mappers keep state about the record being mapped. Each worker thread needs its own instances.
+     */
+    private List<Mappers> workerMappers() {
+        if (workerMappers == null) {
+            workerMappers = new ArrayList<>();
+            for (int worker = 0; worker < numThreads; worker++) {
+                workerMappers.add(new Mappers(domainDescriptor::newFeatureMapper, domainDescriptor::newLabelMapper));
+            }
+        }
+        return workerMappers;
+    }
+
+    /**
+     * Allocate the arrays of a minibatch of size records.
+     */
+    private Minibatch allocate(int size, Mappers mappers, float[][] featureBuffers) {
         // allocate features and labels for the entire dataset:
         // dimension 0 = number of examples in minibatch
         // dimension 1 = number of features per record.
@@ -68,17 +265,8 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
         //size changed from batchSize. huge batchSize values useful for tests
         final int numInputs = domainDescriptor.getComputationalGraph().getInputNames().length;
         final int numLabels = domainDescriptor.getComputationalGraph().getOutputNames().length;
-        int numOutputs = numLabels;
-
-        INDArray inputs[] = new INDArray[numInputs];
-        INDArray inputMasks[] = new INDArray[numInputs];
-        INDArray labels[] = new INDArray[numLabels];
-        INDArray labelMasks[] = new INDArray[numLabels];
-        FeatureMapper[] featureMappers = new FeatureMapper[numInputs];
-        LabelMapper[] labelMappers = new LabelMapper[numOutputs];
+        Minibatch minibatch = new Minibatch(numInputs, numLabels, featureBuffers);
         int index = 0;
-        boolean hasFeatureMask = false;
-        boolean hasLabelMask = false;
         for (String input : domainDescriptor.getComputationalGraph().getInputNames()) {
             int[] inputShape = domainDescriptor.getInputShape(size, input).clone();
             boolean padEos = (isPretrained) && ((eosIndex != null && eosIndex == inputShape[1]) || eosIndex == null);
@@ -88,82 +276,152 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
                 }
                 inputShape[1]++;
             }
-            inputs[index] = Nd4j.createUninitializedDetached(inputShape, 'f');
-            featureMappers[index] = domainDescriptor.getFeatureMapper(input);
-            boolean needMask = featureMappers[index].hasMask();
-            inputMasks[index] = needMask ? Nd4j.createUninitializedDetached(domainDescriptor.getInputMaskShape(size, input), 'f') : null;
+            final FeatureMapper featureMapper = mappers.featureMappers[index];
+            // inputs mapped with the bulk path are filled in one float[] per minibatch, and copied into the INDArray once:
+            minibatch.rowMapped[index] = !padEos && inputShape.length == 2 && featureMapper.supportsRowMapping();
+            if (minibatch.rowMapped[index]) {
+                minibatch.rowLength[index] = inputShape[1];
+                minibatch.inputs[index] = Nd4j.createUninitializedDetached(inputShape, 'c');
+                final int bufferLength = inputShape[0] * inputShape[1];
+                if (featureBuffers[index] == null || featureBuffers[index].length != bufferLength) {
+                    featureBuffers[index] = new float[bufferLength];
+                }
+            } else {
+                minibatch.inputs[index] = Nd4j.createUninitializedDetached(inputShape, 'f');
+            }
+            boolean needMask = featureMapper.hasMask();
+            minibatch.inputMasks[index] = needMask ? Nd4j.createUninitializedDetached(domainDescriptor.getInputMaskShape(size, input), 'f') : null;
 
             index += 1;
-            hasFeatureMask |= needMask;
+            minibatch.hasFeatureMask |= needMask;
         }
         index = 0;
         for (String label : domainDescriptor.getComputationalGraph().getOutputNames()) {
-            labels[index] = Nd4j.createUninitializedDetached(domainDescriptor.getLabelShape(size, label), 'f');
+            minibatch.labels[index] = Nd4j.createUninitializedDetached(domainDescriptor.getLabelShape(size, label), 'f');
 
-            labelMappers[index] = domainDescriptor.getLabelMapper(label);
-            boolean needMask = labelMappers[index].hasMask();
+            boolean needMask = mappers.labelMappers[index].hasMask();
             if (needMask) {
-                labelMasks[index] = Nd4j.createUninitializedDetached(domainDescriptor.getLabelMaskShape(size, label), 'f');
+                minibatch.labelMasks[index] = Nd4j.createUninitializedDetached(domainDescriptor.getLabelMaskShape(size, label), 'f');
             }
             index++;
-            hasLabelMask |= needMask;
+            minibatch.hasLabelMask |= needMask;
         }
-        int recordIndexInBatch = 0;
-        for (RecordType record : buffer) {
+        return minibatch;
+    }
 
-            for (int j = 0; j < numInputs; j++) {
-                featureMappers[j].prepareToNormalize(record, recordIndexInBatch);
-                featureMappers[j].mapFeatures(record, inputs[j], recordIndexInBatch);
-                if (featureMappers[j].hasMask()) {
-                    featureMappers[j].maskFeatures(record, inputMasks[j], recordIndexInBatch);
-                }
+    /**
+     * Map the features and labels of one record to a row of the minibatch.
+     */
+    private void mapRecord(RecordType record, int recordIndexInBatch, Mappers mappers, Minibatch minibatch) {
+        final FeatureMapper[] featureMappers = mappers.featureMappers;
+        final LabelMapper[] labelMappers = mappers.labelMappers;
+        for (int j = 0; j < featureMappers.length; j++) {
+            featureMappers[j].prepareToNormalize(record, recordIndexInBatch);
+            if (minibatch.rowMapped[j]) {
+                featureMappers[j].mapFeatures(record, minibatch.featureBuffers[j],
+                        recordIndexInBatch * minibatch.rowLength[j], recordIndexInBatch);
+            } else {
+                featureMappers[j].mapFeatures(record, minibatch.inputs[j], recordIndexInBatch);
+            }
+            if (featureMappers[j].hasMask()) {
+                featureMappers[j].maskFeatures(record, minibatch.inputMasks[j], recordIndexInBatch);
+            }
+        }
+        for (int j = 0; j < labelMappers.length; j++) {
+            labelMappers[j].prepareToNormalize(record, recordIndexInBatch);
+            labelMappers[j].mapLabels(record, minibatch.labels[j], recordIndexInBatch);
+            if (labelMappers[j].hasMask()) {
+                labelMappers[j].maskLabels(record, minibatch.labelMasks[j], recordIndexInBatch);
             }
-            for (int j = 0; j < numOutputs; j++) {
-                labelMappers[j].prepareToNormalize(record, recordIndexInBatch);
-                labelMappers[j].mapLabels(record, labels[j], recordIndexInBatch);
-                if (labelMappers[j].hasMask()) {
-                    labelMappers[j].maskLabels(record, labelMasks[j], recordIndexInBatch);
+        }
+    }
+
+    /**
+     * The mappers used by one thread, one per input and one per output of the computational graph.
+     */
+    private class Mappers {
+        final FeatureMapper[] featureMappers;
+        final LabelMapper[] labelMappers;
+
+        Mappers(Function<String, FeatureMapper> featureMapperOf, Function<String, LabelMapper> labelMapperOf) {
+            String[] inputNames = domainDescriptor.getComputationalGraph().getInputNames();
+            String[] outputNames = domainDescriptor.getComputationalGraph().getOutputNames();
+            featureMappers = new FeatureMapper[inputNames.length];
+            labelMappers = new LabelMapper[outputNames.length];
+            for (int index = 0; index < inputNames.length; index++) {
+                featureMappers[index] = featureMapperOf.apply(inputNames[index]);
+            }
+            for (int index = 0; index < outputNames.length; index++) {
+                labelMappers[index] = labelMapperOf.apply(outputNames[index]);
+            }
+        }
+    }
+
+    /**
+     * The arrays of a minibatch being mapped.
+     */
+    private static class Minibatch {
+        final INDArray inputs[];
+        final INDArray inputMasks[];
+        final INDArray labels[];
+        final INDArray labelMasks[];
+        final boolean[] rowMapped;
+        final int[] rowLength;
+        final float[][] featureBuffers;
+        boolean hasFeatureMask;
+        boolean hasLabelMask;
+
+        Minibatch(int numInputs, int numLabels, float[][] featureBuffers) {
+            inputs = new INDArray[numInputs];
+            inputMasks = new INDArray[numInputs];
+            labels = new INDArray[numLabels];
+            labelMasks = new INDArray[numLabels];
+            rowMapped = new boolean[numInputs];
+            rowLength = new int[numInputs];
+            this.featureBuffers = featureBuffers;
+        }
+
+        MultiDataSet toMultiDataSet() {
+            for (int j = 0; j < inputs.length; j++) {
+                if (rowMapped[j]) {
+                    inputs[j].data().setData(featureBuffers[j]);
                 }
             }
-            recordIndexInBatch += 1;
-
-        }
-        // Necessary for mixed datasets (i.e., where some mappers have masks and others don't) - will raise NPE otherwise
-        if (hasFeatureMask) {
-            for (int i = 0; i < inputMasks.length; i++) {
-                if (inputMasks[i] == null) {
-                    int[] inputShape = inputs[i].shape();
-                    if (inputShape.length == 3) {
-                        //     inputMasks[i] = Nd4j.ones(inputShape[0], 1,inputShape[2]);
-                        throw new RuntimeException("3D features should have masks");
-                    } else if (inputShape.length == 2 || inputShape.length == 1) {
-                        inputMasks[i] = Nd4j.ones(inputShape[0], 1);
-                    } else {
-                        inputMasks[i] = Nd4j.ones(inputShape.clone());
+            // Necessary for mixed datasets (i.e., where some mappers have masks and others don't) - will raise NPE otherwise
+            if (hasFeatureMask) {
+                for (int i = 0; i < inputMasks.length; i++) {
+                    if (inputMasks[i] == null) {
+                        int[] inputShape = inputs[i].shape();
+                        if (inputShape.length == 3) {
+                            //     inputMasks[i] = Nd4j.ones(inputShape[0], 1,inputShape[2]);
+                            throw new RuntimeException("3D features should have masks");
+                        } else if (inputShape.length == 2 || inputShape.length == 1) {
+                            inputMasks[i] = Nd4j.ones(inputShape[0], 1);
+                        } else {
+                            inputMasks[i] = Nd4j.ones(inputShape.clone());
+                        }
                     }
                 }
             }
-        }
-        if (hasLabelMask) {
-            for (int i = 0; i < labelMasks.length; i++) {
-                if (labelMasks[i] == null) {
-                    int[] labelShape = labels[i].shape();
-                    if (labelShape.length == 3) {
-                      //  labelMasks[i] = Nd4j.ones(labelShape[0], labelShape[2], 1);
-                        //throw new RuntimeException("3D labels should have masks");
-                    } else if (labelShape.length == 2 || labelShape.length == 1) {
-                        labelMasks[i] = Nd4j.ones(labelShape[0], 1);
-                    } else {
-                        labelMasks[i] = Nd4j.ones(labelShape.clone());
+            if (hasLabelMask) {
+                for (int i = 0; i < labelMasks.length; i++) {
+                    if (labelMasks[i] == null) {
+                        int[] labelShape = labels[i].shape();
+                        if (labelShape.length == 3) {
+                          //  labelMasks[i] = Nd4j.ones(labelShape[0], labelShape[2], 1);
+                            //throw new RuntimeException("3D labels should have masks");
+                        } else if (labelShape.length == 2 || labelShape.length == 1) {
+                            labelMasks[i] = Nd4j.ones(labelShape[0], 1);
+                        } else {
+                            labelMasks[i] = Nd4j.ones(labelShape.clone());
+                        }
                     }
                 }
             }
+            return new org.nd4j.linalg.dataset.MultiDataSet(inputs, labels,
+                    hasFeatureMask ? inputMasks : null,
+                    hasLabelMask ? labelMasks : null);
         }
-        final MultiDataSet result = new org.nd4j.linalg.dataset.MultiDataSet(inputs, labels,
-                hasFeatureMask ? inputMasks : null,
-                hasLabelMask ? labelMasks : null);
-        if (preProcessor != null) preProcessor.preProcess(result);
-        return result;
     }
 
     @Override
@@ -188,14 +446,33 @@ public abstract class MultiDataSetIteratorAdapter<RecordType> implements MultiDa
 
     @Override
     public void reset() {
-
+        // discard the minibatches still being mapped:
+        while (pending > 0) {
+            waitFor(takeCompleted());
+            pending--;
+        }
         recordIterator = iterable.iterator();
     }
 
 
     @Override
     public boolean hasNext() {
-        return recordIterator.hasNext();
+        return pending > 0 || recordIterator.hasNext();
+    }
+
+    /**
+     * Stop the threads that map records. The adapter can still be used after it is closed: a new pool of threads is
+     * started when records need to be mapped again.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        completionService = null;
+        availableMappers = null;
+        pending = 0;
     }
 
 
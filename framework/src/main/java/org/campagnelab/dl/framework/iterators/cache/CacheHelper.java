@@ -2,23 +2,34 @@ package org.campagnelab.dl.framework.iterators.cache;
 
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDatasetFeaturesIterator;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
 import org.campagnelab.dl.framework.iterators.MultiDatasetMappedFeaturesIterator;
 import org.campagnelab.dl.framework.tools.MapMultiDatasetFeatures;
 import org.campagnelab.dl.framework.tools.MapMultiDatasetFeaturesArguments;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.function.Function;
 
 /**
  * A concat iterator that transparently creates a disk cache of the content of the input iterables.
  */
 public class CacheHelper<RecordType> {
+    static private Logger LOG = LoggerFactory.getLogger(CacheHelper.class);
 
 
 
@@ -34,30 +45,206 @@ public class CacheHelper<RecordType> {
      */
     public MultiDataSetIterator cache(final DomainDescriptor domainDescriptor,
                                       MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize) {
-//TODO use a file lock to prevent two processes from trying to create a cache at the same time.
+        return cache(domainDescriptor, adapter, cacheName, cacheN, minibatchSize, Collections.emptyList(), 1, null);
+    }
+
+    /**
+     * Return a cached version of the iterator. When the cache must be built, and numThreads is larger than one, the
+     * input files are split in shards that are mapped in parallel (see MapMultiDatasetFeatures).
+     *
+     * @param domainDescriptor
+     * @param adapter          adapter over all the input records, used when the cache is built with one thread.
+     * @param cacheName
+     * @param cacheN
+     * @param inputFilenames   names of the files that the adapter reads records from.
+     * @param numThreads       number of threads to build the cache with.
+     * @param adapterFactory   creates the adapter of each shard, or null to use a default adapter.
+     * @return A cached iterator.
+     */
+    public MultiDataSetIterator cache(final DomainDescriptor domainDescriptor,
+                                      MultiDataSetIteratorAdapter adapter, String cacheName, int cacheN, int minibatchSize,
+                                      List<String> inputFilenames, int numThreads,
+                                      Function<Iterable<RecordType>, MultiDataSetIteratorAdapter<RecordType>> adapterFactory) {
         // determine if cache exists. If it does, use it.
         cacheName = decorateCacheName(domainDescriptor, cacheName, minibatchSize);
         if (!cacheExists(cacheName, cacheN, true)) {
-            // Cache does not exist, we first build it:
-            MapMultiDatasetFeatures tool = new MapMultiDatasetFeatures() {
-                @Override
-                protected DomainDescriptor domainDescriptor() {
-                    return domainDescriptor;
+            // Cache does not exist. Several processes (or threads) may need the same cache at the same time. The
+            // first one to obtain the lock builds the cache, the others wait and reuse it:
+            synchronized (CacheHelper.class) {
+                ExclusiveLockRequestWithFile lock = lock(cacheName);
+                try {
+                    lock.waitAndLock();
+                    if (!cacheExists(cacheName, cacheN, true)) {
+                        // build under a temporary name, then publish the complete cache:
+                        String temporaryName = cacheName + "-tmp-" + Long.toHexString(System.nanoTime());
+                        buildCache(domainDescriptor, adapter, temporaryName, cacheN, minibatchSize, inputFilenames,
+                                numThreads, adapterFactory);
+                        publish(temporaryName, cacheName);
+                    } else {
+                        System.out.println("Cache was built by another process: " + cacheName);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to build cache " + cacheName, e);
+                } finally {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        LOG.warn("Unable to release lock on cache " + cacheName, e);
+                    }
                 }
-            };
-            MapMultiDatasetFeaturesArguments arguments = new MapMultiDatasetFeaturesArguments<>();
-
-            arguments.adapter = adapter;
-            arguments.outputBasename = cacheName;
-            arguments.cacheN = cacheN;
-            arguments.domainDescriptor = domainDescriptor;
-            arguments.miniBatchSize = minibatchSize;
-            tool.setArguments(arguments);
-            tool.execute();
+            }
         }
         assert cacheExists(cacheName, cacheN, true) : "A cache must exist at this point.";
         System.out.println("Using cache: "+cacheName);
-        return new MultiDatasetMappedFeaturesIterator(cacheName, cacheN);
+        return openCache(cacheName, cacheN);
+    }
+
+    /**
+     * Create the request for the lock that processes hold while they build a cache.
+     *
+     * @param cacheName basename of the cache.
+     * @return a request for the lock on the cache, not yet granted.
+     */
+    static ExclusiveLockRequestWithFile lock(String cacheName) {
+        File cacheFile = new File(cacheName).getAbsoluteFile();
+        return new ExclusiveLockRequestWithFile(cacheFile.getName() + ".lock", cacheFile.getParentFile());
+    }
+
+    private void buildCache(final DomainDescriptor domainDescriptor, MultiDataSetIteratorAdapter adapter,
+                            String cacheName, int cacheN, int minibatchSize, List<String> inputFilenames, int numThreads,
+                            Function<Iterable<RecordType>, MultiDataSetIteratorAdapter<RecordType>> adapterFactory) {
+        MapMultiDatasetFeatures tool = new MapMultiDatasetFeatures() {
+            @Override
+            protected DomainDescriptor domainDescriptor() {
+                return domainDescriptor;
+            }
+        };
+        MapMultiDatasetFeaturesArguments<RecordType> arguments = new MapMultiDatasetFeaturesArguments<>();
+
+        arguments.adapter = adapter;
+        arguments.outputBasename = cacheName;
+        arguments.cacheN = cacheN;
+        arguments.domainDescriptor = domainDescriptor;
+        arguments.miniBatchSize = minibatchSize;
+        arguments.trainingSets = new ArrayList<>(inputFilenames);
+        arguments.numThreads = numThreads;
+        arguments.adapterFactory = adapterFactory;
+        tool.setArguments(arguments);
+        tool.execute();
+    }
+
+    /**
+     * Rename the files of a cache built under a temporary name to their final names. Each file is moved atomically,
+     * and the .cfp file is moved last: cacheExists only sees the cache once all its other files are in place. The
+     * .cfp file of a previous version of the cache is removed first, as well as the files of the previous version that
+     * the new one does not replace (e.g., the manifest of a sharded cache replaced by an unsharded one), since
+     * readers would otherwise mix the two versions.
+     *
+     * @param temporaryName basename the cache was built with.
+     * @param cacheName     final basename of the cache.
+     * @throws IOException
+     */
+    static void publish(String temporaryName, String cacheName) throws IOException {
+        Files.deleteIfExists(Paths.get(cacheName + ".cfp"));
+        File manifest = new File(temporaryName + IndexedCacheWriter.MANIFEST_EXTENSION);
+        if (manifest.exists()) {
+            Files.deleteIfExists(Paths.get(cacheName + ".cf"));
+            Files.deleteIfExists(Paths.get(cacheName + IndexedCacheWriter.INDEX_EXTENSION));
+            List<String> shards = new ArrayList<>();
+            for (String segment : IndexedCacheWriter.readSegments(temporaryName)) {
+                // shards are named after the cache (see MapMultiDatasetFeatures), keep their suffix:
+                String suffix = FilenameUtils.getName(segment).substring(FilenameUtils.getName(temporaryName).length());
+                String shard = cacheName + suffix;
+                move(segment + ".cf", shard + ".cf");
+                move(segment + IndexedCacheWriter.INDEX_EXTENSION, shard + IndexedCacheWriter.INDEX_EXTENSION);
+                shards.add(shard);
+            }
+            // the manifest lists the shards by name, rewrite it with the final names before publishing it:
+            IndexedCacheWriter.writeManifest(temporaryName, shards);
+            move(temporaryName + IndexedCacheWriter.MANIFEST_EXTENSION, cacheName + IndexedCacheWriter.MANIFEST_EXTENSION);
+        } else {
+            Files.deleteIfExists(Paths.get(cacheName + IndexedCacheWriter.MANIFEST_EXTENSION));
+            move(temporaryName + ".cf", cacheName + ".cf");
+            if (new File(temporaryName + IndexedCacheWriter.INDEX_EXTENSION).exists()) {
+                move(temporaryName + IndexedCacheWriter.INDEX_EXTENSION, cacheName + IndexedCacheWriter.INDEX_EXTENSION);
+            } else {
+                Files.deleteIfExists(Paths.get(cacheName + IndexedCacheWriter.INDEX_EXTENSION));
+            }
+        }
+        move(temporaryName + ".cfp", cacheName + ".cfp");
+    }
+
+    private static void move(String source, String destination) throws IOException {
+        Files.move(Paths.get(source), Paths.get(destination),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Open an iterator over an existing cache. Caches in the indexed format are memory-mapped, caches in the
+     * serialized format are read sequentially.
+     *
+     * @param cacheName basename of the cache (.cf/.cfp files).
+     * @param cacheN    maximum number of records to return.
+     * @return an iterator over the minibatches of the cache.
+     */
+    public static MultiDataSetIterator openCache(String cacheName, int cacheN) {
+        if (isIndexed(cacheName)) {
+            return new IndexedMultiDatasetFeaturesIterator(cacheName, cacheN);
+        } else {
+            return new MultiDatasetMappedFeaturesIterator(cacheName, cacheN);
+        }
+    }
+
+    /**
+     * Wrap the training iterator for shuffling and/or in-memory caching. FullyInMemoryCache replays the
+     * minibatches of its first traversal, so it cannot sit on top of a ShufflingCachedIterator: the permutation of
+     * the first epoch would be repeated every epoch. When both are requested, shuffling wins and the in-memory cache
+     * is skipped with a warning.
+     *
+     * @param iterator         iterator over the training set.
+     * @param shuffle          True when minibatches should be visited in a new random order each epoch.
+     * @param seed             seed of the shuffling permutations.
+     * @param shuffleBlockSize number of consecutive examples kept together when shuffling.
+     * @param memoryCache      True when the training set should be fully cached in memory.
+     * @return the wrapped iterator.
+     */
+    public static MultiDataSetIterator trainingIterator(MultiDataSetIterator iterator, boolean shuffle, long seed,
+                                                        int shuffleBlockSize, boolean memoryCache) {
+        boolean shuffled = false;
+        if (shuffle) {
+            if (iterator instanceof IndexedMultiDatasetFeaturesIterator) {
+                iterator = new ShufflingCachedIterator((IndexedMultiDatasetFeaturesIterator) iterator, seed,
+                        shuffleBlockSize);
+                shuffled = true;
+            } else {
+                LOG.warn("--shuffle-cache requires a training cache in the indexed format. Minibatches will not be shuffled.");
+            }
+        }
+        if (memoryCache) {
+            if (shuffled) {
+                LOG.warn("--memory-cache training would replay the first shuffled epoch every epoch. " +
+                        "The training set will not be cached in memory because --shuffle-cache is used.");
+            } else {
+                iterator = new FullyInMemoryCache(iterator);
+            }
+        }
+        return iterator;
+    }
+
+    /**
+     * Determine if a cache was written in the indexed format.
+     *
+     * @param cacheName basename of the cache (.cf/.cfp files).
+     * @return True when the cache has an index and can be memory-mapped.
+     */
+    public static boolean isIndexed(String cacheName) {
+        Properties cfp = new Properties();
+        try (FileReader reader = new FileReader(new File(cacheName + ".cfp"))) {
+            cfp.load(reader);
+        } catch (IOException e) {
+            return false;
+        }
+        return IndexedCacheWriter.INDEXED_FORMAT.equals(cfp.getProperty(IndexedCacheWriter.FORMAT_PROPERTY));
     }
 
     private String decorateCacheName(DomainDescriptor domainDescriptor, String cacheName,int miniBatchSize) {
@@ -77,7 +264,8 @@ public class CacheHelper<RecordType> {
      * @return
      */
     public static boolean cacheExists(String cacheName, int cacheN, boolean multiDataSet) {
-        boolean cacheExists = new File(cacheName + ".cf").exists() & new File(cacheName + ".cfp").exists();
+        boolean cacheExists = (new File(cacheName + ".cf").exists() ||
+                new File(cacheName + IndexedCacheWriter.MANIFEST_EXTENSION).exists()) & new File(cacheName + ".cfp").exists();
         if (!cacheExists) {
             return false;
         }
@@ -88,6 +276,13 @@ public class CacheHelper<RecordType> {
             Object n = cfp.getProperty("numRecords");
             if (n == null) return false;
             Object descriptor = cfp.getProperty("domainDescriptor");
+            if (IndexedCacheWriter.INDEXED_FORMAT.equals(cfp.getProperty(IndexedCacheWriter.FORMAT_PROPERTY))) {
+                for (String segment : IndexedCacheWriter.readSegments(cacheName)) {
+                    if (!new File(segment + ".cf").exists() || !new File(segment + IndexedCacheWriter.INDEX_EXTENSION).exists()) {
+                        return false;
+                    }
+                }
+            }
             if (multiDataSet) {
                 if (descriptor == null) return false;
             } else {
@@ -68,7 +68,8 @@ public class ExclusiveLockRequestWithFile {
     }
 
     /**
-     * Release the lock, call after the lock was granted to release.
+     * Release the lock, call after the lock was granted to release. The lock file is closed and this request cannot
+     * be used again.
      */
     public void release() throws IOException {
         synchronized (this) {
@@ -86,6 +87,9 @@ public class ExclusiveLockRequestWithFile {
                     }
 
             }
+            if (lockFile != null) {
+                lockFile.close();
+            }
         }
     }
 
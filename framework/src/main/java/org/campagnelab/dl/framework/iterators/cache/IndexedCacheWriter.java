@@ -0,0 +1,192 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes minibatches to a .cf file in the indexed format, and the offset of each minibatch to a .cfi index file.
+ * Each array is stored as raw little-endian floats preceded by its shape, so that readers can memory-map the
+ * file and build INDArrays directly over the mapped regions (see IndexedMultiDatasetFeaturesIterator).
+ * <p>
+ * Layout of one minibatch in the .cf file (all values are 4-byte little-endian):
+ * for each of features, labels, feature masks and label masks: the number of arrays (-1 when absent), then
+ * for each array its rank (-1 when the array is null), its ordering ('c' or 'f'), its shape and its elements.
+ * <p>
+ * Layout of the .cfi file (big-endian, written with DataOutputStream): format version, number of minibatches,
+ * then for each minibatch its offset in the .cf file (long), its length in bytes (long) and its number of examples.
+ * <p>
+ * A cache built in parallel consists of several shards, each with its own .cf/.cfi files, and of a .cfm manifest
+ * that lists the shards in order.
+ *
+ * @author Fabien Campagne
+ */
+public class IndexedCacheWriter implements Closeable {
+    /**
+     * Name of the .cfp property that records the format of the .cf file.
+     */
+    public static final String FORMAT_PROPERTY = "cacheFormat";
+    /**
+     * Value of the format property for caches written with this class.
+     */
+    public static final String INDEXED_FORMAT = "indexed";
+    /**
+     * Value of the format property for caches written with MultiDataSet.save (the original format).
+     */
+    public static final String SERIALIZED_FORMAT = "serialized";
+    public static final String INDEX_EXTENSION = ".cfi";
+    /**
+     * Extension of the manifest of a cache built in shards. The manifest lists the basenames of the shards (relative
+     * to the directory of the manifest), one per line, in the order of the records.
+     */
+    public static final String MANIFEST_EXTENSION = ".cfm";
+    public static final int INDEX_VERSION = 1;
+    public static final int NUM_GROUPS = 4;
+
+    private final FileOutputStream dataStream;
+    private final FileChannel channel;
+    private final DataOutputStream indexStream;
+    private final String indexFilename;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long numDatasets;
+
+    public IndexedCacheWriter(String basename) throws IOException {
+        dataStream = new FileOutputStream(basename + ".cf");
+        channel = dataStream.getChannel();
+        indexFilename = basename + INDEX_EXTENSION;
+        indexStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFilename)));
+        // the number of minibatches is only known when the writer is closed. We write a placeholder and
+        // rewrite the header in close():
+        indexStream.writeInt(INDEX_VERSION);
+        indexStream.writeInt(0);
+    }
+
+    /**
+     * Append a minibatch to the cache.
+     *
+     * @param mds minibatch to write.
+     * @throws IOException
+     */
+    public void append(MultiDataSet mds) throws IOException {
+        final INDArray[][] groups = {mds.getFeatures(), mds.getLabels(),
+                mds.getFeaturesMaskArrays(), mds.getLabelsMaskArrays()};
+        long offset = channel.position();
+        for (INDArray[] arrays : groups) {
+            ensureCapacity(4);
+            buffer.putInt(arrays == null ? -1 : arrays.length);
+            if (arrays == null) continue;
+            for (INDArray array : arrays) {
+                writeArray(array);
+            }
+        }
+        flushBuffer();
+        long length = channel.position() - offset;
+        indexStream.writeLong(offset);
+        indexStream.writeLong(length);
+        indexStream.writeInt(mds.getFeatures(0).size(0));
+        numDatasets++;
+    }
+
+    private void writeArray(INDArray array) throws IOException {
+        if (array == null) {
+            ensureCapacity(4);
+            buffer.putInt(-1);
+            return;
+        }
+        // views share a buffer with their parent, we need a contiguous copy to write the elements in order:
+        INDArray contiguous = array.offset() == 0 && array.length() == array.data().length() ?
+                array : array.dup(array.ordering());
+        int[] shape = contiguous.shape();
+        ensureCapacity(4 * (2 + shape.length));
+        buffer.putInt(shape.length);
+        buffer.putInt(contiguous.ordering());
+        for (int dim : shape) {
+            buffer.putInt(dim);
+        }
+        float[] elements = contiguous.data().asFloat();
+        int written = 0;
+        while (written < elements.length) {
+            ensureCapacity(4);
+            int n = Math.min(buffer.remaining() / 4, elements.length - written);
+            buffer.asFloatBuffer().put(elements, written, n);
+            buffer.position(buffer.position() + n * 4);
+            written += n;
+        }
+    }
+
+    private void ensureCapacity(int numBytes) throws IOException {
+        if (buffer.remaining() < numBytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the manifest of a cache built in shards.
+     *
+     * @param basename       basename of the cache.
+     * @param shardBasenames basenames of the shards, in the order of the records.
+     * @throws IOException
+     */
+    public static void writeManifest(String basename, List<String> shardBasenames) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(basename + MANIFEST_EXTENSION))) {
+            for (String shardBasename : shardBasenames) {
+                writer.println(FilenameUtils.getName(shardBasename));
+            }
+        }
+    }
+
+    /**
+     * Read the basenames of the segments of a cache: the cache itself, or the shards listed in its manifest.
+     *
+     * @param basename basename of the cache.
+     * @return the basenames of the segments, in the order of the records.
+     * @throws IOException
+     */
+    public static List<String> readSegments(String basename) throws IOException {
+        File manifest = new File(basename + MANIFEST_EXTENSION);
+        if (!manifest.exists()) {
+            return Collections.singletonList(basename);
+        }
+        String directory = FilenameUtils.getFullPath(basename);
+        List<String> segments = new ArrayList<>();
+        for (String line : FileUtils.readLines(manifest, "UTF-8")) {
+            if (!line.trim().isEmpty()) {
+                segments.add(FilenameUtils.concat(directory, line.trim()));
+            }
+        }
+        return segments;
+    }
+
+    public long getNumDatasets() {
+        return numDatasets;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        channel.force(false);
+        dataStream.close();
+        indexStream.close();
+        try (RandomAccessFile index = new RandomAccessFile(indexFilename, "rw")) {
+            index.seek(4);
+            index.writeInt((int) numDatasets);
+        }
+    }
+}
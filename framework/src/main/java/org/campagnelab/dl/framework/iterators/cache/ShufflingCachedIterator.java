@@ -0,0 +1,228 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDatasetFeaturesIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the minibatches of an indexed cache in a new random order each epoch. When blockSize is zero,
+ * cached minibatches are returned whole, in a permuted order. When blockSize is positive, each cached minibatch is
+ * split into blocks of blockSize consecutive examples, the blocks of the whole cache are permuted and new minibatches
+ * are formed from the shuffled blocks. Only the cached minibatches that contribute to the current minibatch are
+ * accessed, so the dataset is never materialized in memory (in contrast to FullyInMemoryCache).
+ * The permutation of each epoch is a function of the seed and of the epoch number.
+ *
+ * @author Fabien Campagne
+ */
+public class ShufflingCachedIterator implements MultiDataSetIterator {
+    private final IndexedMultiDatasetFeaturesIterator source;
+    private final long seed;
+    private final int blockSize;
+    private final int miniBatchSize;
+    private MultiDataSetPreProcessor preProcessor;
+    private int epoch = -1;
+    /**
+     * Cached minibatch index of each block.
+     */
+    private int[] blockDataset;
+    /**
+     * Index of the first example of each block in its cached minibatch.
+     */
+    private int[] blockStart;
+    /**
+     * Number of examples in each block.
+     */
+    private int[] blockLength;
+    /**
+     * Order in which blocks are visited during the current epoch.
+     */
+    private int[] permutation;
+    private int position;
+    /**
+     * Number of examples of the current block already returned in a previous minibatch.
+     */
+    private int consumedInBlock;
+
+    /**
+     * @param source    iterator over an indexed cache.
+     * @param seed      seed used to derive the permutation of each epoch.
+     * @param blockSize number of consecutive examples kept together when shuffling, or zero to shuffle whole minibatches.
+     */
+    public ShufflingCachedIterator(IndexedMultiDatasetFeaturesIterator source, long seed, int blockSize) {
+        this.source = source;
+        this.seed = seed;
+        this.blockSize = blockSize;
+        this.miniBatchSize = source.getMiniBatchSize();
+        IntArrayList datasets = new IntArrayList();
+        IntArrayList starts = new IntArrayList();
+        IntArrayList lengths = new IntArrayList();
+        final int numDatasets = source.numIteratedDatasets();
+        for (int datasetIndex = 0; datasetIndex < numDatasets; datasetIndex++) {
+            final int numExamples = source.numExamples(datasetIndex);
+            final int step = blockSize > 0 ? blockSize : numExamples;
+            for (int start = 0; start < numExamples; start += step) {
+                datasets.add(datasetIndex);
+                starts.add(start);
+                lengths.add(Math.min(step, numExamples - start));
+            }
+        }
+        blockDataset = datasets.toIntArray();
+        blockStart = starts.toIntArray();
+        blockLength = lengths.toIntArray();
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        epoch++;
+        permutation = new int[blockDataset.length];
+        for (int i = 0; i < permutation.length; i++) {
+            permutation[i] = i;
+        }
+        IntArrays.shuffle(permutation, new XorShift1024StarRandom(seed + epoch));
+        position = 0;
+        consumedInBlock = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < permutation.length;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet result;
+        if (blockSize == 0) {
+            result = source.get(blockDataset[permutation[position++]]);
+        } else {
+            result = assembleFromBlocks();
+        }
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+
+    /**
+     * Form a minibatch of miniBatchSize examples (or fewer at the end of the epoch) from the next shuffled blocks.
+     */
+    private MultiDataSet assembleFromBlocks() {
+        IntArrayList datasets = new IntArrayList();
+        IntArrayList froms = new IntArrayList();
+        IntArrayList tos = new IntArrayList();
+        int numExamples = 0;
+        while (numExamples < miniBatchSize && position < permutation.length) {
+            final int block = permutation[position];
+            final int available = blockLength[block] - consumedInBlock;
+            final int n = Math.min(available, miniBatchSize - numExamples);
+            datasets.add(blockDataset[block]);
+            froms.add(blockStart[block] + consumedInBlock);
+            tos.add(blockStart[block] + consumedInBlock + n);
+            numExamples += n;
+            if (n == available) {
+                position++;
+                consumedInBlock = 0;
+            } else {
+                consumedInBlock += n;
+            }
+        }
+        final int numParts = datasets.size();
+        MultiDataSet[] parts = new MultiDataSet[numParts];
+        // consecutive blocks from the same cached minibatch only need to be accessed once:
+        for (int i = 0; i < numParts; i++) {
+            final int datasetIndex = datasets.getInt(i);
+            MultiDataSet previous = null;
+            for (int j = 0; j < i; j++) {
+                if (datasets.getInt(j) == datasetIndex) {
+                    previous = parts[j];
+                    break;
+                }
+            }
+            parts[i] = previous != null ? previous : source.get(datasetIndex);
+        }
+        INDArray[][] features = new INDArray[numParts][];
+        INDArray[][] labels = new INDArray[numParts][];
+        INDArray[][] featureMasks = new INDArray[numParts][];
+        INDArray[][] labelMasks = new INDArray[numParts][];
+        for (int i = 0; i < numParts; i++) {
+            features[i] = parts[i].getFeatures();
+            labels[i] = parts[i].getLabels();
+            featureMasks[i] = parts[i].getFeaturesMaskArrays();
+            labelMasks[i] = parts[i].getLabelsMaskArrays();
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(
+                concatRows(features, froms, tos),
+                concatRows(labels, froms, tos),
+                concatRows(featureMasks, froms, tos),
+                concatRows(labelMasks, froms, tos));
+    }
+
+    /**
+     * Concatenate rows [from,to[ of the arrays of each part along the minibatch dimension.
+     */
+    private static INDArray[] concatRows(INDArray[][] arraysOfParts, IntArrayList froms, IntArrayList tos) {
+        if (arraysOfParts[0] == null) {
+            return null;
+        }
+        final int numArrays = arraysOfParts[0].length;
+        INDArray[] result = new INDArray[numArrays];
+        for (int a = 0; a < numArrays; a++) {
+            if (arraysOfParts[0][a] == null) {
+                continue;
+            }
+            INDArray[] rows = new INDArray[arraysOfParts.length];
+            for (int p = 0; p < arraysOfParts.length; p++) {
+                rows[p] = rows(arraysOfParts[p][a], froms.getInt(p), tos.getInt(p));
+            }
+            result[a] = rows.length == 1 ? rows[0].dup() : Nd4j.concat(0, rows);
+        }
+        return result;
+    }
+
+    private static INDArray rows(INDArray array, int from, int to) {
+        INDArrayIndex[] indices = new INDArrayIndex[array.rank()];
+        indices[0] = NDArrayIndex.interval(from, to);
+        for (int d = 1; d < indices.length; d++) {
+            indices[d] = NDArrayIndex.all();
+        }
+        return array.get(indices);
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        return next();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+}
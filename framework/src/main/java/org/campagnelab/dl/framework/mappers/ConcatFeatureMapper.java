@@ -3,8 +3,6 @@ package org.campagnelab.dl.framework.mappers;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
-import java.util.Arrays;
-
 /**
  * Concatenate features from different mappers.
  * Created by fac2003 on 5/24/16.
@@ -14,6 +12,11 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
     protected FeatureMapper<RecordType>[] mappers;
     protected int numFeatures = 0;
     protected int[] offsets;
+    /**
+     * Index of the delegate that produces each feature.
+     */
+    protected int[] delegateOfFeature = new int[0];
+    private float[] row;
     private boolean normalizedCalled;
     private boolean requiresMask;
 
@@ -52,6 +55,12 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
             dimensions.add(dims.numDimensions());
             i++;
         }
+        delegateOfFeature = new int[numFeatures];
+        for (int indexOfDelegate = 0; indexOfDelegate < numMappers; indexOfDelegate++) {
+            for (int featureIndex = offsets[indexOfDelegate]; featureIndex < offsets[indexOfDelegate + 1]; featureIndex++) {
+                delegateOfFeature[featureIndex] = indexOfDelegate;
+            }
+        }
         if (numMappers >= 1) {
             assert featureMappers.length == 0 || dimensions.size() == 1 : "All feature mappers must have the same dimensions to be concatenated.";
         }
@@ -80,20 +89,33 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
     @Override
     public void mapFeatures(RecordType record, INDArray inputs, int indexOfRecord) {
         assert normalizedCalled : "prepareToNormalize must be called before mapFeatures.";
-        int offset = 0;
-        final int[] indicesOuter = {0, 0};
-        for (FeatureMapper<RecordType> delegate : mappers) {
-
-            final int delNumFeatures = delegate.numberOfFeatures();
-            for (int j = 0; j < delNumFeatures; j++) {
-                indicesOuter[0] = indexOfRecord;
-                indicesOuter[1] = j + offset;
-                inputs.putScalar(indicesOuter, delegate.produceFeature(record, j));
-            }
-            offset += delNumFeatures;
+        if (row == null) {
+            row = new float[numFeatures];
+        }
+        mapFeatures(record, row, 0, indexOfRecord);
+        for (int featureIndex = 0; featureIndex < numFeatures; featureIndex++) {
+            inputs.putScalar(indexOfRecord, featureIndex, row[featureIndex]);
+        }
+    }
+
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        if (mappers == null) {
+            // sub-classes that delegate to another mapper do not initialize the mappers of this class:
+            FeatureMapper.super.mapFeatures(record, inputs, offset, indexOfRecord);
+            return;
+        }
+        assert normalizedCalled : "prepareToNormalize must be called before mapFeatures.";
+        for (int indexOfDelegate = 0; indexOfDelegate < mappers.length; indexOfDelegate++) {
+            mappers[indexOfDelegate].mapFeatures(record, inputs, offset + offsets[indexOfDelegate], indexOfRecord);
         }
     }
 
+    @Override
+    public boolean supportsRowMapping() {
+        return mappers != null;
+    }
+
     @Override
     public boolean hasMask() {
 
@@ -121,19 +143,13 @@ public class ConcatFeatureMapper<RecordType> implements FeatureMapper<RecordType
     @Override
     public boolean isMasked(RecordType record, int featureIndex) {
         if (!requiresMask) {return false;}
-        int indexOfDelegate = Arrays.binarySearch(offsets, featureIndex);
-        if (indexOfDelegate < 0) {
-            indexOfDelegate = -(indexOfDelegate + 1) - 1;
-        }
+        final int indexOfDelegate = delegateOfFeature[featureIndex];
         return this.mappers[indexOfDelegate].isMasked(record, featureIndex - offsets[indexOfDelegate]);
     }
 
     @Override
     public float produceFeature(RecordType record, int featureIndex) {
-        int indexOfDelegate = Arrays.binarySearch(offsets, featureIndex);
-        if (indexOfDelegate < 0) {
-            indexOfDelegate = -(indexOfDelegate + 1) - 1;
-        }
+        final int indexOfDelegate = delegateOfFeature[featureIndex];
         return this.mappers[indexOfDelegate].produceFeature(record, featureIndex - offsets[indexOfDelegate]);
     }
 
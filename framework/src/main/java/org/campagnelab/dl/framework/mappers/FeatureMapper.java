@@ -40,6 +40,35 @@ public interface FeatureMapper<RecordType> {
      */
     void mapFeatures(RecordType record, INDArray inputs, int indexOfRecord);
 
+    /**
+     * Fill in the features of a record into a float array, starting at offset. This bulk path is used to map an
+     * entire minibatch into a float[] before it is copied into an INDArray in one operation. The default
+     * implementation calls produceFeature for each feature; mappers should override it with a faster implementation
+     * when they can.
+     *
+     * @param record        The record to convert to features.
+     * @param inputs        Array that receives the features of the record, from offset to offset+numberOfFeatures().
+     * @param offset        Index in inputs where the first feature is written.
+     * @param indexOfRecord Index of the record in the destination dataset.
+     */
+    default void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        final int numberOfFeatures = numberOfFeatures();
+        for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+            inputs[offset + featureIndex] = produceFeature(record, featureIndex);
+        }
+    }
+
+    /**
+     * Return true if mapFeatures(record, float[], offset, indexOfRecord) produces the same features as
+     * mapFeatures(record, INDArray, indexOfRecord). Only mappers of 1-D features can support row mapping.
+     * When true, MultiDataSetIteratorAdapter maps the features of a minibatch with the bulk path.
+     *
+     * @return True when the bulk path is supported.
+     */
+    default boolean supportsRowMapping() {
+        return false;
+    }
+
     /**
      * Return true if the mapper creates an input mask (maskLabels is implemented).
      *
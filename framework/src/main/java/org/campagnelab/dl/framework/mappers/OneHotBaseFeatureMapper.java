@@ -5,6 +5,7 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -89,6 +90,28 @@ public class OneHotBaseFeatureMapper<RecordType> implements FeatureMapper<Record
         }
     }
 
+    @Override
+    public void mapFeatures(RecordType record, float[] inputs, int offset, int indexOfRecord) {
+        // the base is converted once, rather than once per feature:
+        Arrays.fill(inputs, offset, offset + numFeatures, 0F);
+        if (baseIndex >= cachedString.length()) {
+            if (!ignoreOutOfRangeIndices) {
+                counter.warn(LOG, String.format("incompatible character index: %d for context: %s of length %d",
+                        baseIndex, cachedString, cachedString.length()));
+            }
+            return;
+        }
+        int value = recordStringAtBaseToInteger.apply(cachedString, baseIndex);
+        if (value >= 0 && value < numFeatures) {
+            inputs[offset + value] = 1F;
+        }
+    }
+
+    @Override
+    public boolean supportsRowMapping() {
+        return true;
+    }
+
     @Override
     public float produceFeature(RecordType record, int featureIndex) {
         if (baseIndex >= cachedString.length()) {
@@ -41,22 +41,18 @@ public class MixupMultiDataSetPreProcessor implements MultiDataSetPreProcessor {
 
 
         int minibatchSize = features[0].size(0);
-        INDArray[] tmpBuffer = new INDArray[minibatchSize];
         int randomIndex1[] = new int[minibatchSize];
         int randomIndex2[] = new int[minibatchSize];
         // determine how this minibatch will be mixuped:
         for (int exampleIndex = 0; exampleIndex < minibatchSize; exampleIndex++) {
-
-            tmpBuffer[exampleIndex] = null;// Nd4j.zeros(features[inputIndex].shape());
             // draw two indices randomly from this minibatch, keep track of these indices
             // to mix labels and mask appropriately.
             randomIndex1[exampleIndex] = random.nextInt(minibatchSize);
             randomIndex2[exampleIndex] = random.nextInt(minibatchSize);
-            // System.out.printf("exampleIndex %d randomIndex1: %d randomIndex2: %d %n",exampleIndex, randomIndex1[exampleIndex], randomIndex2[exampleIndex]);
         }
-        for (INDArray feature : features) shuffle(minibatchSize, alm, feature, randomIndex1, randomIndex2);
+        for (INDArray feature : features) shuffle(alm, feature, randomIndex1, randomIndex2);
 
-        for (INDArray label : labels) shuffle(minibatchSize, alm, label, randomIndex1, randomIndex2);
+        for (INDArray label : labels) shuffle(alm, label, randomIndex1, randomIndex2);
 
         if (featureMasks != null) for (INDArray featureMask : featureMasks)
             keepLongestMask(minibatchSize, featureMask, randomIndex1, randomIndex2);
@@ -66,48 +62,39 @@ public class MixupMultiDataSetPreProcessor implements MultiDataSetPreProcessor {
 
     private void keepLongestMask(int minibatchSize, INDArray mask, int[] randomIndex1, int[] randomIndex2) {
         if (mask == null) return;
-        INDArray[] tmpBuffer = new INDArray[minibatchSize];
-
-        // Find the longest mask and keep it as mixup ask:
+        // Find the longest mask and keep it as mixup mask. Masks hold 0s and 1s, so the longest mask is the one with
+        // the largest sum:
+        INDArray lengths = asRows(mask).sum(1);
+        int[] longest = new int[minibatchSize];
         for (int exampleIndex = 0; exampleIndex < minibatchSize; exampleIndex++) {
             int random1 = randomIndex1[exampleIndex];
             int random2 = randomIndex2[exampleIndex];
-            final INDArray mask1 = mask.getRow(random1);
-            final INDArray mask2 = mask.getRow(random2);
-            tmpBuffer[exampleIndex] = Nd4j.createUninitializedDetached(mask1.shape());
-            if (mask1.sub(mask2).sumNumber().doubleValue() < 0) {
-                // mask2 has more 1s than mask1, use mask2:
-                Nd4j.copy(mask2, tmpBuffer[exampleIndex]);
-            } else {
-                Nd4j.copy(mask1, tmpBuffer[exampleIndex]);
-            }
-
-        }
-        for (int exampleIndex = 0; exampleIndex < minibatchSize; exampleIndex++) {
-
-            // assign tmpBuffer[inputIndex] back into the minibatch:
-            mask.putRow(exampleIndex, tmpBuffer[exampleIndex]);
+            // use mask2 when it has more 1s than mask1:
+            longest[exampleIndex] = lengths.getDouble(random1) < lengths.getDouble(random2) ? random2 : random1;
         }
+        // gather the rows before writing them back, since they may be read from rows that are overwritten:
+        INDArray mixed = Nd4j.pullRows(asRows(mask), 1, longest);
+        mask.assign(mixed.reshape(mask.shape()));
     }
 
-    private void shuffle(int minibatchSize, double alm, INDArray features, int[] randomIndex1, int[] randomIndex2) {
-        INDArray[] tmpBuffer = new INDArray[minibatchSize];
-        for (int exampleIndex = 0; exampleIndex < minibatchSize; exampleIndex++) {
-            int random1 = randomIndex1[exampleIndex];
-            int random2 = randomIndex2[exampleIndex];
-            final INDArray example1 = features.getRow(random1);
-            final INDArray example2 = features.getRow(random2);
-            // new example is linear combination of example 1 and example2:
-            tmpBuffer[exampleIndex] = example1.mul(alm).addi(example2.mul(1.0 - alm));
-        }
-        for (int exampleIndex = 0; exampleIndex < minibatchSize; exampleIndex++) {
+    private void shuffle(double alm, INDArray features, int[] randomIndex1, int[] randomIndex2) {
+        INDArray rows = asRows(features);
+        INDArray examples1 = Nd4j.pullRows(rows, 1, randomIndex1);
+        INDArray examples2 = Nd4j.pullRows(rows, 1, randomIndex2);
+        // new examples are linear combinations of examples 1 and examples 2:
+        examples1.muli(alm).addi(examples2.muli(1.0 - alm));
+        features.assign(examples1.reshape(features.shape()));
+    }
 
-            // assign tmpBuffer[inputIndex] back into the minibatch:
-            features.putRow(exampleIndex, tmpBuffer[exampleIndex]);
+    /**
+     * View an array with one example per slice as a matrix with one example per row, so that rows of arrays of any
+     * rank (e.g., recurrent inputs) can be gathered at once.
+     */
+    private static INDArray asRows(INDArray array) {
+        if (array.rank() == 2) {
+            return array;
         }
-
-
+        final int numExamples = array.size(0);
+        return array.reshape('c', numExamples, array.length() / numExamples);
     }
-
-
 }
@@ -0,0 +1,176 @@
+package org.campagnelab.dl.framework.models;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.util.ModelSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes model files so that a file is either absent, or complete: models are serialized to a temporary file in the
+ * same directory, which then atomically replaces the file. When more than one checkpoint is kept, the previous
+ * versions of a file are kept as name.1 (most recent), name.2, etc. The current version is linked (or copied) to
+ * name.1 before it is replaced, so that the file never disappears while a new version is written.
+ * <p>
+ * Models can also be written on a background thread. The caller provides a snapshot of the model (e.g., a clone),
+ * so that it can keep training while the snapshot is written. When a file is saved again before its previous snapshot
+ * was written, only the most recent snapshot is written.
+ */
+public class CheckpointWriter implements Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(CheckpointWriter.class);
+
+    private final int numKept;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Model> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Future<?>> writes = new ConcurrentHashMap<>();
+    private volatile IOException failure;
+
+    /**
+     * @param numKept      number of versions kept for each file, including the current one.
+     * @param asynchronous when true, models are written on a background thread.
+     */
+    public CheckpointWriter(int numKept, boolean asynchronous) {
+        this(numKept, asynchronous ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null);
+    }
+
+    /**
+     * @param numKept  number of versions kept for each file, including the current one.
+     * @param executor single thread executor that writes models, or null to write them on the calling thread.
+     */
+    CheckpointWriter(int numKept, ExecutorService executor) {
+        this.numKept = Math.max(1, numKept);
+        this.executor = executor;
+    }
+
+    public boolean isAsynchronous() {
+        return executor != null;
+    }
+
+    /**
+     * Write a model to a file, on the background thread when this writer is asynchronous. The model must not be
+     * modified after this call when writing asynchronously.
+     *
+     * @param snapshot model to write.
+     * @param filename name of the file.
+     * @throws IOException if the model, or a model previously written in the background, could not be written.
+     */
+    public void write(Model snapshot, String filename) throws IOException {
+        checkFailure();
+        if (executor == null) {
+            writeNow(snapshot, filename);
+            return;
+        }
+        if (pending.put(filename, snapshot) == null) {
+            writes.put(filename, executor.submit(() -> {
+                Model latest = pending.remove(filename);
+                try {
+                    writeNow(latest, filename);
+                } catch (IOException e) {
+                    LOG.error("Unable to write model " + filename, e);
+                    failure = e;
+                } catch (RuntimeException e) {
+                    LOG.error("Unable to write model " + filename, e);
+                    failure = new IOException("Unable to write model " + filename, e);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Wait until the models saved so far are written.
+     */
+    public void flush() throws IOException {
+        for (Future<?> write : writes.values()) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing models", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Write the pending models and stop the background thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing models", e);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void writeNow(Model model, String filename) throws IOException {
+        Path destination = Paths.get(filename);
+        Path tmp = destination.resolveSibling(destination.getFileName() + ".tmp");
+        ModelSerializer.writeModel(model, tmp.toFile(), true);
+        // rotate previous versions, oldest first:
+        for (int version = numKept - 1; version >= 2; version--) {
+            Path older = Paths.get(filename + "." + (version - 1));
+            if (Files.exists(older)) {
+                move(older, Paths.get(filename + "." + version));
+            }
+        }
+        if (numKept > 1 && Files.exists(destination)) {
+            keepCopy(destination, Paths.get(filename + ".1"));
+        }
+        move(tmp, destination);
+    }
+
+    /**
+     * Link the current version of a file to its previous version name, or copy it when links are not supported.
+     * The current version stays in place until it is replaced.
+     */
+    private static void keepCopy(Path current, Path previous) throws IOException {
+        Files.deleteIfExists(previous);
+        try {
+            Files.createLink(previous, current);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(current, previous, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void move(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -5,21 +5,25 @@ import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.util.ModelSerializer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.Charset;
 
 /**
  * Save a computational graph to disk. Adapted from DL4J model saver, but supports different model prefixes (e.g., best, latest, 1- for epochs,
  * calibrated, etc.)
+ * Models can be saved asynchronously: the training thread only clones the graph, and the clone is written in the
+ * background (see CheckpointWriter).
  *
  * @author Fabien Campagne
  */
-public class ComputationGraphSaver implements EarlyStoppingModelSaver<ComputationGraph> {
+public class ComputationGraphSaver implements EarlyStoppingModelSaver<ComputationGraph>, Closeable {
 
     private static final String bestFileName = "best-ComputationGraph.bin";
     private static final String latestFileName = "latest-ComputationGraph.bin";
     private String directory;
     private Charset encoding;
+    private final CheckpointWriter writer;
 
     /**
      * Constructor that uses default character set for configuration (json) encoding
@@ -35,8 +39,22 @@ public class ComputationGraphSaver implements EarlyStoppingModelSaver<Computatio
      * @param encoding  Character encoding for configuration (json)
      */
     public ComputationGraphSaver(String directory, Charset encoding) {
+        this(directory, encoding, false, 1);
+    }
+
+    /**
+     * @param directory    Directory to save networks
+     * @param asynchronous When true, write models on a background thread. Call close to wait for the last writes.
+     * @param numKept      Number of versions of each model file to keep, including the most recent one.
+     */
+    public ComputationGraphSaver(String directory, boolean asynchronous, int numKept) {
+        this(directory, Charset.defaultCharset(), asynchronous, numKept);
+    }
+
+    private ComputationGraphSaver(String directory, Charset encoding, boolean asynchronous, int numKept) {
         this.directory = directory;
         this.encoding = encoding;
+        this.writer = new CheckpointWriter(numKept, asynchronous);
     }
 
 
@@ -70,10 +88,25 @@ public class ComputationGraphSaver implements EarlyStoppingModelSaver<Computatio
     }
 
     private void save(ComputationGraph net, String modelName) throws IOException {
-        ModelSerializer.writeModel(net, modelName, true);
+        // snapshot parameters and updater state, so that training can continue while the model is written:
+        writer.write(writer.isAsynchronous() ? net.clone() : net, modelName);
+    }
+
+    /**
+     * Wait until the models saved so far are written.
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
     }
 
     private ComputationGraph load(String modelName) throws IOException {
+        // the model may still be written in the background:
+        writer.flush();
         return ModelSerializer.restoreComputationGraph(modelName);
     }
 
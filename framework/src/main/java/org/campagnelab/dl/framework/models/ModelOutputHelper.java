@@ -10,9 +10,12 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.DataSet;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Helper class to facilitate predicting output on a network or computation graph.
@@ -22,6 +25,11 @@ import java.util.Iterator;
 public class ModelOutputHelper<RecordType> {
     private INDArray[] resultGraph;
     private DomainDescriptor<RecordType> domainDescriptor;
+    /**
+     * Input arrays reused by predictForRecords when consecutive minibatches have the same size.
+     */
+    private INDArray[] batchFeatures;
+    private int batchCapacity;
 
     public ModelOutputHelper(DomainDescriptor<RecordType> domainDescriptor) {
         this.domainDescriptor = domainDescriptor;
@@ -67,6 +75,54 @@ public class ModelOutputHelper<RecordType> {
         }
     }
 
+    /**
+     * Predict the outputs of several records with a single forward pass. The records are mapped into one minibatch,
+     * whose arrays are reused by the next call when it has the same number of records. Use
+     * getOutput(outputIndex, exampleIndex) to obtain the output of one record.
+     *
+     * @param model          model to predict with.
+     * @param records        records to predict, in the order of the minibatch rows.
+     * @param featureMappers one feature mapper per model input.
+     */
+    public void predictForRecords(Model model, List<RecordType> records, FeatureMapper... featureMappers) {
+        final int numInputs = model instanceof MultiLayerNetwork ? 1 : featureMappers.length;
+        INDArray[] features = batchFeatures(numInputs, records.size());
+        for (int i = 0; i < numInputs; i++) {
+            for (int exampleIndex = 0; exampleIndex < records.size(); exampleIndex++) {
+                RecordType record = records.get(exampleIndex);
+                featureMappers[i].prepareToNormalize(record, exampleIndex);
+                featureMappers[i].mapFeatures(record, features[i], exampleIndex);
+            }
+        }
+        if (model instanceof MultiLayerNetwork) {
+            resultGraph = new INDArray[]{((MultiLayerNetwork) model).output(features[0], false)};
+        } else if (model instanceof ComputationGraph) {
+            resultGraph = ((ComputationGraph) model).output(false, features);
+        } else {
+            throw new IllegalArgumentException("model is not of supported type: " + model.getClass().getCanonicalName());
+        }
+    }
+
+    private INDArray[] batchFeatures(int numInputs, int size) {
+        if (batchFeatures != null && batchFeatures.length == numInputs && size == batchCapacity) {
+            for (INDArray inputFeatures : batchFeatures) {
+                inputFeatures.assign(0);
+            }
+            return batchFeatures;
+        }
+        String[] inputNames = domainDescriptor.getComputationalGraph().getInputNames();
+        INDArray[] features = new INDArray[numInputs];
+        for (int i = 0; i < numInputs; i++) {
+            features[i] = Nd4j.zeros(domainDescriptor.getInputShape(size, inputNames[i]));
+        }
+        if (batchFeatures == null || batchFeatures.length != numInputs || size > batchCapacity) {
+            // keep the largest minibatch for reuse, smaller ones are usually the last of a series:
+            batchFeatures = features;
+            batchCapacity = size;
+        }
+        return features;
+    }
+
     public void predictForNext(ComputationGraph graph, Iterator<MultiDataSet> iterator) {
         resultGraph = graph.output(false, iterator.next().getFeatures());
     }
@@ -79,4 +135,24 @@ public class ModelOutputHelper<RecordType> {
     public INDArray getOutput(int outputIndex) {
         return resultGraph[outputIndex];
     }
+
+    /**
+     * Return the output of one example of the last minibatch predicted.
+     *
+     * @param outputIndex  index of the model output.
+     * @param exampleIndex index of the example in the minibatch.
+     * @return a view of the output, with a first dimension of size one.
+     */
+    public INDArray getOutput(int outputIndex, int exampleIndex) {
+        INDArray output = resultGraph[outputIndex];
+        if (output.size(0) == 1) {
+            return output;
+        }
+        INDArrayIndex[] indices = new INDArrayIndex[output.rank()];
+        indices[0] = NDArrayIndex.interval(exampleIndex, exampleIndex + 1);
+        for (int dimension = 1; dimension < indices.length; dimension++) {
+            indices[dimension] = NDArrayIndex.all();
+        }
+        return output.get(indices);
+    }
 }
@@ -5,19 +5,23 @@ import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.Charset;
 
 /** Save a model to disk. Adapted from DL4J model saver, but supports different model prefixes (e.g., best, latest, 1- for epochs,
  * calibrated, etc.)
+ * Models can be saved asynchronously: the training thread only clones the network, and the clone is written in the
+ * background (see CheckpointWriter).
  * @author Fabien Campagne
  */
-public class ModelSaver implements EarlyStoppingModelSaver<MultiLayerNetwork> {
+public class ModelSaver implements EarlyStoppingModelSaver<MultiLayerNetwork>, Closeable {
 
     private static final String bestFileName = "bestModel.bin";
     private static final String latestFileName = "latestModel.bin";
     private String directory;
     private Charset encoding;
+    private final CheckpointWriter writer;
 
     /**Constructor that uses default character set for configuration (json) encoding
      * @param directory Directory to save networks
@@ -31,8 +35,22 @@ public class ModelSaver implements EarlyStoppingModelSaver<MultiLayerNetwork> {
      * @param encoding Character encoding for configuration (json)
      */
     public ModelSaver(String directory, Charset encoding){
+        this(directory, encoding, false, 1);
+    }
+
+    /**
+     * @param directory Directory to save networks
+     * @param asynchronous When true, write models on a background thread. Call close to wait for the last writes.
+     * @param numKept Number of versions of each model file to keep, including the most recent one.
+     */
+    public ModelSaver(String directory, boolean asynchronous, int numKept) {
+        this(directory, Charset.defaultCharset(), asynchronous, numKept);
+    }
+
+    private ModelSaver(String directory, Charset encoding, boolean asynchronous, int numKept) {
         this.directory = directory;
         this.encoding = encoding;
+        this.writer = new CheckpointWriter(numKept, asynchronous);
     }
 
     @Override
@@ -63,10 +81,24 @@ public class ModelSaver implements EarlyStoppingModelSaver<MultiLayerNetwork> {
     }
 
     private void save(MultiLayerNetwork net, String modelName) throws IOException{
-        ModelSerializer.writeModel(net, modelName, true);
+        writer.write(writer.isAsynchronous() ? net.clone() : net, modelName);
+    }
+
+    /**
+     * Wait until the models saved so far are written.
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
     }
 
     private MultiLayerNetwork load(String modelName) throws IOException {
+        // the model may still be written in the background:
+        writer.flush();
         MultiLayerNetwork net = ModelSerializer.restoreMultiLayerNetwork(modelName);
         return net;
     }
@@ -15,7 +15,8 @@ import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
- * Helper to traverse a record iterator and estimate AUC.
+ * Helper to traverse a record iterator and estimate AUC. The AUC is exact over the records traversed, unless more
+ * than numRecordsForAUC positive or negative records are seen, in which case a random subset of that size is used.
  * Created by fac2003 on 11/3/16.
  */
 public class AUCHelper {
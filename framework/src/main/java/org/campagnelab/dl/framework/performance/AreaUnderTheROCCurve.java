@@ -1,16 +1,17 @@
 package org.campagnelab.dl.framework.performance;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 
 /**
- * AUC Calculator. This class was adapted from the BDVAl project. The calculation is straightforward, but has
- * complexity n square, so won't scale with very large number of examples.
- * See http://www.cs.waikato.ac.nz/~remco/roc.pdf for an alternative.
+ * AUC Calculator. The AUC is calculated exactly from rank statistics: the decision values of positive and negative
+ * examples are accumulated in primitive arrays, sorted, and merged, so that the number of negative examples ranked
+ * below (or tied with) each positive example is obtained in O(n log n) time rather than by comparing all pairs.
+ * Ties count for one half, and NaN decision values are always interpreted as wrong predictions.
  * Created by fac2003 on 7/15/16.
  *
  * @author Fabien Campagne
@@ -33,10 +34,14 @@ public class AreaUnderTheROCCurve {
         this.clipObservations = false;
     }
 
+    /**
+     * Create a calculator that keeps at most maxObservations positive and negative decisions, chosen at random.
+     * The calculation is exact, so this is only useful to bound memory usage.
+     */
     public AreaUnderTheROCCurve(int maxObservations) {
         this();
         this.maxObservations = maxObservations;
-        this.clipObservations = true;
+        this.clipObservations = maxObservations != Integer.MAX_VALUE;
     }
 
     public void reset() {
@@ -53,35 +58,67 @@ public class AreaUnderTheROCCurve {
             LOG.warn("NaN found instead of a decision value. NaN are always interpreted as wrong predictions. ");
             foundNan = true;
         }
+        // adding zero turns -0.0 into 0.0, which sorting would otherwise rank below 0.0 instead of treating as a tie:
         if (label >= 0) {
-            positiveDecisions.add(decisionValue);
+            positiveDecisions.add(decisionValue + 0.0);
         } else {
-            negativeDecisions.add(decisionValue);
+            negativeDecisions.add(decisionValue + 0.0);
         }
     }
 
+    /**
+     * Add the observations of another calculator to this one, for instance to combine the observations collected
+     * by several threads.
+     */
+    public void merge(AreaUnderTheROCCurve other) {
+        positiveDecisions.addAll(other.positiveDecisions);
+        negativeDecisions.addAll(other.negativeDecisions);
+        foundNan |= other.foundNan;
+    }
+
     public double evaluateStatistic() {
-        double sum = 0;
-        numPositive = 0;
-        numNegative = 0;
         if (clipObservations) {
             clipObservations();
         }
-        for (final double decisionPositive : positiveDecisions) {
-            for (final double decisionNegative : negativeDecisions) {
-                sum += decisionPositive > decisionNegative ? 1 : 0;
-                sum += decisionPositive == decisionNegative ? 0.5 : 0;
-            }
-        }
-
         numPositive = positiveDecisions.size();
         numNegative = negativeDecisions.size();
-
-        final double auc = sum / numPositive / numNegative;
+        final double auc = evaluateStatistic(positiveDecisions.toDoubleArray(), numPositive,
+                negativeDecisions.toDoubleArray(), numNegative);
         this.estimatedAUC = auc;
         return auc;
     }
 
+    /**
+     * Calculate the AUC from the decisions of positive and negative examples. The arrays are sorted in place.
+     */
+    private static double evaluateStatistic(double[] positives, int numPositive, double[] negatives, int numNegative) {
+        // NaN are sorted after all other values:
+        DoubleArrays.parallelQuickSort(positives, 0, numPositive);
+        DoubleArrays.parallelQuickSort(negatives, 0, numNegative);
+        double sum = 0;
+        int below = 0; // number of negative decisions lower than the current positive decision
+        int belowOrTied = 0; // number of negative decisions lower than or equal to the current positive decision
+        for (int i = 0; i < numPositive; i++) {
+            final double decisionPositive = positives[i];
+            if (decisionPositive != decisionPositive) {
+                // NaN positive decisions rank above no negative decision:
+                break;
+            }
+            // NaN negative decisions are never lower than or equal to a positive decision:
+            while (below < numNegative && negatives[below] < decisionPositive) {
+                below++;
+            }
+            if (belowOrTied < below) {
+                belowOrTied = below;
+            }
+            while (belowOrTied < numNegative && negatives[belowOrTied] == decisionPositive) {
+                belowOrTied++;
+            }
+            sum += below + 0.5 * (belowOrTied - below);
+        }
+        return sum / numPositive / numNegative;
+    }
+
     /**
      * You may call this method after evaluateStatistic() to obtain the 95% confidence interval of the AUC.
      * The confidence interval is estimated using the method of https://ncss-wpengine.netdna-ssl.com/wp-content/themes/ncss/pdf/Procedures/PASS/Confidence_Intervals_for_the_Area_Under_an_ROC_Curve.pdf
@@ -108,7 +145,7 @@ public class AreaUnderTheROCCurve {
 
     /**
      * Shuffle observations, then clip to the max number. This reduces the precision of the estimate,
-     * but ensures computation will finish in a reasonable time (we use a n^2 algorithm).
+     * but bounds the memory used to store observations.
      */
     private void clipObservations() {
         boolean needToClip = positiveDecisions.size() > maxObservations ||
@@ -128,35 +165,10 @@ public class AreaUnderTheROCCurve {
     }
 
     public static double evaluateStatistic(final double[] decisionValues, final double[] labels) {
-        double sum = 0;
-        double numPositive = 0;
-        double numNegative = 0;
-
-        final DoubleList truePositiveDecisions = new DoubleArrayList();
-        final DoubleList trueNegativeDecisions = new DoubleArrayList();
+        AreaUnderTheROCCurve calculator = new AreaUnderTheROCCurve();
         for (int i = 0; i < decisionValues.length; i++) {
-            if (decisionValues[i] != decisionValues[i]) {
-                // decision value is NaN:
-                LOG.warn("NaN found instead of a decision value. NaN are always interpreted as wrong predictions. ");
-            }
-            if (labels[i] >= 0) {
-                truePositiveDecisions.add(decisionValues[i]);
-            } else {
-                trueNegativeDecisions.add(decisionValues[i]);
-            }
-        }
-
-        for (final double decisionPositive : truePositiveDecisions) {
-            for (final double decisionNegative : trueNegativeDecisions) {
-                sum += decisionPositive > decisionNegative ? 1 : 0;
-                sum += decisionPositive == decisionNegative ? 0.5 : 0;
-            }
+            calculator.observe(decisionValues[i], labels[i]);
         }
-
-        numPositive = truePositiveDecisions.size();
-        numNegative = trueNegativeDecisions.size();
-
-        final double auc = sum / numPositive / numNegative;
-        return auc;
+        return calculator.evaluateStatistic();
     }
 }
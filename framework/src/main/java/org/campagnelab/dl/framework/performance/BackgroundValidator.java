@@ -0,0 +1,143 @@
+package org.campagnelab.dl.framework.performance;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Estimates performance metrics on a background thread, so that training can continue while a snapshot of the model
+ * is validated. The validation minibatches are read once and kept in memory. When the domain supports metric
+ * accumulators, the minibatches are split in contiguous parts that are predicted by several threads, and the
+ * accumulators of the parts are merged in order. The first part is predicted with the snapshot itself, the others
+ * with replicas of the snapshot. Otherwise, the metrics are estimated with the descriptor on a single thread.
+ */
+public class BackgroundValidator implements Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(BackgroundValidator.class);
+
+    private final PerformanceMetricDescriptor<?> perfDescriptor;
+    private final MultiDataSetIterator validationIterator;
+    private final long scoreN;
+    private final int numThreads;
+    private final ExecutorService coordinator;
+    private final ExecutorService workers;
+    private final boolean accumulate;
+    private List<MultiDataSet> minibatches;
+    /**
+     * Replicas of the snapshot that predict the parts after the first one.
+     */
+    private ComputationGraph[] replicas;
+
+    /**
+     * @param perfDescriptor     descriptor of the metrics of the domain.
+     * @param validationIterator iterator over the validation set.
+     * @param scoreN             number of validation examples to score.
+     * @param numThreads         number of threads used to predict validation examples.
+     */
+    public BackgroundValidator(PerformanceMetricDescriptor<?> perfDescriptor, MultiDataSetIterator validationIterator,
+                               long scoreN, int numThreads) {
+        this.perfDescriptor = perfDescriptor;
+        this.validationIterator = validationIterator;
+        this.scoreN = scoreN;
+        this.numThreads = Math.max(1, numThreads);
+        this.accumulate = perfDescriptor.supportsMetricAccumulators();
+        this.coordinator = Executors.newSingleThreadExecutor(daemon("validation"));
+        this.workers = Executors.newFixedThreadPool(this.numThreads, daemon("validation-worker"));
+    }
+
+    /**
+     * Estimate metrics with a model in the background. The model must not be modified until the result is available,
+     * so it is usually a clone of the model being trained. Validations are performed one at a time, in the order they
+     * were submitted.
+     *
+     * @param snapshot model to validate.
+     * @param metrics  name of metrics to estimate.
+     * @return the metric values, in the order of the metric names.
+     */
+    public Future<double[]> validate(ComputationGraph snapshot, String... metrics) {
+        return coordinator.submit(() -> estimate(snapshot, metrics));
+    }
+
+    private double[] estimate(ComputationGraph snapshot, String[] metrics) throws Exception {
+        if (!accumulate) {
+            validationIterator.reset();
+            return perfDescriptor.estimateMetric(snapshot, validationIterator, scoreN, metrics);
+        }
+        List<MultiDataSet> minibatches = minibatches();
+        final int numParts = Math.max(1, Math.min(numThreads, minibatches.size()));
+        if (replicas == null) {
+            replicas = new ComputationGraph[numParts - 1];
+            for (int part = 1; part < numParts; part++) {
+                replicas[part - 1] = snapshot.clone();
+            }
+        } else {
+            for (ComputationGraph replica : replicas) {
+                replica.setParams(snapshot.params());
+            }
+        }
+        List<Future<MetricAccumulator>> parts = new ArrayList<>(numParts);
+        for (int part = 0; part < numParts; part++) {
+            final int from = (int) ((long) minibatches.size() * part / numParts);
+            final int to = (int) ((long) minibatches.size() * (part + 1) / numParts);
+            final ComputationGraph replica = part == 0 ? snapshot : replicas[part - 1];
+            parts.add(workers.submit(() -> {
+                MetricAccumulator accumulator = perfDescriptor.newMetricAccumulator(replica);
+                for (int index = from; index < to; index++) {
+                    accumulator.observe(minibatches.get(index));
+                }
+                return accumulator;
+            }));
+        }
+        MetricAccumulator result = parts.get(0).get();
+        for (int part = 1; part < numParts; part++) {
+            result.merge(parts.get(part).get());
+        }
+        return result.getMetricValues(metrics);
+    }
+
+    /**
+     * Read the minibatches needed to score scoreN examples, the first time they are needed.
+     */
+    private List<MultiDataSet> minibatches() {
+        if (minibatches == null) {
+            ObjectArrayList<MultiDataSet> list = new ObjectArrayList<>();
+            validationIterator.reset();
+            long numExamples = 0;
+            while (numExamples < scoreN && validationIterator.hasNext()) {
+                MultiDataSet minibatch = validationIterator.next();
+                list.add(minibatch);
+                numExamples += minibatch.getFeatures(0).size(0);
+            }
+            LOG.info("Validating with {} examples in {} minibatches, on {} threads.", numExamples, list.size(),
+                    numThreads);
+            minibatches = list;
+        }
+        return minibatches;
+    }
+
+    @Override
+    public void close() {
+        coordinator.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+/**
+ * Accumulates the observations needed to estimate several performance metrics in one pass over a validation set.
+ * Accumulators of the same domain can be merged, so that parts of a validation set can be observed by different
+ * threads, each with its own accumulator and model.
+ */
+public interface MetricAccumulator {
+    /**
+     * Predict the examples of a minibatch and observe the predictions.
+     *
+     * @param minibatch validation examples.
+     */
+    void observe(MultiDataSet minibatch);
+
+    /**
+     * Add the observations of another accumulator, created by the same performance metric descriptor.
+     *
+     * @param other accumulator to merge into this one.
+     */
+    void merge(MetricAccumulator other);
+
+    /**
+     * Estimate metrics from the observations accumulated so far. Metric values are returned in the order of the
+     * metric names provided as arguments.
+     *
+     * @param metrics name of metrics to estimate.
+     * @return an array of metric values.
+     */
+    double[] getMetricValues(String... metrics);
+}
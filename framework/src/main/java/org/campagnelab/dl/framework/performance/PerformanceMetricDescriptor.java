@@ -58,6 +58,30 @@ public abstract class PerformanceMetricDescriptor<RecordType> {
         return results.toDoubleArray();
     }
 
+    /**
+     * Determine if metrics of this domain can be accumulated over parts of a validation set (see
+     * newMetricAccumulator). Domains that support accumulators can be validated by several threads (see
+     * BackgroundValidator).
+     *
+     * @return True when newMetricAccumulator predicts the observed examples as they are observed.
+     */
+    public boolean supportsMetricAccumulators() {
+        return false;
+    }
+
+    /**
+     * Create an accumulator to estimate metrics with a model over parts of a validation set, in one pass.
+     * The default accumulator keeps the observed minibatches and estimates metrics with estimateMetric when
+     * the values are requested, so domains that do not support accumulators still return correct values, on one
+     * thread.
+     *
+     * @param graph model used to predict the examples observed by the accumulator.
+     * @return an accumulator.
+     */
+    public MetricAccumulator newMetricAccumulator(ComputationGraph graph) {
+        return new SerialMetricAccumulator(this, graph);
+    }
+
     /**
      * Return the name of the metric to use for early stopping.
      *
@@ -0,0 +1,96 @@
+package org.campagnelab.dl.framework.performance;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Default accumulator of PerformanceMetricDescriptor. Observed minibatches are only kept, and metrics are estimated
+ * with the serial estimateMetric method of the descriptor over the minibatches of this accumulator and of the
+ * accumulators merged into it. Domains that do not implement their own accumulator therefore get the same metric
+ * values as with estimateMetric, without parallel prediction.
+ */
+class SerialMetricAccumulator implements MetricAccumulator {
+    private final PerformanceMetricDescriptor<?> descriptor;
+    private final ComputationGraph graph;
+    private final ObjectArrayList<MultiDataSet> minibatches = new ObjectArrayList<>();
+
+    SerialMetricAccumulator(PerformanceMetricDescriptor<?> descriptor, ComputationGraph graph) {
+        this.descriptor = descriptor;
+        this.graph = graph;
+    }
+
+    @Override
+    public void observe(MultiDataSet minibatch) {
+        minibatches.add(minibatch);
+    }
+
+    @Override
+    public void merge(MetricAccumulator other) {
+        minibatches.addAll(((SerialMetricAccumulator) other).minibatches);
+    }
+
+    @Override
+    public double[] getMetricValues(String... metrics) {
+        return descriptor.estimateMetric(graph, new ListIterator(), Long.MAX_VALUE, metrics);
+    }
+
+    /**
+     * Iterates over the observed minibatches.
+     */
+    private class ListIterator implements MultiDataSetIterator {
+        private int index;
+        private MultiDataSetPreProcessor preProcessor;
+
+        @Override
+        public boolean hasNext() {
+            return index < minibatches.size();
+        }
+
+        @Override
+        public MultiDataSet next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            MultiDataSet result = minibatches.get(index++);
+            if (preProcessor != null) {
+                preProcessor.preProcess(result);
+            }
+            return result;
+        }
+
+        @Override
+        public MultiDataSet next(int num) {
+            return next();
+        }
+
+        @Override
+        public void reset() {
+            index = 0;
+        }
+
+        @Override
+        public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+            this.preProcessor = preProcessor;
+        }
+
+        @Override
+        public MultiDataSetPreProcessor getPreProcessor() {
+            return preProcessor;
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return true;
+        }
+
+        @Override
+        public boolean asyncSupported() {
+            return false;
+        }
+    }
+}
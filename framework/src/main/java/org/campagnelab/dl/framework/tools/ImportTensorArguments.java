@@ -23,6 +23,9 @@ public class ImportTensorArguments implements ToolArguments{
     @Parameter(names = "--mini-batch-size", description = "The size of the minibatch")
     public int miniBatchSize = 1;
 
+    @Parameter(names = "--memory-mapped", description = "Memory-map the .vec file instead of reading it through a buffer. Vector elements are still copied into new arrays.")
+    public boolean memoryMapped;
+
     public Consumer<VectorReader.RecordVectors> processVectors() {
         return System.out::println;
     }
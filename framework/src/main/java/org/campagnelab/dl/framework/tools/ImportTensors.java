@@ -26,7 +26,8 @@ public class ImportTensors extends AbstractTool<ImportTensorArguments> {
         String[] vectorNames = new String[args().vectorNames.size()];
         vectorNames = args().vectorNames.toArray(vectorNames);
         try (
-                VectorReader vectorReader = new VectorReader(args().inputPath, args().sampleId, vectorNames)
+                VectorReader vectorReader = new VectorReader(args().inputPath, args().sampleId, vectorNames,
+                        false, true, args().memoryMapped)
         ) {
             VectorReader.RecordVectors recordVectors;
             long examplesProcessed = 0;
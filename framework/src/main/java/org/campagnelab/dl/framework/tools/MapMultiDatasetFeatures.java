@@ -5,6 +5,7 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
+import org.campagnelab.dl.framework.iterators.cache.IndexedCacheWriter;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.deeplearning4j.datasets.iterator.AsyncMultiDataSetIterator;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
@@ -13,9 +14,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A tool to cache DL4J's multidatasets into in a .cf (cached features) file.
@@ -46,8 +52,10 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
     public void execute() {
         //   assert args().adapter != null : "iterables must be provided in arguments.";
         DomainDescriptor<RecordType> domainDescriptor = domainDescriptor();
+        final boolean indexed = IndexedCacheWriter.INDEXED_FORMAT.equals(args().cacheFormat);
+        final boolean sharded = indexed && canBuildShards(domainDescriptor);
         MultiDataSetIteratorAdapter<RecordType> adapter = args().adapter;
-        if (adapter == null) {
+        if (adapter == null && !sharded) {
 
             try {
                 adapter = new MultiDataSetIteratorAdapter<RecordType>(domainDescriptor.getRecordIterable(args().trainingSets,
@@ -64,7 +72,7 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
             }
         }
         MultiDataSetIterator iterator=adapter;
-        if (adapter.asyncSupported()) {
+        if (!sharded && adapter.asyncSupported()) {
                 iterator = new AsyncMultiDataSetIterator(adapter, 12);
         }
        /* if ( != null) {
@@ -83,49 +91,27 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
             LabelMapper labelMapper = new SimpleFeatureCalculator();
 */
         final String outputFilename = args().outputBasename + ".cf";
-        try (FastBufferedOutputStream outputStream = new FastBufferedOutputStream(new FileOutputStream(outputFilename))) {
+        try {
             ProgressLogger pg = new ProgressLogger(LOG);
             long numExamples = domainDescriptor.getNumRecords(args().getTrainingSets());
             pg.expectedUpdates = Math.min(numExamples, args().cacheN) / args().miniBatchSize;
             pg.displayLocalSpeed = true;
             pg.itemsName = "miniBatch";
             pg.start();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            long numDatasets = 0;
-            long writeAtMostN = args().writeAtMostN;
-            numRecordsWritten = 0;
-
-            while (iterator.hasNext()) {
-                MultiDataSet mds = iterator.next();
-                baos.reset();
-                mds.save(baos);
-
-                final byte[] bytes = baos.toByteArray();
-
-                // write the length of the array first, most significant bytes first:
-                outputStream.write((bytes.length >> 8 * 3) & 0xFF);
-                outputStream.write((bytes.length >> 8 * 2) & 0xFF);
-                outputStream.write((bytes.length >> 8) & 0xFF);
-                outputStream.write(bytes.length & 0xFF);
-                outputStream.write(bytes);
-                pg.lightUpdate();
-                if (numRecordsWritten > writeAtMostN) {
-                    break;
-                }
-                numDatasets += 1;
-                int numExamplesInDataset = mds.getFeatures()[0].size(0);
-                numRecordsWritten += numExamplesInDataset;
-                if (numRecordsWritten > args().cacheN) {
-                    break;
-                }
+            long numDatasets;
+            if (sharded) {
+                numDatasets = writeShards(domainDescriptor, pg);
+            } else {
+                numDatasets = indexed ? writeIndexed(iterator, pg) : writeSerialized(iterator, outputFilename, pg);
             }
-            outputStream.close();
             pg.stop();
 
             long numRecords = domainDescriptor.getNumRecords(args().getTrainingSets());
             Properties cfpProperties = new Properties();
             cfpProperties.put("domainDescriptor", domainDescriptor().getClass().getCanonicalName());
             cfpProperties.put("multiDataSet", "true");
+            cfpProperties.put(IndexedCacheWriter.FORMAT_PROPERTY, indexed ? IndexedCacheWriter.INDEXED_FORMAT :
+                    IndexedCacheWriter.SERIALIZED_FORMAT);
             cfpProperties.put("miniBatchSize", Integer.toString(args().miniBatchSize));
             if (args().domainDescriptor != null) {
                 args().domainDescriptor.putProperties(cfpProperties);
@@ -159,6 +145,164 @@ public abstract class MapMultiDatasetFeatures<RecordType> extends AbstractTool<M
 
     }
 
+    /**
+     * Write minibatches with MultiDataSet.save, each preceded by its length in bytes.
+     *
+     * @return the number of minibatches written.
+     */
+    private long writeSerialized(MultiDataSetIterator iterator, String outputFilename, ProgressLogger pg) throws IOException {
+        long numDatasets = 0;
+        try (FastBufferedOutputStream outputStream = new FastBufferedOutputStream(new FileOutputStream(outputFilename))) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            numRecordsWritten = 0;
+            while (iterator.hasNext()) {
+                MultiDataSet mds = iterator.next();
+                baos.reset();
+                mds.save(baos);
+
+                final byte[] bytes = baos.toByteArray();
+
+                // write the length of the array first, most significant bytes first:
+                outputStream.write((bytes.length >> 8 * 3) & 0xFF);
+                outputStream.write((bytes.length >> 8 * 2) & 0xFF);
+                outputStream.write((bytes.length >> 8) & 0xFF);
+                outputStream.write(bytes.length & 0xFF);
+                outputStream.write(bytes);
+                pg.lightUpdate();
+                numDatasets += 1;
+                if (countAndCheckLimits(mds)) {
+                    break;
+                }
+            }
+        }
+        return numDatasets;
+    }
+
+    /**
+     * Write minibatches in the indexed format, which can be memory-mapped by IndexedMultiDatasetFeaturesIterator.
+     *
+     * @return the number of minibatches written.
+     */
+    private long writeIndexed(MultiDataSetIterator iterator, ProgressLogger pg) throws IOException {
+        try (IndexedCacheWriter writer = new IndexedCacheWriter(args().outputBasename)) {
+            numRecordsWritten = 0;
+            while (iterator.hasNext()) {
+                MultiDataSet mds = iterator.next();
+                writer.append(mds);
+                pg.lightUpdate();
+                if (countAndCheckLimits(mds)) {
+                    break;
+                }
+            }
+            return writer.getNumDatasets();
+        }
+    }
+
+    /**
+     * Determine if the cache can be built in parallel shards. This requires several threads, a domain that can
+     * split its input files and create mappers for each thread, and a cache that includes every input record.
+     */
+    private boolean canBuildShards(DomainDescriptor<RecordType> domainDescriptor) {
+        if (args().numThreads <= 1 || args().trainingSets.isEmpty()) {
+            return false;
+        }
+        if (!domainDescriptor.supportsSharding() || !domainDescriptor.supportsParallelMapping()) {
+            LOG.warn("Domain {} cannot map features in parallel, using one thread.", domainDescriptor.getClass().getName());
+            return false;
+        }
+        long numRecords = domainDescriptor.getNumRecords(args().getTrainingSets());
+        return args().cacheN >= numRecords && args().writeAtMostN >= numRecords;
+    }
+
+    /**
+     * Split each input file in numThreads shards, map each shard to its own indexed cache segment in parallel, and write
+     * a manifest that lists the segments in the order of the input records.
+     *
+     * @return the number of minibatches written.
+     */
+    private long writeShards(DomainDescriptor<RecordType> domainDescriptor, ProgressLogger pg) throws IOException {
+        final int numThreads = args().numThreads;
+        final List<String> inputs = args().trainingSets;
+        List<String> shardBasenames = new ArrayList<>();
+        List<Future<long[]>> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (String input : inputs) {
+                for (int shardIndex = 0; shardIndex < numThreads; shardIndex++) {
+                    final String shardBasename = args().outputBasename + "-shard-" + shardBasenames.size();
+                    final Iterable<RecordType> records = domainDescriptor.getShardRecordIterable(input, shardIndex, numThreads);
+                    shardBasenames.add(shardBasename);
+                    results.add(executor.submit(() -> writeShard(domainDescriptor, records, shardBasename, pg)));
+                }
+            }
+            long numDatasets = 0;
+            numRecordsWritten = 0;
+            for (Future<long[]> result : results) {
+                long[] counts = result.get();
+                numDatasets += counts[0];
+                numRecordsWritten += counts[1];
+            }
+            IndexedCacheWriter.writeManifest(args().outputBasename, shardBasenames);
+            return numDatasets;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to map features of a shard.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Map the records of one shard to an indexed cache segment.
+     *
+     * @return the number of minibatches and the number of records written.
+     */
+    private long[] writeShard(DomainDescriptor<RecordType> domainDescriptor, Iterable<RecordType> records,
+                              String shardBasename, ProgressLogger pg) throws IOException {
+        MultiDataSetIteratorAdapter<RecordType> adapter = newShardAdapter(domainDescriptor, records);
+        // mappers hold state about the record being mapped, each shard needs its own:
+        adapter.setUseOwnMappers(true);
+        long numRecords = 0;
+        try (IndexedCacheWriter writer = new IndexedCacheWriter(shardBasename)) {
+            while (adapter.hasNext()) {
+                MultiDataSet mds = adapter.next();
+                writer.append(mds);
+                numRecords += mds.getFeatures(0).size(0);
+                synchronized (pg) {
+                    pg.lightUpdate();
+                }
+            }
+            return new long[]{writer.getNumDatasets(), numRecords};
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private MultiDataSetIteratorAdapter<RecordType> newShardAdapter(DomainDescriptor<RecordType> domainDescriptor,
+                                                                    Iterable<RecordType> records) throws IOException {
+        if (args().adapterFactory != null) {
+            return (MultiDataSetIteratorAdapter<RecordType>) args().adapterFactory.apply(records);
+        }
+        return new MultiDataSetIteratorAdapter<RecordType>(records, args().miniBatchSize, domainDescriptor) {
+            @Override
+            public String getBasename() {
+                return buildBaseName(args().trainingSets);
+            }
+        };
+    }
+
+    /**
+     * Count the examples of a minibatch just written.
+     *
+     * @return True when enough records have been written.
+     */
+    private boolean countAndCheckLimits(MultiDataSet mds) {
+        if (numRecordsWritten > args().writeAtMostN) {
+            return true;
+        }
+        int numExamplesInDataset = mds.getFeatures()[0].size(0);
+        numRecordsWritten += numExamplesInDataset;
+        return numRecordsWritten > args().cacheN;
+    }
+
     private String buildBaseName(List<String> trainingSets) {
         String cacheName;// only one input, use its name as cache name:
         if (trainingSets.size() == 1) {
@@ -1,8 +1,11 @@
 package org.campagnelab.dl.framework.tools;
 
+import com.beust.jcommander.Parameter;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
 
+import java.util.function.Function;
+
 /**
  * Arguments for MapFeatures.
  * Created by fac2003 on 11/2/16.
@@ -17,4 +20,19 @@ public class MapMultiDatasetFeaturesArguments<RecordType> extends MapFeaturesArg
 
 
     public DomainDescriptor domainDescriptor;
+
+    @Parameter(names = "--cache-format", description = "Format of the .cf file, either indexed (minibatches can be memory-mapped " +
+            "and accessed in any order) or serialized (the original format, where minibatches are written with MultiDataSet.save).")
+    public String cacheFormat = "indexed";
+
+    @Parameter(names = "--num-threads", description = "Number of threads used to map features. When larger than one and the " +
+            "cache is built in the indexed format, each input file is split in byte ranges and each range is mapped to " +
+            "its own cache shard, in parallel.")
+    public int numThreads = 1;
+
+    /**
+     * Creates the adapter used to map the records of one shard, when the cache is built in parallel. A default adapter
+     * is created when this function is not provided.
+     */
+    public Function<Iterable<RecordType>, MultiDataSetIteratorAdapter<RecordType>> adapterFactory = null;
 }
@@ -154,8 +154,6 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
             // disable cache when vec is provided. No need to cache since we won't even map the features.
             args().noCache = true;
         }
-        PredictWith<RecordType> predictor = args().vecPath != null ? new PredictWithVecFile<RecordType>(domainDescriptor, args().vecPath) :
-                new PredictWithModel<RecordType>(domainDescriptor, model);
 
         Iterable<RecordType> apply = domainDescriptor.getRecordIterable().apply(evaluationDataFilename);
         Iterable<RecordType> itAdapter = Iterables.limit(apply, args().scoreN);
@@ -172,6 +170,8 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
                         return FilenameUtils.getBaseName(args().testSet);
                     }
                 };
+        // predictions are matched to records by position, minibatches must be returned in order:
+        adapter.setNumThreads(args().mappingThreads, true);
         MultiDataSetIterator adapterCached = args().noCache ? adapter :
                 cacheHelper.cache(domainDescriptor,
                         adapter, adapter.getBasename(),
@@ -189,37 +189,55 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
         pgReadWrite.displayFreeMemory = false;
         pgReadWrite.displayLocalSpeed = true;
         pgReadWrite.start();
-        while (adapterCached.hasNext() && recordIterator.hasNext()) {
-
-            MultiDataSet dataset = adapterCached.next();
-            final int datasetSize = dataset == null ? args().miniBatchSize : dataset.getFeatures(0).size(0);
-            adapterIndex++;
-            records.clear();
-            for (int exampleIndex = 0; exampleIndex < datasetSize; exampleIndex++) {
-                if (!recordIterator.hasNext()) {
-                    break;
-                }
-                records.add(recordIterator.next());
-            }
+        // create the predictor last, and release it (e.g., the connection to a PyTorch server) even when
+        // prediction fails:
+        PredictWith<RecordType> predictor = args().vecPath != null ? new PredictWithVecFile<RecordType>(domainDescriptor, args().vecPath) :
+                new PredictWithModel<RecordType>(domainDescriptor, model, args().pyTorchServer);
+        try {
+            if (args().pipelineThreads > 0) {
+                // read, predict, interpret and write on separate threads:
+                new PredictionPipeline<>(this, predictor, args().pipelineThreads).run(adapterCached, recordIterator,
+                        miniBatchSize,
+                        recordPredictions -> processPredictions(resutsWriter, recordPredictions.record,
+                                recordPredictions.predictions),
+                        /* stop if */ nProcessed -> nProcessed > args().scoreN,
+                        pgReadWrite::update);
+            } else {
+                while (adapterCached.hasNext() && recordIterator.hasNext()) {
+
+                    MultiDataSet dataset = adapterCached.next();
+                    final int datasetSize = dataset == null ? args().miniBatchSize : dataset.getFeatures(0).size(0);
+                    adapterIndex++;
+                    records.clear();
+                    for (int exampleIndex = 0; exampleIndex < datasetSize; exampleIndex++) {
+                        if (!recordIterator.hasNext()) {
+                            break;
+                        }
+                        records.add(recordIterator.next());
+                    }
 
-            index = predictor.makePredictions(this, dataset,
-                    records,
-                    recordPredictions -> {
-                        processPredictions(resutsWriter, recordPredictions.record,
-                                recordPredictions.predictions);
-                    },
-                /* stop if */ nProcessed -> nProcessed > args().scoreN, index
-            );
-            pgReadWrite.update(records.size());
-            if (records.size() != datasetSize) {
-                System.out.printf("Warning: dataset #examples %d and # records (%d) must match. Unable to obtain records for some examples in minibatch. ",
-                        datasetSize, records.size());
-               // break;
-            }
+                    index = predictor.makePredictions(this, dataset,
+                            records,
+                            recordPredictions -> {
+                                processPredictions(resutsWriter, recordPredictions.record,
+                                        recordPredictions.predictions);
+                            },
+                        /* stop if */ nProcessed -> nProcessed > args().scoreN, index
+                    );
+                    pgReadWrite.update(records.size());
+                    if (records.size() != datasetSize) {
+                        System.out.printf("Warning: dataset #examples %d and # records (%d) must match. Unable to obtain records for some examples in minibatch. ",
+                                datasetSize, records.size());
+                       // break;
+                    }
 
+                }
+            }
+        } finally {
+            predictor.close();
+            adapter.close();
         }
 
-
         resutsWriter.close();
         outputWriter.append(String.format("%s\t%s", modelTag, prefix));
         for (double metric : createOutputStatistics()) {
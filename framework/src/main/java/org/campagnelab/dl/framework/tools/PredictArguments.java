@@ -29,8 +29,8 @@ public class PredictArguments extends RecordingToolArguments {
     @Parameter(names = {"--mini-batch-size"}, description = "Number of records in minibatch.")
     public int miniBatchSize = 512;
 
-    @Parameter(names = {"--records-for-auc"}, description = "Number of records to use when evaluating AUC. Precision increases with larger values, but calculation is O(n^2) on this number.")
-    public int numRecordsForAUC = 50000;
+    @Parameter(names = {"--records-for-auc"}, description = "Maximum number of positive and negative records to use when evaluating AUC. AUC is exact when all records are used (the default); calculation is O(n log n) on this number.")
+    public int numRecordsForAUC = Integer.MAX_VALUE;
 
     @Parameter(names = {"--correctness-filter"},
             description = "When provided, filter output by correctness. For instance --correctness-filter wrong will only print wrong predictions. Alternatively --correctness-filter correct prings only correct predictions. ")
@@ -59,9 +59,19 @@ public class PredictArguments extends RecordingToolArguments {
     @Parameter(names = "--no-cache", description = "Do not create a cache (.cf/.cfp) when this flag is provided.")
     public boolean noCache;
 
+    @Parameter(names = "--mapping-threads", description = "Number of threads used to map records to features when no cache is used.")
+    public int mappingThreads = 1;
+
+    @Parameter(names = "--pipeline-threads", description = "Number of threads used to interpret predictions, while other threads read records and write results, so that these steps overlap with forward passes. Results are written in the order of the records. Use 0 (default) to run all steps in sequence on one thread.")
+    public int pipelineThreads = 0;
+
     @Parameter(names = {"--vec-path"}, description = "Path of the .vec file containing predictions corresponding to the input dataset.")
     public String vecPath;
 
+    @Parameter(names = {"--pytorch-server"}, description = "host:port of a PyTorch inference server. When provided, minibatches are streamed to the server " +
+            "over one persistent connection instead of starting a zerorpc process for each minibatch.")
+    public String pyTorchServer;
+
     @Parameter(names = {"--domain-path"}, description = "Path to config file for domain descriptor if pytorch model used")
     public String domainPath;
 
@@ -20,6 +20,14 @@ public class PredictWithModel<RecordType> extends PredictWith<RecordType> {
     protected Model model;
 
     public PredictWithModel(DomainDescriptor<RecordType> domainDescriptor, Model model) {
+        this(domainDescriptor, model, null);
+    }
+
+    /**
+     * @param pyTorchServer host:port of a PyTorch inference server used to predict with a PyTorchModel, or null to
+     *                      start a zerorpc process for each minibatch.
+     */
+    public PredictWithModel(DomainDescriptor<RecordType> domainDescriptor, Model model, String pyTorchServer) {
         super(domainDescriptor);
         if (model instanceof PyTorchModel) {
             PyTorchModel pyTorchModel = (PyTorchModel) model;
@@ -27,7 +35,7 @@ public class PredictWithModel<RecordType> extends PredictWith<RecordType> {
                     ? PyTorchModelClient.ModelType.GENOTYPE
                     : PyTorchModelClient.ModelType.SOMATIC;
             this.pyTorchModelClient = new PyTorchModelClient(pyTorchModel.getLabel(), pyTorchModel.getPath(),
-                    modelType, domainDescriptor);
+                    modelType, domainDescriptor, 0, pyTorchServer);
         } else {
             this.pyTorchModelClient = null;
         }
@@ -40,7 +48,7 @@ public class PredictWithModel<RecordType> extends PredictWith<RecordType> {
             try {
                 outputPredictions = pyTorchModelClient.predict(dataSet, batchSize);
             } catch (IOException e) {
-                throw new RuntimeException("Unable to predict using PyTorch model");
+                throw new RuntimeException("Unable to predict using PyTorch model", e);
             }
         } else {
             ComputationGraph graph = (ComputationGraph) model;
@@ -49,6 +57,17 @@ public class PredictWithModel<RecordType> extends PredictWith<RecordType> {
         return outputPredictions;
     }
 
+    @Override
+    public void close() {
+        if (pyTorchModelClient != null) {
+            try {
+                pyTorchModelClient.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to close the connection to the PyTorch inference server", e);
+            }
+        }
+    }
+
 
 
 
@@ -0,0 +1,187 @@
+package org.campagnelab.dl.framework.tools;
+
+import org.campagnelab.dl.framework.domains.prediction.PredictWith;
+import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
+import org.campagnelab.dl.framework.domains.prediction.RecordPredictions;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Runs the stages of Predict on separate threads, connected by bounded queues:
+ * <ol>
+ * <li>a reader thread decodes records and obtains the mapped minibatches,</li>
+ * <li>the calling thread runs the forward passes (so that the model is used from the thread attached to the
+ * device),</li>
+ * <li>a pool of threads interprets the model outputs, each thread with its own interpreters,</li>
+ * <li>a writer thread hands the predictions of each record to the consumer, in the order of the records.</li>
+ * </ol>
+ * Each queue holds at most queueSize minibatches, which bounds the memory used by the pipeline. The consumer is
+ * only called from the writer thread, one record at a time, so it does not need to be thread-safe.
+ *
+ * @author Fabien Campagne
+ */
+class PredictionPipeline<RecordType> {
+    static private Logger LOG = LoggerFactory.getLogger(PredictionPipeline.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final Predict<RecordType> predict;
+    private final PredictWith<RecordType> predictor;
+    private final int numInterpretationThreads;
+    private final int queueSize;
+
+    /**
+     * A minibatch and its records, or the end of the input when records is null. The end of the input carries the
+     * exception that stopped the reader, if any.
+     */
+    private static class Batch<RecordType> {
+        final MultiDataSet dataset;
+        final List<RecordType> records;
+        final Throwable failure;
+
+        Batch(MultiDataSet dataset, List<RecordType> records) {
+            this(dataset, records, null);
+        }
+
+        Batch(MultiDataSet dataset, List<RecordType> records, Throwable failure) {
+            this.dataset = dataset;
+            this.records = records;
+            this.failure = failure;
+        }
+    }
+
+    PredictionPipeline(Predict<RecordType> predict, PredictWith<RecordType> predictor, int numInterpretationThreads) {
+        this.predict = predict;
+        this.predictor = predictor;
+        this.numInterpretationThreads = Math.max(1, numInterpretationThreads);
+        this.queueSize = 2 * this.numInterpretationThreads;
+    }
+
+    /**
+     * Predict all the records.
+     *
+     * @param datasets            mapped minibatches, in the order of the records.
+     * @param records             records to predict.
+     * @param miniBatchSize       number of records per minibatch, when datasets returns null minibatches.
+     * @param doForEachPrediction called with the predictions of each record, in order.
+     * @param stopIfTrue          tested with the number of records predicted.
+     * @param whenBatchWritten    called with the number of records of each minibatch written.
+     */
+    void run(MultiDataSetIterator datasets, Iterator<RecordType> records, int miniBatchSize,
+             Consumer<RecordPredictions<RecordType>> doForEachPrediction,
+             Predicate<Integer> stopIfTrue, IntConsumer whenBatchWritten) {
+        final BlockingQueue<Batch<RecordType>> decoded = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Future<List<RecordPredictions<RecordType>>>> interpreted = new ArrayBlockingQueue<>(queueSize);
+        final Future<List<RecordPredictions<RecordType>>> end = CompletableFuture.completedFuture(null);
+        ExecutorService stages = Executors.newFixedThreadPool(2, daemon("predict-stage"));
+        ExecutorService interpreters = Executors.newFixedThreadPool(numInterpretationThreads, daemon("predict-interpret"));
+        final ThreadLocal<PredictionInterpreter[]> threadInterpreters = ThreadLocal.withInitial(predictor::newInterpreters);
+        try {
+            stages.submit(() -> {
+                Throwable failure = null;
+                try {
+                    read(datasets, records, miniBatchSize, decoded);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                decoded.put(new Batch<>(null, null, failure));
+                return null;
+            });
+            Future<?> writer = stages.submit(() -> {
+                for (Future<List<RecordPredictions<RecordType>>> next = interpreted.take(); next != end;
+                     next = interpreted.take()) {
+                    List<RecordPredictions<RecordType>> batch = next.get();
+                    batch.forEach(doForEachPrediction);
+                    whenBatchWritten.accept(batch.size());
+                }
+                return null;
+            });
+            int index = 0;
+            for (Batch<RecordType> batch = decoded.take(); ; batch = decoded.take()) {
+                if (batch.records == null) {
+                    if (batch.failure != null) {
+                        throw new ExecutionException("Unable to read records", batch.failure);
+                    }
+                    break;
+                }
+                final List<RecordType> batchRecords = batch.records;
+                final INDArray[] outputs = predictor.getModelOutputs(predict,
+                        predict.domainDescriptor.getNumModelOutputs(), batch.dataset, batchRecords.size(), batchRecords);
+                final int firstIndex = index;
+                put(interpreted, interpreters.submit(() -> predictor.interpretPredictions(outputs, batchRecords,
+                        stopIfTrue, firstIndex, threadInterpreters.get())), writer);
+                index += batchRecords.size();
+                if (stopIfTrue.test(index)) {
+                    break;
+                }
+            }
+            put(interpreted, end, writer);
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while predicting", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to perform predictions", e.getCause());
+        } finally {
+            stages.shutdownNow();
+            interpreters.shutdownNow();
+        }
+    }
+
+    private void read(MultiDataSetIterator datasets, Iterator<RecordType> recordIterator, int miniBatchSize,
+                      BlockingQueue<Batch<RecordType>> decoded) throws InterruptedException {
+        while (datasets.hasNext() && recordIterator.hasNext()) {
+            MultiDataSet dataset = datasets.next();
+            final int datasetSize = dataset == null ? miniBatchSize : dataset.getFeatures(0).size(0);
+            List<RecordType> records = new ArrayList<>(datasetSize);
+            for (int exampleIndex = 0; exampleIndex < datasetSize; exampleIndex++) {
+                if (!recordIterator.hasNext()) {
+                    break;
+                }
+                records.add(recordIterator.next());
+            }
+            if (records.size() != datasetSize) {
+                LOG.warn(String.format("dataset #examples %d and # records (%d) must match. Unable to obtain records for some examples in minibatch.",
+                        datasetSize, records.size()));
+            }
+            decoded.put(new Batch<>(dataset, Collections.unmodifiableList(records)));
+        }
+    }
+
+    /**
+     * Queue interpreted predictions for the writer, unless the writer has failed. The writer only returns after the
+     * end of the predictions, so it has failed when it returns while the queue is full.
+     */
+    private void put(BlockingQueue<Future<List<RecordPredictions<RecordType>>>> interpreted,
+                     Future<List<RecordPredictions<RecordType>>> predictions, Future<?> writer)
+            throws InterruptedException, ExecutionException {
+        while (!interpreted.offer(predictions)) {
+            try {
+                writer.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // the writer is still consuming predictions
+                continue;
+            }
+            throw new IllegalStateException("The writer stopped before all predictions were written.");
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package org.campagnelab.dl.framework.tools;
+
+import com.google.gson.Gson;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A persistent connection to a PyTorch inference server. The model is loaded once by the server when the channel
+ * is opened, and minibatches are then streamed over the socket, so that no process is started and no file is
+ * written per minibatch.
+ * <p>
+ * Protocol (big-endian, as written by DataOutputStream):
+ * <ul>
+ * <li>When the channel is opened, the client sends a JSON description of the request (see Header) as a UTF
+ * string. The server answers with a UTF string: empty when the model is ready, an error message otherwise.</li>
+ * <li>For each minibatch, the client sends the number of examples, followed by one vector line per example and
+ * input, in the format written by VectorWriterBinary (the vector id is the index of the input). The server answers
+ * with the number of examples, followed by one vector line per example and output (the vector id is the index of
+ * the output).</li>
+ * </ul>
+ * The server is expected to serve a connection until the client closes it.
+ *
+ * @author Fabien Campagne
+ */
+public class PyTorchInferenceChannel implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+    private final int numOutputs;
+    private long exampleId;
+
+    /**
+     * Open a channel to an inference server.
+     *
+     * @param address host:port of the server.
+     * @param header  describes the model and the vectors exchanged with the server.
+     * @throws IOException when the server cannot be reached or cannot load the model.
+     */
+    public PyTorchInferenceChannel(String address, Header header) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (separator == -1) {
+            throw new IllegalArgumentException("The address of the inference server must have the form host:port: " + address);
+        }
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1))), CONNECT_TIMEOUT_MS);
+        output = new DataOutputStream(new FastBufferedOutputStream(socket.getOutputStream()));
+        input = new DataInputStream(new FastBufferedInputStream(socket.getInputStream()));
+        numOutputs = header.outputNames.length;
+        output.writeUTF(new Gson().toJson(header));
+        output.flush();
+        String error = input.readUTF();
+        if (!error.isEmpty()) {
+            socket.close();
+            throw new IOException("The inference server could not load the model: " + error);
+        }
+    }
+
+    /**
+     * Send a minibatch to the server and wait for its predictions.
+     *
+     * @param inputs   one array per model input, with one row per example.
+     * @param sampleId sample id written in the vector lines.
+     * @return one array per model output, with one row per example.
+     * @throws IOException
+     */
+    public synchronized INDArray[] predict(INDArray[] inputs, int sampleId) throws IOException {
+        final int numExamples = inputs[0].rows();
+        float[][] inputElements = new float[inputs.length][];
+        for (int j = 0; j < inputs.length; j++) {
+            inputElements[j] = inputs[j].dup('c').data().asFloat();
+        }
+        output.writeInt(numExamples);
+        for (int i = 0; i < numExamples; i++) {
+            for (int j = 0; j < inputs.length; j++) {
+                final int rowLength = inputElements[j].length / numExamples;
+                VectorWriterBinary.writeVectorLine(output, new VectorWriter.VectorLine(sampleId, exampleId + i, j,
+                        new FloatArrayList(inputElements[j], i * rowLength, rowLength)));
+            }
+        }
+        output.flush();
+        exampleId += numExamples;
+
+        final int numPredicted = input.readInt();
+        if (numPredicted != numExamples) {
+            throw new IOException(String.format("The inference server returned %d predictions for %d examples",
+                    numPredicted, numExamples));
+        }
+        float[][] outputElements = new float[numOutputs][];
+        int[] outputLength = new int[numOutputs];
+        for (int i = 0; i < numExamples; i++) {
+            for (int j = 0; j < numOutputs; j++) {
+                VectorWriter.VectorLine line = VectorReaderBinary.readVectorLine(input);
+                final int outputIndex = line.getVectorId();
+                if (outputIndex < 0 || outputIndex >= numOutputs) {
+                    throw new IOException("The inference server returned an unknown output: " + outputIndex);
+                }
+                final FloatArrayList elements = line.getVectorElements();
+                if (outputElements[outputIndex] == null) {
+                    outputLength[outputIndex] = elements.size();
+                    outputElements[outputIndex] = new float[numExamples * elements.size()];
+                } else if (elements.size() != outputLength[outputIndex]) {
+                    throw new IOException("Mismatched length of output " + outputIndex);
+                }
+                elements.getElements(0, outputElements[outputIndex], i * outputLength[outputIndex], elements.size());
+            }
+        }
+        INDArray[] outputs = new INDArray[numOutputs];
+        for (int j = 0; j < numOutputs; j++) {
+            if (outputElements[j] == null) {
+                throw new IOException("The inference server did not return output " + j);
+            }
+            outputs[j] = Nd4j.create(outputElements[j], new int[]{numExamples, outputLength[j]}, 'c');
+        }
+        return outputs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Describes the model to load and the vectors exchanged with the server. Sent as JSON when the channel is opened.
+     */
+    public static class Header {
+        private String command;
+        private String modelName;
+        private String checkpointDir;
+        private String sampleType;
+        private String sampleName;
+        private String[] inputNames;
+        private String[] outputNames;
+
+        public Header(String command, String modelName, String checkpointDir, String sampleType, String sampleName,
+                      String[] inputNames, String[] outputNames) {
+            this.command = command;
+            this.modelName = modelName;
+            this.checkpointDir = checkpointDir;
+            this.sampleType = sampleType;
+            this.sampleName = sampleName;
+            this.inputNames = inputNames;
+            this.outputNames = outputNames;
+        }
+    }
+}
@@ -7,12 +7,14 @@ import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.*;
 
-public class PyTorchModelClient {
+/**
+ * Obtains predictions from a PyTorch model. When the address of an inference server is provided, minibatches are
+ * streamed to the server over a persistent PyTorchInferenceChannel. Otherwise, each minibatch is written to a
+ * temporary .vec file and a zerorpc process is started to run inference on it.
+ */
+public class PyTorchModelClient implements Closeable {
     private final String modelCommand;
     private final String modelName;
     private final String checkpointDir;
@@ -22,6 +24,7 @@ public class PyTorchModelClient {
     private final String sampleName;
     private final String[] vectorInputNames;
     private int batchId;
+    private final PyTorchInferenceChannel channel;
 
     enum ModelType {
         GENOTYPE,
@@ -35,6 +38,15 @@ public class PyTorchModelClient {
 
     public PyTorchModelClient(String modelName, String checkpointDir, ModelType modelType,
                               DomainDescriptor domainDescriptor, int sampleId) {
+        this(modelName, checkpointDir, modelType, domainDescriptor, sampleId, null);
+    }
+
+    /**
+     * @param serverAddress host:port of a PyTorch inference server, or null to start a zerorpc process for each
+     *                      minibatch.
+     */
+    public PyTorchModelClient(String modelName, String checkpointDir, ModelType modelType,
+                              DomainDescriptor domainDescriptor, int sampleId, String serverAddress) {
         this.modelName = modelName;
         this.checkpointDir = checkpointDir;
         switch (modelType) {
@@ -55,9 +67,22 @@ public class PyTorchModelClient {
         vectorInputNames = domainDescriptor.getComputationalGraph().getInputNames();
         this.sampleId = sampleId;
         batchId = 0;
+        if (serverAddress != null) {
+            try {
+                channel = new PyTorchInferenceChannel(serverAddress, new PyTorchInferenceChannel.Header(modelCommand,
+                        modelName, checkpointDir, sampleType, sampleName, vectorInputNames, vectorOutputNames));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to connect to the PyTorch inference server at " + serverAddress, e);
+            }
+        } else {
+            channel = null;
+        }
     }
 
     public INDArray[] predict(MultiDataSet multiDataSet, int miniBatchSize) throws IOException {
+        if (channel != null) {
+            return channel.predict(multiDataSet.getFeatures(), sampleId);
+        }
         // Create temporary file for mini batch to use for inference in genotypetensors
         File tempFile = File.createTempFile("mds" + batchId++, "vec");
         tempFile.deleteOnExit();
@@ -99,5 +124,10 @@ public class PyTorchModelClient {
         return recordVectors.getVectors();
     }
 
-
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
 }
@@ -19,10 +19,12 @@ import org.campagnelab.dl.framework.mixup.MixupMultiDataSetPreProcessor;
 import org.campagnelab.dl.framework.models.ComputationGraphSaver;
 import org.campagnelab.dl.framework.models.ModelLoader;
 import org.campagnelab.dl.framework.models.ModelPropertiesHelper;
+import org.campagnelab.dl.framework.performance.BackgroundValidator;
 import org.campagnelab.dl.framework.performance.Metric;
 import org.campagnelab.dl.framework.performance.PerformanceLogger;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
 import org.campagnelab.dl.framework.tools.arguments.ConditionRecordingTool;
+import org.campagnelab.dl.framework.training.ParallelTrainerOnCPU;
 import org.campagnelab.dl.framework.training.ParallelTrainerOnGPU;
 import org.campagnelab.dl.framework.training.SequentialTrainer;
 import org.campagnelab.dl.framework.training.Trainer;
@@ -50,6 +52,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -66,6 +70,8 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
 
     protected DomainDescriptor<RecordType> domainDescriptor;
     private String bestMetricName;
+    private double bestValue;
+    private int notImproved;
 
     protected abstract DomainDescriptor<RecordType> domainDescriptor();
 
@@ -284,19 +290,19 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
         int miniBatchNumber = 0;
         boolean init = true;
         bestScore = Double.MAX_VALUE;
-        ComputationGraphSaver saver = new ComputationGraphSaver(directory);
+        ComputationGraphSaver saver = new ComputationGraphSaver(directory, true, args().keepCheckpoints);
         int iter = 0;
         Map<Integer, Double> scoreMap = new HashMap<Integer, Double>();
         System.out.println("errorEnrichment=" + args().errorEnrichment);
 
         performanceLogger.setCondition(args().experimentalCondition);
         long numExamplesUsed = 0;
-        int notImproved = 0;
+        notImproved = 0;
 
         System.out.flush();
         PerformanceMetricDescriptor perfDescriptor = domainDescriptor.performanceDescritor();
         String validationMetricName = perfDescriptor.earlyStoppingMetric();
-        double bestValue = initializePerformance(perfDescriptor, validationMetricName);
+        bestValue = initializePerformance(perfDescriptor, validationMetricName);
         int epoch;
 
         // Assemble the training iterator from the concatenation of individual training set iterables:
@@ -305,23 +311,21 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                         filename -> domainDescriptor.getRecordIterable().apply(filename)).collect(
                         Collectors.toList()));
         Iterable<RecordType> recordIterable = Iterables.limit(inputIterable, args().numTraining);
-        final int miniBatchSize = args().miniBatchSize;
-        MultiDataSetIteratorAdapter<RecordType> adapter = new MultiDataSetIteratorAdapter<RecordType>(recordIterable,
-                miniBatchSize, domainDescriptor, args().previousModelPretraining, args().eosIndex) {
-            @Override
-            public String getBasename() {
-                return buildBaseName(args().trainingSets);
-            }
-        };
+        MultiDataSetIteratorAdapter<RecordType> adapter = newAdapter(recordIterable, args().trainingSets);
 
         boolean useCache = !args().ignoreCache;
+        if (!useCache) {
+            adapter.setNumThreads(args().mappingThreads, !args().unorderedMapping);
+        }
         MultiDataSetIterator iterator = useCache ? cacheHelper.cache(domainDescriptor,
                 adapter, adapter.getBasename(),
-                args().numTraining, args().miniBatchSize) :
+                args().numTraining, args().miniBatchSize, args().trainingSets, args().cacheThreads,
+                records -> newAdapter(records, args().trainingSets)) :
                 adapter;
-
-        if (args().memoryCacheTraining()) {
-            iterator = new FullyInMemoryCache(iterator);
+        final boolean memoryCache = args().memoryCacheTraining();
+        iterator = CacheHelper.trainingIterator(iterator, args().shuffleCache, args().seed,
+                args().shuffleBlockSize, memoryCache);
+        if (iterator instanceof FullyInMemoryCache) {
             // force loading immediately:
             LOG.warn("Loading training set in memory.");
             iterator.reset();
@@ -361,85 +365,181 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
 
         Trainer trainer = args().parallel ? new ParallelTrainerOnGPU(computationGraph, args().miniBatchSize,
                 (int) numRecords) :
-                new SequentialTrainer();
+                args().cpuWorkers > 1 ? new ParallelTrainerOnCPU(args().cpuWorkers, args().cpuSyncMode,
+                        args().averagingFrequency, args().seed) :
+                        new SequentialTrainer();
         trainer.setLogSpeed(args().trackingStyle == TrainingArguments.TrackStyle.SPEED);
         // only wrap the iterator in async for sequential trainer:
         iterator=args().parallel?iterator:WrapInAsyncAttach.wrap(iterator);
-        for (epoch = 0; epoch < args().maxEpochs; epoch++) {
-            ProgressLogger pg = new ProgressLogger(LOG);
-            pg.itemsName = "mini-batch";
-            iter = 0;
-            pg.expectedUpdates = miniBatchesPerEpoch; // one iteration processes miniBatchIterator elements.
-            if (args().trackingStyle == TrainingArguments.TrackStyle.SPEED) {
-                pg.start();
-            }
-            // train the graph with the content of the iterator:
-            numExamplesUsed += trainer.train(computationGraph, iterator, pg);
-
-            //save latest after the end of an epoch:
-            double trainingScore = trainer.getScore();
-            saver.saveLatestModel(computationGraph, trainingScore);
-            writeProperties();
-            writeBestScoreFile();
-            if ((epoch + 1) % args().validateEvery == 0) {
-
-                // estimate all performance metrics. Note that we do a pass over the validation set for each metric:
-                // (avoid using several metrics).
-                double validationMetricValue = initializePerformance(perfDescriptor, perfDescriptor.earlyStoppingMetric());
-                DoubleArrayList metricValues = new DoubleArrayList();
-
-                validationIterator.reset();
-                assert validationIterator.hasNext() : "validation iterator must have datasets. Make sure the latest release of Goby is installed in the maven repo.";
-                final double[] performanceValues = perfDescriptor.estimateMetric(computationGraph,
-                        validationIterator, args().numValidation, perfDescriptor.performanceMetrics());
-                metricValues = DoubleArrayList.wrap(performanceValues);
-
-                validationMetricValue = findMetricValue(perfDescriptor.earlyStoppingMetric(),
-                        perfDescriptor.performanceMetrics(),
-                        performanceValues);
-
-                performanceLogger.logMetrics("epochs", numExamplesUsed, epoch, metricValues.toDoubleArray());
-                performanceLogger.logTrainingScore("epochs", epoch, trainingScore);
-                if (args().trackingStyle == TrainingArguments.TrackStyle.PERFS) {
-                    performanceLogger.show("epochs");
+        BackgroundValidator validator = args().validationThreads > 0 ? new BackgroundValidator(perfDescriptor,
+                validationIterator, args().numValidation, args().validationThreads) : null;
+        EpochValidation pendingValidation = null;
+        try {
+            for (epoch = 0; epoch < args().maxEpochs; epoch++) {
+                ProgressLogger pg = new ProgressLogger(LOG);
+                pg.itemsName = "mini-batch";
+                iter = 0;
+                pg.expectedUpdates = miniBatchesPerEpoch; // one iteration processes miniBatchIterator elements.
+                if (args().trackingStyle == TrainingArguments.TrackStyle.SPEED) {
+                    pg.start();
                 }
-                //System.out.println(metricValues);
-                if (!Double.isNaN(bestValue) &&
-                        (perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue > bestValue) ||
-                        (!perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue < bestValue)) {
-                    saver.saveModel(computationGraph, "best" + validationMetricName);
-                    bestValue = validationMetricValue;
-
-                    performanceLogger.logMetrics(bestMetricName, numExamplesUsed, epoch, metricValues.toDoubleArray());
-                    notImproved = 0;
-                } else {
-                    notImproved++;
-                    decreaseLearningRate(computationGraph);
-
+                // train the graph with the content of the iterator:
+                numExamplesUsed += trainer.train(computationGraph, iterator, pg);
+
+                //save latest after the end of an epoch:
+                double trainingScore = trainer.getScore();
+                saver.saveLatestModel(computationGraph, trainingScore);
+                writeProperties();
+                writeBestScoreFile();
+                if (validator != null && pendingValidation != null) {
+                    // the validation of a previous epoch ran while this epoch trained, act on its results now:
+                    EpochValidation previous = pendingValidation;
+                    pendingValidation = null;
+                    if (recordValidation(perfDescriptor, saver, previous.snapshot, previous.epoch,
+                            previous.numExamplesUsed, previous.trainingScore, waitFor(previous.values))) {
+                        break;
+                    }
                 }
-                if (Double.isNaN(bestValue) || notImproved > args().stopWhenEpochsWithoutImprovement) {
-                    // we have not improved after earlyStopCondition epoch, or got NaN, time to stop.
-
-                    break;
+                if ((epoch + 1) % args().validateEvery == 0) {
+                    if (validator != null) {
+                        // validate a snapshot of the model while the next epoch trains:
+                        ComputationGraph snapshot = computationGraph.clone();
+                        pendingValidation = new EpochValidation(epoch, numExamplesUsed, trainingScore, snapshot,
+                                validator.validate(snapshot, perfDescriptor.performanceMetrics()));
+                    } else {
+                        // estimate all performance metrics. Note that we do a pass over the validation set for each metric:
+                        // (avoid using several metrics).
+                        validationIterator.reset();
+                        assert validationIterator.hasNext() : "validation iterator must have datasets. Make sure the latest release of Goby is installed in the maven repo.";
+                        final double[] performanceValues = perfDescriptor.estimateMetric(computationGraph,
+                                validationIterator, args().numValidation, perfDescriptor.performanceMetrics());
+                        if (recordValidation(perfDescriptor, saver, computationGraph, epoch, numExamplesUsed,
+                                trainingScore, performanceValues)) {
+                            break;
+                        }
+                    }
+                }
+                if (args().trackingStyle == TrainingArguments.TrackStyle.SPEED) {
+                    pg.stop();
+                    pgEpoch.updateAndDisplay();
                 }
+                if (!args().parallel) {
+                    // don't reset when running in parallel. ParallelWrapper takes care of this.
+                    iterator.reset();    //Reset iterator for another epoch
+                }
+                performanceLogger.write();
+                //addCustomOption("--error-enrichment", args().errorEnrichment);
+                //addCustomOption("--num-errors-added", args().numErrorsAdded);
+            }
+            if (pendingValidation != null) {
+                recordValidation(perfDescriptor, saver, pendingValidation.snapshot, pendingValidation.epoch,
+                        pendingValidation.numExamplesUsed, pendingValidation.trainingScore,
+                        waitFor(pendingValidation.values));
             }
-            if (args().trackingStyle == TrainingArguments.TrackStyle.SPEED) {
-                pg.stop();
-                pgEpoch.updateAndDisplay();
+        } finally {
+            if (validator != null) {
+                validator.close();
             }
-            if (!args().parallel) {
-                // don't reset when running in parallel. ParallelWrapper takes care of this.
-                iterator.reset();    //Reset iterator for another epoch
+            // wait for the last models to be written, also when training fails:
+            saver.close();
+            adapter.close();
+            if (trainer instanceof ParallelTrainerOnCPU) {
+                ((ParallelTrainerOnCPU) trainer).close();
             }
-            performanceLogger.write();
-            //addCustomOption("--error-enrichment", args().errorEnrichment);
-            //addCustomOption("--num-errors-added", args().numErrorsAdded);
         }
         pgEpoch.stop();
         return new EarlyStoppingResult<ComputationGraph>(EarlyStoppingResult.TerminationReason.EpochTerminationCondition,
                 "not early stopping", scoreMap, performanceLogger.getBestEpoch(bestMetricName), bestScore, args().maxEpochs, computationGraph);
     }
 
+    /**
+     * Log the performance of the model after an epoch, save the model when it is the best so far, and decrease the
+     * learning rate of the model being trained when performance did not improve.
+     *
+     * @param validated the model that was validated, which is saved when performance improved.
+     * @return true when training must stop.
+     */
+    private boolean recordValidation(PerformanceMetricDescriptor perfDescriptor, ComputationGraphSaver saver,
+                                     ComputationGraph validated, int epoch, long numExamplesUsed,
+                                     double trainingScore, double[] performanceValues) throws IOException {
+        String validationMetricName = perfDescriptor.earlyStoppingMetric();
+        DoubleArrayList metricValues = DoubleArrayList.wrap(performanceValues);
+
+        double validationMetricValue = findMetricValue(perfDescriptor.earlyStoppingMetric(),
+                perfDescriptor.performanceMetrics(),
+                performanceValues);
+
+        performanceLogger.logMetrics("epochs", numExamplesUsed, epoch, metricValues.toDoubleArray());
+        performanceLogger.logTrainingScore("epochs", epoch, trainingScore);
+        if (args().trackingStyle == TrainingArguments.TrackStyle.PERFS) {
+            performanceLogger.show("epochs");
+        }
+        //System.out.println(metricValues);
+        if (!Double.isNaN(bestValue) &&
+                (perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue > bestValue) ||
+                (!perfDescriptor.largerValueIsBetterPerformance(validationMetricName) && validationMetricValue < bestValue)) {
+            saver.saveModel(validated, "best" + validationMetricName);
+            bestValue = validationMetricValue;
+
+            performanceLogger.logMetrics(bestMetricName, numExamplesUsed, epoch, metricValues.toDoubleArray());
+            notImproved = 0;
+        } else {
+            notImproved++;
+            decreaseLearningRate(computationGraph);
+
+        }
+        // we have not improved after earlyStopCondition epoch, or got NaN, time to stop:
+        return Double.isNaN(bestValue) || notImproved > args().stopWhenEpochsWithoutImprovement;
+    }
+
+    /**
+     * A snapshot of the model after an epoch, validated in the background.
+     */
+    private static class EpochValidation {
+        final int epoch;
+        final long numExamplesUsed;
+        final double trainingScore;
+        final ComputationGraph snapshot;
+        final Future<double[]> values;
+
+        EpochValidation(int epoch, long numExamplesUsed, double trainingScore, ComputationGraph snapshot,
+                        Future<double[]> values) {
+            this.epoch = epoch;
+            this.numExamplesUsed = numExamplesUsed;
+            this.trainingScore = trainingScore;
+            this.snapshot = snapshot;
+            this.values = values;
+        }
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private MultiDataSetIteratorAdapter<RecordType> newAdapter(Iterable<RecordType> records, List<String> trainingSets) {
+        try {
+            return new MultiDataSetIteratorAdapter<RecordType>(records,
+                    args().miniBatchSize, domainDescriptor, args().previousModelPretraining, args().eosIndex) {
+                @Override
+                public String getBasename() {
+                    return buildBaseName(trainingSets);
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create iterator over training records.", e);
+        }
+    }
+
     private void decreaseLearningRate(ComputationGraph computationGraph) {
 
             for (Layer layer : computationGraph.getLayers()) {
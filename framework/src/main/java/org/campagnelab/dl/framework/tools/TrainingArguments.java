@@ -3,6 +3,7 @@ package org.campagnelab.dl.framework.tools;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import org.campagnelab.dl.framework.tools.arguments.RecordingToolArguments;
+import org.campagnelab.dl.framework.training.ParallelTrainerOnCPU;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -65,6 +66,10 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--previous-model-path", description = "A model path to load parameters to continue training.")
     public String previousModelPath;
 
+    @Parameter(names = "--keep-checkpoints", description = "Number of versions of each saved model (e.g., latest, bestAUC) to keep " +
+            "in the model directory. Previous versions are renamed with a numbered suffix (.1 is the most recent).")
+    public int keepCheckpoints = 1;
+
     @Parameter(names = "--previous-model-name", description = "The name of the previous model to load (i.e., \"bestAUC\", \"best\" or \"latest\" and continue training.")
     public String previousModelName = "bestAUC";
 
@@ -74,6 +79,18 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--ignore-cache", description = "Ignore the cache.")
     public boolean ignoreCache;
 
+    @Parameter(names = "--cache-threads", description = "Number of threads used to build the training cache. When larger than one, " +
+            "the training sets are split in shards that are mapped in parallel.")
+    public int cacheThreads = 1;
+
+    @Parameter(names = "--mapping-threads", description = "Number of threads used to map records to features and labels when " +
+            "training without a cache.")
+    public int mappingThreads = 1;
+
+    @Parameter(names = "--unordered-mapping", description = "When mapping with several threads, return minibatches as soon as " +
+            "they are mapped, rather than in the order of the records.")
+    public boolean unorderedMapping;
+
     @Parameter(names = "--memory-cache", description = "Name of the datasets to fully cache in memory. Use training,validation to " +
             "cache both training and validation set, or validation only when the training set is too large to fit fully in memory. " +
             "Can speed up training, but requires the training set to be small enough to fit in the GPU memory. The default caches" +
@@ -115,6 +132,19 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--parallel", description = "When provided, trains on several GPUs in parallel.")
     public boolean parallel;
 
+    @Parameter(names = "--cpu-workers", description = "When larger than one, trains this number of replicas of the model " +
+            "in parallel on the CPU, each with an equal share of the cores.")
+    public int cpuWorkers = 1;
+
+    @Parameter(names = "--cpu-sync", description = "How replicas trained on the CPU are kept in sync: AVERAGING averages " +
+            "parameters every --averaging-frequency minibatches per replica, GRADIENTS averages the gradients of each " +
+            "round of minibatches before updating the model.")
+    public ParallelTrainerOnCPU.SyncMode cpuSyncMode = ParallelTrainerOnCPU.SyncMode.AVERAGING;
+
+    @Parameter(names = "--averaging-frequency", description = "Number of minibatches fitted by each replica between two " +
+            "parameter averaging steps, when training on the CPU with --cpu-sync AVERAGING.")
+    public int averagingFrequency = 3;
+
     protected abstract String defaultArchitectureClassname();
 
     @Parameter(names = "--build-cache-then-stop", description = "When provided, build the caches, then immediately stop.")
@@ -135,6 +165,11 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = {"-e", "--validate-every"}, description = "Validate only every e epochs when using early stopping. This can save time if training is much faster than evaluation.")
     public int validateEvery = 1;
 
+    @Parameter(names = "--validation-threads", description = "When larger than zero, validate a snapshot of the model on this " +
+            "number of threads while the next epoch trains. The validation set is kept in memory. Decisions that depend on " +
+            "validation (saving the best model, decreasing the learning rate, early stopping) are then taken one epoch later.")
+    public int validationThreads = 0;
+
     @Parameter(names = {"--error-enrichment"}, description = "When set, train with error enrichment.)")
     public boolean errorEnrichment = false;
     @Parameter(names = {"--num-errors-added"}, description = "Number of errors added to each mini-batch (only used when training with error enrichment).)")
@@ -195,5 +230,14 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--mixup-alpha", description = "When provided, enable mixup with alpha value in argument.")
     public Double mixupAlpha;
 
+    @Parameter(names = "--shuffle-cache", description = "When provided, visit the training minibatches in a new random order each epoch. " +
+            "The order is derived from --random-seed and the epoch number. Requires a training cache in the indexed format. " +
+            "Disables --memory-cache training, which would replay the first epoch.")
+    public boolean shuffleCache = false;
+
+    @Parameter(names = "--shuffle-block-size", description = "Number of consecutive examples kept together when --shuffle-cache is used. " +
+            "When larger than zero, minibatches are re-formed from shuffled blocks of this size. Zero (default) shuffles whole cached minibatches.")
+    public int shuffleBlockSize = 0;
+
 }
 
@@ -2,6 +2,7 @@ package org.campagnelab.dl.framework.tools;
 
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
@@ -44,6 +45,14 @@ public class VectorReader implements Closeable {
 
     public VectorReader(String inputPath, int sampleId, String[] vectorNames,
                         boolean assertExampleIds, boolean returnExampleIds) throws IOException {
+        this(inputPath, sampleId, vectorNames, assertExampleIds, returnExampleIds, false);
+    }
+
+    /**
+     * @param memoryMapped when true, binary .vec files are memory-mapped instead of read through a buffer.
+     */
+    public VectorReader(String inputPath, int sampleId, String[] vectorNames,
+                        boolean assertExampleIds, boolean returnExampleIds, boolean memoryMapped) throws IOException {
         String propertiesFileName = FilenameUtils.removeExtension(inputPath) + ".vecp";
         propertiesReader = new JsonReader(new InputStreamReader(new FileInputStream(propertiesFileName),
                 "UTF-8"));
@@ -53,7 +62,7 @@ public class VectorReader implements Closeable {
             case "gzipped+text":
                 throw new UnsupportedOperationException();
             case "binary":
-                delegateReader = new VectorReaderBinary(inputPath, vectorProperties);
+                delegateReader = new VectorReaderBinary(inputPath, vectorProperties, memoryMapped);
                 break;
             default:
                 throw new UnsupportedOperationException();
@@ -145,8 +154,9 @@ public class VectorReader implements Closeable {
                 }
                 Integer vectorIndexInArray = vectorIds.get(vectorLine.getVectorId());
                 if ((vectorIndexInArray != null) && vectorLine.getSampleId() == sampleId) {
-                    float[] vectorElementsArray = new float[vectorLine.getVectorElements().size()];
-                    vectorElementsArray = vectorLine.getVectorElements().toArray(vectorElementsArray);
+                    FloatArrayList vectorElements = vectorLine.getVectorElements();
+                    float[] vectorElementsArray = vectorElements.elements().length == vectorElements.size() ?
+                            vectorElements.elements() : vectorElements.toFloatArray();
                     int[] vectorShape = vectorProperties.getVectors()[vectorLine.getVectorId()].getVectorDimension();
                     vectorArrays[vectorIndexInArray] = Nd4j.create(vectorElementsArray, vectorShape, 'c');
                     filledSlots++;
@@ -1,35 +1,134 @@
 package org.campagnelab.dl.framework.tools;
 
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
-import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * Reads vector lines in the binary .vec format (see VectorWriterBinary). The elements of a vector are transferred
+ * as one block from a buffer filled from the file channel. In memory-mapped mode, the file is mapped in regions of
+ * at most 2GB and lines are decoded from the mapped region instead of being read into a buffer first. The format is
+ * big-endian while ND4J buffers use the native byte order, so in both modes the elements of each line are copied
+ * into a new array; the mapped region is never wrapped in place.
+ */
 public class VectorReaderBinary extends VectorReaderBase {
-    private DataInputStream inputStream;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Size limit of one mapped region. A single MappedByteBuffer cannot address more than 2GB.
+     */
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean memoryMapped;
+    private ByteBuffer buffer;
+    /**
+     * Position in the file of the first byte of the buffer (memory-mapped mode).
+     */
+    private long regionStart;
 
     public VectorReaderBinary(String inputPath, VectorWriter.VectorProperties vectorProperties) throws IOException {
+        this(inputPath, vectorProperties, false);
+    }
+
+    /**
+     * @param memoryMapped when true, map the file in memory instead of reading it through a buffer.
+     */
+    public VectorReaderBinary(String inputPath, VectorWriter.VectorProperties vectorProperties,
+                              boolean memoryMapped) throws IOException {
         super(inputPath, vectorProperties);
-        inputStream = new DataInputStream(new FastBufferedInputStream(new FileInputStream(inputPath)));
+        file = new RandomAccessFile(inputPath, "r");
+        channel = file.getChannel();
+        this.memoryMapped = memoryMapped;
+        if (memoryMapped) {
+            map(0);
+        } else {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.flip();
+        }
     }
 
     @Override
     public VectorWriter.VectorLine getNextVectorLine() throws IOException {
-        int sampleId = inputStream.readInt();
-        long exampleId = inputStream.readLong();
-        int vectorId = inputStream.readInt();
-        int numElements = inputStream.readInt();
-        FloatArrayList vectorElements = new FloatArrayList(numElements);
-        for (int i = 0; i < numElements; i++) {
-            vectorElements.add(inputStream.readFloat());
+        ensureAvailable(VectorWriterBinary.LINE_HEADER_SIZE);
+        int sampleId = buffer.getInt();
+        long exampleId = buffer.getLong();
+        int vectorId = buffer.getInt();
+        int numElements = buffer.getInt();
+        float[] elements = new float[numElements];
+        int read = 0;
+        while (read < numElements) {
+            ensureAvailable(4);
+            int n = Math.min(buffer.remaining() / 4, numElements - read);
+            buffer.asFloatBuffer().get(elements, read, n);
+            buffer.position(buffer.position() + n * 4);
+            read += n;
+        }
+        return new VectorWriter.VectorLine(sampleId, exampleId, vectorId, FloatArrayList.wrap(elements));
+    }
+
+    /**
+     * Make sure that at least numBytes can be read from the buffer.
+     *
+     * @throws EOFException when the end of the file is reached before numBytes could be read.
+     */
+    private void ensureAvailable(int numBytes) throws IOException {
+        if (buffer.remaining() >= numBytes) {
+            return;
         }
-        return new VectorWriter.VectorLine(sampleId, exampleId, vectorId, vectorElements);
+        if (memoryMapped) {
+            // map the next region, starting at the current line:
+            long position = regionStart + buffer.position();
+            if (position + numBytes > channel.size()) {
+                throw new EOFException();
+            }
+            map(position);
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < numBytes) {
+            if (channel.read(buffer) == -1) {
+                buffer.flip();
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private void map(long position) throws IOException {
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(channel.size() - position, MAX_REGION_SIZE));
+        regionStart = position;
+        buffer = region;
+    }
+
+    /**
+     * Read a vector line in the binary format.
+     *
+     * @param input where to read the line from.
+     * @return the line.
+     * @throws IOException when the line cannot be read (EOFException at the end of the input).
+     */
+    public static VectorWriter.VectorLine readVectorLine(DataInput input) throws IOException {
+        int sampleId = input.readInt();
+        long exampleId = input.readLong();
+        int vectorId = input.readInt();
+        int numElements = input.readInt();
+        byte[] bytes = new byte[numElements * 4];
+        input.readFully(bytes);
+        float[] elements = new float[numElements];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(elements);
+        return new VectorWriter.VectorLine(sampleId, exampleId, vectorId, FloatArrayList.wrap(elements));
     }
 
     @Override
     public void close() throws IOException {
-        inputStream.close();
+        file.close();
     }
 }
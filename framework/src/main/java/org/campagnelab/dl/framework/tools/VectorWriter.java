@@ -3,7 +3,6 @@ package org.campagnelab.dl.framework.tools;
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonWriter;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
-import org.nd4j.linalg.api.iter.NdIndexIterator;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 
@@ -105,13 +104,15 @@ public abstract class VectorWriter implements Closeable {
         if (startExampleIndex + numExamplesInBatch > numRecords) {
             throw new IllegalArgumentException("Example ID exceeds number of records");
         }
+        // the elements of each array are copied once for the minibatch, and each line is written from its row:
+        Map<INDArray, ArrayElements> elementsOfArray = new IdentityHashMap<>();
         for (int currExampleInBatch = 0; currExampleInBatch < numExamplesInBatch; currExampleInBatch++) {
             int sampleMdsIndex = 0;
             for (MultiDataSet multiDataSetAtSample : multiDataSetList) {
                 writeLinesForExample(multiDataSetAtSample, inputIndices, inputNames, sampleMdsIndex,
-                        startExampleIndex, currExampleInBatch, numExamplesInBatch, true);
+                        startExampleIndex, currExampleInBatch, numExamplesInBatch, true, elementsOfArray);
                 writeLinesForExample(multiDataSetAtSample, outputIndices, outputNames, sampleMdsIndex,
-                        startExampleIndex, currExampleInBatch, numExamplesInBatch, false);
+                        startExampleIndex, currExampleInBatch, numExamplesInBatch, false, elementsOfArray);
                 sampleMdsIndex++;
             }
         }
@@ -131,7 +132,7 @@ public abstract class VectorWriter implements Closeable {
     private void writeLinesForExample(MultiDataSet multiDataSet, int[] indices, String[] names,
                                       int sampleIndex, long startExampleIndex,
                                       int currExampleIndexInBatch, int numExamplesInBatch,
-                                      boolean isForFeatures) {
+                                      boolean isForFeatures, Map<INDArray, ArrayElements> elementsOfArray) {
         for (int index : indices) {
             INDArray allValuesAtIndex = isForFeatures
                     ? multiDataSet.getFeatures(index)
@@ -139,13 +140,14 @@ public abstract class VectorWriter implements Closeable {
             if (allValuesAtIndex.rows() != numExamplesInBatch) {
                 throw new RuntimeException("Mismatched mds dimensions for batch size");
             }
-            INDArray currExampleValuesAtIndex = allValuesAtIndex.getRow(currExampleIndexInBatch);
+            ArrayElements arrayElements = elementsOfArray.computeIfAbsent(allValuesAtIndex,
+                    array -> new ArrayElements(getShape(array.getRow(0)), getVectorElementsFromArray(array)));
             String vectorName = names[index];
             int vectorId;
             if (vectorNameToId.get(vectorName) == null) {
                 vectorNameToId.put(vectorName, currVectorIndex);
                 vectorIdToName.put(currVectorIndex, vectorName);
-                vectorIdToDimension.put(currVectorIndex, getShape(currExampleValuesAtIndex));
+                vectorIdToDimension.put(currVectorIndex, arrayElements.rowShape);
 
                 vectorId = currVectorIndex++;
             } else {
@@ -155,22 +157,45 @@ public abstract class VectorWriter implements Closeable {
                     throw new RuntimeException(String.format("Vector name mismatch for vector id %d", vectorId));
                 }
                 int[] vectorCachedDimensions = vectorIdToDimension.get(vectorId);
-                if (!Arrays.equals(getShape(currExampleValuesAtIndex), vectorCachedDimensions)) {
+                if (!Arrays.equals(arrayElements.rowShape, vectorCachedDimensions)) {
                     throw new RuntimeException(String.format("Vector dimension mismatch for vector id %d", vectorId));
                 }
             }
-            writeVectorLine(new VectorLine(sampleIndex, startExampleIndex + currExampleIndexInBatch, vectorId,
-                        getVectorElementsFromArray(currExampleValuesAtIndex)));
+            final int rowLength = arrayElements.elements.length / numExamplesInBatch;
+            writeVectorLine(sampleIndex, startExampleIndex + currExampleIndexInBatch, vectorId,
+                    arrayElements.elements, currExampleIndexInBatch * rowLength, rowLength);
         }
     }
 
-    private FloatArrayList getVectorElementsFromArray(INDArray vectorArray) {
-        FloatArrayList vectorElements = new FloatArrayList(vectorArray.length());
-        NdIndexIterator ndIndexIterator = new NdIndexIterator('c', vectorArray.shape());
-        while (ndIndexIterator.hasNext()) {
-            vectorElements.add(vectorArray.getFloat(ndIndexIterator.next()));
+    /**
+     * Return the elements of an array in row-major order. Rows of a minibatch array are contiguous in the result.
+     */
+    static float[] getVectorElementsFromArray(INDArray vectorArray) {
+        INDArray contiguous = vectorArray.ordering() == 'c' && vectorArray.offset() == 0 &&
+                vectorArray.length() == vectorArray.data().length() ? vectorArray : vectorArray.dup('c');
+        return contiguous.data().asFloat();
+    }
+
+    /**
+     * Write a vector line whose elements are stored in a float array. Writers that can transfer the elements as a
+     * block override this method.
+     *
+     * @param elements the array that contains the elements of the vector.
+     * @param offset   index of the first element of the vector in the array.
+     * @param length   number of elements in the vector.
+     */
+    public void writeVectorLine(int sampleId, long exampleId, int vectorId, float[] elements, int offset, int length) {
+        writeVectorLine(new VectorLine(sampleId, exampleId, vectorId, new FloatArrayList(elements, offset, length)));
+    }
+
+    private static class ArrayElements {
+        final int[] rowShape;
+        final float[] elements;
+
+        ArrayElements(int[] rowShape, float[] elements) {
+            this.rowShape = rowShape;
+            this.elements = elements;
         }
-        return vectorElements;
     }
 
     public abstract String getFileType();
@@ -1,25 +1,38 @@
 package org.campagnelab.dl.framework.tools;
 
-import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
 
-import java.io.DataOutputStream;
+import java.io.DataOutput;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * Writes vector lines in the binary .vec format. Each line is a header (sample id, example id, vector id and number
+ * of elements) followed by the elements as 4-byte floats, all in big-endian order. Lines are encoded into a direct
+ * buffer, with the elements of a vector transferred as one block, and the buffer is written to the file channel
+ * when full.
+ */
 public class VectorWriterBinary extends VectorWriter {
-    private DataOutputStream outputStream;
+    static final int LINE_HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private FileOutputStream outputStream;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
     public VectorWriterBinary(String basename) throws IOException {
         super(basename);
-        outputStream = new DataOutputStream(
-                new FastBufferedOutputStream(new FileOutputStream(basename + ".vec"))
-        );
+        outputStream = new FileOutputStream(basename + ".vec");
+        channel = outputStream.getChannel();
     }
 
     @Override
     public void close() throws IOException {
         super.close();
+        flushBuffer();
         outputStream.close();
     }
 
@@ -30,16 +43,62 @@ public class VectorWriterBinary extends VectorWriter {
 
     @Override
     public void writeVectorLine(VectorLine vectorLine) {
+        final FloatArrayList elements = vectorLine.getVectorElements();
+        writeVectorLine(vectorLine.getSampleId(), vectorLine.getExampleId(), vectorLine.getVectorId(),
+                elements.elements(), 0, elements.size());
+    }
+
+    @Override
+    public void writeVectorLine(int sampleId, long exampleId, int vectorId, float[] elements, int offset, int length) {
         try {
-            outputStream.writeInt(vectorLine.getSampleId());
-            outputStream.writeLong(vectorLine.getExampleId());
-            outputStream.writeInt(vectorLine.getVectorId());
-            outputStream.writeInt(vectorLine.getVectorElements().size());
-            for (float vectorElement : vectorLine.getVectorElements()) {
-                outputStream.writeFloat(vectorElement);
+            ensureCapacity(LINE_HEADER_SIZE);
+            buffer.putInt(sampleId);
+            buffer.putLong(exampleId);
+            buffer.putInt(vectorId);
+            buffer.putInt(length);
+            int written = 0;
+            while (written < length) {
+                ensureCapacity(4);
+                int n = Math.min(buffer.remaining() / 4, length - written);
+                buffer.asFloatBuffer().put(elements, offset + written, n);
+                buffer.position(buffer.position() + n * 4);
+                written += n;
             }
         } catch (IOException e) {
             throw new UncheckedIOException("Unable to write bytes for vector line to file", e);
         }
     }
+
+    private void ensureCapacity(int numBytes) throws IOException {
+        if (buffer.remaining() < numBytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write a vector line in the binary format. Also used to frame vectors sent to an inference server, see
+     * PyTorchInferenceChannel.
+     *
+     * @param output     where to write the line.
+     * @param vectorLine the line to write.
+     * @throws IOException
+     */
+    public static void writeVectorLine(DataOutput output, VectorLine vectorLine) throws IOException {
+        final FloatArrayList elements = vectorLine.getVectorElements();
+        ByteBuffer line = ByteBuffer.allocate(LINE_HEADER_SIZE + elements.size() * 4);
+        line.putInt(vectorLine.getSampleId());
+        line.putLong(vectorLine.getExampleId());
+        line.putInt(vectorLine.getVectorId());
+        line.putInt(elements.size());
+        line.asFloatBuffer().put(elements.elements(), 0, elements.size());
+        output.write(line.array());
+    }
 }
@@ -0,0 +1,284 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.iterators.MDSHelper;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.nativeblas.NativeOps;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trainer that trains replicas of the graph in parallel on the cores of a CPU. Minibatches are read in rounds of one
+ * minibatch per worker. Each worker holds a replica of the graph and always runs on the same thread, seeded from the
+ * random seed and the index of the worker, so that runs with the same seed and number of workers are reproducible.
+ * Replicas are kept in sync by one of two modes:
+ * <ul>
+ * <li>AVERAGING: each replica fits its own minibatches and parameters and updater state are averaged every few
+ * rounds (see ParallelWrapper), weighted by the number of examples each replica fitted since the last average.</li>
+ * <li>GRADIENTS: each replica computes the gradient of its minibatch, gradients are summed and applied once per
+ * round to the graph, with the updater normalizing by the number of examples of the round. The parameters of the
+ * graph are then copied to the replicas. This is equivalent to training sequentially with minibatches numWorkers
+ * times larger.</li>
+ * </ul>
+ * The graph is the replica of the first worker, and holds the averaged parameters when train returns.
+ * <p>
+ * While training, the native operations of each worker use an equal share of the cores. The previous number of
+ * native threads is restored when train returns, so that validation and prediction use all the cores.
+ * The worker threads run until the trainer is closed.
+ */
+public class ParallelTrainerOnCPU implements Trainer, AutoCloseable {
+    static private Logger LOG = LoggerFactory.getLogger(ParallelTrainerOnCPU.class);
+
+    public enum SyncMode {
+        AVERAGING,
+        GRADIENTS
+    }
+
+    private final int numWorkers;
+    private final SyncMode syncMode;
+    private final int averagingFrequency;
+    private final int coresPerWorker;
+    private final ExecutorService[] workers;
+    private ComputationGraph[] replicas;
+    /**
+     * Number of examples fitted by each replica since parameters were last averaged.
+     */
+    private long[] numExamplesFitted;
+    private boolean logSpeed;
+    double score;
+    int n;
+
+    /**
+     * @param numWorkers         number of replicas trained in parallel.
+     * @param syncMode           how replicas are kept in sync.
+     * @param averagingFrequency number of rounds between two averaging steps, when averaging parameters.
+     * @param seed               random seed.
+     */
+    public ParallelTrainerOnCPU(int numWorkers, SyncMode syncMode, int averagingFrequency, long seed) {
+        this.numWorkers = Math.max(1, numWorkers);
+        this.syncMode = syncMode;
+        this.averagingFrequency = Math.max(1, averagingFrequency);
+        // The JVM cannot pin threads to cores. Instead, give each worker an equal share of the cores for its
+        // native operations while training, so that replicas do not compete for the same cores:
+        coresPerWorker = Math.max(1, Runtime.getRuntime().availableProcessors() / this.numWorkers);
+        LOG.info("Training with {} CPU workers, {} cores per worker, synchronized by {}.", this.numWorkers,
+                coresPerWorker, syncMode);
+        workers = new ExecutorService[this.numWorkers];
+        for (int workerIndex = 0; workerIndex < this.numWorkers; workerIndex++) {
+            final String name = "cpu-trainer-" + workerIndex;
+            workers[workerIndex] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+            final long workerSeed = seed + workerIndex;
+            try {
+                // the random generator of ND4J is local to each thread (e.g., for dropout):
+                waitFor(workers[workerIndex].submit(() -> Nd4j.getRandom().setSeed(workerSeed)));
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public int train(ComputationGraph graph, MultiDataSetIterator iterator, ProgressLogger progressLogger) {
+        score = 0;
+        n = 0;
+        final NativeOps nativeOps = NativeOpsHolder.getInstance().getDeviceNativeOps();
+        final int previousNumThreads = nativeOps.ompGetMaxThreads();
+        nativeOps.setOmpNumThreads(coresPerWorker);
+        try {
+            return trainReplicas(graph, iterator, progressLogger);
+        } finally {
+            nativeOps.setOmpNumThreads(previousNumThreads);
+        }
+    }
+
+    private int trainReplicas(ComputationGraph graph, MultiDataSetIterator iterator, ProgressLogger progressLogger) {
+        int numExamplesUsed = 0;
+        int numNanFoundConsecutively = 0;
+        // replicate the graph at each epoch, since the learning rates of the graph may have changed since the last one:
+        replicas = new ComputationGraph[numWorkers];
+        replicas[0] = graph;
+        for (int workerIndex = 1; workerIndex < numWorkers; workerIndex++) {
+            replicas[workerIndex] = graph.clone();
+        }
+        numExamplesFitted = new long[numWorkers];
+        int round = 0;
+        List<MultiDataSet> minibatches = new ArrayList<>(numWorkers);
+        List<Future<Double>> scores = new ArrayList<>(numWorkers);
+        while (iterator.hasNext()) {
+            minibatches.clear();
+            while (minibatches.size() < numWorkers && iterator.hasNext()) {
+                minibatches.add(iterator.next());
+            }
+            scores.clear();
+            for (int workerIndex = 0; workerIndex < minibatches.size(); workerIndex++) {
+                final ComputationGraph replica = replicas[workerIndex];
+                final MultiDataSet ds = minibatches.get(workerIndex);
+                scores.add(workers[workerIndex].submit(() -> step(replica, ds)));
+            }
+            int numExamples = 0;
+            for (int workerIndex = 0; workerIndex < minibatches.size(); workerIndex++) {
+                double score = waitFor(scores.get(workerIndex));
+                if (score != score) {
+                    // NaN
+                    numNanFoundConsecutively++;
+                } else {
+                    numNanFoundConsecutively = 0;
+                    this.score += score;
+                    this.n++;
+                }
+                final int numExamplesOfMinibatch = minibatches.get(workerIndex).getFeatures(0).size(0);
+                numExamples += numExamplesOfMinibatch;
+                numExamplesFitted[workerIndex] += numExamplesOfMinibatch;
+                if (logSpeed) {
+                    progressLogger.update();
+                }
+            }
+            round++;
+            if (syncMode == SyncMode.GRADIENTS) {
+                applySummedGradient(graph, minibatches.size(), numExamples);
+            } else if (round % averagingFrequency == 0) {
+                averageParameters(graph);
+            }
+            numExamplesUsed += numExamples;
+            if (numNanFoundConsecutively > 100) {
+                LOG.error("Nan score encountered too many consecutive times");
+                break;
+            }
+        }
+        if (syncMode == SyncMode.AVERAGING && round % averagingFrequency != 0) {
+            averageParameters(graph);
+        }
+        return numExamplesUsed;
+    }
+
+    /**
+     * Fit a minibatch, or compute its gradient only when gradients are shared. Runs on the thread of the worker.
+     *
+     * @return the score of the replica on the minibatch.
+     */
+    private double step(ComputationGraph replica, MultiDataSet ds) {
+        MDSHelper.attach(ds);
+        try {
+            if (syncMode == SyncMode.GRADIENTS) {
+                replica.setInputs(ds.getFeatures());
+                replica.setLabels(ds.getLabels());
+                replica.setLayerMaskArrays(ds.getFeaturesMaskArrays(), ds.getLabelsMaskArrays());
+                replica.computeGradientAndScore();
+                replica.clearLayerMaskArrays();
+            } else {
+                replica.fit(ds);
+            }
+            return replica.score();
+        } finally {
+            ds.detach();
+        }
+    }
+
+    /**
+     * Sum the gradients of the replicas that processed a minibatch in this round into the gradient of the graph,
+     * update the graph with it, and copy its parameters to the replicas. The gradient of a replica is the sum of the
+     * gradients of the examples of its minibatch, and the updater divides by the number of examples, so the summed
+     * gradient is normalized by the number of examples of the whole round.
+     */
+    private void applySummedGradient(ComputationGraph graph, int numReplicasUsed, int numExamples) {
+        Gradient gradient = graph.gradient();
+        INDArray flatGradient = gradient.gradient();
+        for (int workerIndex = 1; workerIndex < numReplicasUsed; workerIndex++) {
+            flatGradient.addi(replicas[workerIndex].gradient().gradient());
+        }
+        final int iteration = graph.getConfiguration().getIterationCount();
+        graph.getUpdater().update(gradient, iteration, numExamples);
+        graph.params().subi(flatGradient);
+        graph.getConfiguration().setIterationCount(iteration + 1);
+        for (int workerIndex = 1; workerIndex < numWorkers; workerIndex++) {
+            replicas[workerIndex].params().assign(graph.params());
+        }
+    }
+
+    /**
+     * Average the parameters and updater state of the replicas into the graph, and copy them back to the replicas.
+     * Each replica is weighted by the number of examples it fitted since the last average, so that replicas that
+     * received no minibatch in a partial last round do not pull the average back.
+     */
+    private void averageParameters(ComputationGraph graph) {
+        long totalExamples = 0;
+        for (long numExamples : numExamplesFitted) {
+            totalExamples += numExamples;
+        }
+        if (numWorkers == 1 || totalExamples == 0) {
+            return;
+        }
+        INDArray params = graph.params();
+        INDArray updaterState = graph.getUpdater().getStateViewArray();
+        final double weight0 = numExamplesFitted[0] / (double) totalExamples;
+        params.muli(weight0);
+        if (updaterState != null) {
+            updaterState.muli(weight0);
+        }
+        for (int workerIndex = 1; workerIndex < numWorkers; workerIndex++) {
+            final double weight = numExamplesFitted[workerIndex] / (double) totalExamples;
+            if (weight == 0) {
+                continue;
+            }
+            params.addi(replicas[workerIndex].params().mul(weight));
+            if (updaterState != null) {
+                updaterState.addi(replicas[workerIndex].getUpdater().getStateViewArray().mul(weight));
+            }
+        }
+        for (int workerIndex = 1; workerIndex < numWorkers; workerIndex++) {
+            replicas[workerIndex].params().assign(params);
+            if (updaterState != null) {
+                replicas[workerIndex].getUpdater().getStateViewArray().assign(updaterState);
+            }
+        }
+        Arrays.fill(numExamplesFitted, 0);
+    }
+
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stop the worker threads. The trainer cannot be used after it is closed.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService worker : workers) {
+            if (worker != null) {
+                worker.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public void setLogSpeed(boolean logSpeed) {
+        this.logSpeed = logSpeed;
+    }
+
+    @Override
+    public double getScore() {
+        return score / (double) n;
+    }
+}
@@ -0,0 +1,110 @@
+package org.campagnelab.dl.framework;
+
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Small models and minibatches for tests of training, validation and checkpoints.
+ */
+public class TestModels {
+    public static final int NUM_INPUTS = 3;
+    public static final int NUM_OUTPUTS = 2;
+
+    /**
+     * A graph with a single linear output layer trained with plain SGD, so that updates are deterministic.
+     */
+    public static ComputationGraph graph(long seed) {
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .iterations(1)
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+                .learningRate(0.1)
+                .updater(Updater.SGD)
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("output", new OutputLayer.Builder(LossFunctions.LossFunction.MSE)
+                        .nIn(NUM_INPUTS).nOut(NUM_OUTPUTS).activation("identity").build(), "input")
+                .setOutputs("output")
+                .pretrain(false).backprop(true).build();
+        ComputationGraph graph = new ComputationGraph(conf);
+        graph.init();
+        return graph;
+    }
+
+    /**
+     * A minibatch of random examples.
+     */
+    public static MultiDataSet minibatch(int numExamples, long seed) {
+        Nd4j.getRandom().setSeed(seed);
+        INDArray features = Nd4j.rand(numExamples, NUM_INPUTS);
+        INDArray labels = Nd4j.rand(numExamples, NUM_OUTPUTS);
+        return new org.nd4j.linalg.dataset.MultiDataSet(features, labels);
+    }
+
+    /**
+     * Iterate over minibatches, in order.
+     */
+    public static MultiDataSetIterator iterator(List<MultiDataSet> minibatches) {
+        return new MultiDataSetIterator() {
+            private int index;
+
+            @Override
+            public MultiDataSet next(int num) {
+                return next();
+            }
+
+            @Override
+            public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public MultiDataSetPreProcessor getPreProcessor() {
+                return null;
+            }
+
+            @Override
+            public boolean resetSupported() {
+                return true;
+            }
+
+            @Override
+            public boolean asyncSupported() {
+                return false;
+            }
+
+            @Override
+            public void reset() {
+                index = 0;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < minibatches.size();
+            }
+
+            @Override
+            public MultiDataSet next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return minibatches.get(index++);
+            }
+        };
+    }
+}
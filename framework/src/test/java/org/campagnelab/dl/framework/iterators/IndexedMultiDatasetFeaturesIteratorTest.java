@@ -0,0 +1,71 @@
+package org.campagnelab.dl.framework.iterators;
+
+import org.campagnelab.dl.framework.iterators.cache.IndexedCacheWriter;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write minibatches in the indexed cache format and read them back with the memory-mapped iterator.
+ */
+public class IndexedMultiDatasetFeaturesIteratorTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        File dir = new File("test-results/indexed-cache");
+        dir.mkdirs();
+        String basename = new File(dir, "cache").getPath();
+        MultiDataSet[] written = new MultiDataSet[3];
+        try (IndexedCacheWriter writer = new IndexedCacheWriter(basename)) {
+            for (int i = 0; i < written.length; i++) {
+                INDArray features = Nd4j.rand(new int[]{4, 5}, 'f');
+                INDArray sequence = Nd4j.rand(new int[]{4, 3, 2}, 'c');
+                INDArray sequenceMask = Nd4j.ones(4, 2);
+                INDArray labels = Nd4j.rand(new int[]{4, 2}, 'f');
+                written[i] = new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[]{features, sequence},
+                        new INDArray[]{labels}, new INDArray[]{null, sequenceMask}, null);
+                writer.append(written[i]);
+            }
+            assertEquals(3, writer.getNumDatasets());
+        }
+        Properties cfp = new Properties();
+        cfp.put("miniBatchSize", "4");
+        cfp.put("numRecords", "12");
+        cfp.put(IndexedCacheWriter.FORMAT_PROPERTY, IndexedCacheWriter.INDEXED_FORMAT);
+        try (FileWriter writer = new FileWriter(basename + ".cfp")) {
+            cfp.store(writer, "test");
+        }
+
+        IndexedMultiDatasetFeaturesIterator iterator = new IndexedMultiDatasetFeaturesIterator(basename);
+        assertEquals(3, iterator.numDatasets());
+        int index = 0;
+        while (iterator.hasNext()) {
+            assertSame(written[index], iterator.next(), index);
+            index++;
+        }
+        assertEquals(3, index);
+
+        // random access:
+        iterator.seek(2);
+        assertSame(written[2], iterator.next(), 2);
+        assertFalse(iterator.hasNext());
+        assertSame(written[1], iterator.get(1), 1);
+    }
+
+    private void assertSame(MultiDataSet expected, MultiDataSet actual, int index) {
+        assertEquals("features must match for minibatch " + index, expected.getFeatures(0), actual.getFeatures(0));
+        assertEquals("features must match for minibatch " + index, expected.getFeatures(1), actual.getFeatures(1));
+        assertEquals("labels must match for minibatch " + index, expected.getLabels(0), actual.getLabels(0));
+        assertNull(actual.getFeaturesMaskArrays()[0]);
+        assertEquals(expected.getFeaturesMaskArrays()[1], actual.getFeaturesMaskArrays()[1]);
+        assertNull(actual.getLabelsMaskArrays());
+    }
+}
@@ -0,0 +1,129 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that a cache built under a temporary name is published under its final name, and that processes building
+ * the same cache wait for each other.
+ */
+public class CacheHelperTest {
+
+    @Test
+    public void publishShards() throws IOException {
+        File dir = new File("test-results/publish-cache");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        String temporaryName = new File(dir, "cache-tmp-1").getPath();
+        String cacheName = new File(dir, "cache").getPath();
+        for (String shard : Arrays.asList(temporaryName + "-shard-0", temporaryName + "-shard-1")) {
+            FileUtils.touch(new File(shard + ".cf"));
+            FileUtils.touch(new File(shard + IndexedCacheWriter.INDEX_EXTENSION));
+        }
+        IndexedCacheWriter.writeManifest(temporaryName, Arrays.asList(temporaryName + "-shard-0", temporaryName + "-shard-1"));
+        FileUtils.touch(new File(temporaryName + ".cfp"));
+
+        CacheHelper.publish(temporaryName, cacheName);
+
+        List<String> segments = IndexedCacheWriter.readSegments(cacheName);
+        assertEquals(2, segments.size());
+        for (String segment : segments) {
+            assertTrue(new File(segment + ".cf").exists());
+            assertTrue(new File(segment + IndexedCacheWriter.INDEX_EXTENSION).exists());
+            assertTrue(new File(segment).getName().startsWith("cache-shard-"));
+        }
+        assertTrue(new File(cacheName + ".cfp").exists());
+        assertFalse(new File(temporaryName + ".cfp").exists());
+    }
+
+    @Test
+    public void republishUnshardedRemovesStaleManifest() throws IOException {
+        File dir = new File("test-results/republish-cache");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        String cacheName = new File(dir, "cache").getPath();
+        String shard = cacheName + "-shard-0";
+        FileUtils.touch(new File(shard + ".cf"));
+        FileUtils.touch(new File(shard + IndexedCacheWriter.INDEX_EXTENSION));
+        IndexedCacheWriter.writeManifest(cacheName, Arrays.asList(shard));
+        FileUtils.touch(new File(cacheName + ".cfp"));
+
+        String temporaryName = new File(dir, "cache-tmp-2").getPath();
+        FileUtils.touch(new File(temporaryName + ".cf"));
+        FileUtils.touch(new File(temporaryName + IndexedCacheWriter.INDEX_EXTENSION));
+        FileUtils.touch(new File(temporaryName + ".cfp"));
+
+        CacheHelper.publish(temporaryName, cacheName);
+
+        assertFalse(new File(cacheName + IndexedCacheWriter.MANIFEST_EXTENSION).exists());
+        assertEquals(Arrays.asList(cacheName), IndexedCacheWriter.readSegments(cacheName));
+        assertTrue(new File(cacheName + ".cf").exists());
+        assertTrue(new File(cacheName + ".cfp").exists());
+    }
+
+    @Test
+    public void lockIsExclusiveAcrossProcesses() throws Exception {
+        File dir = new File("test-results/lock-cache");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        String cacheName = new File(dir, "cache").getPath();
+        Process holder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), LockHolder.class.getName(), cacheName)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(holder.getInputStream()));
+            assertEquals("locked", output.readLine());
+
+            ExclusiveLockRequestWithFile lock = CacheHelper.lock(cacheName);
+            Future<?> waiting = executor.submit(() -> {
+                lock.waitAndLock();
+                return null;
+            });
+            try {
+                waiting.get(500, TimeUnit.MILLISECONDS);
+                fail("The lock must not be granted while another process holds it.");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            // the other process releases the lock when its input is closed:
+            holder.getOutputStream().close();
+            waiting.get(30, TimeUnit.SECONDS);
+            assertTrue(lock.granted());
+            lock.release();
+            assertEquals(0, holder.waitFor());
+        } finally {
+            executor.shutdownNow();
+            holder.destroy();
+        }
+    }
+
+    /**
+     * Holds the lock of a cache in another process, until its input is closed.
+     */
+    public static class LockHolder {
+        public static void main(String[] args) throws IOException {
+            ExclusiveLockRequestWithFile lock = CacheHelper.lock(args[0]);
+            lock.waitAndLock();
+            System.out.println("locked");
+            System.out.flush();
+            while (System.in.read() != -1) {
+            }
+            lock.release();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.campagnelab.dl.framework.iterators.IndexedMultiDatasetFeaturesIterator;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that shuffled epochs visit each cached example exactly once, in a different order each epoch.
+ */
+public class ShufflingCachedIteratorTest {
+    private static final int MINI_BATCH_SIZE = 8;
+    private static final int NUM_EXAMPLES = 60;
+
+    @Test
+    public void shuffleBlocks() throws IOException {
+        IndexedMultiDatasetFeaturesIterator source = new IndexedMultiDatasetFeaturesIterator(writeCache());
+        ShufflingCachedIterator iterator = new ShufflingCachedIterator(source, 1234, 2);
+        IntArrayList firstEpoch = visit(iterator);
+        iterator.reset();
+        IntArrayList secondEpoch = visit(iterator);
+        assertEquals(NUM_EXAMPLES, new IntOpenHashSet(firstEpoch).size());
+        assertEquals(NUM_EXAMPLES, new IntOpenHashSet(secondEpoch).size());
+        assertNotEquals(firstEpoch, secondEpoch);
+
+        // the same seed must produce the same order:
+        ShufflingCachedIterator other = new ShufflingCachedIterator(source, 1234, 2);
+        assertEquals(firstEpoch, visit(other));
+    }
+
+    @Test
+    public void shuffleMinibatches() throws IOException {
+        IndexedMultiDatasetFeaturesIterator source = new IndexedMultiDatasetFeaturesIterator(writeCache());
+        ShufflingCachedIterator iterator = new ShufflingCachedIterator(source, 1234, 0);
+        IntArrayList ids = visit(iterator);
+        assertEquals(NUM_EXAMPLES, new IntOpenHashSet(ids).size());
+        // examples of a cached minibatch stay together:
+        assertEquals(0, ids.getInt(0) % MINI_BATCH_SIZE);
+    }
+
+    @Test
+    public void memoryCacheDoesNotFreezeShuffling() throws IOException {
+        IndexedMultiDatasetFeaturesIterator source = new IndexedMultiDatasetFeaturesIterator(writeCache());
+        MultiDataSetIterator iterator = CacheHelper.trainingIterator(source, true, 1234, 2, true);
+        assertFalse(iterator instanceof FullyInMemoryCache);
+        IntArrayList firstEpoch = visit(iterator);
+        iterator.reset();
+        IntArrayList secondEpoch = visit(iterator);
+        assertEquals(NUM_EXAMPLES, new IntOpenHashSet(secondEpoch).size());
+        assertNotEquals(firstEpoch, secondEpoch);
+    }
+
+    private IntArrayList visit(MultiDataSetIterator iterator) {
+        IntArrayList ids = new IntArrayList();
+        while (iterator.hasNext()) {
+            MultiDataSet mds = iterator.next();
+            INDArray features = mds.getFeatures(0);
+            assertTrue(features.size(0) <= MINI_BATCH_SIZE);
+            for (int row = 0; row < features.size(0); row++) {
+                assertEquals(features.getFloat(row, 0), mds.getLabels(0).getFloat(row, 0), 0);
+                ids.add((int) features.getFloat(row, 0));
+            }
+        }
+        return ids;
+    }
+
+    private String writeCache() throws IOException {
+        File dir = new File("test-results/shuffling-cache");
+        dir.mkdirs();
+        String basename = new File(dir, "cache").getPath();
+        try (IndexedCacheWriter writer = new IndexedCacheWriter(basename)) {
+            for (int start = 0; start < NUM_EXAMPLES; start += MINI_BATCH_SIZE) {
+                int size = Math.min(MINI_BATCH_SIZE, NUM_EXAMPLES - start);
+                INDArray features = Nd4j.zeros(size, 3);
+                INDArray labels = Nd4j.zeros(size, 2);
+                for (int row = 0; row < size; row++) {
+                    features.putScalar(row, 0, start + row);
+                    labels.putScalar(row, 0, start + row);
+                }
+                writer.append(new org.nd4j.linalg.dataset.MultiDataSet(features, labels));
+            }
+        }
+        Properties cfp = new Properties();
+        cfp.put("miniBatchSize", Integer.toString(MINI_BATCH_SIZE));
+        cfp.put("numRecords", Integer.toString(NUM_EXAMPLES));
+        cfp.put(IndexedCacheWriter.FORMAT_PROPERTY, IndexedCacheWriter.INDEXED_FORMAT);
+        try (FileWriter writer = new FileWriter(basename + ".cfp")) {
+            cfp.store(writer, "test");
+        }
+        return basename;
+    }
+}
@@ -6,7 +6,9 @@ import org.nd4j.linalg.factory.Nd4j;
 
 import java.util.function.Function;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by joshuacohen on 1/10/17.
@@ -27,4 +29,23 @@ public class ConcatFeatureMapperTest {
         concatCalculator.mapFeatures(record, labels, 0);
         assertEquals(labels.toString(), expectedLabels);
     }
+
+    @Test
+    public void concatFeaturesToRow() {
+        String record = "012";
+        FeatureMapper<String>[] calculators = new FeatureMapper[record.length()];
+        for (int i = 0; i < record.length(); i++) {
+            calculators[i] = new OneHotBaseFeatureMapper<>(i, Function.identity(),
+                    (r, idx) -> Character.getNumericValue(r.charAt(idx)), 3);
+        }
+        FeatureMapper<String> concatCalculator = new ConcatFeatureMapper<>(calculators);
+        assertTrue(concatCalculator.supportsRowMapping());
+        float[] row = new float[concatCalculator.numberOfFeatures() + 2];
+        concatCalculator.prepareToNormalize(record, 0);
+        concatCalculator.mapFeatures(record, row, 2, 0);
+        for (int featureIndex = 0; featureIndex < concatCalculator.numberOfFeatures(); featureIndex++) {
+            assertEquals(concatCalculator.produceFeature(record, featureIndex), row[featureIndex + 2], 0);
+        }
+        assertArrayEquals(new float[]{0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1}, row, 0);
+    }
 }
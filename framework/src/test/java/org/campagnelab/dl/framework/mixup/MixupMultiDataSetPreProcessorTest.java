@@ -0,0 +1,47 @@
+package org.campagnelab.dl.framework.mixup;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that mixup blends whole examples and keeps one of the original masks for each example.
+ */
+public class MixupMultiDataSetPreProcessorTest {
+    private static final int MINI_BATCH_SIZE = 6;
+    private static final int SEQUENCE_LENGTH = 4;
+
+    @Test
+    public void mixExamples() {
+        INDArray features = Nd4j.zeros(MINI_BATCH_SIZE, 2, SEQUENCE_LENGTH);
+        INDArray labels = Nd4j.zeros(MINI_BATCH_SIZE, 2);
+        INDArray labelMask = Nd4j.zeros(MINI_BATCH_SIZE, SEQUENCE_LENGTH);
+        for (int example = 0; example < MINI_BATCH_SIZE; example++) {
+            features.slice(example).assign(example);
+            labels.putScalar(example, example % 2, 1);
+            for (int step = 0; step <= example % SEQUENCE_LENGTH; step++) {
+                labelMask.putScalar(example, step, 1);
+            }
+        }
+        MultiDataSet minibatch = new MultiDataSet(new INDArray[]{features}, new INDArray[]{labels},
+                null, new INDArray[]{labelMask});
+        new MixupMultiDataSetPreProcessor(1234, 0.2).preProcess(minibatch);
+
+        for (int example = 0; example < MINI_BATCH_SIZE; example++) {
+            INDArray mixed = features.slice(example);
+            // a linear combination of two constant examples is constant:
+            assertEquals(0, mixed.maxNumber().doubleValue() - mixed.minNumber().doubleValue(), 1E-5);
+            assertEquals(1, labels.getRow(example).sumNumber().doubleValue(), 1E-5);
+            // masks are copied, not mixed, and the ones of each mask come first:
+            int length = labelMask.getRow(example).sumNumber().intValue();
+            assertTrue(length >= 1 && length <= SEQUENCE_LENGTH);
+            for (int step = 0; step < SEQUENCE_LENGTH; step++) {
+                assertEquals(step < length ? 1 : 0, labelMask.getDouble(example, step), 0);
+            }
+        }
+    }
+}
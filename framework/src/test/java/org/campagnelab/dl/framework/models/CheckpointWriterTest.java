@@ -0,0 +1,117 @@
+package org.campagnelab.dl.framework.models;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.TestModels;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that checkpoints are written atomically, rotated, coalesced, and that background failures are reported.
+ */
+public class CheckpointWriterTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("checkpoints").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void rotateVersions() throws IOException {
+        String filename = new File(directory, "latest-ComputationGraph.bin").getPath();
+        CheckpointWriter writer = new CheckpointWriter(3, false);
+        ComputationGraph[] graphs = new ComputationGraph[4];
+        for (int index = 0; index < graphs.length; index++) {
+            graphs[index] = TestModels.graph(index);
+            writer.write(graphs[index], filename);
+        }
+        assertSameParams(graphs[3], filename);
+        assertSameParams(graphs[2], filename + ".1");
+        assertSameParams(graphs[1], filename + ".2");
+        assertFalse(new File(filename + ".3").exists());
+        // the temporary file was renamed to the model file:
+        assertFalse(new File(filename + ".tmp").exists());
+    }
+
+    @Test
+    public void keepSingleVersion() throws IOException {
+        String filename = new File(directory, "best-ComputationGraph.bin").getPath();
+        CheckpointWriter writer = new CheckpointWriter(1, false);
+        writer.write(TestModels.graph(1), filename);
+        ComputationGraph latest = TestModels.graph(2);
+        writer.write(latest, filename);
+        assertSameParams(latest, filename);
+        assertFalse(new File(filename + ".1").exists());
+        assertFalse(new File(filename + ".tmp").exists());
+    }
+
+    @Test
+    public void coalesceRepeatedSaves() throws Exception {
+        String filename = new File(directory, "latest-ComputationGraph.bin").getPath();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor.submit(() -> {
+            blocked.await();
+            return null;
+        });
+        CheckpointWriter writer = new CheckpointWriter(3, executor);
+        ComputationGraph latest = null;
+        for (int index = 0; index < 3; index++) {
+            latest = TestModels.graph(index);
+            writer.write(latest, filename);
+        }
+        blocked.countDown();
+        writer.close();
+        // only the most recent snapshot was written, so there is no previous version:
+        assertSameParams(latest, filename);
+        assertFalse(new File(filename + ".1").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void reportFailureOnFlush() throws IOException {
+        CheckpointWriter writer = new CheckpointWriter(1, true);
+        writer.write(TestModels.graph(1), new File(directory, "missing/model.bin").getPath());
+        writer.flush();
+    }
+
+    @Test
+    public void reportFailureOnNextWrite() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CheckpointWriter writer = new CheckpointWriter(1, executor);
+        writer.write(TestModels.graph(1), new File(directory, "missing/model.bin").getPath());
+        // wait for the background write to fail:
+        executor.submit(() -> null).get();
+        try {
+            writer.write(TestModels.graph(2), new File(directory, "model.bin").getPath());
+            fail("The failure of the previous write must be reported.");
+        } catch (IOException e) {
+            // expected
+        }
+        // failures are reported once:
+        writer.write(TestModels.graph(2), new File(directory, "model.bin").getPath());
+        writer.close();
+        assertTrue(new File(directory, "model.bin").exists());
+    }
+
+    private static void assertSameParams(ComputationGraph expected, String filename) throws IOException {
+        ComputationGraph restored = ModelSerializer.restoreComputationGraph(filename);
+        assertEquals(expected.params(), restored.params());
+    }
+}
@@ -0,0 +1,64 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check the rank-based AUC against a pairwise comparison of all positive and negative decisions.
+ */
+public class AreaUnderTheROCCurveTest {
+
+    @Test
+    public void matchesPairwiseComparison() {
+        Random random = new Random(232323);
+        for (int trial = 0; trial < 200; trial++) {
+            AreaUnderTheROCCurve calculator = new AreaUnderTheROCCurve();
+            double[] decisions = new double[1 + random.nextInt(500)];
+            double[] labels = new double[decisions.length];
+            for (int i = 0; i < decisions.length; i++) {
+                // few distinct values, so that there are many ties:
+                decisions[i] = random.nextInt(50) == 0 ? Double.NaN : random.nextInt(20) / 20.0;
+                labels[i] = random.nextInt(3) == 0 ? 1 : -1;
+                calculator.observe(decisions[i], labels[i]);
+            }
+            assertEquals(pairwise(decisions, labels), calculator.evaluateStatistic(), 1E-12);
+        }
+    }
+
+    @Test
+    public void mergeCombinesObservations() {
+        AreaUnderTheROCCurve first = new AreaUnderTheROCCurve();
+        AreaUnderTheROCCurve second = new AreaUnderTheROCCurve();
+        first.observe(0.9, 1);
+        first.observe(0.2, -1);
+        second.observe(0.4, 1);
+        second.observe(0.6, -1);
+        first.merge(second);
+        assertEquals(0.75, first.evaluateStatistic(), 1E-12);
+        assertEquals(0.75, AreaUnderTheROCCurve.evaluateStatistic(new double[]{0.9, 0.2, 0.4, 0.6},
+                new double[]{1, -1, 1, -1}), 1E-12);
+    }
+
+    private double pairwise(double[] decisions, double[] labels) {
+        double sum = 0;
+        int numPositive = 0;
+        int numNegative = 0;
+        for (int i = 0; i < decisions.length; i++) {
+            if (labels[i] >= 0) {
+                numPositive++;
+                for (int j = 0; j < decisions.length; j++) {
+                    if (labels[j] < 0) {
+                        sum += decisions[i] > decisions[j] ? 1 : 0;
+                        sum += decisions[i] == decisions[j] ? 0.5 : 0;
+                    }
+                }
+            } else {
+                numNegative++;
+            }
+        }
+        return sum / numPositive / numNegative;
+    }
+}
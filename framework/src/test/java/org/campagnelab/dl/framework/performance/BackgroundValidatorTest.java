@@ -0,0 +1,171 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.campagnelab.dl.framework.TestModels;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that validation split over several threads estimates the same metrics as a single pass over the validation
+ * set.
+ */
+public class BackgroundValidatorTest {
+    private static final String[] METRICS = {"squaredError", "numExamples"};
+
+    @Test
+    public void splitAndMergeEqualsSinglePass() throws Exception {
+        checkSameMetrics(new SquaredErrorDescriptor(true), 3, Long.MAX_VALUE);
+        // scoreN stops reading after the minibatch that reaches it:
+        checkSameMetrics(new SquaredErrorDescriptor(true), 4, 20);
+    }
+
+    @Test
+    public void fallBackToEstimateMetric() throws Exception {
+        SquaredErrorDescriptor descriptor = new SquaredErrorDescriptor(false);
+        checkSameMetrics(descriptor, 3, Long.MAX_VALUE);
+        // once for the expected values, once by the validator:
+        assertEquals(2, descriptor.numEstimates);
+    }
+
+    @Test
+    public void defaultAccumulatorEstimatesMetric() throws Exception {
+        SquaredErrorDescriptor descriptor = new SquaredErrorDescriptor(false);
+        List<MultiDataSet> minibatches = new ArrayList<>();
+        for (int index = 0; index < 5; index++) {
+            minibatches.add(TestModels.minibatch(3, index));
+        }
+        ComputationGraph graph = TestModels.graph(1);
+        double[] expected = descriptor.estimateMetric(graph, TestModels.iterator(minibatches), Long.MAX_VALUE, METRICS);
+
+        MetricAccumulator first = descriptor.newMetricAccumulator(graph);
+        MetricAccumulator second = descriptor.newMetricAccumulator(graph);
+        for (int index = 0; index < minibatches.size(); index++) {
+            (index < 2 ? first : second).observe(minibatches.get(index));
+        }
+        first.merge(second);
+        assertArrayEquals(expected, first.getMetricValues(METRICS), 1E-5);
+    }
+
+    private static void checkSameMetrics(SquaredErrorDescriptor descriptor, int numThreads, long scoreN)
+            throws Exception {
+        List<MultiDataSet> minibatches = new ArrayList<>();
+        for (int index = 0; index < 7; index++) {
+            minibatches.add(TestModels.minibatch(3 + index % 3, index));
+        }
+        MultiDataSetIterator iterator = TestModels.iterator(minibatches);
+        ComputationGraph graph = TestModels.graph(1);
+        iterator.reset();
+        double[] expected = descriptor.estimateMetric(graph, iterator, scoreN, METRICS);
+
+        BackgroundValidator validator = new BackgroundValidator(descriptor, iterator, scoreN, numThreads);
+        try {
+            assertArrayEquals(expected, validator.validate(graph.clone(), METRICS).get(), 1E-5);
+            // validate again, with replicas created for the previous snapshot:
+            ComputationGraph other = TestModels.graph(2);
+            iterator.reset();
+            expected = descriptor.estimateMetric(other, iterator, scoreN, METRICS);
+            assertArrayEquals(expected, validator.validate(other.clone(), METRICS).get(), 1E-5);
+        } finally {
+            validator.close();
+        }
+    }
+
+    /**
+     * Sum of squared errors of the predictions, and number of examples predicted.
+     */
+    private static class SquaredErrorDescriptor extends PerformanceMetricDescriptor<Object> {
+        private final boolean supportsAccumulators;
+        int numEstimates;
+
+        SquaredErrorDescriptor(boolean supportsAccumulators) {
+            super(null);
+            this.supportsAccumulators = supportsAccumulators;
+        }
+
+        @Override
+        public String[] performanceMetrics() {
+            return METRICS;
+        }
+
+        @Override
+        public boolean largerValueIsBetterPerformance(String metricName) {
+            return false;
+        }
+
+        @Override
+        public double estimateMetric(ComputationGraph graph, String metricName, MultiDataSetIterator dataSetIterator,
+                                     long scoreN) {
+            return estimateMetric(graph, dataSetIterator, scoreN, metricName)[0];
+        }
+
+        @Override
+        public double[] estimateMetric(ComputationGraph graph, MultiDataSetIterator dataSetIterator, long scoreN,
+                                       String... metrics) {
+            numEstimates++;
+            SquaredErrorAccumulator accumulator = new SquaredErrorAccumulator(graph);
+            long numExamples = 0;
+            while (numExamples < scoreN && dataSetIterator.hasNext()) {
+                MultiDataSet minibatch = dataSetIterator.next();
+                accumulator.observe(minibatch);
+                numExamples += minibatch.getFeatures(0).size(0);
+            }
+            return accumulator.getMetricValues(metrics);
+        }
+
+        @Override
+        public boolean supportsMetricAccumulators() {
+            return supportsAccumulators;
+        }
+
+        @Override
+        public MetricAccumulator newMetricAccumulator(ComputationGraph graph) {
+            return supportsAccumulators ? new SquaredErrorAccumulator(graph) : super.newMetricAccumulator(graph);
+        }
+
+        @Override
+        public String earlyStoppingMetric() {
+            return "squaredError";
+        }
+    }
+
+    private static class SquaredErrorAccumulator implements MetricAccumulator {
+        private final ComputationGraph graph;
+        private double squaredError;
+        private long numExamples;
+
+        SquaredErrorAccumulator(ComputationGraph graph) {
+            this.graph = graph;
+        }
+
+        @Override
+        public void observe(MultiDataSet minibatch) {
+            INDArray output = graph.outputSingle(minibatch.getFeatures(0));
+            INDArray error = output.sub(minibatch.getLabels(0));
+            squaredError += error.mul(error).sumNumber().doubleValue();
+            numExamples += minibatch.getFeatures(0).size(0);
+        }
+
+        @Override
+        public void merge(MetricAccumulator other) {
+            squaredError += ((SquaredErrorAccumulator) other).squaredError;
+            numExamples += ((SquaredErrorAccumulator) other).numExamples;
+        }
+
+        @Override
+        public double[] getMetricValues(String... metrics) {
+            double[] values = new double[metrics.length];
+            for (int index = 0; index < metrics.length; index++) {
+                values[index] = "numExamples".equals(metrics[index]) ? numExamples : squaredError;
+            }
+            return values;
+        }
+    }
+}
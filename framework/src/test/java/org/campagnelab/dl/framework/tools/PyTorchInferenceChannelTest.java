@@ -0,0 +1,106 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stream minibatches to a stand-in inference server that returns, for each example, the sum of its inputs and the
+ * number of the minibatch.
+ */
+public class PyTorchInferenceChannelTest {
+
+    @Test
+    public void predictSeveralMinibatches() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread server = new Thread(() -> serve(serverSocket));
+            server.setDaemon(true);
+            server.start();
+            PyTorchInferenceChannel.Header header = new PyTorchInferenceChannel.Header("infer_genotype", "bestScore",
+                    "checkpoint", "genotypeType", "genotypeName", new String[]{"input"}, new String[]{"sum", "batch"});
+            try (PyTorchInferenceChannel channel = new PyTorchInferenceChannel("localhost:" + serverSocket.getLocalPort(), header)) {
+                for (int batch = 0; batch < 3; batch++) {
+                    INDArray input = Nd4j.create(new float[]{1, 2, 3, 4, 5, 6}, new int[]{2, 3}, 'c').addi(batch);
+                    INDArray[] outputs = channel.predict(new INDArray[]{input}, 0);
+                    assertEquals(2, outputs.length);
+                    assertArrayEquals(new int[]{2, 1}, outputs[0].shape());
+                    assertEquals(6 + 3 * batch, outputs[0].getFloat(0, 0), 1E-6);
+                    assertEquals(15 + 3 * batch, outputs[0].getFloat(1, 0), 1E-6);
+                    assertArrayEquals(new float[]{batch, batch, batch, batch}, outputs[1].dup('c').data().asFloat(), 0);
+                }
+            }
+            server.join(10000);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void serverCannotLoadModel() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                    input.readUTF();
+                    output.writeUTF("checkpoint not found");
+                    output.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+            new PyTorchInferenceChannel("localhost:" + serverSocket.getLocalPort(),
+                    new PyTorchInferenceChannel.Header("infer_genotype", "bestScore", "missing", "genotypeType",
+                            "genotypeName", new String[]{"input"}, new String[]{"sum"}));
+        }
+    }
+
+    private void serve(ServerSocket serverSocket) {
+        try (Socket socket = serverSocket.accept()) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input.readUTF();
+            output.writeUTF("");
+            output.flush();
+            int batch = 0;
+            while (true) {
+                final int numExamples;
+                try {
+                    numExamples = input.readInt();
+                } catch (EOFException e) {
+                    // the client closed the channel:
+                    return;
+                }
+                float[] sums = new float[numExamples];
+                long[] exampleIds = new long[numExamples];
+                for (int i = 0; i < numExamples; i++) {
+                    VectorWriter.VectorLine line = VectorReaderBinary.readVectorLine(input);
+                    exampleIds[i] = line.getExampleId();
+                    for (float element : line.getVectorElements()) {
+                        sums[i] += element;
+                    }
+                }
+                output.writeInt(numExamples);
+                for (int i = 0; i < numExamples; i++) {
+                    VectorWriterBinary.writeVectorLine(output, new VectorWriter.VectorLine(0, exampleIds[i], 0,
+                            FloatArrayList.wrap(new float[]{sums[i]})));
+                    VectorWriterBinary.writeVectorLine(output, new VectorWriter.VectorLine(0, exampleIds[i], 1,
+                            FloatArrayList.wrap(new float[]{batch, batch})));
+                }
+                output.flush();
+                batch++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Write vectors in the binary format and read them back, through a buffer and memory-mapped.
+ */
+public class VectorReaderBinaryTest {
+    private static final int NUM_EXAMPLES = 100;
+
+    @Test
+    public void readBuffered() throws IOException {
+        checkRead(write("buffered"), false);
+    }
+
+    @Test
+    public void readMemoryMapped() throws IOException {
+        checkRead(write("mapped"), true);
+    }
+
+    private void checkRead(String basename, boolean memoryMapped) throws IOException {
+        try (VectorReaderBinary reader = new VectorReaderBinary(basename + ".vec", null, memoryMapped)) {
+            for (int example = 0; example < NUM_EXAMPLES; example++) {
+                VectorWriter.VectorLine features = reader.getNextVectorLine();
+                assertEquals(1, features.getSampleId());
+                assertEquals(example, features.getExampleId());
+                assertEquals(0, features.getVectorId());
+                assertArrayEquals(features(example), features.getVectorElements().toFloatArray(), 0);
+                VectorWriter.VectorLine label = reader.getNextVectorLine();
+                assertEquals(1, label.getVectorId());
+                assertArrayEquals(new float[]{example % 2, 1 - example % 2}, label.getVectorElements().toFloatArray(), 0);
+            }
+            try {
+                reader.getNextVectorLine();
+                fail("the end of the file must be reported");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    private String write(String name) throws IOException {
+        File dir = new File("test-results/vectors");
+        dir.mkdirs();
+        String basename = new File(dir, name).getPath();
+        try (VectorWriterBinary writer = new VectorWriterBinary(basename)) {
+            writer.addSampleInfo("genotypeType", "genotypeName");
+            for (int example = 0; example < NUM_EXAMPLES; example++) {
+                float[] features = features(example);
+                // write the features from the middle of a larger array:
+                float[] padded = new float[features.length + 10];
+                System.arraycopy(features, 0, padded, 5, features.length);
+                writer.writeVectorLine(1, example, 0, padded, 5, features.length);
+                writer.writeVectorLine(new VectorWriter.VectorLine(1, example, 1,
+                        FloatArrayList.wrap(new float[]{example % 2, 1 - example % 2})));
+            }
+        }
+        return basename;
+    }
+
+    private float[] features(int example) {
+        // vectors larger than the buffers, so that lines cross buffer boundaries:
+        float[] features = new float[example % 25 == 0 ? 300000 : 100];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = example + i / 1000f;
+        }
+        return features;
+    }
+}
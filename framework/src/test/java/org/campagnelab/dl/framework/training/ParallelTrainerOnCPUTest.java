@@ -0,0 +1,70 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.TestModels;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the CPU trainer updates parameters as sequential training does.
+ */
+public class ParallelTrainerOnCPUTest {
+
+    @Test
+    public void gradientsEqualSequentialStepOnConcatenatedMinibatch() {
+        MultiDataSet first = TestModels.minibatch(4, 1);
+        MultiDataSet second = TestModels.minibatch(4, 2);
+        ComputationGraph graph = TestModels.graph(12);
+        ComputationGraph sequential = graph.clone();
+        sequential.fit(new org.nd4j.linalg.dataset.MultiDataSet(
+                Nd4j.vstack(first.getFeatures(0), second.getFeatures(0)),
+                Nd4j.vstack(first.getLabels(0), second.getLabels(0))));
+
+        int numExamples;
+        try (ParallelTrainerOnCPU trainer = new ParallelTrainerOnCPU(2, ParallelTrainerOnCPU.SyncMode.GRADIENTS, 1, 12)) {
+            numExamples = trainer.train(graph, TestModels.iterator(Arrays.asList(first, second)), new ProgressLogger());
+        }
+
+        assertEquals(8, numExamples);
+        assertParamsEqual(sequential.params(), graph.params());
+    }
+
+    @Test
+    public void averagingWeightsReplicasByExamples() {
+        MultiDataSet first = TestModels.minibatch(4, 1);
+        MultiDataSet second = TestModels.minibatch(2, 2);
+        // the last round has a single minibatch, fitted by the first replica only:
+        MultiDataSet third = TestModels.minibatch(4, 3);
+        ComputationGraph graph = TestModels.graph(12);
+        ComputationGraph replica0 = graph.clone();
+        ComputationGraph replica1 = graph.clone();
+        replica0.fit(first);
+        replica1.fit(second);
+        INDArray averaged = replica0.params().mul(4.0 / 6).addi(replica1.params().mul(2.0 / 6));
+        replica0.setParams(averaged);
+        replica0.fit(third);
+
+        int numExamples;
+        try (ParallelTrainerOnCPU trainer = new ParallelTrainerOnCPU(2, ParallelTrainerOnCPU.SyncMode.AVERAGING, 1, 12)) {
+            numExamples = trainer.train(graph, TestModels.iterator(Arrays.asList(first, second, third)),
+                    new ProgressLogger());
+        }
+
+        assertEquals(10, numExamples);
+        assertParamsEqual(replica0.params(), graph.params());
+    }
+
+    private static void assertParamsEqual(INDArray expected, INDArray actual) {
+        assertEquals(expected.length(), actual.length());
+        for (int index = 0; index < expected.length(); index++) {
+            assertEquals(expected.getDouble(index), actual.getDouble(index), 1E-5);
+        }
+    }
+}
@@ -65,12 +65,21 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
      */
     public void configure(String mapFilename, RandomAccessSequenceInterface genome,
                           int sampleIndex, boolean considerIndels, boolean indelsAsRef, float referenceSamplingRate) {
+        configure(loadVariantMap(mapFilename), mapFilename, genome, sampleIndex, considerIndels, indelsAsRef,
+                referenceSamplingRate);
+    }
+
+    /**
+     * Create a helper with a map that has already been loaded. The map and genome are only read, so that helpers
+     * used by different threads can share them.
+     *
+     * @param varMap      map loaded with {@link #loadVariantMap(String)}.
+     * @param mapFilename name of the map file, reported in statistics.
+     */
+    public void configure(VariantMapHelper varMap, String mapFilename, RandomAccessSequenceInterface genome,
+                          int sampleIndex, boolean considerIndels, boolean indelsAsRef, float referenceSamplingRate) {
         this.mapFilename = mapFilename;
-        try {
-            varMap = new VariantMapHelper(mapFilename);
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException("Unable to load true genotype map with filename " + mapFilename, e);
-        }
+        this.varMap = varMap;
         this.genome = genome;
         this.considerIndels = considerIndels;
         this.indelsAsRef = indelsAsRef;
@@ -79,6 +88,14 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
 
     }
 
+    public static VariantMapHelper loadVariantMap(String mapFilename) {
+        try {
+            return new VariantMapHelper(mapFilename);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException("Unable to load true genotype map with filename " + mapFilename, e);
+        }
+    }
+
     public void configure(String mapFilename, RandomAccessSequenceInterface genome,
                           int sampleIndex, boolean considerIndels, float referenceSamplingRate) {
         this.mapFilename = mapFilename;
@@ -342,6 +359,24 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
         }
     }
 
+    /**
+     * Add the statistics of another helper, which labeled other records, to the statistics of this helper.
+     */
+    public void addStats(AddTrueGenotypeHelper other) {
+        numIndelsIgnored += other.numIndelsIgnored;
+        numIndelsAdded += other.numIndelsAdded;
+        numIndelsAddedAsRef += other.numIndelsAddedAsRef;
+        numSnpsAdded += other.numSnpsAdded;
+        numVariantsAdded += other.numVariantsAdded;
+        numHomozygousAdded += other.numHomozygousAdded;
+        numHeterozygousAdded += other.numHeterozygousAdded;
+        numInMapAddedAsReference += other.numInMapAddedAsReference;
+        distinctTrueGenotypes.addAll(other.distinctTrueGenotypes);
+        numRecords += other.numRecords;
+        numWrongTrueCount += other.numWrongTrueCount;
+        recordsLabeled += other.recordsLabeled;
+    }
+
     public void printStats() {
 
         int indelsSkipped = (SKIP_BAD_INDELS?numWrongTrueCount:0);
@@ -0,0 +1,167 @@
+package org.campagnelab.dl.genotype.helpers;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes text lines field by field into a reusable buffer, which is handed to the underlying writer when full.
+ * Integers and fixed-point numbers are formatted directly into the buffer, with the same output as the %d and %f
+ * conversions of String.format, without parsing a format string or allocating strings.
+ * <p>
+ * Java formats %f by rounding the shortest decimal representation of the value half-up. Values are formatted
+ * directly when the scaled value is far enough from a rounding tie that both roundings agree; other values (ties,
+ * very large, negative or non-finite values, or a default locale with other digits) are formatted with
+ * String.format.
+ *
+ * @author Fabien Campagne
+ */
+public class FieldWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FIXED_DIGITS = 6;
+    private static final double FIXED_SCALE = 1E6;
+    /**
+     * Largest value formatted directly by appendFixed, small enough for the scaled value to be exact to 1E-6.
+     */
+    private static final double MAX_DIRECT_FIXED = 1E3;
+
+    private final Writer writer;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int length;
+    private final boolean asciiNumbers;
+    private final char decimalSeparator;
+
+    public FieldWriter(Writer writer) {
+        this.writer = writer;
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        asciiNumbers = symbols.getZeroDigit() == '0';
+        decimalSeparator = symbols.getDecimalSeparator();
+    }
+
+    public FieldWriter append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = c;
+        return this;
+    }
+
+    public FieldWriter append(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        final int n = s.length();
+        int start = 0;
+        while (start < n) {
+            ensureCapacity(1);
+            final int count = Math.min(n - start, buffer.length - length);
+            s.getChars(start, start + count, buffer, length);
+            length += count;
+            start += count;
+        }
+        return this;
+    }
+
+    /**
+     * Append an integer, as %d would.
+     */
+    public FieldWriter append(int value) {
+        return append((long) value);
+    }
+
+    /**
+     * Append an integer, as %d would.
+     */
+    public FieldWriter append(long value) {
+        if (!asciiNumbers) {
+            return append(String.format("%d", value));
+        }
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 1);
+        return this;
+    }
+
+    /**
+     * Append a number with six decimals, as %f would.
+     */
+    public FieldWriter appendFixed(double value) {
+        if (!asciiNumbers || !(value >= 0 && value < MAX_DIRECT_FIXED) || Double.doubleToRawLongBits(value) < 0) {
+            // NaN, infinities, negative values (including -0.0) and large values:
+            return append(String.format("%f", value));
+        }
+        final double scaled = value * FIXED_SCALE;
+        final double floor = Math.floor(scaled);
+        final double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) < 1E-3) {
+            // close to a tie, the result depends on the shortest decimal representation of the value:
+            return append(String.format("%f", value));
+        }
+        final long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+        ensureCapacity(20);
+        appendDigits(rounded / (long) FIXED_SCALE, 1);
+        buffer[length++] = decimalSeparator;
+        appendDigits(rounded % (long) FIXED_SCALE, FIXED_DIGITS);
+        return this;
+    }
+
+    public FieldWriter tab() {
+        return append('\t');
+    }
+
+    public void endLine() {
+        append('\n');
+    }
+
+    /**
+     * Append the digits of a non-negative value, padded with zeros to minDigits.
+     */
+    private void appendDigits(long value, int minDigits) {
+        int numDigits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            numDigits++;
+        }
+        numDigits = Math.max(numDigits, minDigits);
+        for (int i = length + numDigits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += numDigits;
+    }
+
+    private void ensureCapacity(int numChars) {
+        if (buffer.length - length < numChars) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            writer.write(buffer, 0, length);
+            length = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        writer.close();
+    }
+}
@@ -0,0 +1,192 @@
+package org.campagnelab.dl.genotype.helpers;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Writes the genotype calls of the prediction tools to a VCF file. Each line is written field by field with a
+ * {@link FieldWriter}; the alternate alleles and allele codes of the line are kept in arrays reused from line to line,
+ * so that writing a line does not create sets, streams or intermediate strings.
+ * <p>
+ * Lines are written in two steps: {@link #setAlleles(String, Collection, String)} describes the alleles of the line,
+ * which makes {@link #numAlternateAlleles()} and {@link #maxAlleleLength()} available, then
+ * {@link #write(String, int, double)} writes the line.
+ *
+ * @author Fabien Campagne
+ */
+public class VCFEmitter implements Closeable {
+    private final FieldWriter writer;
+    private final boolean skipEmptyCalledAlleles;
+
+    private String from;
+    private String fromCode;
+    private Collection<String> to;
+    private String[] alternates = new String[4];
+    private int numAlternates;
+    private int[] codes = new int[4];
+    private int numCodes;
+
+    /**
+     * @param filename               name of the VCF file to create.
+     * @param skipEmptyCalledAlleles when true, empty alleles after the first are omitted from the model calls (MC)
+     *                               field, and an empty alternate allele is written as ".". This is how segment
+     *                               predictions are written.
+     * @throws IOException
+     */
+    public VCFEmitter(String filename, boolean skipEmptyCalledAlleles) throws IOException {
+        this.writer = new FieldWriter(new FileWriter(filename));
+        this.skipEmptyCalledAlleles = skipEmptyCalledAlleles;
+    }
+
+    /**
+     * Write the VCF header, or any text that must be written verbatim.
+     */
+    public void writeHeader(String header) {
+        writer.append(header);
+    }
+
+    /**
+     * Describe the alleles of the next line.
+     *
+     * @param from     reference allele, as formatted for VCF.
+     * @param to       called alleles, as formatted for VCF. Alleles different from from are the alternate alleles.
+     * @param fromCode called alleles equal to fromCode are coded 0 in the genotype (GT) field.
+     */
+    public void setAlleles(String from, Collection<String> to, String fromCode) {
+        this.from = from;
+        this.fromCode = fromCode;
+        this.to = to;
+        numAlternates = 0;
+        for (String allele : to) {
+            if (!allele.equals(from)) {
+                addAlternate(allele);
+            }
+        }
+    }
+
+    /**
+     * Insert an allele in the sorted alternate alleles, unless it is already there.
+     */
+    private void addAlternate(String allele) {
+        int position = numAlternates;
+        while (position > 0 && alternates[position - 1].compareTo(allele) > 0) {
+            position--;
+        }
+        if (position > 0 && alternates[position - 1].equals(allele)) {
+            return;
+        }
+        if (numAlternates == alternates.length) {
+            alternates = Arrays.copyOf(alternates, numAlternates * 2);
+        }
+        System.arraycopy(alternates, position, alternates, position + 1, numAlternates - position);
+        alternates[position] = allele;
+        numAlternates++;
+    }
+
+    public int numAlternateAlleles() {
+        return numAlternates;
+    }
+
+    /**
+     * @return the length of the longest of the reference and called alleles.
+     */
+    public int maxAlleleLength() {
+        int maxLength = from.length();
+        for (String allele : to) {
+            maxLength = Math.max(maxLength, allele.length());
+        }
+        return maxLength;
+    }
+
+    /**
+     * Write a line for the alleles last described with setAlleles.
+     *
+     * @param referenceId chromosome.
+     * @param position    one-based position.
+     * @param probability model probability.
+     */
+    public void write(String referenceId, int position, double probability) {
+        writer.append(referenceId).tab().append(position).append("\t.\t").append(from).tab();
+        writeAlternates();
+        writer.append("\t.\t.\t.\tGT:MC:P\t");
+        writeGenotype();
+        writer.append(':');
+        writeCalledAlleles();
+        writer.append(':').appendFixed(probability).endLine();
+    }
+
+    private void writeAlternates() {
+        if (numAlternates == 0 || (skipEmptyCalledAlleles && numAlternates == 1 && alternates[0].isEmpty())) {
+            writer.append('.');
+            return;
+        }
+        for (int i = 0; i < numAlternates; i++) {
+            if (i > 0) {
+                writer.append(',');
+            }
+            writer.append(alternates[i]);
+        }
+    }
+
+    /**
+     * Write the sorted codes of the called alleles: 0 for the reference, the one-based index of the allele in the
+     * alternate alleles otherwise.
+     */
+    private void writeGenotype() {
+        numCodes = 0;
+        for (String allele : to) {
+            if (fromCode.equals(allele)) {
+                addCode(0);
+            }
+            for (int altIndex = 0; altIndex < numAlternates; altIndex++) {
+                if (alternates[altIndex].equals(allele)) {
+                    addCode(altIndex + 1);
+                }
+            }
+        }
+        if (numCodes == 0) {
+            writer.append("./.");
+            return;
+        }
+        Arrays.sort(codes, 0, numCodes);
+        for (int i = 0; i < numCodes; i++) {
+            if (i > 0) {
+                writer.append('/');
+            }
+            writer.append(codes[i]);
+        }
+    }
+
+    private void addCode(int code) {
+        if (numCodes == codes.length) {
+            codes = Arrays.copyOf(codes, numCodes * 2);
+        }
+        codes[numCodes++] = code;
+    }
+
+    private void writeCalledAlleles() {
+        if (to.isEmpty()) {
+            writer.append("./.");
+            return;
+        }
+        boolean first = true;
+        for (String allele : to) {
+            if (!first) {
+                if (skipEmptyCalledAlleles && allele.isEmpty()) {
+                    continue;
+                }
+                writer.append('/');
+            }
+            writer.append(allele);
+            first = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -11,6 +11,7 @@ import org.campagnelab.dl.framework.mappers.BooleanLabelMapper;
 import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.mappers.LabelMapper;
+import org.campagnelab.dl.framework.performance.MetricAccumulator;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
 import org.campagnelab.dl.genotype.learning.GenotypeTrainingArguments;
 import org.campagnelab.dl.genotype.learning.architecture.graphs.*;
@@ -506,6 +507,26 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
 
     }
 
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
+        return getInternalFeatureMapper(inputName, 0);
+    }
+
+    @Override
+    public LabelMapper newLabelMapper(String outputName) {
+        return getInternalLabelMapper(outputName, 0);
+    }
+
+    @Override
+    public boolean supportsParallelMapping() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsSharding() {
+        return true;
+    }
+
     @Override
     public Function<String, ? extends Iterable<BaseInformationRecords.BaseInformation>> getRecordIterable() {
         return inputFilename -> {
@@ -611,6 +632,16 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
                 return helper.getMetricValues(metrics);
             }
 
+            @Override
+            public boolean supportsMetricAccumulators() {
+                return true;
+            }
+
+            @Override
+            public MetricAccumulator newMetricAccumulator(ComputationGraph graph) {
+                return new GenotypeTrainingPerformanceHelperWithAUC(domainDescriptor, graph);
+            }
+
             @Override
             public String earlyStoppingMetric() {
                 return args().earlyStoppingMeasureName;
@@ -109,41 +109,45 @@ public class GenotypeSegmentDomainDescriptor extends DomainDescriptor<SegmentInf
 
     @Override
     public FeatureMapper getFeatureMapper(String inputName) {
-        ConfigurableFeatureMapper mapper;
         if (cachedFeatureMappers.containsKey(inputName)) {
             return cachedFeatureMappers.get(inputName);
         } else {
-            switch (inputName) {
-                case "input":
-                    mapper = new SingleBaseFeatureMapperV1(0);
-                    break;
-                default:
-                    throw new RuntimeException("Unsupported input name: " + inputName);
-            }
-            if (mapper != null) {
-                try {
-                    Properties properties = null;
-                    if (args().parsedFromCommandLine) {
-                        properties = getReaderProperties(args().trainingSets.get(0));
-                    } else {
-                        properties = getReaderPropertiesFromModel(this.modelPath);
-                    }
-                    decorateProperties(properties);
-                    mapper.configure(properties);
-                    cachedFeatureMappers.put(inputName, (FeatureMapper) mapper);
-                    return (FeatureMapper) mapper;
-                } catch (IOException e) {
-                    throw new RuntimeException("IO exception, perhaps .ssip file not found?", e);
-                }
+            FeatureMapper mapper = newFeatureMapper(inputName);
+            cachedFeatureMappers.put(inputName, mapper);
+            return mapper;
+        }
+    }
 
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
+        ConfigurableFeatureMapper mapper;
+        switch (inputName) {
+            case "input":
+                mapper = new SingleBaseFeatureMapperV1(0);
+                break;
+            default:
+                throw new RuntimeException("Unsupported input name: " + inputName);
+        }
+        try {
+            Properties properties = null;
+            if (args().parsedFromCommandLine) {
+                properties = getReaderProperties(args().trainingSets.get(0));
             } else {
-                return null;
-
+                properties = getReaderPropertiesFromModel(this.modelPath);
             }
-
+            decorateProperties(properties);
+            mapper.configure(properties);
+            return (FeatureMapper) mapper;
+        } catch (IOException e) {
+            throw new RuntimeException("IO exception, perhaps .ssip file not found?", e);
         }
     }
 
+    @Override
+    public boolean supportsParallelMapping() {
+        return true;
+    }
+
 
     public static Properties getReaderPropertiesFromModel(String modelPath) throws IOException {
         Properties properties = new Properties();
@@ -172,32 +176,38 @@ public class GenotypeSegmentDomainDescriptor extends DomainDescriptor<SegmentInf
         if (cachedLabelMappers.containsKey(outputName)) {
             return cachedLabelMappers.get(outputName);
         } else {
-            ConfigurableLabelMapper mapper = null;
-
-            switch (outputName) {
-                case "genotype":
-
-                    mapper = new SingleBaseLabelMapperV1(0);
-                    break;
-                case "metadata":
-                    mapper = new SegmentMetaDataLabelMapper();
-                    break;
-                default:
-                    throw new RuntimeException("Unsupported output name: " + outputName);
-            }
-            try {
-                final Properties readerProperties;
-                if (args().parsedFromCommandLine)
-                    readerProperties = getReaderProperties(args().trainingSets.get(0));
-                else
-                    readerProperties = getReaderPropertiesFromModel(this.modelPath);
-                decorateProperties(readerProperties);
-                mapper.configure(readerProperties);
-                cachedLabelMappers.put(outputName, (LabelMapper) mapper);
-                return (LabelMapper) mapper;
-            } catch (IOException e) {
-                throw new InternalError("Unable to load properties and initialize label mapper.", e);
-            }
+            LabelMapper mapper = newLabelMapper(outputName);
+            cachedLabelMappers.put(outputName, mapper);
+            return mapper;
+        }
+    }
+
+    @Override
+    public LabelMapper newLabelMapper(String outputName) {
+        ConfigurableLabelMapper mapper = null;
+
+        switch (outputName) {
+            case "genotype":
+
+                mapper = new SingleBaseLabelMapperV1(0);
+                break;
+            case "metadata":
+                mapper = new SegmentMetaDataLabelMapper();
+                break;
+            default:
+                throw new RuntimeException("Unsupported output name: " + outputName);
+        }
+        try {
+            final Properties readerProperties;
+            if (args().parsedFromCommandLine)
+                readerProperties = getReaderProperties(args().trainingSets.get(0));
+            else
+                readerProperties = getReaderPropertiesFromModel(this.modelPath);
+            decorateProperties(readerProperties);
+            mapper.configure(readerProperties);
+            return (LabelMapper) mapper;
+        } catch (IOException e) {
+            throw new InternalError("Unable to load properties and initialize label mapper.", e);
         }
     }
 
@@ -40,4 +40,14 @@ public class CountReorderingMapper extends AbstractFeatureMapper1D<BaseInformati
     public float produceFeature(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
         return delegate.produceFeature(sortedCountRecord, featureIndex);
     }
+
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(sortedCountRecord, inputs, offset, indexOfRecord);
+    }
+
+    @Override
+    public boolean supportsRowMapping() {
+        return delegate.supportsRowMapping();
+    }
 }
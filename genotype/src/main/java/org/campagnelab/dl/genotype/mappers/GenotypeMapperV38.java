@@ -2,9 +2,9 @@ package org.campagnelab.dl.genotype.mappers;
 
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.somatic.mappers.*;
+import org.campagnelab.dl.somatic.mappers.functional.CountField;
 import org.campagnelab.dl.somatic.mappers.functional.TraversalHelper;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords.CountInfoOrBuilder;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
 import java.util.Properties;
@@ -91,54 +91,54 @@ public class GenotypeMapperV38 extends GenotypeMapperV11 {
 
             queryPositions[i] = new DensityMapper("queryPosition",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQueryPositionsList) /*,
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.QUERY_POSITIONS, values) /*,
                     queryPosition -> (float)(Math.log(queryPosition+1)/Math.log(2))*/);
 
             numVariationsInReadMappers[i] = new DensityMapper("numVariationsInRead",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getNumVariationsInReadsList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.NUM_VARIATIONS_IN_READS, values));
             //bin width 1 density mapper that ignores variations outside of caps
             distancesToReadVariations[i] = new DensityMapperCapped("distancesToReadVariations.forward", "distancesToReadVariations.reverse",
                     -50, 50, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotypeBothStrands(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder,
-                                    BaseInformationRecords.CountInfo::getDistancesToReadVariationsForwardStrandList,
-                                    BaseInformationRecords.CountInfo::getDistancesToReadVariationsReverseStrandList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotypeBothStrands(sampleIndex, constantGenotypeIndex, record,
+                                    CountField.DISTANCES_TO_READ_VARIATIONS_FORWARD_STRAND,
+                                    CountField.DISTANCES_TO_READ_VARIATIONS_REVERSE_STRAND, values));
 
             //bin width 1 density mapper that focuses on half the size of the genomic context (only length where we can observe homopolymers):
             distancesFromStartOfRead[i] = new DensityMapperCapped("distanceToStartOfRead",
                     0, genomicContextLength / 2, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder,
-                                    BaseInformationRecords.CountInfo::getDistanceToStartOfReadList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record,
+                                    CountField.DISTANCE_TO_START_OF_READ, values));
 
             //bin width 1 density mapper that focuses on half the size of the genomic context (only length where we can observe homopolymers):
             distancesFromEndOfRead[i] = new DensityMapperCapped("distanceToEndOfRead",
                     0, genomicContextLength / 2, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder,
-                                    BaseInformationRecords.CountInfo::getDistanceToEndOfReadList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record,
+                                    CountField.DISTANCE_TO_END_OF_READ, values));
 
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (record, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList));
+                                    record, CountField.READ_MAPPING_QUALITY_FORWARD_STRAND, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.forward",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.QUALITY_SCORES_FORWARD_STRAND, values));
 
             targetAlignedLengthMappers[i] = new DensityMapper("targetAlignedLength",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getTargetAlignedLengthsList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.TARGET_ALIGNED_LENGTHS, values));
             queryAlignedLengthMappers[i] = new DensityMapper("queryAlignedLength",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQueryAlignedLengthsList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.QUERY_ALIGNED_LENGTHS, values));
             bamFlagMappers[i] = new BamFlagMapper(sampleIndex, genotypeIndex);
             originalGobyCountIndexMappers[i] = new OriginalGobyCountIndexMapper(sampleIndex, constantGenotypeIndex);
             genotypeIndex++;
@@ -152,13 +152,13 @@ public class GenotypeMapperV38 extends GenotypeMapperV11 {
 
             readMappingQualityMappers[i] = new DensityMapper("readMappingQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
+                    (record, values) ->
                             TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex,
-                                    baseInformationOrBuilder, BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList));
+                                    record, CountField.READ_MAPPING_QUALITY_REVERSE_STRAND, values));
             baseQualityMappers[i] = new DensityMapper("baseQuality.reverse",
                     10, sbiProperties,
-                    baseInformationOrBuilder ->
-                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, baseInformationOrBuilder, BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList));
+                    (record, values) ->
+                            TraversalHelper.forOneSampleGenotype(sampleIndex, constantGenotypeIndex, record, CountField.QUALITY_SCORES_REVERSE_STRAND, values));
             genotypeIndex++;
         }
 
@@ -179,8 +179,8 @@ public class GenotypeMapperV38 extends GenotypeMapperV11 {
                         /* NumVariationsInReads for counts not in the best 3: */
                         new DensityMapper("numVariationsInRead",
                                 10, sbiProperties,
-                                record -> TraversalHelper.forAllSampleCounts(record,
-                                        CountInfoOrBuilder::getNumVariationsInReadsList)),
+                                (record, values) -> TraversalHelper.forAllSampleCounts(record,
+                                        CountField.NUM_VARIATIONS_IN_READS, values)),
                         new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(firstBaseMappers),
                         new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(distancesToReadVariations),
                         new NamingConcatFeatureMapper<BaseInformationRecords.BaseInformationOrBuilder>(distancesFromStartOfRead),
@@ -222,6 +222,16 @@ public class GenotypeMapperV38 extends GenotypeMapperV11 {
 
     }
 
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
+
+    @Override
+    public boolean supportsRowMapping() {
+        return delegate.supportsRowMapping();
+    }
+
     @Override
     public float produceFeature(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
         return delegate.produceFeature(record, featureIndex);
@@ -3,32 +3,30 @@ package org.campagnelab.dl.genotype.mappers;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
  * Sort genotypes of a record by decreasing count.
+ * The sort order is determined on a permutation of the count indices, so that CountInfo messages are only copied when
+ * their goby genotype index must be set, and records whose counts are already sorted are returned as is. The last
+ * record sorted on a thread is remembered, so that the feature and label mappers that sort the same record in turn
+ * share one sorted copy.
  * Created by fac2003 on 12/15/16.
  */
 public class RecordCountSortHelper {
+    private static final ThreadLocal<LastSorted> lastSorted = ThreadLocal.withInitial(LastSorted::new);
+
     public BaseInformationRecords.BaseInformationOrBuilder sort(BaseInformationRecords.BaseInformationOrBuilder record) {
         return sort(0, record);
     }
 
     public BaseInformationRecords.BaseInformationOrBuilder sort(int sampleIndex, BaseInformationRecords.BaseInformationOrBuilder record) {
-        int originalGenotypeIndex = 0;
-        final List<BaseInformationRecords.CountInfo> countsList = record.getSamples(sampleIndex).getCountsList();
-        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>();
-        for (BaseInformationRecords.CountInfo count : countsList) {
-            counts.add(BaseInformationRecords.CountInfo.newBuilder()
-                    .mergeFrom(count)
-                    .setGobyGenotypeIndex(originalGenotypeIndex++)
-                    .build());
+        LastSorted last = lastSorted.get();
+        if (last.matches(record, sampleIndex, true)) {
+            return last.sorted;
         }
-
-        Collections.sort(counts, (a, b) ->
-                (b.getGenotypeCountForwardStrand() + b.getGenotypeCountReverseStrand()) -
-                        (a.getGenotypeCountForwardStrand() + a.getGenotypeCountReverseStrand()));
+        final BaseInformationRecords.SampleInfoOrBuilder sample = record.getSamplesOrBuilder(sampleIndex);
+        final int[] permutation = sortPermutation(sample);
 
         BaseInformationRecords.BaseInformation.Builder copyOfRecord = BaseInformationRecords.BaseInformation.newBuilder();
         copyOfRecord.setGenomicSequenceContext(record.getGenomicSequenceContext());
@@ -39,11 +37,11 @@ public class RecordCountSortHelper {
         copyOfRecord.setReferenceIndex(record.getReferenceIndex());
         final BaseInformationRecords.SampleInfo.Builder builder = record.getSamples(sampleIndex).toBuilder();
         builder.clearCounts();
-        builder.addAllCounts(counts);
+        builder.addAllCounts(permute(record.getSamples(sampleIndex).getCountsList(), permutation));
         copyOfRecord.addAllSamples(record.getSamplesList());
-       // overwrite the sample we have sorted:
+        // overwrite the sample we have sorted:
         copyOfRecord.setSamples(sampleIndex, builder);
-        return copyOfRecord.build();
+        return last.remember(record, sampleIndex, true, copyOfRecord.build());
     }
 
     public BaseInformationRecords.BaseInformation sort(BaseInformationRecords.BaseInformation record) {
@@ -51,26 +49,97 @@ public class RecordCountSortHelper {
     }
 
     public BaseInformationRecords.BaseInformation sort(int sampleIndex, BaseInformationRecords.BaseInformation record) {
-        int originalGenotypeIndex = 0;
-        final List<BaseInformationRecords.CountInfo> countsList = record.getSamples(sampleIndex).getCountsList();
-        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>();
-        for (BaseInformationRecords.CountInfo count : countsList) {
-            counts.add(BaseInformationRecords.CountInfo.newBuilder()
-                    .mergeFrom(count)
-                    .setGobyGenotypeIndex(originalGenotypeIndex++)
-                    .build());
+        LastSorted last = lastSorted.get();
+        if (last.matches(record, sampleIndex, false)) {
+            return last.sorted;
+        }
+        final BaseInformationRecords.SampleInfo sample = record.getSamples(sampleIndex);
+        final int[] permutation = sortPermutation(sample);
+        BaseInformationRecords.BaseInformation sorted;
+        if (isSorted(sample, permutation)) {
+            // counts are already in order and carry their goby genotype index, no need to copy the record:
+            sorted = record;
+        } else {
+            final BaseInformationRecords.SampleInfo.Builder builder = sample.toBuilder();
+            builder.clearCounts();
+            builder.addAllCounts(permute(sample.getCountsList(), permutation));
+            sorted = record.toBuilder().setSamples(sampleIndex, builder).build();
         }
+        return last.remember(record, sampleIndex, false, sorted);
+    }
 
-        Collections.sort(counts, (a, b) ->
-                (b.getGenotypeCountForwardStrand() + b.getGenotypeCountReverseStrand()) -
-                        (a.getGenotypeCountForwardStrand() + a.getGenotypeCountReverseStrand()));
+    /**
+     * Determine the order of the counts of a sample by decreasing count (forward + reverse strand). Counts with the
+     * same total keep their original relative order.
+     *
+     * @param sample the sample whose counts are sorted.
+     * @return the original index of the count at each position in sorted order.
+     */
+    public int[] sortPermutation(BaseInformationRecords.SampleInfoOrBuilder sample) {
+        final int numCounts = sample.getCountsCount();
+        int[] permutation = new int[numCounts];
+        int[] totals = new int[numCounts];
+        for (int i = 0; i < numCounts; i++) {
+            BaseInformationRecords.CountInfoOrBuilder count = sample.getCountsOrBuilder(i);
+            totals[i] = count.getGenotypeCountForwardStrand() + count.getGenotypeCountReverseStrand();
+        }
+        // stable insertion sort, there are only a handful of counts per sample:
+        for (int i = 0; i < numCounts; i++) {
+            int j = i;
+            while (j > 0 && totals[permutation[j - 1]] < totals[i]) {
+                permutation[j] = permutation[j - 1];
+                j--;
+            }
+            permutation[j] = i;
+        }
+        return permutation;
+    }
 
+    private boolean isSorted(BaseInformationRecords.SampleInfoOrBuilder sample, int[] permutation) {
+        for (int i = 0; i < permutation.length; i++) {
+            if (permutation[i] != i || sample.getCountsOrBuilder(i).getGobyGenotypeIndex() != i) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        final BaseInformationRecords.SampleInfo.Builder builder = record.getSamples(sampleIndex).toBuilder();
-        builder.clearCounts();
-        builder.addAllCounts(counts);
-        BaseInformationRecords.BaseInformation.Builder copyOfRecord = record.toBuilder();
-        copyOfRecord.setSamples(sampleIndex, builder);
-        return copyOfRecord.build();
+    private List<BaseInformationRecords.CountInfo> permute(List<BaseInformationRecords.CountInfo> countsList, int[] permutation) {
+        List<BaseInformationRecords.CountInfo> counts = new ArrayList<>(permutation.length);
+        for (int originalIndex : permutation) {
+            BaseInformationRecords.CountInfo count = countsList.get(originalIndex);
+            counts.add(count.getGobyGenotypeIndex() == originalIndex ? count :
+                    count.toBuilder().setGobyGenotypeIndex(originalIndex).build());
+        }
+        return counts;
+    }
+
+    /**
+     * The last record sorted on a thread. Only messages are remembered: they are immutable, so the same instance always
+     * sorts to the same result (builders may change between calls).
+     */
+    private static class LastSorted {
+        BaseInformationRecords.BaseInformation record;
+        int sampleIndex;
+        /**
+         * True when the sorted record only contains the fields copied by sort(sampleIndex, BaseInformationOrBuilder).
+         */
+        boolean partialCopy;
+        BaseInformationRecords.BaseInformation sorted;
+
+        boolean matches(BaseInformationRecords.BaseInformationOrBuilder record, int sampleIndex, boolean partialCopy) {
+            return this.record == record && this.sampleIndex == sampleIndex && this.partialCopy == partialCopy;
+        }
+
+        BaseInformationRecords.BaseInformation remember(BaseInformationRecords.BaseInformationOrBuilder record, int sampleIndex,
+                                                        boolean partialCopy, BaseInformationRecords.BaseInformation sorted) {
+            if (record instanceof BaseInformationRecords.BaseInformation) {
+                this.record = (BaseInformationRecords.BaseInformation) record;
+                this.sampleIndex = sampleIndex;
+                this.partialCopy = partialCopy;
+                this.sorted = sorted;
+            }
+            return sorted;
+        }
     }
 }
@@ -1,28 +1,28 @@
 package org.campagnelab.dl.genotype.performance;
 
 import org.apache.commons.io.IOUtils;
+import org.campagnelab.dl.genotype.helpers.FieldWriter;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 /**
  * Helper to write bed file for observed regions, as well as TP, TN, FP, FN.
  * Created by fac2003 on 2/20/17.
  */
 public class BEDHelper {
-    private PrintWriter positionWriter;
-    private PrintWriter fpWriter;
-    private PrintWriter fnWriter;
-    private PrintWriter tpWriter;
-    private PrintWriter tnWriter;
+    private FieldWriter positionWriter;
+    private FieldWriter fpWriter;
+    private FieldWriter fnWriter;
+    private FieldWriter tpWriter;
+    private FieldWriter tnWriter;
 
     public BEDHelper(String basename) throws IOException {
-        positionWriter = new PrintWriter(new FileWriter(basename + "-observed-regions.bed"));
-        fpWriter = new PrintWriter(new FileWriter(basename + "-fp.bed"));
-        fnWriter = new PrintWriter(new FileWriter(basename + "-fn.bed"));
-        tpWriter = new PrintWriter(new FileWriter(basename + "-tp.bed"));
-        tnWriter = new PrintWriter(new FileWriter(basename + "-tn.bed"));
+        positionWriter = new FieldWriter(new FileWriter(basename + "-observed-regions.bed"));
+        fpWriter = new FieldWriter(new FileWriter(basename + "-fp.bed"));
+        fnWriter = new FieldWriter(new FileWriter(basename + "-fn.bed"));
+        tpWriter = new FieldWriter(new FileWriter(basename + "-tp.bed"));
+        tnWriter = new FieldWriter(new FileWriter(basename + "-tn.bed"));
     }
 
     public void close() {
@@ -34,20 +34,22 @@ public class BEDHelper {
     }
 
     public void add(String referenceId, int start, int end, int index, StatsAccumulator stats) {
-        positionWriter.printf("%s\t%d\t%d\t%d\n", referenceId, start, end, index);
+        write(positionWriter, referenceId, start, end, index);
         if (stats.observedWasFP()) {
-            fpWriter.printf("%s\t%d\t%d\t%d\n", referenceId, start, end, index);
+            write(fpWriter, referenceId, start, end, index);
         }
         if (stats.observedWasFN()) {
-            fnWriter.printf("%s\t%d\t%d\t%d\n", referenceId, start, end, index);
+            write(fnWriter, referenceId, start, end, index);
         }
         if (stats.observedWasTP()) {
-            tpWriter.printf("%s\t%d\t%d\t%d\n", referenceId, start, end, index);
+            write(tpWriter, referenceId, start, end, index);
         }
         if (stats.observedWasTN()) {
-            tnWriter.printf("%s\t%d\t%d\t%d\n", referenceId, start, end, index);
+            write(tnWriter, referenceId, start, end, index);
         }
+    }
 
-
+    private static void write(FieldWriter writer, String referenceId, int start, int end, int index) {
+        writer.append(referenceId).tab().append(start).tab().append(end).tab().append(index).endLine();
     }
 }
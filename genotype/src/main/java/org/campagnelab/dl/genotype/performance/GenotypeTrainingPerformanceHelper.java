@@ -23,10 +23,14 @@ import java.util.function.Predicate;
 public class GenotypeTrainingPerformanceHelper extends PredictWithModel<BaseInformationRecords.BaseInformation> {
 
     protected StatsAccumulator accumulator;
+    private int index;
+    private int nProcessed;
+    private final List<Prediction> predictions = new ArrayList<>();
 
 
     public GenotypeTrainingPerformanceHelper(DomainDescriptor<BaseInformationRecords.BaseInformation> domainDescriptor, Model graph) {
         super(domainDescriptor,graph);
+        reset();
     }
 
     public double estimateWithGraph(MultiDataSetIterator iterator,
@@ -42,52 +46,73 @@ public class GenotypeTrainingPerformanceHelper extends PredictWithModel<BaseInfo
                                     Predicate<Integer> stopIfTrue,
                                     Consumer<GenotypePrediction> observer, Consumer<Double> scoreObserver) {
         iterator.reset();
+        reset();
+        while (iterator.hasNext()) {
+            observe(iterator.next(), stopIfTrue, observer, scoreObserver);
+        }
+
+        return accumulator.createOutputStatistics()[StatsAccumulator.F1_INDEX];
+    }
+
+    /**
+     * Clear the statistics accumulated so far.
+     */
+    public void reset() {
         accumulator = new StatsAccumulator();
         accumulator.initializeStats();
-        int index = 0;
-        int nProcessed = 0;
-        int nCorrect = 0;
-        ComputationGraph graph= (ComputationGraph) model;
-        List<Prediction> predictions = new ArrayList<>();
-        while (iterator.hasNext()) {
-            MultiDataSet next = iterator.next();
-            INDArray[] outputs = graph.output(next.getFeatures());
-            double dsScore = graph.score(next);
-            if (dsScore == dsScore) {
-                scoreObserver.accept(dsScore);
-            }
-            INDArray[] trueLabels = next.getLabels();
-
-            int numExamples = next.getFeatures(0).size(0);
-            for (int predictionIndex = 0; predictionIndex < numExamples; predictionIndex++) {
-                predictions.clear();
-                for (int outputIndex = 0; outputIndex < domainDescriptor.getNumModelOutputs(); outputIndex++) {
-
-                    if (interpretors[outputIndex] != null) {
-                        Prediction prediction = interpretors[outputIndex].interpret(
-                                trueLabels[outputIndex],
-                                outputs[outputIndex],
-                                predictionIndex);
-                        prediction.outputIndex = outputIndex;
-                        prediction.index = index;
-                        predictions.add(prediction);
-                    }
-                }
-                GenotypePrediction gp = (GenotypePrediction) domainDescriptor.aggregatePredictions(null/**null in training phase */, predictions);
-                // obtain the reference base as an int (e.g., 0 or 1), to match the format of
-                // genotypes obtained during training from the cache:
-                String referenceBase = Integer.toString(gp.referenceGobyIndex);
-                accumulator.observe(gp, gp.isVariant(), GenotypeHelper.isVariant(gp.predictedGenotype, referenceBase));
-                observer.accept(gp);
-                if (stopIfTrue.test(nProcessed)) {
-                    break;
+        index = 0;
+        nProcessed = 0;
+    }
+
+    /**
+     * Predict the examples of a minibatch with the model of this helper and accumulate statistics about the predictions.
+     */
+    public void observe(MultiDataSet next, Predicate<Integer> stopIfTrue,
+                        Consumer<GenotypePrediction> observer, Consumer<Double> scoreObserver) {
+        ComputationGraph graph = (ComputationGraph) model;
+        INDArray[] outputs = graph.output(next.getFeatures());
+        double dsScore = graph.score(next);
+        if (dsScore == dsScore) {
+            scoreObserver.accept(dsScore);
+        }
+        INDArray[] trueLabels = next.getLabels();
+
+        int numExamples = next.getFeatures(0).size(0);
+        for (int predictionIndex = 0; predictionIndex < numExamples; predictionIndex++) {
+            predictions.clear();
+            for (int outputIndex = 0; outputIndex < domainDescriptor.getNumModelOutputs(); outputIndex++) {
+
+                if (interpretors[outputIndex] != null) {
+                    Prediction prediction = interpretors[outputIndex].interpret(
+                            trueLabels[outputIndex],
+                            outputs[outputIndex],
+                            predictionIndex);
+                    prediction.outputIndex = outputIndex;
+                    prediction.index = index;
+                    predictions.add(prediction);
                 }
-                nProcessed += 1;
-                index++;
             }
+            GenotypePrediction gp = (GenotypePrediction) domainDescriptor.aggregatePredictions(null/**null in training phase */, predictions);
+            // obtain the reference base as an int (e.g., 0 or 1), to match the format of
+            // genotypes obtained during training from the cache:
+            String referenceBase = Integer.toString(gp.referenceGobyIndex);
+            accumulator.observe(gp, gp.isVariant(), GenotypeHelper.isVariant(gp.predictedGenotype, referenceBase));
+            observer.accept(gp);
+            if (stopIfTrue.test(nProcessed)) {
+                break;
+            }
+            nProcessed += 1;
+            index++;
         }
+    }
 
-        return accumulator.createOutputStatistics()[StatsAccumulator.F1_INDEX];
+    /**
+     * Add the statistics accumulated by another helper to the statistics of this helper.
+     */
+    public void merge(GenotypeTrainingPerformanceHelper other) {
+        accumulator.merge(other.accumulator);
+        index += other.index;
+        nProcessed += other.nProcessed;
     }
 
     public double[] getMetricValues(String... metrics) {
@@ -4,9 +4,12 @@ import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
 import org.campagnelab.dl.framework.performance.AreaUnderTheROCCurve;
+import org.campagnelab.dl.framework.performance.MetricAccumulator;
+import org.campagnelab.dl.genotype.predictions.GenotypePrediction;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
 
 import java.util.function.Predicate;
@@ -14,11 +17,13 @@ import java.util.function.Predicate;
 /**
 
  */
-public class GenotypeTrainingPerformanceHelperWithAUC extends GenotypeTrainingPerformanceHelper {
+public class GenotypeTrainingPerformanceHelperWithAUC extends GenotypeTrainingPerformanceHelper implements MetricAccumulator {
     private final GenotypeTrainingPerformanceHelper delegate;
     private double observedScore;
     private double observedAUC;
-    AreaUnderTheROCCurve aucCalculator = new AreaUnderTheROCCurve(100000);
+    private double scoreSum;
+    private int numMiniBatchesScored;
+    AreaUnderTheROCCurve aucCalculator = new AreaUnderTheROCCurve();
     private double observedAUC_F1;
 
     public GenotypeTrainingPerformanceHelperWithAUC(DomainDescriptor<BaseInformationRecords.BaseInformation> domainDescriptor, Model model) {
@@ -27,23 +32,36 @@ public class GenotypeTrainingPerformanceHelperWithAUC extends GenotypeTrainingPe
     }
 
     public double estimateWithGraph(MultiDataSetIterator iterator, ComputationGraph graph, Predicate<Integer> stopIfTrue) {
-        final double[] score = new double[1];
-        final int[] numMiniBatchesScored = new int[1];
-
-        double delegateReturnValue = delegate.estimateWithGraph(iterator, graph, stopIfTrue, genotypePrediction -> {
-                    if (genotypePrediction.isVariant()) {
-                        aucCalculator.observe(genotypePrediction.isVariantProbability, genotypePrediction.isCorrect() ? 1 : -1);
-                    }
-                },
-                dsScore -> {
-                    score[0] += dsScore;
-                    numMiniBatchesScored[0] += 1;
-                });
-
-        observedScore = score[0] / (double) numMiniBatchesScored[0];
-        observedAUC = aucCalculator.evaluateStatistic();
+        scoreSum = 0;
+        numMiniBatchesScored = 0;
+        aucCalculator.reset();
+
+        return delegate.estimateWithGraph(iterator, graph, stopIfTrue, this::observeVariant, this::observeScore);
+    }
 
-        return delegateReturnValue;
+    @Override
+    public void observe(MultiDataSet minibatch) {
+        delegate.observe(minibatch, index -> false, this::observeVariant, this::observeScore);
+    }
+
+    @Override
+    public void merge(MetricAccumulator other) {
+        GenotypeTrainingPerformanceHelperWithAUC helper = (GenotypeTrainingPerformanceHelperWithAUC) other;
+        delegate.merge(helper.delegate);
+        aucCalculator.merge(helper.aucCalculator);
+        scoreSum += helper.scoreSum;
+        numMiniBatchesScored += helper.numMiniBatchesScored;
+    }
+
+    private void observeVariant(GenotypePrediction genotypePrediction) {
+        if (genotypePrediction.isVariant()) {
+            aucCalculator.observe(genotypePrediction.isVariantProbability, genotypePrediction.isCorrect() ? 1 : -1);
+        }
+    }
+
+    private void observeScore(double dsScore) {
+        scoreSum += dsScore;
+        numMiniBatchesScored += 1;
     }
 
     public double[] getMetricValues(String... metrics) {
@@ -54,6 +72,8 @@ public class GenotypeTrainingPerformanceHelperWithAUC extends GenotypeTrainingPe
         metricsNoScore.trim();
         String[] elements = metricsNoScore.toArray(new String[metricsNoScore.size()]);
         DoubleArrayList all = DoubleArrayList.wrap(delegate.getMetricValues(elements));
+        observedScore = scoreSum / (double) numMiniBatchesScored;
+        observedAUC = aucCalculator.evaluateStatistic();
 
         double F1=0;
 //calculate the sum of AUC and F1:
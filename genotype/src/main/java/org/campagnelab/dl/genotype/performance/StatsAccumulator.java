@@ -135,6 +135,46 @@ public class StatsAccumulator {
         numIndels += fullPred.isIndel() ? 1 : 0;
     }
 
+    /**
+     * Add the counts of another accumulator to the counts of this one, for instance to combine the statistics of
+     * predictions observed by several threads. The number of variants expected is a setting rather than a count: it is
+     * taken from the other accumulator when it was not set on this one.
+     */
+    public void merge(StatsAccumulator other) {
+        if (numVariantsExpected == 0) {
+            numVariantsExpected = other.numVariantsExpected;
+        }
+        numCorrectVariants += other.numCorrectVariants;
+        numProcessed += other.numProcessed;
+        numTruePositive += other.numTruePositive;
+        numTrueNegative += other.numTrueNegative;
+        numFalsePositive += other.numFalsePositive;
+        numFalseNegative += other.numFalseNegative;
+        numIndelsCorrect += other.numIndelsCorrect;
+        numSnpsCorrect += other.numSnpsCorrect;
+        numIndelsProcessed += other.numIndelsProcessed;
+        numSnpsProcessed += other.numSnpsProcessed;
+        numIndelsTruePositive += other.numIndelsTruePositive;
+        numIndelsFalsePositive += other.numIndelsFalsePositive;
+        numIndelsFalseNegative += other.numIndelsFalseNegative;
+        numIndelsTrueNegative += other.numIndelsTrueNegative;
+        numSnpsTruePositive += other.numSnpsTruePositive;
+        numSnpsFalsePositive += other.numSnpsFalsePositive;
+        numSnpsFalseNegative += other.numSnpsFalseNegative;
+        numVariants += other.numVariants;
+        numIndels += other.numIndels;
+        concordantVariants += other.concordantVariants;
+        numTrueOrPredictedVariants += other.numTrueOrPredictedVariants;
+        numSnpsTrueNegative += other.numSnpsTrueNegative;
+        hetCount += other.hetCount;
+        homCount += other.homCount;
+        numTrueIndels += other.numTrueIndels;
+        numPredictedIndels += other.numPredictedIndels;
+        numIsIndels += other.numIsIndels;
+        numPredictedSNPs += other.numPredictedSNPs;
+        numIsSNPs += other.numIsSNPs;
+    }
+
     public double[] createOutputStatistics() {
 
         numTrueNegative = numSnpsTrueNegative + numIndelsTrueNegative;
@@ -9,6 +9,7 @@ import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 
 import java.io.IOException;
 import java.util.Properties;
+import java.util.function.Consumer;
 
 /**
  * This class implements the genotype prediction model expected by Goby 3.2+.  Make sure to move
@@ -49,6 +50,37 @@ public class DLGenotypePredictor implements GenotypePredictor, Predictor {
                 readerIdxs);
     }
 
+    /**
+     * Queue a site for prediction. Sites are predicted in micro-batches of batchSize sites, with a single forward
+     * pass per batch, and predictions are handed to whenPredicted in the order the sites were queued. Call flush()
+     * after the last site (for instance at the end of each reference sequence).
+     *
+     * @param whenPredicted called with the prediction of the site.
+     */
+    public void predict(RandomAccessSequenceInterface genome, String referenceId, SampleCountInfo[] sampleCounts,
+                        int referenceIndex, int pos, DiscoverVariantPositionData list, int[] readerIdxs,
+                        Consumer<GenotypePrediction> whenPredicted) {
+        model.predictGenotype(genome,
+                referenceId,
+                sampleCounts,
+                referenceIndex, pos,
+                list,
+                readerIdxs, whenPredicted);
+    }
+
+    /**
+     * Predict the sites queued with predict(..., whenPredicted) and not yet predicted.
+     */
+    public void flush() {
+        model.flush();
+    }
+
+    /**
+     * Set the number of sites predicted in one forward pass by predict(..., whenPredicted).
+     */
+    public void setBatchSize(int batchSize) {
+        model.setBatchSize(batchSize);
+    }
 
     @Override
     public boolean modelIsLoaded() {
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.util.Properties;
+import java.util.function.Consumer;
 
 /**
  * Encapsulates a trained genotype model.
@@ -87,15 +88,52 @@ public class GenotypeModel {
                                                   int referenceIndex, int position,
                                                   DiscoverVariantPositionData list,
                                                   int[] readerIdxs) {
+        return protoPredictor.predictGenotype(toProto(genome, referenceID, sampleCounts, referenceIndex, position,
+                list, readerIdxs));
+    }
+
+    /**
+     * Queue a site for prediction in a micro-batch (see GenotypeProtoPredictor). The site is converted to a record
+     * immediately, so that the counts can be reused by the caller.
+     *
+     * @param whenPredicted called with the prediction of the site, when its micro-batch is predicted.
+     */
+    public void predictGenotype(RandomAccessSequenceInterface genome, String referenceID,
+                                SampleCountInfo sampleCounts[],
+                                int referenceIndex, int position,
+                                DiscoverVariantPositionData list,
+                                int[] readerIdxs, Consumer<GenotypePrediction> whenPredicted) {
+        protoPredictor.predictGenotype(toProto(genome, referenceID, sampleCounts, referenceIndex, position,
+                list, readerIdxs), whenPredicted);
+    }
+
+    /**
+     * Predict the sites queued and not yet predicted.
+     */
+    public void flush() {
+        protoPredictor.flush();
+    }
+
+    /**
+     * Set the maximum number of sites predicted in one forward pass.
+     */
+    public void setBatchSize(int batchSize) {
+        protoPredictor.setBatchSize(batchSize);
+    }
+
+    private BaseInformationRecords.BaseInformation toProto(RandomAccessSequenceInterface genome, String referenceID,
+                                                           SampleCountInfo sampleCounts[],
+                                                           int referenceIndex, int position,
+                                                           DiscoverVariantPositionData list,
+                                                           int[] readerIdxs) {
         Integer[] sampleToReaderIdxs;
         // genotype models work with a single sample:
         sampleToReaderIdxs = new Integer[]{readerIdxs[0]};
 
         //in the past, predictions on 0 reads have been bypassed and given prediction value 0. leaving this out for now.
         int contextLength = (int)Float.parseFloat(modelProperties.getProperty("stats.genomicContextSize.max"));
-        BaseInformationRecords.BaseInformation proto = ProtoHelper.toProto(genome, referenceID, sampleCounts,
+        return ProtoHelper.toProto(genome, referenceID, sampleCounts,
                 referenceIndex, position, list, sampleToReaderIdxs,contextLength);
-        return protoPredictor.predictGenotype(proto);
     }
 
 
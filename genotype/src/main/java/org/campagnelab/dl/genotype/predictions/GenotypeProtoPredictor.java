@@ -11,8 +11,13 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
+ * Predicts genotypes from BaseInformation records. Records can be predicted one at a time with
+ * predictGenotype(record), or in micro-batches: predictGenotype(record, whenPredicted) collects records until
+ * batchSize records are pending, maps them into one minibatch and runs a single forward pass. Predictions are handed
+ * to the callbacks in the order the records were submitted. Call flush() to predict the records still pending.
  * Created by fac2003 on 12/18/16.
  */
 public class GenotypeProtoPredictor {
@@ -40,14 +45,69 @@ public class GenotypeProtoPredictor {
 
     private PredictionInterpreter[] interpretors;
     private List<Prediction> predictions = new ArrayList<>();
+    private int batchSize = 1;
+    private List<BaseInformationRecords.BaseInformation> pendingRecords = new ArrayList<>();
+    private List<Consumer<GenotypePrediction>> pendingCallbacks = new ArrayList<>();
+
+    /**
+     * Set the maximum number of records predicted in one forward pass by predictGenotype(record, whenPredicted).
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
 
     public GenotypePrediction predictGenotype(BaseInformationRecords.BaseInformation currentRecord) {
         assert model != null : "Model cannot be null";
 
         outputHelper.predictForNextRecord(model, currentRecord, mapper);
+        return interpret(currentRecord, -1);
+    }
+
+    /**
+     * Queue a record for prediction. The records pending are predicted when batchSize records have been queued, or
+     * when flush() is called.
+     *
+     * @param currentRecord record to predict.
+     * @param whenPredicted called with the prediction of the record.
+     */
+    public void predictGenotype(BaseInformationRecords.BaseInformation currentRecord,
+                                Consumer<GenotypePrediction> whenPredicted) {
+        pendingRecords.add(currentRecord);
+        pendingCallbacks.add(whenPredicted);
+        if (pendingRecords.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Predict the records pending with a single forward pass and hand the predictions to their callbacks, in order.
+     */
+    public void flush() {
+        if (pendingRecords.isEmpty()) {
+            return;
+        }
+        assert model != null : "Model cannot be null";
+        try {
+            outputHelper.predictForRecords(model, pendingRecords, mapper);
+            for (int exampleIndex = 0; exampleIndex < pendingRecords.size(); exampleIndex++) {
+                pendingCallbacks.get(exampleIndex).accept(interpret(pendingRecords.get(exampleIndex), exampleIndex));
+            }
+        } finally {
+            pendingRecords.clear();
+            pendingCallbacks.clear();
+        }
+    }
+
+    /**
+     * Interpret the outputs of one record.
+     *
+     * @param exampleIndex index of the record in the last minibatch, or -1 when the record was predicted alone.
+     */
+    private GenotypePrediction interpret(BaseInformationRecords.BaseInformation currentRecord, int exampleIndex) {
         predictions.clear();
         for (int outputIndex = 0; outputIndex < domainDescriptor.getNumModelOutputs(); outputIndex++) {
-            INDArray outputPredictions = outputHelper.getOutput(outputIndex);
+            INDArray outputPredictions = exampleIndex == -1 ? outputHelper.getOutput(outputIndex) :
+                    outputHelper.getOutput(outputIndex, exampleIndex);
 
             if (interpretors[outputIndex] != null) {
                 Prediction prediction = interpretors[outputIndex].interpret(currentRecord, outputPredictions);
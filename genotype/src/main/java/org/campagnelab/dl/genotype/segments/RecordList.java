@@ -1,19 +1,26 @@
 package org.campagnelab.dl.genotype.segments;
 
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Spliterator;
 import java.util.function.Predicate;
 
+/**
+ * The records of a segment, in order. Records inserted after a record and hidden records are tracked by the index of
+ * the record in the list, so that the records never need to be hashed or compared (hashing a protobuf message visits
+ * all its fields, including every sample and count). Removing records moves these indices, including those of the
+ * child segments that refer to this list.
+ */
 public class RecordList implements Iterable<BaseInformationRecords.BaseInformation> {
     static private Logger LOG = LoggerFactory.getLogger(RecordList.class);
 
@@ -24,11 +31,15 @@ public class RecordList implements Iterable<BaseInformationRecords.BaseInformati
 
     ArrayList<BaseInformationRecords.BaseInformation> records = new ArrayList<>();
     /*
-     * A map that contains list of records following a specific record. Use to combine indel position that are interleaved with
-     * original records. When we need the full list of record, we combine record a in records with the records following a in
-     * afterRecord.
+     * Records following specific records, and hidden records, keyed by the index of the record. Use to combine
+     * indel position that are interleaved with original records. When we need the full list of record, we combine record
+     * a in records with the records following a.
      */
-    public Object2ObjectOpenHashMap<BaseInformationRecords.BaseInformation, List<BaseInformationRecords.BaseInformation>> afterRecord = new Object2ObjectOpenHashMap<>();
+    private final Bookkeeping bookkeeping = new Bookkeeping();
+    /**
+     * Bookkeeping of segments whose record indices refer to this list (see newChildBookkeeping).
+     */
+    private final List<Bookkeeping> childBookkeeping = new ArrayList<>();
 
     /**
      * Returns an iterator over elements of type {@code T}.
@@ -50,6 +61,10 @@ public class RecordList implements Iterable<BaseInformationRecords.BaseInformati
         return records.get(0);
     }
 
+    public BaseInformationRecords.BaseInformation get(int index) {
+        return records.get(index);
+    }
+
     public int size() {
         return records.size();
     }
@@ -58,9 +73,10 @@ public class RecordList implements Iterable<BaseInformationRecords.BaseInformati
         records.add(record);
     }
 
-    public BaseInformationRecords.BaseInformation insertAfter(BaseInformationRecords.BaseInformation previous,
+    public BaseInformationRecords.BaseInformation insertAfter(int previousIndex,
                                                               BaseInformationRecords.BaseInformation buildFrom,
                                                               char insertedDeleted, int offset) {
+        BaseInformationRecords.BaseInformation previous = records.get(previousIndex);
         BaseInformationRecords.BaseInformation.Builder copy = buildFrom.toBuilder();
 
         String trueFrom = previous.getTrueFrom();
@@ -72,26 +88,131 @@ public class RecordList implements Iterable<BaseInformationRecords.BaseInformati
         copy.setTrueGenotype(Character.toString(insertedDeleted));
         final BaseInformationRecords.BaseInformation builtCopy = copy.build();
         //  System.out.println("Adding builtCopy:"+FormatterCountHelper.format(builtCopy.getSamples(0)));
-        addToFollowing(previous, builtCopy);
-        //records.add(records.indexOf(previous) + 1, builtCopy);
+        addToFollowing(previousIndex, builtCopy);
         return previous;
 
     }
 
-    void addToFollowing(BaseInformationRecords.BaseInformation previous, BaseInformationRecords.BaseInformation builtCopy) {
-        List<BaseInformationRecords.BaseInformation> list = afterRecord.getOrDefault(previous, new ObjectArrayList<>());
-        list.add(builtCopy);
-        afterRecord.put(previous, list);
+    void addToFollowing(int previousIndex, BaseInformationRecords.BaseInformation builtCopy) {
+        bookkeeping.addToFollowing(previousIndex, builtCopy);
+    }
+
+    /**
+     * Create bookkeeping for a segment that hides and inserts records by index in this list, without changing the
+     * bookkeeping of the list itself. The indices of the child bookkeeping follow the records when records are
+     * removed from this list.
+     *
+     * @return bookkeeping owned by the caller.
+     */
+    Bookkeeping newChildBookkeeping() {
+        Bookkeeping child = new Bookkeeping();
+        childBookkeeping.add(child);
+        return child;
+    }
+
+    /**
+     * @return the records inserted after the record at index, or an empty list.
+     */
+    public List<BaseInformationRecords.BaseInformation> following(int index) {
+        return bookkeeping.following(index);
     }
 
     public void removeWhere(Predicate<BaseInformationRecords.BaseInformation> predicateIsTrue) {
-        records.removeIf(predicateIsTrue);
+        boolean tracked = !bookkeeping.isEmpty();
+        for (Bookkeeping child : childBookkeeping) {
+            tracked |= !child.isEmpty();
+        }
+        if (!tracked) {
+            records.removeIf(predicateIsTrue);
+            return;
+        }
+        // records move, so the indices of inserted and hidden records must follow:
+        final int[] newIndexOf = new int[records.size()];
+        int newIndex = 0;
+        for (int index = 0; index < records.size(); index++) {
+            final BaseInformationRecords.BaseInformation record = records.get(index);
+            if (predicateIsTrue.test(record)) {
+                newIndexOf[index] = -1;
+                continue;
+            }
+            records.set(newIndex, record);
+            newIndexOf[index] = newIndex;
+            newIndex++;
+        }
+        records.subList(newIndex, records.size()).clear();
+        bookkeeping.remap(newIndexOf);
+        for (Bookkeeping child : childBookkeeping) {
+            child.remap(newIndexOf);
+        }
+    }
+
+    public void hideRecord(int index) {
+        bookkeeping.hide(index);
+    }
 
+    public boolean isHidden(int index) {
+        return bookkeeping.isHidden(index);
     }
 
-    public ObjectSet<BaseInformationRecords.BaseInformation> hideSet = new ObjectOpenHashSet<>();
+    /**
+     * Hidden records and records inserted after other records, keyed by the index of the records in a record list.
+     */
+    static class Bookkeeping {
+        private Int2ObjectOpenHashMap<List<BaseInformationRecords.BaseInformation>> afterRecord = new Int2ObjectOpenHashMap<>();
+        private BitSet hidden = new BitSet();
+
+        void addToFollowing(int previousIndex, BaseInformationRecords.BaseInformation builtCopy) {
+            List<BaseInformationRecords.BaseInformation> list = afterRecord.get(previousIndex);
+            if (list == null) {
+                list = new ObjectArrayList<>();
+                afterRecord.put(previousIndex, list);
+            }
+            list.add(builtCopy);
+        }
+
+        List<BaseInformationRecords.BaseInformation> following(int index) {
+            List<BaseInformationRecords.BaseInformation> list = afterRecord.get(index);
+            return list == null ? Collections.emptyList() : list;
+        }
+
+        void hide(int index) {
+            hidden.set(index);
+        }
+
+        boolean isHidden(int index) {
+            return hidden.get(index);
+        }
+
+        boolean isEmpty() {
+            return afterRecord.isEmpty() && hidden.isEmpty();
+        }
 
-    public void hideRecord(BaseInformationRecords.BaseInformation record) {
-        hideSet.add(record);
+        /**
+         * Move the indices after records were removed from the list. Records inserted after a removed record are
+         * dropped with it.
+         *
+         * @param newIndexOf new index of each record of the list, or -1 when the record was removed.
+         */
+        void remap(int[] newIndexOf) {
+            if (isEmpty()) {
+                return;
+            }
+            Int2ObjectOpenHashMap<List<BaseInformationRecords.BaseInformation>> movedAfterRecord = new Int2ObjectOpenHashMap<>();
+            for (Int2ObjectMap.Entry<List<BaseInformationRecords.BaseInformation>> entry : afterRecord.int2ObjectEntrySet()) {
+                final int newIndex = newIndexOf[entry.getIntKey()];
+                if (newIndex >= 0) {
+                    movedAfterRecord.put(newIndex, entry.getValue());
+                }
+            }
+            BitSet movedHidden = new BitSet();
+            for (int index = hidden.nextSetBit(0); index >= 0; index = hidden.nextSetBit(index + 1)) {
+                final int newIndex = newIndexOf[index];
+                if (newIndex >= 0) {
+                    movedHidden.set(newIndex);
+                }
+            }
+            afterRecord = movedAfterRecord;
+            hidden = movedHidden;
+        }
     }
 }
@@ -1,7 +1,6 @@
 package org.campagnelab.dl.genotype.segments;
 
 import com.google.common.collect.Iterators;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
@@ -171,12 +170,26 @@ public class Segment {
      * Insert a copy after a record. The copy has the same position as the record, but follows in order (usually
      * representing a position contributing to an indel).
      *
-     * @param record after which copy will be inserted
-     * @param copy   to insert.
+     * @param recordIndex index in {@link #getRecordList()} of the record after which copy will be inserted
+     * @param copy        to insert.
      */
-    public void insertAfter(BaseInformationRecords.BaseInformation record, BaseInformationRecords.BaseInformation.Builder copy) {
+    public void insertAfter(int recordIndex, BaseInformationRecords.BaseInformation.Builder copy) {
 
-        recordList.addToFollowing(record, copy.build());
+        recordList.addToFollowing(recordIndex, copy.build());
+    }
+
+    /**
+     * The list of records that record indices refer to.
+     */
+    public RecordList getRecordList() {
+        return recordList;
+    }
+
+    /**
+     * Checks if a record of the record list belongs to this segment.
+     */
+    public boolean isInSegment(BaseInformationRecords.BaseInformation record) {
+        return true;
     }
 
     /**
@@ -186,12 +199,13 @@ public class Segment {
      */
     public Iterable<BaseInformationRecords.BaseInformation> getAllRecords(int startPosition, int endPosition) {
         ObjectArrayList<BaseInformationRecords.BaseInformation> list = new ObjectArrayList();
-        for (BaseInformationRecords.BaseInformation record : recordList) {
+        for (int index = 0; index < recordList.size(); index++) {
+            final BaseInformationRecords.BaseInformation record = recordList.get(index);
             if (record.getPosition() >= startPosition && record.getPosition() < endPosition) {
-                if (!getHiddenRecords().contains(record)) {
+                if (!isHidden(index)) {
                     list.add(record);
                 }
-                list.addAll(getAfterRecords().getOrDefault(record, Collections.emptyList()));
+                list.addAll(getAfterRecords(index));
             }
         }
 
@@ -208,12 +222,13 @@ public class Segment {
      */
     public int actualLength(int startPosition, int endPosition) {
         int count = 0;
-        for (BaseInformationRecords.BaseInformation record : recordList) {
+        for (int index = 0; index < recordList.size(); index++) {
+            final BaseInformationRecords.BaseInformation record = recordList.get(index);
             if (record.getPosition() >= startPosition && record.getPosition() <= endPosition) {
-                if (!getHiddenRecords().contains(record)) {
+                if (!isHidden(index)) {
                     count += 1;
                 }
-                count += getAfterRecords().getOrDefault(record, Collections.emptyList()).size();
+                count += getAfterRecords(index).size();
             }
         }
         return count;
@@ -385,11 +400,11 @@ public class Segment {
     }
 
     public void remove(BaseInformationRecords.BaseInformation record) {
-        recordList.records.remove(record);
+        recordList.removeWhere(candidate -> candidate == record);
     }
 
     public void removeWhere(Predicate<BaseInformationRecords.BaseInformation> predicateIsTrue) {
-        recordList.records.removeIf(predicateIsTrue);
+        recordList.removeWhere(predicateIsTrue);
     }
 
     public BaseInformationRecords.BaseInformation getRecordAt(int position) {
@@ -400,16 +415,24 @@ public class Segment {
         return null;
     }
 
-    public void hideRecord(BaseInformationRecords.BaseInformation record) {
-        this.recordList.hideRecord(record);
+    /**
+     * Hide a record, so that it is no longer part of the records of this segment.
+     *
+     * @param recordIndex index of the record in {@link #getRecordList()}.
+     */
+    public void hideRecord(int recordIndex) {
+        this.recordList.hideRecord(recordIndex);
     }
 
-    public ObjectSet<BaseInformationRecords.BaseInformation> getHiddenRecords() {
-        return this.recordList.hideSet;
+    public boolean isHidden(int recordIndex) {
+        return this.recordList.isHidden(recordIndex);
     }
 
-    public Object2ObjectOpenHashMap<BaseInformationRecords.BaseInformation, List<BaseInformationRecords.BaseInformation>> getAfterRecords() {
-        return this.recordList.afterRecord;
+    /**
+     * @return the records inserted after the record at recordIndex in {@link #getRecordList()}.
+     */
+    public List<BaseInformationRecords.BaseInformation> getAfterRecords(int recordIndex) {
+        return this.recordList.following(recordIndex);
     }
 
     static class SegmentLocation {
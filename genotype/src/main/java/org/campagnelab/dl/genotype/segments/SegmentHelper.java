@@ -31,7 +31,8 @@ public class SegmentHelper {
     private static Statistics statistics = new Statistics();
     static private Logger LOG = LoggerFactory.getLogger(SegmentHelper.class);
     private boolean collectStatistics;
-    private XorShift1024StarRandom random = new XorShift1024StarRandom(28392839);
+    private static final long SAMPLING_SEED = 28392839;
+    private final XorShift1024StarRandom random = new XorShift1024StarRandom(SAMPLING_SEED);
     private double samplingRate = 0.01;
     int segmentsWithCandidateIndel = 0;
     int segmentsWithTrueIndel = 0;
@@ -103,7 +104,7 @@ public class SegmentHelper {
 
             if (segmentHasCandidateIndel && !segmentHasTrueIndel) {
                 // only include some sample of candidates:
-                if (random.nextDouble() > samplingRate) {
+                if (samplingDraw(subSegment) > samplingRate) {
                     continue;
                 }
             }
@@ -129,6 +130,16 @@ public class SegmentHelper {
         }
     }
 
+    /**
+     * Draw the random number that decides if a segment is sampled. The draw is seeded by the start of the segment, so
+     * that a segment is sampled the same way whatever segments were built before it, for instance when segments of
+     * different regions are built by different helpers.
+     */
+    private double samplingDraw(Segment segment) {
+        random.setSeed(SAMPLING_SEED ^ ((long) segment.getFirstReferenceIndex() << 32 | segment.getFirstPosition() & 0xFFFFFFFFL));
+        return random.nextDouble();
+    }
+
     public void add(BaseInformationRecords.BaseInformation record) {
         if (currentSegment == null) {
             newSegment(record);
@@ -152,6 +163,15 @@ public class SegmentHelper {
         this.closeSegment();
     }
 
+    /**
+     * Add the segment counts of another helper to the counts of this helper, for instance when segments of different
+     * regions are built by different helpers.
+     */
+    public void addCounts(SegmentHelper other) {
+        segmentsWithCandidateIndel += other.segmentsWithCandidateIndel;
+        segmentsWithTrueIndel += other.segmentsWithTrueIndel;
+    }
+
     public void printStats() {
         System.out.printf("Segments with candidate indels: %d%n" +
                 "Segments with true indels: %d%n",segmentsWithCandidateIndel,segmentsWithTrueIndel);
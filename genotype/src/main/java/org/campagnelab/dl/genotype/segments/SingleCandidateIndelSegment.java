@@ -1,13 +1,9 @@
 package org.campagnelab.dl.genotype.segments;
 
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.campagnelab.dl.genotype.segments.splitting.SingleCandidateIndelSplitStrategy;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
-import java.util.Collections;
 import java.util.List;
 
 
@@ -22,14 +18,18 @@ public class SingleCandidateIndelSegment extends Segment {
     private final int windowSize;
     private final Segment parent;
     private boolean closed = false;
-    public ObjectSet<BaseInformationRecords.BaseInformation> hideSet = new ObjectOpenHashSet<>();
-    public Object2ObjectOpenHashMap<BaseInformationRecords.BaseInformation, List<BaseInformationRecords.BaseInformation>> afterRecord = new Object2ObjectOpenHashMap<>();
+    /**
+     * Records hidden in this segment and records inserted in this segment, keyed by their index in the record list of
+     * the parent. The parent list moves these indices when records are removed from it.
+     */
+    private final RecordList.Bookkeeping bookkeeping;
 
     public SingleCandidateIndelSegment(final SingleCandidateIndelSplitStrategy.BasePositionList beforePositions,
                                           final Segment parent, final BaseInformationRecords.BaseInformation indel,
                                           int windowSize) {
         super(parent.fillInFeatures);
         this.parent = parent;
+        this.bookkeeping = parent.recordList.newChildBookkeeping();
         this.candidateIndelPosition = indel.getPosition();
         this.candidateReferenceId = indel.getReferenceId();
         this.windowSize = windowSize;
@@ -86,20 +86,35 @@ public class SingleCandidateIndelSegment extends Segment {
     @Override
     public Iterable<BaseInformationRecords.BaseInformation> getAllRecords(int startPosition, int endPosition) {
         ObjectArrayList<BaseInformationRecords.BaseInformation> list = new ObjectArrayList(this.actualLength() * 3 / 2);
-        for (BaseInformationRecords.BaseInformation record : parent.recordList) {
+        final RecordList records = parent.recordList;
+        for (int index = 0; index < records.size(); index++) {
+            final BaseInformationRecords.BaseInformation record = records.get(index);
             if (record.getPosition() >= startPosition && record.getPosition() <= endPosition) {
-                if (!getHiddenRecords().contains(record)) {
+                if (!isHidden(index)) {
                     list.add(record);
                 }
-                list.addAll(getAfterRecords().getOrDefault(record, Collections.emptyList()));
+                list.addAll(getAfterRecords(index));
             }
         }
 
         return list;
     }
     @Override
-    public Object2ObjectOpenHashMap<BaseInformationRecords.BaseInformation, List<BaseInformationRecords.BaseInformation>> getAfterRecords() {
-        return this.afterRecord;
+    public List<BaseInformationRecords.BaseInformation> getAfterRecords(int recordIndex) {
+        return bookkeeping.following(recordIndex);
+    }
+
+    /**
+     * Record indices of this segment refer to the record list of the parent.
+     */
+    @Override
+    public RecordList getRecordList() {
+        return parent.recordList;
+    }
+
+    @Override
+    public boolean isInSegment(BaseInformationRecords.BaseInformation record) {
+        return record.getPosition() >= startPosition && record.getPosition() <= endPosition;
     }
 
     @Override
@@ -109,21 +124,20 @@ public class SingleCandidateIndelSegment extends Segment {
 
 
     @Override
-    public void hideRecord(BaseInformationRecords.BaseInformation record) {
-        this.hideSet.add(record);
+    public void hideRecord(int recordIndex) {
+        bookkeeping.hide(recordIndex);
     }
 
     @Override
-    public ObjectSet<BaseInformationRecords.BaseInformation> getHiddenRecords() {
-        return this.hideSet;
+    public boolean isHidden(int recordIndex) {
+        return bookkeeping.isHidden(recordIndex);
     }
 
 
     @Override
-    public void insertAfter(BaseInformationRecords.BaseInformation record, BaseInformationRecords.BaseInformation.Builder copy) {
-        List<BaseInformationRecords.BaseInformation> list = afterRecord.getOrDefault(record, new ObjectArrayList<>());
-        list.add(copy.build());
-        afterRecord.put(record, list);    }
+    public void insertAfter(int recordIndex, BaseInformationRecords.BaseInformation.Builder copy) {
+        bookkeeping.addToFollowing(recordIndex, copy.build());
+    }
 
     /**
      * Decides if the base belongs to this subsegment
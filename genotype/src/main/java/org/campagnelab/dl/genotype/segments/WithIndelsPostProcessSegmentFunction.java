@@ -12,8 +12,13 @@ public class WithIndelsPostProcessSegmentFunction implements PostProcessSegmentF
     public Segment apply(Segment segment) {
 
 
-        Iterable<BaseInformationRecords.BaseInformation> records = segment.getAllRecords();
-        records.forEach((BaseInformationRecords.BaseInformation record) -> {
+        // records are visited by index, which identifies them for insertAfter and hideRecord:
+        final RecordList records = segment.getRecordList();
+        for (int recordIndex = 0; recordIndex < records.size(); recordIndex++) {
+            final BaseInformationRecords.BaseInformation record = records.get(recordIndex);
+            if (!segment.isInSegment(record) || segment.isHidden(recordIndex)) {
+                continue;
+            }
             int longestIndelLength = 0;
             String longestReference=record.getReferenceBase();
             for (BaseInformationRecords.SampleInfo sample : record.getSamplesList()) {
@@ -55,12 +60,12 @@ public class WithIndelsPostProcessSegmentFunction implements PostProcessSegmentF
                         sampleIndex++;
                     }
                     copy = segment.adjustCounts(copy, offset, longestReference);
-                    segment.insertAfter(record, copy);
+                    segment.insertAfter(recordIndex, copy);
                 }
-                segment.hideRecord(record);
+                segment.hideRecord(recordIndex);
                 segment.setIndicesAdded(true);
             }
-        });
+        }
 
 
         return segment;
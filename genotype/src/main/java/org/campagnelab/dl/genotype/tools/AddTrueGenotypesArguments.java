@@ -33,5 +33,10 @@ public class AddTrueGenotypesArguments implements ToolArguments {
 
     @Parameter( names = { "--indels-as-ref"}, description = "When true, treat add the first base of indels as ref if they aren't considered. Ignored if indels considered.")
     public boolean indelsAsRef = true;
-}
 
+    @Parameter(names = {"--num-threads"}, description = "Number of threads used to label records. Only used by AddTrueGenotypesMultiThreaded.")
+    public int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--max-records-ahead"}, description = "Maximum number of records labeled ahead of the output writer, whatever the number of threads. Only used by AddTrueGenotypesMultiThreaded.")
+    public long maxRecordsAhead = 1000000;
+}
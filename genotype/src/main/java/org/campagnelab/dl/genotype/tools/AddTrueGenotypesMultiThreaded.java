@@ -3,34 +3,38 @@ package org.campagnelab.dl.genotype.tools;
 
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
-import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.AddTrueGenotypeHelper;
 import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.SBIChunkIndex;
+import org.campagnelab.dl.somatic.util.OrderedTaskWindow;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
+import org.campagnelab.goby.util.VariantMapHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * The addcalls object uses a map to create a new protobuf file with genotype calls.
+ * Adds true genotypes to an .sbi file with several threads. The genome and the true genotype map are loaded once and
+ * shared by all threads, which only read them, so that memory does not grow with the number of threads. The input is
+ * split in the chunk ranges of its index; each range is labeled by a worker with its own helper, and ranges are
+ * written to the output in the order of the input. The number of records labeled ahead of the writer is bounded by
+ * --max-records-ahead, whatever the number of threads.
  * <p>
  * Created by rct66 on 5/18/16.
  *
  * @author rct66
  */
-public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypesArguments> implements Runnable{
+public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypesArguments> {
 
 
     RandomAccessSequenceCache genome;
-    final static int THREAD_COUNT = 8;
     final public static boolean PRINT_INDEL_ERROR_CONTEXT = false;
 
     static private Logger LOG = LoggerFactory.getLogger(AddTrueGenotypesMultiThreaded.class);
@@ -39,105 +43,105 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
 
         AddTrueGenotypesMultiThreaded tool = new AddTrueGenotypesMultiThreaded();
         tool.parseArguments(args, "AddTrueGenotypes", tool.createArguments());
-        tool.prepare();
-        for (int i = 0; i < THREAD_COUNT; i++ ){
-            new Thread(tool).start();
-        }
-        tool.finish();
-
+        tool.execute();
     }
 
-    public void prepare(){
-        try {
-            source = new RecordReader(args().inputFile);
-            iter =  source.iterator();
-            recordLogger = new ProgressLogger(LOG);
-            recordLogger.expectedUpdates = source.numRecords();
-            System.out.println(source.numRecords() + " records to label");
-            recordsLabeled = 0;
-            recordLogger.start();
-            ObjectArrayList<BaseInformationRecords.BaseInformation> recContext = new ObjectArrayList<>(1000);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Records of a chunk range that must be written to the output, and the helper that labeled them.
+     */
+    private static class LabeledRange {
+        final ObjectArrayList<BaseInformationRecords.BaseInformation> entries;
+        final AddTrueGenotypeHelper helper;
+        final long numRecords;
+
+        LabeledRange(ObjectArrayList<BaseInformationRecords.BaseInformation> entries, AddTrueGenotypeHelper helper,
+                     long numRecords) {
+            this.entries = entries;
+            this.helper = helper;
+            this.numRecords = numRecords;
         }
     }
 
     @Override
     //only supports genotypes encoded with a bar (|) delimiter
-    public void run() {
-        AddTrueGenotypeHelper addTrueGenotypeHelper  = new AddTrueGenotypeHelper();
-        SequenceBaseInformationWriter dest = null;
-        genome = new RandomAccessSequenceCache();
+    public void execute() {
+        String genomePath = args().genomeFilename;
         try {
-            genome.load(args().genomeFilename, "min", "max");
-            dest = new SequenceBaseInformationWriter(FilenameUtils.getFullPath(args().outputFilename) + FilenameUtils.getBaseName(args().outputFilename) + Thread.currentThread().getId() + ".sbi");
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            System.err.println("Loading genome cache " + genomePath);
+            genome = new RandomAccessSequenceCache();
+            genome.load(genomePath, "min", "max");
+            System.err.println("Done loading genome. ");
+        } catch (ClassNotFoundException | IOException e) {
+            throw new RuntimeException("Could not load genome cache " + genomePath, e);
         }
-        synchronized (this) {
-            writers.add(dest);
-        }
-        addTrueGenotypeHelper.configure(
-                args().genotypeMap,
-                genome,
-                args().sampleIndex,
-                args().considerIndels,
-                args().indelsAsRef,
-                args().referenceSamplingRate);
+        final VariantMapHelper varMap = AddTrueGenotypeHelper.loadVariantMap(args().genotypeMap);
+        final String sbiPath = new File(args().inputFile).getAbsolutePath();
+        final int numThreads = Math.max(1, args().numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         try {
-            BaseInformationRecords.BaseInformation rec;
-            boolean keep;
-            while (true){
-                synchronized(this) {
-                    if (!iter.hasNext()){
-                        break;
-                    }
-                    rec = iter.next();
+            SBIChunkIndex index = SBIChunkIndex.load(sbiPath);
+            SequenceBaseInformationWriter dest = new SequenceBaseInformationWriter(args().outputFilename);
+            AddTrueGenotypeHelper totals = newHelper(varMap);
+            ProgressLogger recordLogger = new ProgressLogger(LOG);
+            recordLogger.expectedUpdates = index.numRecords(0, index.numRanges());
+            System.out.println(recordLogger.expectedUpdates + " records to label");
+            recordLogger.start();
+            OrderedTaskWindow<LabeledRange> window = new OrderedTaskWindow<>(executor, args().maxRecordsAhead);
+            int numSubmitted = 0;
+            for (int rangeIndex = 0; rangeIndex < index.numRanges(); rangeIndex++) {
+                while (numSubmitted < index.numRanges() && window.hasRoom(index.numRecords(numSubmitted))) {
+                    final long start = index.start(numSubmitted);
+                    final long end = index.end(numSubmitted);
+                    window.submit(() -> label(sbiPath, start, end, varMap), index.numRecords(numSubmitted));
+                    numSubmitted++;
                 }
-                keep = addTrueGenotypeHelper.addTrueGenotype(rec);
-                synchronized(this) {
-                    if (keep) {
-                        dest.appendEntry(addTrueGenotypeHelper.labeledEntry());
-                    }
-                    recordsLabeled++;
-                    recordLogger.lightUpdate();
+                LabeledRange range = window.take();
+                for (BaseInformationRecords.BaseInformation entry : range.entries) {
+                    dest.appendEntry(entry);
                 }
-
-
-
+                totals.addStats(range.helper);
+                recordLogger.update(range.numRecords);
             }
-            dest.setCustomProperties(addTrueGenotypeHelper.getStatProperties());
+            recordLogger.done();
+            dest.setCustomProperties(totals.getStatProperties());
             dest.close();
-            synchronized (this) {
-                addTrueGenotypeHelper.printStats();
-            }
+            totals.printStats();
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-
-    RecordReader source;
-    ProgressLogger recordLogger;
-
-    int recordsLabeled;
-    Iterator<BaseInformationRecords.BaseInformation> iter;
-    List<SequenceBaseInformationWriter> writers = new ArrayList<SequenceBaseInformationWriter>();
-
-
-
-
-    public void finish(){
-        recordLogger.done();
-        for(SequenceBaseInformationWriter writer : writers){
-            System.out.println(writer.toString());
+    /**
+     * Label the records of a chunk range.
+     */
+    private LabeledRange label(String sbiPath, long start, long end, VariantMapHelper varMap) throws IOException {
+        AddTrueGenotypeHelper addTrueGenotypeHelper = newHelper(varMap);
+        ObjectArrayList<BaseInformationRecords.BaseInformation> entries = new ObjectArrayList<>();
+        long numRecords = 0;
+        try (RecordReader source = new RecordReader(sbiPath, start, end)) {
+            for (BaseInformationRecords.BaseInformation rec = source.nextRecord(); rec != null; rec = source.nextRecord()) {
+                if (addTrueGenotypeHelper.addTrueGenotype(rec)) {
+                    entries.add(addTrueGenotypeHelper.labeledEntry());
+                }
+                numRecords++;
+            }
         }
+        return new LabeledRange(entries, addTrueGenotypeHelper, numRecords);
+    }
 
-
+    private AddTrueGenotypeHelper newHelper(VariantMapHelper varMap) {
+        AddTrueGenotypeHelper addTrueGenotypeHelper = new AddTrueGenotypeHelper();
+        addTrueGenotypeHelper.configure(
+                varMap,
+                args().genotypeMap,
+                genome,
+                args().sampleIndex,
+                args().considerIndels,
+                args().indelsAsRef,
+                args().referenceSamplingRate);
+        return addTrueGenotypeHelper;
     }
 
     @Override
@@ -145,9 +149,4 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
         return new AddTrueGenotypesArguments();
     }
 
-    @Override
-    public void execute() {
-        //use run instead
-    }
-
 }
@@ -3,15 +3,15 @@ package org.campagnelab.dl.genotype.tools;
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.performance.AreaUnderTheROCCurve;
 import org.campagnelab.dl.framework.tools.Predict;
 import org.campagnelab.dl.framework.tools.PredictArguments;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
+import org.campagnelab.dl.genotype.helpers.VCFEmitter;
 import org.campagnelab.dl.genotype.mappers.MetaDataLabelMapper;
 import org.campagnelab.dl.genotype.performance.BEDHelper;
 import org.campagnelab.dl.genotype.performance.StatsAccumulator;
@@ -22,7 +22,6 @@ import org.campagnelab.goby.predictions.FormatIndelVCF;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
@@ -43,7 +42,7 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
     private AreaUnderTheROCCurve aucLossCalculator;
     private double auc;
     private double[] confidenceInterval95;
-    private PrintWriter vcfWriter;
+    private VCFEmitter vcfWriter;
     private String[] orderStats;
 
 
@@ -83,13 +82,13 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
         }
 
         try {
-            vcfWriter = new PrintWriter(new FileWriter(vcfFilename));
+            vcfWriter = new VCFEmitter(vcfFilename, false);
         } catch (IOException e) {
             throw new RuntimeException("Unable to create VCF output file.", e);
         }
 
         if (args().outputFormat == PredictGArguments.OutputFormat.VCF) {
-            vcfWriter.append(String.format(VCF_HEADER,
+            vcfWriter.writeHeader(String.format(VCF_HEADER,
                     VersionUtils.getImplementationVersion(PredictG.class),
                     args().modelPath, args().modelName, FilenameUtils.getBaseName(args().testSet)));
             try {
@@ -140,8 +139,6 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
             "##FORMAT=<ID=P,Number=1,Type=Float,Description=\"Model proability.\">\n" +
             "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t%s\n";
 
-    private static final String VCF_LINE = "%s\t%d\t.\t%s\t%s\t.\t.\t.\tGT:MC:P\t%s:%s:%f\n";
-
     @Override
     protected String[] createOutputHeader() {
 
@@ -164,7 +161,7 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
         if (bedHelper != null) {
             bedHelper.close();
         }
-        vcfWriter.close();
+        IOUtils.closeQuietly(vcfWriter);
     }
 
     public PredictGArguments args() {
@@ -221,28 +218,15 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
                     assert fullPred.predictedFrom != null : "predictedFrom must not be null";
                     format = new FormatIndelVCF(fullPred.predictedFrom, fullPred.predictedAlleles(), fullPred.predictedFrom.charAt(0));
 
+                    vcfWriter.setAlleles(format.fromVCF, format.toVCF, format.fromVCF);
                     //get max allele length for bed file
-                    int maxLength = format.toVCF.stream().map(a -> a.length()).max(Integer::compareTo).orElse(0);
-                    maxLength = Math.max(maxLength, format.fromVCF.length());
-
-                    //make an alt-allele-only set for coding
-                    SortedSet<String> sortedAltSet = new ObjectAVLTreeSet<String>(format.toVCF);
-                    sortedAltSet.remove(format.fromVCF);
-
-                    //generate alt column from alt set
-                    final Optional<String> optional = sortedAltSet.stream().reduce((s, s2) -> s + "," + s2);
-                    String altField = optional.isPresent() ? optional.get() : ".";
-
-                    //generate to column (format) from formatted predicted set
-                    final Optional<String> toColumnOpt = format.toVCF.stream().reduce((s, s2) -> s + "/" + s2);
-                    String toColumn = toColumnOpt.isPresent() ? toColumnOpt.get() : "./.";
+                    int maxLength = vcfWriter.maxAlleleLength();
 
                     if (!genomicSitesVisited.wasVisited(record.getReferenceIndex(), record.getPosition())) {
-                        if (sortedAltSet.size() >= 1) {
+                        if (vcfWriter.numAlternateAlleles() >= 1) {
                             // only append to VCF if there is at least one alternate allele:
                             // NB: VCF format is one-based.
-                            vcfWriter.printf(VCF_LINE, record.getReferenceId(), record.getPosition() + 1,
-                                    format.fromVCF, altField, codeGT(format.toVCF, format.fromVCF, sortedAltSet), toColumn,
+                            vcfWriter.write(record.getReferenceId(), record.getPosition() + 1,
                                     fullPred.overallProbability);
                         }
                         genomicSitesVisited.visit(record.getReferenceIndex(), record.getPosition());
@@ -269,45 +253,6 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
         return coverage;
     }
 
-    /**
-     * @param to
-     * @param from
-     * @param altSet
-     * @return
-     */
-    public static String codeGT(Set<String> to, String from, SortedSet<String> altSet) {
-        IntArrayList codedAlleles = new IntArrayList();
-
-        String result = "";
-        for (String allele : to) {
-            if (from.equals(allele)) {
-                codedAlleles.add(0);
-            }
-            int altIndex = 1;
-            for (String altAllele : altSet) {
-                if (altAllele.equals(allele)) {
-                    codedAlleles.add(altIndex);
-                }
-                altIndex += 1;
-            }
-        }
-        if (codedAlleles.size() > 0) {
-            Collections.sort(codedAlleles);
-            result = "";
-            boolean first = true;
-            for (int code : codedAlleles) {
-                if (!first) {
-                    result += "/";
-                }
-                result += Integer.toString(code);
-                first = false;
-            }
-            return result;
-        } else {
-            return "./.";
-        }
-    }
-
     private void observeForAUC(GenotypePrediction fullPred, boolean isVariant) {
         if (isVariant) {
             aucLossCalculator.observe(fullPred.overallProbability, fullPred.isCorrect() ? 1 : -1);
@@ -1,11 +1,12 @@
 package org.campagnelab.dl.genotype.tools;
 
 import edu.cornell.med.icb.util.VersionUtils;
-import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.tools.Predict;
 import org.campagnelab.dl.framework.tools.PredictArguments;
+import org.campagnelab.dl.genotype.helpers.VCFEmitter;
 import org.campagnelab.dl.genotype.performance.BEDHelper;
 import org.campagnelab.dl.genotype.performance.StatsAccumulator;
 import org.campagnelab.dl.genotype.predictions.SegmentPrediction;
@@ -14,7 +15,6 @@ import org.campagnelab.goby.predictions.FormatIndelVCF;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
@@ -27,8 +27,8 @@ import java.util.*;
 public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformation> {
 
     private BEDHelper bedHelper;
-    private PrintWriter vcfWriter;
-    private PrintWriter vcfIndelsWriter;
+    private VCFEmitter vcfWriter;
+    private VCFEmitter vcfIndelsWriter;
 
     private static final String VCF_HEADER = "##fileformat=VCFv4.1\n" +
             "##VariationAnalysis=%s\n" +
@@ -39,7 +39,6 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
             "##FORMAT=<ID=P,Number=1,Type=Float,Description=\"Model proability.\">\n" +
             "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t%s\n";
 
-    private static final String VCF_LINE = "%s\t%d\t.\t%s\t%s\t.\t.\t.\tGT:MC:P\t%s:%s:%f\n";
     private String[] orderStats;
     protected StatsAccumulator stats;
     int linesWithNoAnchor = 0;
@@ -99,8 +98,8 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
     @Override
     protected void reportStatistics(String prefix) {
         System.out.println("Number of lines with gaps but no anchor base: " + linesWithNoAnchor);
-        if (Objects.nonNull(this.vcfIndelsWriter)) this.vcfIndelsWriter.close();
-        if (Objects.nonNull(this.vcfWriter)) this.vcfWriter.close();
+        if (Objects.nonNull(this.vcfIndelsWriter)) IOUtils.closeQuietly(this.vcfIndelsWriter);
+        if (Objects.nonNull(this.vcfWriter)) IOUtils.closeQuietly(this.vcfWriter);
         if (Objects.nonNull(this.bedHelper)) this.bedHelper.close();
     }
 
@@ -169,57 +168,18 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
         FormatIndelVCF format = new FormatIndelVCF(refAlleles, predictedAlleles,
                 line.get(0).getKey().getReferenceAllele().charAt(0));
        
-        //make an alt-allele-only set for coding
-        SortedSet<String> sortedAltSet = new ObjectAVLTreeSet<String>(format.toVCF);
-        sortedAltSet.remove(format.fromVCF);
-
-        //generate alt column from alt set
-        final Optional<String> optional = sortedAltSet.stream().reduce((s, s2) -> s + "," + s2);
-        String altField = optional.isPresent() && !optional.get().isEmpty()? optional.get() : ".";
-
-        //generate to column (format) from formatted predicted set
-        final Optional<String> toColumnOpt = format.toVCF.stream().reduce((s, s2) -> s + ((s2.isEmpty())? "" :"/" + s2));
-        String toColumn = toColumnOpt.isPresent() ? toColumnOpt.get() : "./.";
-
-        //get max allele length for bed file
-        int maxLength = format.toVCF.stream().map(a -> a.length()).max(Integer::compareTo).orElse(0);
-        maxLength = Math.max(maxLength, format.fromVCF.length());
         //TODO: if the reference is null?
-        if (format.fromVCF.isEmpty() || altField.isEmpty()) {
+        if (format.fromVCF.isEmpty()) {
             return;
         }
-        String predicted = PredictG.codeGT(format.toVCF, ".".equals(format.fromVCF)? "" : format.fromVCF, sortedAltSet);
-        if (args().splitIndels && line.isIndel()) {
-            // line fields: "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t%s\n";
-            vcfIndelsWriter.printf(VCF_LINE, //"%s\t%d\t.\t%s\t%s\t.\t.\t.\tGT:MC:P\t%s:%s:%f\n";
-                    fullPred.getReferenceId(), //Chromosome
-                    linePosition + 1, // VCFs are 1-based
-                    //ID
-                    format.fromVCF, //ref
-                    altField, //ALT
-                    //QUAL
-                    //FILTER
-                    //INFO
-                    predicted,
-                    toColumn,
-                    fullPred.getGenotypes().probabilities[line.get(0).getValue()]
-            );
-        } else {
-            // line fields: "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t%s\n";
-            vcfWriter.printf(VCF_LINE, //"%s\t%d\t.\t%s\t%s\t.\t.\t.\tGT:MC:P\t%s:%s:%f\n";
-                    fullPred.getReferenceId(), //Chromosome
-                    linePosition + 1, // VCFs are 1-based
-                    //ID
-                    format.fromVCF, //ref
-                    altField, //ALT
-                    //QUAL
-                    //FILTER
-                    //INFO
-                    predicted,
-                    toColumn,
-                    fullPred.getGenotypes().probabilities[line.get(0).getValue()]
-            );
-        }
+        VCFEmitter writer = args().splitIndels && line.isIndel() ? vcfIndelsWriter : vcfWriter;
+        writer.setAlleles(format.fromVCF, format.toVCF, ".".equals(format.fromVCF) ? "" : format.fromVCF);
+        //get max allele length for bed file
+        int maxLength = writer.maxAlleleLength();
+        // line fields: "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t%s\n";
+        writer.write(fullPred.getReferenceId(), //Chromosome
+                linePosition + 1, // VCFs are 1-based
+                fullPred.getGenotypes().probabilities[line.get(0).getValue()]);
 
         bedHelper.add(fullPred.getReferenceId(), linePosition, linePosition + maxLength, fullPred.index,
                 stats);
@@ -249,8 +209,8 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
             final String vcfIndelsFilename = String.format("%s-%s-%s-segments-indels.vcf", modelTime, modelPrefix, testSetBasename);
 
             try {
-                vcfWriter = new PrintWriter(new FileWriter(vcfSnpsFilename));
-                vcfWriter.append(String.format(VCF_HEADER,
+                vcfWriter = new VCFEmitter(vcfSnpsFilename, true);
+                vcfWriter.writeHeader(String.format(VCF_HEADER,
                         VersionUtils.getImplementationVersion(PredictGS.class),
                         args().modelPath, args().modelName, FilenameUtils.getBaseName(args().testSet)));
             } catch (IOException e) {
@@ -258,8 +218,8 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
             }
 
             try {
-                vcfIndelsWriter = new PrintWriter(new FileWriter(vcfIndelsFilename));
-                vcfIndelsWriter.append(String.format(VCF_HEADER,
+                vcfIndelsWriter = new VCFEmitter(vcfIndelsFilename, true);
+                vcfIndelsWriter.writeHeader(String.format(VCF_HEADER,
                         VersionUtils.getImplementationVersion(PredictGS.class),
                         args().modelPath, args().modelName, FilenameUtils.getBaseName(args().testSet)));
             } catch (IOException e) {
@@ -272,8 +232,8 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
         } else {
             final String vcfFilename = String.format("%s-%s-%s-segments.vcf", modelTime, modelPrefix, testSetBasename);
             try {
-                vcfWriter = new PrintWriter(new FileWriter(vcfFilename));
-                vcfWriter.append(String.format(VCF_HEADER,
+                vcfWriter = new VCFEmitter(vcfFilename, true);
+                vcfWriter.writeHeader(String.format(VCF_HEADER,
                         VersionUtils.getImplementationVersion(PredictGS.class),
                         args().modelPath, args().modelName, FilenameUtils.getBaseName(args().testSet)));
             } catch (IOException e) {
@@ -1,13 +1,16 @@
 package org.campagnelab.dl.genotype.tools;
 
 import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.commons.io.FileUtils;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.learning.architecture.graphs.GenotypeSegmentsLSTM;
 import org.campagnelab.dl.genotype.learning.domains.GenotypeDomainDescriptor;
 import org.campagnelab.dl.genotype.mappers.NumDistinctAllelesLabelMapper;
 import org.campagnelab.dl.genotype.segments.*;
+import org.campagnelab.dl.genotype.storage.SegmentReader;
 import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.SBIChunkIndex;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.campagnelab.goby.baseinfo.BasenameUtils;
@@ -18,7 +21,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.StreamSupport;
@@ -65,11 +74,7 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
         segmentHelper = new ThreadLocal<SegmentHelper>() {
             @Override
             protected SegmentHelper initialValue() {
-                SegmentHelper helper = new SegmentHelper(processSegmentFunction, fillInFeaturesFunction, segmentConsumer,
-                        args().getStrategy(),
-                        args().collectStatistics);
-                helper.setSamplingRate(args().samplingRate);
-                return helper;
+                return newSegmentHelper(segmentConsumer, fillInFeaturesFunction);
             }
         };
         int gap = args().gap;
@@ -106,23 +111,27 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
         fillInFeaturesFunction = new MyFillInFeaturesFunction(featureMapper, labelMapper, arguments);
 
         try {
-            if (args().ssiPrefix != null)
-                writer = new SequenceSegmentInformationWriter(args().ssiPrefix);
-            else
-                writer = new SequenceSegmentInformationWriter(BasenameUtils.getBasename(args().inputFile,
-                        FileExtensionHelper.COMPACT_SEQUENCE_BASE_INFORMATION));
+            writer = new SequenceSegmentInformationWriter(outputBasename());
             Properties props = new Properties();
             labelMapper.writeMap(props);
             writer.appendProperties(props);
-            RecordReader sbiReader = new RecordReader(new File(args().inputFile).getAbsolutePath());
+            final String sbiPath = new File(args().inputFile).getAbsolutePath();
+            RecordReader sbiReader = new RecordReader(sbiPath);
             ProgressLogger pg = new ProgressLogger(LOG);
             pg.displayFreeMemory = true;
             pg.expectedUpdates = sbiReader.getTotalRecords();
             pg.itemsName = "records";
             pg.start();
+            if (args().parallel) {
+                final long totalRecords = convertInParallel(sbiPath, domainDescriptor, gap, pg);
+                System.out.printf("Total record managed: %d %n", totalRecords);
+                pg.stop();
+                closeOutput(null);
+                return;
+            }
             final int[] totalRecords = {0};
 
-            StreamSupport.stream(sbiReader.spliterator(), args().parallel).limit(args().readN).forEach(sbiRecord -> {
+            StreamSupport.stream(sbiReader.spliterator(), false).limit(args().readN).forEach(sbiRecord -> {
                 try {
                     manageRecord(sbiRecord, gap);
                 } catch (IOException e) {
@@ -134,7 +143,7 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
 
             System.out.printf("Total record managed: %d %n", totalRecords[0]);
             pg.stop();
-            closeOutput();
+            closeOutput(segmentHelper.get());
         } catch (IOException e) {
             System.err.println("Failed to parse " + args().inputFile);
             e.printStackTrace();
@@ -142,6 +151,34 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
 
     }
 
+    private String outputBasename() {
+        if (args().ssiPrefix != null) {
+            return args().ssiPrefix;
+        } else {
+            return BasenameUtils.getBasename(args().inputFile, FileExtensionHelper.COMPACT_SEQUENCE_BASE_INFORMATION);
+        }
+    }
+
+    private SegmentHelper newSegmentHelper(Consumer<SegmentInformationRecords.SegmentInformation> segmentConsumer,
+                                           FillInFeaturesFunction fillInFeaturesFunction) {
+        SegmentHelper helper = new SegmentHelper(processSegmentFunction, fillInFeaturesFunction, segmentConsumer,
+                args().getStrategy(),
+                args().collectStatistics);
+        helper.setSamplingRate(args().samplingRate);
+        return helper;
+    }
+
+    /**
+     * Create a function to fill in features with its own feature mapper, since feature mappers keep state between
+     * records.
+     */
+    private FillInFeaturesFunction newFillInFeaturesFunction(GenotypeDomainDescriptor domainDescriptor) {
+        synchronized (domainDescriptor) {
+            return new MyFillInFeaturesFunction(domainDescriptor.getFeatureMapper("input", 0),
+                    new SegmentLabelMapper(args().ploidy), args());
+        }
+    }
+
     private boolean hasCandidateIndel(BaseInformationRecords.BaseInformation baseInformation) {
         return SegmentUtil.hasCandidateIndel(baseInformation, candidateIndelThreshold);
     }
@@ -203,11 +240,171 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
 
     }
 
+    /**
+     * Checks if the record belongs to the same segment as the previous valid record.
+     */
+    private boolean isSameSegment(BaseInformationRecords.BaseInformation previous,
+                                  BaseInformationRecords.BaseInformation record, int gap) {
+        return record.getPosition() - previous.getPosition() <= gap &&
+                record.getReferenceIndex() == previous.getReferenceIndex();
+    }
+
+    /**
+     * Convert the SBI input with several threads. The input is partitioned at segment boundaries: a partition starts
+     * with the first record of a chunk range that is separated from the previous valid record of the same range by
+     * more than the gap, or by a change of reference index, and ends where the next partition starts. Segments never
+     * span two partitions, so that each partition builds its segments independently, in a temporary SSI file.
+     * Partitions are then appended to the output in the order of the input, which produces the same segments as the
+     * sequential conversion, since candidate indel segments are sampled with a draw seeded by the segment itself (see
+     * SegmentHelper).
+     *
+     * @return the number of records converted.
+     */
+    private long convertInParallel(String sbiPath, GenotypeDomainDescriptor domainDescriptor, int gap,
+                                   ProgressLogger pg) throws IOException {
+        final SBIChunkIndex index = SBIChunkIndex.load(sbiPath);
+        final File outputDirectory = new File(outputBasename()).getAbsoluteFile().getParentFile();
+        final File tmpDirectory = Files.createTempDirectory(outputDirectory.toPath(), "ssi-partitions").toFile();
+        final int numThreads = Math.max(1, args().numThreads);
+        // partitions converted ahead of the one being appended, each in its own temporary file:
+        final int window = 2 * numThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        long totalRecords = 0;
+        try {
+            ArrayDeque<Future<Partition>> pending = new ArrayDeque<>();
+            int numSubmitted = 0;
+            SegmentHelper totals = null;
+            for (int rangeIndex = 0; rangeIndex < index.numRanges(); rangeIndex++) {
+                while (numSubmitted < index.numRanges() && numSubmitted <= rangeIndex + window) {
+                    final int partitionIndex = numSubmitted++;
+                    pending.add(executor.submit(() -> convertPartition(sbiPath, index, partitionIndex, gap,
+                            domainDescriptor, new File(tmpDirectory, Integer.toString(partitionIndex)).getPath())));
+                }
+                Partition partition = waitFor(pending.poll());
+                totalRecords += partition.numRecords;
+                pg.update(partition.numRecords);
+                if (partition.helper == null) {
+                    // no segment starts in this range:
+                    continue;
+                }
+                try (SegmentReader reader = new SegmentReader(partition.basename)) {
+                    for (SegmentInformationRecords.SegmentInformation segment = reader.nextSegment(); segment != null;
+                         segment = reader.nextSegment()) {
+                        writer.appendEntry(segment);
+                    }
+                }
+                FileUtils.deleteQuietly(new File(partition.basename + ".ssi"));
+                FileUtils.deleteQuietly(new File(partition.basename + ".ssip"));
+                if (totals == null) {
+                    totals = partition.helper;
+                } else {
+                    totals.addCounts(partition.helper);
+                }
+            }
+            if (totals != null) {
+                totals.printStats();
+            }
+        } finally {
+            executor.shutdownNow();
+            FileUtils.deleteQuietly(tmpDirectory);
+        }
+        return totalRecords;
+    }
+
+    /**
+     * Segments of one partition, stored in a temporary SSI file.
+     */
+    private static class Partition {
+        final String basename;
+        final SegmentHelper helper;
+        final long numRecords;
+
+        Partition(String basename, SegmentHelper helper, long numRecords) {
+            this.basename = basename;
+            this.helper = helper;
+            this.numRecords = numRecords;
+        }
+    }
+
+    /**
+     * Build the segments of the partition that starts in a chunk range. Records are read from the start of the range
+     * until the partition of a later range starts.
+     */
+    private Partition convertPartition(String sbiPath, SBIChunkIndex index, int rangeIndex, int gap,
+                                       GenotypeDomainDescriptor domainDescriptor, String basename) throws IOException {
+        final long firstRecordOfRange = index.numRecords(0, rangeIndex);
+        long recordIndex = firstRecordOfRange;
+        long endOfRange = recordIndex + index.numRecords(rangeIndex);
+        final long firstRecordOfNextRange = endOfRange;
+        // the first range starts a partition with its first valid record:
+        boolean started = rangeIndex == 0;
+        boolean rangeHasValidRecord = false;
+        BaseInformationRecords.BaseInformation lastValid = null;
+        SegmentHelper helper = null;
+        SequenceSegmentInformationWriter partitionWriter = null;
+        try (RecordReader reader = new RecordReader(sbiPath, index.start(rangeIndex), index.end(index.numRanges() - 1))) {
+            for (BaseInformationRecords.BaseInformation record = reader.nextRecord();
+                 record != null && recordIndex < args().readN; record = reader.nextRecord(), recordIndex++) {
+                while (recordIndex >= endOfRange) {
+                    // the record belongs to the next range:
+                    endOfRange += index.numRecords(++rangeIndex);
+                    rangeHasValidRecord = false;
+                }
+                if (!started && recordIndex >= firstRecordOfNextRange) {
+                    // no partition starts in this range:
+                    break;
+                }
+                if (!isValid(record)) {
+                    continue;
+                }
+                final boolean segmentBreak = lastValid == null || !isSameSegment(lastValid, record, gap);
+                final boolean partitionBreak = rangeHasValidRecord && segmentBreak;
+                rangeHasValidRecord = true;
+                lastValid = record;
+                if (!started) {
+                    if (!partitionBreak) {
+                        // this record belongs to the partition of a previous range:
+                        continue;
+                    }
+                    started = true;
+                } else if (partitionBreak && recordIndex >= firstRecordOfNextRange) {
+                    // the partition of a later range starts here:
+                    break;
+                }
+                if (helper == null) {
+                    partitionWriter = new SequenceSegmentInformationWriter(basename);
+                    final SequenceSegmentInformationWriter segmentWriter = partitionWriter;
+                    helper = newSegmentHelper(segment -> segmentWriter.appendEntry(segment),
+                            newFillInFeaturesFunction(domainDescriptor));
+                }
+                if (segmentBreak) {
+                    helper.newSegment(record);
+                } else {
+                    helper.add(record);
+                }
+            }
+            if (helper != null) {
+                helper.close();
+            }
+        } finally {
+            if (partitionWriter != null) {
+                partitionWriter.close();
+            }
+        }
+        // records of the range, counted once for progress:
+        final long numRecords = Math.max(0, Math.min(firstRecordOfNextRange, args().readN) - firstRecordOfRange);
+        return new Partition(basename, helper, numRecords);
+    }
+
     /**
      * Closes the list and serializes the output SSI.
+     *
+     * @param helper helper that built the segments, or null when the segments were built in partitions.
      */
-    private void closeOutput() throws IOException {
-        segmentHelper.get().close();
+    private void closeOutput(SegmentHelper helper) throws IOException {
+        if (helper != null) {
+            helper.close();
+        }
         try {
             writer.close();
         } catch (IOException e) {
@@ -216,8 +413,22 @@ public class SBIToSSIConverter extends AbstractTool<SBIToSSIConverterArguments>
         } finally {
             writer = null;
         }
-        segmentHelper.get().printStats();
+        if (helper != null) {
+            helper.printStats();
+        }
     }
 
-
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
 }
@@ -23,9 +23,12 @@ public class SBIToSSIConverterArguments implements ToolArguments {
     @Parameter(names = {"-g", "--gap"}, description = "Gap between two segments The default is 1.")
     public int gap = 1;
 
-    @Parameter(names = {"--parallel"}, description = "Enable parallel processing of the input SBI.")
+    @Parameter(names = {"--parallel"}, description = "Enable parallel processing of the input SBI. The input is partitioned at segment boundaries and the segments of each partition are built independently, then written in the order of the input.")
     public boolean parallel = false;
 
+    @Parameter(names = {"--num-threads"}, description = "Number of threads used to build segments when --parallel is set.")
+    public int numThreads = Runtime.getRuntime().availableProcessors();
+
     @Parameter(names = {"-o", "--output-basename"}, description = "Prefix for the output saved file. If not specified, the input basename is used.")
     public String ssiPrefix = null;
 
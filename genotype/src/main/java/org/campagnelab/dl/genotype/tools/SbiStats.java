@@ -5,13 +5,17 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
 import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.SBIChunkIndex;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.DecimalFormat;
+import java.util.stream.IntStream;
 
 /**
  * Use sbistats to see the distibution of types of records in a dataset.
@@ -38,68 +42,115 @@ public class SbiStats extends AbstractTool<SbiStatsArguments> {
     @Override
     //only supports genotypes encoded with a bar (|) delimiter
     public void execute() {
-        try {
-            RecordReader source = new RecordReader(args().inputFile);
+        try (RecordReader source = new RecordReader(args().inputFile)) {
             ProgressLogger recordLogger = new ProgressLogger(LOG);
             recordLogger.expectedUpdates = source.numRecords();
             System.out.println(source.numRecords() + " records to label");
-            int recordsLabeled = 0;
             recordLogger.start();
-
-            int numIndels = 0;
-            int numSnps = 0;
-            int numHetSnps = 0;
-            int numHomSnps = 0;
-            int numHetIndels = 0;
-            int numHomIndels = 0;
-            int numVariants = 0;
-            int numHasIndel = 0;
-            int numSites = 0;
-            for (BaseInformationRecords.BaseInformation rec : source) {
-                String trueGenotype = rec.getTrueGenotype();
-                boolean isIndel = GenotypeHelper.isIndel(rec.getReferenceBase(), trueGenotype);
-                boolean isVariant = GenotypeHelper.isVariant(true, trueGenotype, rec.getReferenceBase());
-                boolean isSnp = isVariant && !isIndel;
-                boolean heterozygous = GenotypeHelper.isHeterozygote(trueGenotype);
-                numSites++;
-                if (isVariant) {
-                    numVariants++;
-                }
-                if (isIndel) {
-                    numIndels++;
-                    if (heterozygous) {
-                        numHetIndels++;
-                    } else {
-                        numHomIndels++;
+            Stats stats;
+            if (args().parallel) {
+                // count the chunk ranges of the index in parallel, and update the logger once per range:
+                final String sbiPath = BasenameUtils.getBasename(args().inputFile, ".sbi", ".sbip") + ".sbi";
+                final SBIChunkIndex index = SBIChunkIndex.load(sbiPath);
+                stats = IntStream.range(0, index.numRanges()).parallel().mapToObj(rangeIndex -> {
+                    Stats counts = count(sbiPath, index.start(rangeIndex), index.end(rangeIndex));
+                    synchronized (recordLogger) {
+                        recordLogger.update(counts.numSites);
                     }
+                    return counts;
+                }).collect(Stats::new, Stats::combine, Stats::combine);
+            } else {
+                stats = new Stats();
+                for (BaseInformationRecords.BaseInformation rec : source) {
+                    stats.add(rec);
+                    recordLogger.lightUpdate();
                 }
-                if (isSnp) {
-                    numSnps++;
-                    if (heterozygous) {
-                        numHetSnps++;
-                    } else {
-                        numHomSnps++;
-                    }
-                }
-                recordLogger.lightUpdate();
             }
             recordLogger.done();
             DecimalFormat df = new DecimalFormat("#.##");
-            System.out.println("numSites = " + numSites);
-            System.out.println("numIndels = " + numIndels);
-            System.out.println("numSnps = " + numSnps);
-            System.out.println("numHetSnps = " + numHetSnps);
-            System.out.println("numHomSnps = " + numHomSnps);
-            System.out.println("numHetIndels = " + numHetIndels);
-            System.out.println("numHomIndels = " + numHomIndels);
-            System.out.println("numVariants = " + numVariants);
-            System.out.println("Het/Hom_Ratio = "+df.format((0d+numHetIndels+numHetSnps)/(0d+numHomIndels+numHomSnps)));
+            System.out.println("numSites = " + stats.numSites);
+            System.out.println("numIndels = " + stats.numIndels);
+            System.out.println("numSnps = " + stats.numSnps);
+            System.out.println("numHetSnps = " + stats.numHetSnps);
+            System.out.println("numHomSnps = " + stats.numHomSnps);
+            System.out.println("numHetIndels = " + stats.numHetIndels);
+            System.out.println("numHomIndels = " + stats.numHomIndels);
+            System.out.println("numVariants = " + stats.numVariants);
+            System.out.println("Het/Hom_Ratio = "+df.format((0d+stats.numHetIndels+stats.numHetSnps)/(0d+stats.numHomIndels+stats.numHomSnps)));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
 
+    /**
+     * Count the types of the records of a chunk range.
+     */
+    private static Stats count(String sbiPath, long start, long end) {
+        Stats counts = new Stats();
+        try (RecordReader reader = new RecordReader(sbiPath, start, end)) {
+            for (BaseInformationRecords.BaseInformation rec = reader.nextRecord(); rec != null; rec = reader.nextRecord()) {
+                counts.add(rec);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read records from " + sbiPath, e);
+        }
+        return counts;
+    }
+
+    /**
+     * Counts of the types of records seen by one thread.
+     */
+    private static class Stats {
+        int numIndels;
+        int numSnps;
+        int numHetSnps;
+        int numHomSnps;
+        int numHetIndels;
+        int numHomIndels;
+        int numVariants;
+        int numSites;
+
+        void add(BaseInformationRecords.BaseInformation rec) {
+            String trueGenotype = rec.getTrueGenotype();
+            boolean isIndel = GenotypeHelper.isIndel(rec.getReferenceBase(), trueGenotype);
+            boolean isVariant = GenotypeHelper.isVariant(true, trueGenotype, rec.getReferenceBase());
+            boolean isSnp = isVariant && !isIndel;
+            boolean heterozygous = GenotypeHelper.isHeterozygote(trueGenotype);
+            numSites++;
+            if (isVariant) {
+                numVariants++;
+            }
+            if (isIndel) {
+                numIndels++;
+                if (heterozygous) {
+                    numHetIndels++;
+                } else {
+                    numHomIndels++;
+                }
+            }
+            if (isSnp) {
+                numSnps++;
+                if (heterozygous) {
+                    numHetSnps++;
+                } else {
+                    numHomSnps++;
+                }
+            }
+        }
+
+        void combine(Stats other) {
+            numIndels += other.numIndels;
+            numSnps += other.numSnps;
+            numHetSnps += other.numHetSnps;
+            numHomSnps += other.numHomSnps;
+            numHetIndels += other.numHetIndels;
+            numHomIndels += other.numHomIndels;
+            numVariants += other.numVariants;
+            numSites += other.numSites;
+        }
+    }
+
     @Override
     public SbiStatsArguments createArguments() {
         return new SbiStatsArguments();
@@ -17,6 +17,9 @@ public class SbiStatsArguments implements ToolArguments {
     @Parameter(required = false, names = {"-s", "--sample-index"}, description = "Add calls to an alternative sample in the sbi file (default if first sample, index 0")
     public int sampleIndex = 0;
 
+    @Parameter(names = "--parallel", description = "Read and count records in parallel, splitting the input file on chunk boundaries.")
+    public boolean parallel;
+
 
 }
 
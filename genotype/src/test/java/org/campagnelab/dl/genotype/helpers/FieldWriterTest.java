@@ -0,0 +1,36 @@
+package org.campagnelab.dl.genotype.helpers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that FieldWriter formats numbers as String.format does.
+ */
+public class FieldWriterTest {
+
+    @Test
+    public void matchesStringFormat() throws IOException {
+        Random random = new Random(2017);
+        StringWriter output = new StringWriter();
+        StringBuilder expected = new StringBuilder();
+        FieldWriter writer = new FieldWriter(output);
+        for (int i = 0; i < 100000; i++) {
+            double probability = i % 2 == 0 ? random.nextDouble() : random.nextFloat();
+            // values close to rounding ties:
+            double tie = random.nextInt(1000000) / 1E6 + 5E-7;
+            long position = random.nextLong() >> random.nextInt(64);
+            writer.append("chr1").tab().append(position).tab().appendFixed(probability).tab().appendFixed(tie).endLine();
+            expected.append(String.format("%s\t%d\t%f\t%f\n", "chr1", position, probability, tie));
+        }
+        writer.appendFixed(-0.0).tab().appendFixed(Double.NaN).tab().appendFixed(12345.6789).tab()
+                .append(Long.MIN_VALUE).endLine();
+        expected.append(String.format("%f\t%f\t%f\t%d\n", -0.0, Double.NaN, 12345.6789, Long.MIN_VALUE));
+        writer.flush();
+        assertEquals(expected.toString(), output.toString());
+    }
+}
@@ -0,0 +1,143 @@
+package org.campagnelab.dl.genotype.helpers;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
+import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that VCFEmitter writes the same lines as the printf formatting previously used by PredictG and PredictGS.
+ */
+public class VCFEmitterTest {
+    private static final String VCF_LINE = "%s\t%d\t.\t%s\t%s\t.\t.\t.\tGT:MC:P\t%s:%s:%f\n";
+
+    @Test
+    public void genotypeCodes() throws IOException {
+        assertEquals("0/1", genotype("C", "G", "C"));
+        assertEquals("1", genotype("C", "G"));
+        assertEquals("0", genotype("C", "C"));
+        assertEquals("1/2", genotype("A", "AT", "ATT"));
+        assertEquals("./.", genotype("A"));
+    }
+
+    @Test
+    public void sameLinesAsPredictG() throws IOException {
+        checkSameLines(false, "C", "C", 0.9123456789, "G", "C");
+        checkSameLines(false, "C", "C", 0.5, "G");
+        checkSameLines(false, "CTT", "CTT", 1, "C", "CTT");
+        checkSameLines(false, "A", "A", 4E-7, "ATT", "AT");
+        checkSameLines(false, "A", "A", 0.25, "A");
+        checkSameLines(false, "A", "A", 0.75);
+    }
+
+    @Test
+    public void sameLinesAsPredictGS() throws IOException {
+        checkSameLines(true, "A", "A", 0.8, "A", "");
+        checkSameLines(true, "A", "A", 0.8, "", "T");
+        checkSameLines(true, ".", "", 0.6, "", "A");
+        checkSameLines(true, "AT", "AT", 0.123, "AT", "A");
+    }
+
+    private static String genotype(String from, String... to) throws IOException {
+        String line = writeLine(false, from, from, 0.5, to);
+        return line.split("\t")[9].split(":")[0];
+    }
+
+    private static void checkSameLines(boolean segments, String from, String fromCode, double probability,
+                                       String... to) throws IOException {
+        String expected = segments ? predictGSLine(from, fromCode, probability, to) :
+                predictGLine(from, probability, to);
+        assertEquals(expected, writeLine(segments, from, fromCode, probability, to));
+    }
+
+    private static String writeLine(boolean segments, String from, String fromCode, double probability,
+                                    String... to) throws IOException {
+        File file = File.createTempFile("emitter", ".vcf");
+        try {
+            try (VCFEmitter emitter = new VCFEmitter(file.getPath(), segments)) {
+                emitter.setAlleles(from, alleles(to), fromCode);
+                emitter.write("chr1", 12, probability);
+            }
+            return FileUtils.readFileToString(file, Charset.defaultCharset());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Set<String> alleles(String... to) {
+        return new ObjectArraySet<>(Arrays.asList(to));
+    }
+
+    /**
+     * The line previously written by PredictG.
+     */
+    private static String predictGLine(String from, double probability, String... to) {
+        Set<String> toVCF = alleles(to);
+        SortedSet<String> sortedAltSet = new ObjectAVLTreeSet<>(toVCF);
+        sortedAltSet.remove(from);
+        final Optional<String> optional = sortedAltSet.stream().reduce((s, s2) -> s + "," + s2);
+        String altField = optional.isPresent() ? optional.get() : ".";
+        final Optional<String> toColumnOpt = toVCF.stream().reduce((s, s2) -> s + "/" + s2);
+        String toColumn = toColumnOpt.isPresent() ? toColumnOpt.get() : "./.";
+        return String.format(VCF_LINE, "chr1", 12, from, altField, codeGT(toVCF, from, sortedAltSet), toColumn,
+                probability);
+    }
+
+    /**
+     * The line previously written by PredictGS.
+     */
+    private static String predictGSLine(String from, String fromCode, double probability, String... to) {
+        Set<String> toVCF = alleles(to);
+        SortedSet<String> sortedAltSet = new ObjectAVLTreeSet<>(toVCF);
+        sortedAltSet.remove(from);
+        final Optional<String> optional = sortedAltSet.stream().reduce((s, s2) -> s + "," + s2);
+        String altField = optional.isPresent() && !optional.get().isEmpty() ? optional.get() : ".";
+        final Optional<String> toColumnOpt = toVCF.stream().reduce((s, s2) -> s + ((s2.isEmpty()) ? "" : "/" + s2));
+        String toColumn = toColumnOpt.isPresent() ? toColumnOpt.get() : "./.";
+        return String.format(VCF_LINE, "chr1", 12, from, altField, codeGT(toVCF, fromCode, sortedAltSet), toColumn,
+                probability);
+    }
+
+    /**
+     * The genotype coding previously implemented by PredictG.codeGT.
+     */
+    private static String codeGT(Set<String> to, String from, SortedSet<String> altSet) {
+        IntArrayList codedAlleles = new IntArrayList();
+        for (String allele : to) {
+            if (from.equals(allele)) {
+                codedAlleles.add(0);
+            }
+            int altIndex = 1;
+            for (String altAllele : altSet) {
+                if (altAllele.equals(allele)) {
+                    codedAlleles.add(altIndex);
+                }
+                altIndex += 1;
+            }
+        }
+        if (codedAlleles.isEmpty()) {
+            return "./.";
+        }
+        Collections.sort(codedAlleles);
+        StringBuilder result = new StringBuilder();
+        for (int code : codedAlleles) {
+            if (result.length() > 0) {
+                result.append('/');
+            }
+            result.append(code);
+        }
+        return result.toString();
+    }
+}
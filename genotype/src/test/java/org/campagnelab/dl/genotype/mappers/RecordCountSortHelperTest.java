@@ -0,0 +1,56 @@
+package org.campagnelab.dl.genotype.mappers;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Check the order of sorted counts and the goby genotype index they carry.
+ */
+public class RecordCountSortHelperTest {
+    private RecordCountSortHelper helper = new RecordCountSortHelper();
+
+    @Test
+    public void sortByDecreasingCount() {
+        BaseInformationRecords.BaseInformation record = record(new int[]{3, 10, 3, 20}, false);
+        assertArrayEquals(new int[]{3, 1, 0, 2}, helper.sortPermutation(record.getSamples(0)));
+
+        BaseInformationRecords.BaseInformation sorted = helper.sort(0, record);
+        BaseInformationRecords.SampleInfo sample = sorted.getSamples(0);
+        int[] expectedOriginalIndex = {3, 1, 0, 2};
+        for (int i = 0; i < expectedOriginalIndex.length; i++) {
+            assertEquals(expectedOriginalIndex[i], sample.getCounts(i).getGobyGenotypeIndex());
+            assertEquals(record.getSamples(0).getCounts(expectedOriginalIndex[i]).getToSequence(),
+                    sample.getCounts(i).getToSequence());
+        }
+        // the same record sorts to the same instance:
+        assertSame(sorted, helper.sort(0, record));
+    }
+
+    @Test
+    public void alreadySorted() {
+        BaseInformationRecords.BaseInformation record = record(new int[]{20, 10, 3}, true);
+        assertSame(record, helper.sort(0, record));
+    }
+
+    private BaseInformationRecords.BaseInformation record(int[] counts, boolean withGobyIndex) {
+        BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+            count.setFromSequence("A");
+            count.setToSequence(Character.toString((char) ('A' + i)));
+            count.setMatchesReference(i == 0);
+            count.setGenotypeCountForwardStrand(counts[i]);
+            count.setGenotypeCountReverseStrand(0);
+            if (withGobyIndex) {
+                count.setGobyGenotypeIndex(i);
+            }
+            sample.addCounts(count);
+        }
+        return BaseInformationRecords.BaseInformation.newBuilder().setReferenceIndex(0).setPosition(12)
+                .setReferenceBase("A").setMutated(false).addSamples(sample).build();
+    }
+}
@@ -78,6 +78,22 @@ public class StatsAccumulatorTest {
 
 }
 
+    @Test
+    public void testMerge() throws Exception {
+        observe(false);
+        StatsAccumulator merged = new StatsAccumulator();
+        merged.initializeStats();
+        merged.merge(acc);
+        merged.merge(acc);
+        double[] single = acc.createOutputStatistics();
+        double[] stats = merged.createOutputStatistics();
+        assertEquals("TP is wrong", 2, merged.numTruePositive);
+        assertEquals("FN is wrong", 2, merged.numFalseNegative);
+        assertEquals("NumVariants is wrong", 2 * single[3], stats[3], 0.00001);
+        // ratios are unchanged when all counts are doubled:
+        assertEquals("F1 is wrong", single[2], stats[2], 0.00001);
+    }
+
     public void observe(boolean isIndel) throws Exception {
         acc.initializeStats();
         int nVariants = 0;
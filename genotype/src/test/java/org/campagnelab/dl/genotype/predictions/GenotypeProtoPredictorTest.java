@@ -0,0 +1,289 @@
+package org.campagnelab.dl.genotype.predictions;
+
+import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssembler;
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.domains.prediction.Prediction;
+import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
+import org.campagnelab.dl.framework.mappers.AbstractFeatureMapper1D;
+import org.campagnelab.dl.framework.mappers.FeatureMapper;
+import org.campagnelab.dl.framework.mappers.LabelMapper;
+import org.campagnelab.dl.framework.models.ModelOutputHelper;
+import org.campagnelab.dl.framework.models.ModelPropertiesHelper;
+import org.campagnelab.dl.framework.tools.TrainingArguments;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that micro-batched predictions equal the predictions of records predicted one at a time.
+ */
+public class GenotypeProtoPredictorTest {
+    private static final int NUM_FEATURES = 3;
+    private static final int NUM_OUTPUTS = 2;
+
+    @Test
+    public void batchedOutputsEqualSingleRecordOutputs() {
+        ComputationGraph graph = graph();
+        TestDomain domain = new TestDomain();
+        List<BaseInformationRecords.BaseInformation> records = records(5);
+        ModelOutputHelper<BaseInformationRecords.BaseInformation> batched = new ModelOutputHelper<>(domain);
+        batched.predictForRecords(graph, records, domain.mapper);
+        ModelOutputHelper<BaseInformationRecords.BaseInformation> single = new ModelOutputHelper<>(domain);
+        for (int exampleIndex = 0; exampleIndex < records.size(); exampleIndex++) {
+            single.predictForNextRecord(graph, records.get(exampleIndex), domain.mapper);
+            INDArray expected = single.getOutput(0);
+            INDArray actual = batched.getOutput(0, exampleIndex);
+            assertEquals(1, actual.size(0));
+            for (int outputIndex = 0; outputIndex < NUM_OUTPUTS; outputIndex++) {
+                assertEquals(expected.getDouble(0, outputIndex), actual.getDouble(0, outputIndex), 1E-6);
+            }
+        }
+    }
+
+    @Test
+    public void microBatchesEqualSingleRecordPredictions() {
+        ComputationGraph graph = graph();
+        TestDomain domain = new TestDomain();
+        List<BaseInformationRecords.BaseInformation> records = records(10);
+        GenotypeProtoPredictor predictor = new GenotypeProtoPredictor(domain, graph, domain.mapper);
+        List<GenotypePrediction> expected = new ArrayList<>();
+        for (BaseInformationRecords.BaseInformation record : records) {
+            expected.add(predictor.predictGenotype(record));
+        }
+
+        predictor.setBatchSize(4);
+        List<GenotypePrediction> predicted = new ArrayList<>();
+        for (BaseInformationRecords.BaseInformation record : records) {
+            predictor.predictGenotype(record, predicted::add);
+        }
+        // two full batches were predicted, the last two records are pending:
+        assertEquals(8, predicted.size());
+        predictor.flush();
+        assertEquals(records.size(), predicted.size());
+        for (int index = 0; index < records.size(); index++) {
+            assertEquals(records.get(index).getPosition(), predicted.get(index).referenceGobyIndex);
+            assertEquals(expected.get(index).overallProbability, predicted.get(index).overallProbability, 1E-6);
+        }
+        // nothing is left to flush:
+        predictor.flush();
+        assertEquals(records.size(), predicted.size());
+    }
+
+    private static List<BaseInformationRecords.BaseInformation> records(int numRecords) {
+        List<BaseInformationRecords.BaseInformation> records = new ArrayList<>();
+        for (int position = 0; position < numRecords; position++) {
+            records.add(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceIndex(0).setPosition(position).setMutated(false).setReferenceBase("A").build());
+        }
+        return records;
+    }
+
+    private static ComputationGraph graph() {
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(12)
+                .iterations(1)
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder()
+                .addInputs("input")
+                .addLayer("dense", new DenseLayer.Builder().nIn(NUM_FEATURES).nOut(4).activation("relu").build(),
+                        "input")
+                .addLayer("output", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .nIn(4).nOut(NUM_OUTPUTS).activation("softmax").build(), "dense")
+                .setOutputs("output")
+                .pretrain(false).backprop(true).build();
+        ComputationGraph graph = new ComputationGraph(conf);
+        graph.init();
+        return graph;
+    }
+
+    /**
+     * Maps the position of a record to features, so that each record has different outputs.
+     */
+    private static class PositionMapper extends AbstractFeatureMapper1D<BaseInformationRecords.BaseInformation> {
+        private float position;
+
+        @Override
+        public int numberOfFeatures() {
+            return NUM_FEATURES;
+        }
+
+        @Override
+        public void prepareToNormalize(BaseInformationRecords.BaseInformation record, int indexOfRecord) {
+            position = record.getPosition();
+        }
+
+        @Override
+        public float produceFeature(BaseInformationRecords.BaseInformation record, int featureIndex) {
+            return featureIndex == 0 ? 1 : position / (featureIndex * 3f);
+        }
+
+        @Override
+        public String getFeatureName(int featureIndex) {
+            return "position" + featureIndex;
+        }
+    }
+
+    /**
+     * Interprets the probability of the first output class as the probability of the call.
+     */
+    private static class ProbabilityInterpreter
+            implements PredictionInterpreter<BaseInformationRecords.BaseInformation, GenotypePrediction> {
+        @Override
+        public GenotypePrediction interpret(INDArray trueLabels, INDArray output, int exampleIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public GenotypePrediction interpret(BaseInformationRecords.BaseInformation record, INDArray output) {
+            GenotypePrediction prediction = new GenotypePrediction();
+            prediction.referenceGobyIndex = record.getPosition();
+            prediction.overallProbability = output.getDouble(0, 0);
+            return prediction;
+        }
+    }
+
+    private static class TestDomain extends DomainDescriptor<BaseInformationRecords.BaseInformation> {
+        final PositionMapper mapper = new PositionMapper();
+
+        @Override
+        public FeatureMapper getFeatureMapper(String inputName) {
+            return mapper;
+        }
+
+        @Override
+        public FeatureMapper getFeatureMapper(String inputName, int sampleIndex) {
+            return mapper;
+        }
+
+        @Override
+        public LabelMapper getLabelMapper(String outputName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LabelMapper getLabelMapper(String outputName, int sampleIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PredictionInterpreter getPredictionInterpreter(String outputName) {
+            return new ProbabilityInterpreter();
+        }
+
+        @Override
+        public Prediction aggregatePredictions(BaseInformationRecords.BaseInformation record,
+                                               List<Prediction> individualOutputPredictions) {
+            return individualOutputPredictions.get(0);
+        }
+
+        @Override
+        public Function<String, ? extends Iterable<BaseInformationRecords.BaseInformation>> getRecordIterable() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ComputationGraphAssembler getComputationalGraph() {
+            return new Assembler();
+        }
+
+        @Override
+        public int[] getNumInputs(String inputName) {
+            return new int[]{NUM_FEATURES};
+        }
+
+        @Override
+        public int[] getNumOutputs(String outputName) {
+            return new int[]{NUM_OUTPUTS};
+        }
+
+        @Override
+        public int[] getNumMaskInputs(String inputName) {
+            return null;
+        }
+
+        @Override
+        public int[] getNumMaskOutputs(String outputName) {
+            return null;
+        }
+
+        @Override
+        public int getNumHiddenNodes(String componentName) {
+            return 4;
+        }
+
+        @Override
+        public ILossFunction getOutputLoss(String outputName) {
+            return LossFunctions.LossFunction.MCXENT.getILossFunction();
+        }
+
+        @Override
+        public long getNumRecords(String[] recordFiles) {
+            return 0;
+        }
+    }
+
+    /**
+     * Names the input and output of the test graph.
+     */
+    private static class Assembler implements ComputationGraphAssembler {
+        @Override
+        public void setArguments(TrainingArguments arguments) {
+        }
+
+        @Override
+        public ComputationGraph createComputationalGraph(DomainDescriptor domainDescriptor) {
+            return graph();
+        }
+
+        @Override
+        public void setNumInputs(String inputName, int... dimension) {
+        }
+
+        @Override
+        public void setNumOutputs(String outputName, int... dimension) {
+        }
+
+        @Override
+        public void setNumHiddenNodes(String componentName, int numHiddenNodes) {
+        }
+
+        @Override
+        public String[] getInputNames() {
+            return new String[]{"input"};
+        }
+
+        @Override
+        public String[] getOutputNames() {
+            return new String[]{"output"};
+        }
+
+        @Override
+        public String[] getComponentNames() {
+            return new String[]{"dense"};
+        }
+
+        @Override
+        public void setLossFunction(String outputName, ILossFunction lossFunction) {
+        }
+
+        @Override
+        public void saveProperties(ModelPropertiesHelper helper) {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.campagnelab.dl.genotype.segments;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordListTest {
+
+    @Test
+    public void equalRecordsAreTrackedSeparately() {
+        RecordList list = new RecordList();
+        list.add(record(1, "A"));
+        list.add(record(1, "A"));
+        list.hideRecord(1);
+        list.addToFollowing(0, record(1, "-"));
+        assertFalse(list.isHidden(0));
+        assertTrue(list.isHidden(1));
+        assertEquals(1, list.following(0).size());
+        assertEquals(0, list.following(1).size());
+    }
+
+    @Test
+    public void removeWhereMovesInsertedAndHiddenRecords() {
+        RecordList list = new RecordList();
+        list.add(record(1, "A"));
+        list.add(record(2, "AC/A"));
+        list.add(record(3, "C"));
+        list.add(record(4, "G"));
+        list.hideRecord(3);
+        list.addToFollowing(2, record(3, "-"));
+        list.removeWhere(record -> record.getTrueGenotype().length() > 3);
+        assertEquals(3, list.size());
+        assertEquals(3, list.get(1).getPosition());
+        assertEquals(1, list.following(1).size());
+        assertEquals(0, list.following(2).size());
+        assertTrue(list.isHidden(2));
+        assertFalse(list.isHidden(1));
+    }
+
+    @Test
+    public void removeAfterHidingMovesChildBookkeeping() {
+        RecordList list = new RecordList();
+        list.add(record(1, "A"));
+        list.add(record(2, "C"));
+        list.add(record(3, "G"));
+        list.add(record(4, "T"));
+        RecordList.Bookkeeping child = list.newChildBookkeeping();
+        child.hide(2);
+        child.addToFollowing(3, record(4, "-"));
+        final BaseInformationRecords.BaseInformation removed = list.get(1);
+        list.removeWhere(record -> record == removed);
+        assertEquals(3, list.size());
+        // the child hides the record at position 3, now at index 1:
+        assertTrue(child.isHidden(1));
+        assertFalse(child.isHidden(2));
+        assertEquals(1, child.following(2).size());
+        assertEquals(0, child.following(3).size());
+        // the list itself tracks nothing:
+        assertFalse(list.isHidden(1));
+        assertEquals(0, list.following(2).size());
+    }
+
+    @Test
+    public void removeDropsBookkeepingOfRemovedRecords() {
+        RecordList list = new RecordList();
+        list.add(record(1, "A"));
+        list.add(record(2, "C"));
+        list.add(record(3, "G"));
+        list.hideRecord(1);
+        list.addToFollowing(1, record(2, "-"));
+        list.removeWhere(record -> record.getPosition() == 2);
+        assertEquals(2, list.size());
+        assertFalse(list.isHidden(0));
+        assertFalse(list.isHidden(1));
+        assertEquals(0, list.following(0).size());
+        assertEquals(0, list.following(1).size());
+    }
+
+    private BaseInformationRecords.BaseInformation record(int position, String trueGenotype) {
+        return SegmentHelperTest.makeRecord(0, position, trueGenotype, "A/A=10+12");
+    }
+}
@@ -8,10 +8,13 @@ import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class SegmentHelperTest {
     String expectedSnps =
@@ -264,6 +267,44 @@ public class SegmentHelperTest {
         helper.close();
     }
 
+    @Test
+    public void samplingDoesNotDependOnPreviousSegments() {
+        SBIToSSIConverterArguments args = new SBIToSSIConverterArguments();
+        args.mapFeatures = false;
+        args.mapLabels = false;
+        FillInFeaturesFunction fillInFeatures = new MyFillInFeaturesFunction(null, null, args);
+        final int numSegments = 40;
+        // all segments, as converted sequentially:
+        List<Integer> sequential = new ArrayList<>();
+        SegmentHelper helper = new SegmentHelper(segment -> segment, fillInFeatures,
+                segment -> sequential.add(segment.getStartPosition().getLocation()), new NoSplitStrategy(), false);
+        helper.setSamplingRate(0.5);
+        for (int segmentIndex = 0; segmentIndex < numSegments; segmentIndex++) {
+            helper.newSegment(makeCandidateIndelRecord(segmentIndex * 10));
+        }
+        helper.close();
+        // the second half of the segments, as converted by the helper of a partition:
+        List<Integer> partition = new ArrayList<>();
+        helper = new SegmentHelper(segment -> segment, fillInFeatures,
+                segment -> partition.add(segment.getStartPosition().getLocation()), new NoSplitStrategy(), false);
+        helper.setSamplingRate(0.5);
+        for (int segmentIndex = numSegments / 2; segmentIndex < numSegments; segmentIndex++) {
+            helper.newSegment(makeCandidateIndelRecord(segmentIndex * 10));
+        }
+        helper.close();
+
+        assertTrue("some segments must be sampled out", sequential.size() < numSegments);
+        assertEquals(sequential.subList(sequential.size() - partition.size(), sequential.size()), partition);
+        for (int location : sequential) {
+            assertEquals(location >= numSegments / 2 * 10, partition.contains(location));
+        }
+    }
+
+    private static BaseInformationRecords.BaseInformation makeCandidateIndelRecord(int position) {
+        // reads support a deletion, but the true genotype has none:
+        return makeRecord(0, position, "A/A", "A/A=10+12", "A/-=3+2");
+    }
+
     // format of count creation instruction is from/to=10+12
     protected static BaseInformationRecords.BaseInformation makeRecord(int refIndex, int position, String genotype, String... countCreations) {
         BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
@@ -176,7 +176,7 @@ public class PredictMutations extends AbstractPredictMutations {
         pgReadWrite.displayFreeMemory = true;
         pgReadWrite.start();
 
-        AreaUnderTheROCCurve aucLossCalculator = new AreaUnderTheROCCurve(50000);
+        AreaUnderTheROCCurve aucLossCalculator = new AreaUnderTheROCCurve();
         int index = 0;
 
         for (BaseInformationRecords.BaseInformation record : reader) {
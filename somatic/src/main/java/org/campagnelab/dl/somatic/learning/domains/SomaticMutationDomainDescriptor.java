@@ -151,12 +151,19 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
         if (cachedFeatureMappers.containsKey(inputName)) {
             return cachedFeatureMappers.get(inputName);
         }
-        FeatureMapper result;
+        FeatureMapper result = newFeatureMapper(inputName);
+        cachedFeatureMappers.put(inputName, result);
+        return result;
+
+    }
+
+    @Override
+    public FeatureMapper newFeatureMapper(String inputName) {
         if (args().featureMapperClassname != null) {
             assert "input".equals(inputName) : "Only one input supported by this domain.";
             try {
 
-                result = configureFeatureMapper(args().featureMapperClassname, (args()).isTrio,
+                return configureFeatureMapper(args().featureMapperClassname, (args()).isTrio,
                         args().getTrainingSets());
 
             } catch (IOException e) {
@@ -169,14 +176,27 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
                     ConfigurableFeatureMapper cfmapper = (ConfigurableFeatureMapper) fMapper;
                     cfmapper.configure(modelProperties);
                 }
-                result = fMapper;
+                return fMapper;
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
-        cachedFeatureMappers.put(inputName, result);
-        return result;
+    }
 
+    @Override
+    public LabelMapper newLabelMapper(String outputName) {
+        // getLabelMapper already returns a new instance for each call:
+        return getLabelMapper(outputName);
+    }
+
+    @Override
+    public boolean supportsParallelMapping() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsSharding() {
+        return true;
     }
 
     @Override
@@ -270,7 +290,8 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
                 switch (metricName) {
                     case "AUC":
                         AUCHelper helper = new AUCHelper();
-                        return helper.estimateWithGraph(dataSetIterator, graph, args().numValidation, prediction -> {
+                        // exact AUC over the scoreN examples, without sampling observations:
+                        return helper.estimateWithGraph(dataSetIterator, graph, Integer.MAX_VALUE, prediction -> {
                                 },
                                 index -> index > scoreN,
                             /* first output represents probability of mutation */ 0,
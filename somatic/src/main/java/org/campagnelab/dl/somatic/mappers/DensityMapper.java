@@ -2,6 +2,8 @@ package org.campagnelab.dl.somatic.mappers;
 
 import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.campagnelab.dl.framework.mappers.NoMaskFeatureMapper;
+import org.campagnelab.dl.somatic.mappers.functional.FlatRecord;
+import org.campagnelab.dl.somatic.mappers.functional.HistogramTraversal;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
@@ -21,11 +23,20 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
     protected int minValue=Integer.MAX_VALUE;
     protected int maxValue=Integer.MIN_VALUE;
     protected float binWidth;
+    /**
+     * minValue transformed with valueFunction, the lower bound of the first bin.
+     */
+    protected float transformedMinValue;
     protected String name;
     protected Function<Integer, Float> valueFunction;
+    /**
+     * Reads the values from the flat view of the record, when the mapper was constructed with a HistogramTraversal.
+     */
+    protected HistogramTraversal traversal;
+    private final HistogramTraversal.Values accumulator = (number, frequency) -> accumulate((float) number, frequency);
+    protected float numElements;
     int numBins = 10;
     float[] bins;
-    protected int[] indices;
 
     public DensityMapper(String name, int numBins, Properties sbiProperties,
                          Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>> recordToValues
@@ -39,6 +50,19 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         this(name1, name2, numBins, sbiProperties, recordToValues, Integer::floatValue);
     }
 
+    /**
+     * Density of values read from the flat view of the record (see FlatRecord). This avoids the lists of
+     * NumberWithFrequency allocated for each record by the functions of TraversalHelper.
+     */
+    public DensityMapper(String name, int numBins, Properties sbiProperties, HistogramTraversal traversal) {
+        this(name, numBins, sbiProperties, null, Integer::floatValue);
+        this.traversal = traversal;
+    }
+
+    public DensityMapper(String name1, String name2, int numBins, Properties sbiProperties, HistogramTraversal traversal) {
+        this(name1, name2, numBins, sbiProperties, null, Integer::floatValue);
+        this.traversal = traversal;
+    }
 
     /**
      * @param name
@@ -98,7 +122,8 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         }
         bins = new float[this.numBins];
         this.recordToValues = recordToValues;
-        this.binWidth = (valueFunction.apply(maxValue) - valueFunction.apply(minValue) )/ this.numBins;
+        this.transformedMinValue = valueFunction.apply(minValue);
+        this.binWidth = (valueFunction.apply(maxValue) - transformedMinValue) / this.numBins;
     }
 
 
@@ -111,15 +136,13 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
     @Override
     public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
         Arrays.fill(bins, 0);
-        List<BaseInformationRecords.NumberWithFrequency> listOfValues = recordToValues.apply(record);
-        float numElements = 0;
-        for (BaseInformationRecords.NumberWithFrequency n : listOfValues) {
-            int featureIndex = (int) ((valueFunction.apply(n.getNumber()) - valueFunction.apply(minValue)) / binWidth);
-            if (featureIndex < 0 || featureIndex >= numBins) {
-                //ignore points outside of min-max
-            } else {
-                bins[featureIndex] += n.getFrequency();
-                numElements += n.getFrequency();
+        numElements = 0;
+        if (traversal != null) {
+            traversal.traverse(FlatRecord.of(record), accumulator);
+        } else {
+            List<BaseInformationRecords.NumberWithFrequency> listOfValues = recordToValues.apply(record);
+            for (BaseInformationRecords.NumberWithFrequency n : listOfValues) {
+                accumulate(valueFunction.apply(n.getNumber()), n.getFrequency());
             }
         }
         // normalize the counts to produce a density:
@@ -130,12 +153,26 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         }
     }
 
+    /**
+     * Add the frequency of a value to its bin.
+     *
+     * @param value     the value, transformed with valueFunction.
+     * @param frequency number of times the value was observed.
+     */
+    protected void accumulate(float value, int frequency) {
+        int featureIndex = (int) ((value - transformedMinValue) / binWidth);
+        if (featureIndex < 0 || featureIndex >= numBins) {
+            //ignore points outside of min-max
+        } else {
+            bins[featureIndex] += frequency;
+            numElements += frequency;
+        }
+    }
+
     @Override
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, INDArray inputs, int indexOfRecord) {
-        mapFeatures(record, bins, 0, indexOfRecord);
-        for (int featureIndex = 0; featureIndex < numberOfFeatures(); featureIndex++) {
-            indices[1] = featureIndex;
-            inputs.putScalar(indices, bins[featureIndex]);
+        for (int featureIndex = 0; featureIndex < numBins; featureIndex++) {
+            inputs.putScalar(indexOfRecord, featureIndex, bins[featureIndex]);
         }
     }
 
@@ -144,11 +181,14 @@ public class DensityMapper extends NoMaskFeatureMapper<BaseInformationRecords.Ba
         return bins[featureIndex];
     }
 
+    @Override
     public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset, int indexOfRecord) {
-        // do not copy if inputs is bins (call from mapFeatures above)
-        if (inputs != bins) {
-            System.arraycopy(bins, 0, inputs, offset, numBins);
-        }
+        System.arraycopy(bins, 0, inputs, offset, numBins);
+    }
+
+    @Override
+    public boolean supportsRowMapping() {
+        return true;
     }
 
     @Override
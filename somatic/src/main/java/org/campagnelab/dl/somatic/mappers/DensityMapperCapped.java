@@ -1,8 +1,8 @@
 package org.campagnelab.dl.somatic.mappers;
 
+import org.campagnelab.dl.somatic.mappers.functional.HistogramTraversal;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.function.Function;
@@ -45,24 +45,28 @@ public class DensityMapperCapped extends DensityMapper {
     }
 
 
-    public void prepareToNormalize(BaseInformationRecords.BaseInformationOrBuilder record, int indexOfRecord) {
-        Arrays.fill(bins, 0);
-        List<BaseInformationRecords.NumberWithFrequency> listOfValues = recordToValues.apply(record);
-        float numElements = 0;
-        for (BaseInformationRecords.NumberWithFrequency n : listOfValues) {
-            int featureIndex = (int) ((valueFunction.apply(n.getNumber()) - linearBinMin));
-            //handle higher than linearMax case, lower than linearMin case
-            if (featureIndex >= (numLinearBins) || featureIndex < 0) {
-            } else {
-                bins[featureIndex] += n.getFrequency();
-                numElements += n.getFrequency();
-            }
-        }
-        // normalize the counts to produce a density:
-        if (numElements > 0) {
-            for (int featureIndex = 0; featureIndex < numBins; featureIndex++) {
-                bins[featureIndex] /= numElements;
-            }
+    public DensityMapperCapped(String name1, int linearBinMin, int linearBinMax, Properties sbiProperties,
+                               HistogramTraversal traversal) {
+        this(name1, linearBinMin, linearBinMax, sbiProperties,
+                (Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>>) null);
+        this.traversal = traversal;
+    }
+
+    public DensityMapperCapped(String name1, String name2, int linearBinMin, int linearBinMax, Properties sbiProperties,
+                               HistogramTraversal traversal) {
+        this(name1, name2, linearBinMin, linearBinMax, sbiProperties,
+                (Function<BaseInformationRecords.BaseInformationOrBuilder, List<BaseInformationRecords.NumberWithFrequency>>) null);
+        this.traversal = traversal;
+    }
+
+    @Override
+    protected void accumulate(float value, int frequency) {
+        int featureIndex = (int) ((value - linearBinMin));
+        //handle higher than linearMax case, lower than linearMin case
+        if (featureIndex >= (numLinearBins) || featureIndex < 0) {
+        } else {
+            bins[featureIndex] += frequency;
+            numElements += frequency;
         }
     }
 }
@@ -96,6 +96,17 @@ public class GenomicContextMapper extends NoMaskFeatureMapper<BaseInformationRec
         delegate.mapFeatures(record, inputs, indexOfRecord);
     }
 
+    @Override
+    public void mapFeatures(BaseInformationRecords.BaseInformationOrBuilder record, float[] inputs, int offset,
+                            int indexOfRecord) {
+        delegate.mapFeatures(record, inputs, offset, indexOfRecord);
+    }
+
+    @Override
+    public boolean supportsRowMapping() {
+        return delegate.supportsRowMapping();
+    }
+
     @Override
     public float produceFeature(BaseInformationRecords.BaseInformationOrBuilder record, int featureIndex) {
         return delegate.produceFeature(record, featureIndex);
@@ -5,8 +5,6 @@ import org.campagnelab.dl.framework.mappers.FeatureNameMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
-
 /**
  * Created by rct66 on 8/4/16.
  * <p>
@@ -22,10 +20,7 @@ public class NamingConcatFeatureMapper<RecordType> extends ConcatFeatureMapper<R
     }
 
     public String getFeatureName(int i) {
-        int indexOfDelegate = Arrays.binarySearch(offsets, i);
-        if (indexOfDelegate < 0) {
-            indexOfDelegate = -(indexOfDelegate + 1) - 1;
-        }
+        final int indexOfDelegate = delegateOfFeature[i];
         return ((FeatureNameMapper) this.mappers[indexOfDelegate]).getFeatureName(i - offsets[indexOfDelegate]) + "_d" + Integer.toString(indexOfDelegate);
     }
 
@@ -0,0 +1,42 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The histograms (lists of NumberWithFrequency) stored in each CountInfo of a record.
+ */
+public enum CountField {
+    QUALITY_SCORES_FORWARD_STRAND(BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList),
+    QUALITY_SCORES_REVERSE_STRAND(BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList),
+    READ_INDICES_FORWARD_STRAND(BaseInformationRecords.CountInfo::getReadIndicesForwardStrandList),
+    READ_INDICES_REVERSE_STRAND(BaseInformationRecords.CountInfo::getReadIndicesReverseStrandList),
+    READ_MAPPING_QUALITY_FORWARD_STRAND(BaseInformationRecords.CountInfo::getReadMappingQualityForwardStrandList),
+    READ_MAPPING_QUALITY_REVERSE_STRAND(BaseInformationRecords.CountInfo::getReadMappingQualityReverseStrandList),
+    NUM_VARIATIONS_IN_READS(BaseInformationRecords.CountInfo::getNumVariationsInReadsList),
+    INSERT_SIZES(BaseInformationRecords.CountInfo::getInsertSizesList),
+    TARGET_ALIGNED_LENGTHS(BaseInformationRecords.CountInfo::getTargetAlignedLengthsList),
+    QUERY_ALIGNED_LENGTHS(BaseInformationRecords.CountInfo::getQueryAlignedLengthsList),
+    QUERY_POSITIONS(BaseInformationRecords.CountInfo::getQueryPositionsList),
+    PAIR_FLAGS(BaseInformationRecords.CountInfo::getPairFlagsList),
+    DISTANCES_TO_READ_VARIATIONS_FORWARD_STRAND(BaseInformationRecords.CountInfo::getDistancesToReadVariationsForwardStrandList),
+    DISTANCES_TO_READ_VARIATIONS_REVERSE_STRAND(BaseInformationRecords.CountInfo::getDistancesToReadVariationsReverseStrandList),
+    DISTANCE_TO_START_OF_READ(BaseInformationRecords.CountInfo::getDistanceToStartOfReadList),
+    DISTANCE_TO_END_OF_READ(BaseInformationRecords.CountInfo::getDistanceToEndOfReadList);
+
+    private final Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> getter;
+
+    CountField(Function<BaseInformationRecords.CountInfo, List<BaseInformationRecords.NumberWithFrequency>> getter) {
+        this.getter = getter;
+    }
+
+    /**
+     * @param countInfo a count of a record.
+     * @return the histogram of this field in the count.
+     */
+    public List<BaseInformationRecords.NumberWithFrequency> get(BaseInformationRecords.CountInfo countInfo) {
+        return getter.apply(countInfo);
+    }
+}
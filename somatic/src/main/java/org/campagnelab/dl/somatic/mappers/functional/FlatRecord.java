@@ -0,0 +1,143 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.util.List;
+
+/**
+ * A primitive view of the histograms of a record. Each histogram field (see CountField) is flattened, across all
+ * samples and counts of the record, into two int arrays (numbers and frequencies) and an array of offsets that
+ * delimits the histogram of each count. Fields are flattened the first time they are accessed, so that mappers can
+ * read the values of a record without allocating lists or boxing numbers.
+ * <p>
+ * The view of the last record is remembered on each thread: the density mappers of a feature mapper all receive the
+ * same record in turn and share one view. Only messages are remembered, since builders may change between calls.
+ *
+ * @author Fabien Campagne
+ */
+public class FlatRecord {
+    private static final ThreadLocal<FlatRecord> lastFlattened = new ThreadLocal<>();
+    private static final int NUM_FIELDS = CountField.values().length;
+
+    private final BaseInformationRecords.BaseInformationOrBuilder record;
+    /**
+     * Flat index of the first count of each sample, and total number of counts in the last element.
+     */
+    private final int[] firstCount;
+    private final int[][] starts = new int[NUM_FIELDS][];
+    private final int[][] numbers = new int[NUM_FIELDS][];
+    private final int[][] frequencies = new int[NUM_FIELDS][];
+
+    private FlatRecord(BaseInformationRecords.BaseInformationOrBuilder record) {
+        this.record = record;
+        final int numSamples = record.getSamplesCount();
+        firstCount = new int[numSamples + 1];
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            firstCount[sampleIndex + 1] = firstCount[sampleIndex] + record.getSamplesOrBuilder(sampleIndex).getCountsCount();
+        }
+    }
+
+    /**
+     * Return the flat view of a record.
+     *
+     * @param record the record.
+     * @return the view, shared with previous calls on this thread for the same message.
+     */
+    public static FlatRecord of(BaseInformationRecords.BaseInformationOrBuilder record) {
+        FlatRecord last = lastFlattened.get();
+        if (last != null && last.record == record) {
+            return last;
+        }
+        FlatRecord flat = new FlatRecord(record);
+        if (record instanceof BaseInformationRecords.BaseInformation) {
+            lastFlattened.set(flat);
+        }
+        return flat;
+    }
+
+    public int numSamples() {
+        return firstCount.length - 1;
+    }
+
+    public int numCounts(int sampleIndex) {
+        return firstCount[sampleIndex + 1] - firstCount[sampleIndex];
+    }
+
+    /**
+     * @return the flat index of a count of a sample, used with start and end.
+     */
+    public int countIndex(int sampleIndex, int genotypeIndex) {
+        if (genotypeIndex < 0 || genotypeIndex >= numCounts(sampleIndex)) {
+            throw new IndexOutOfBoundsException("No count at index " + genotypeIndex + " in sample " + sampleIndex);
+        }
+        return firstCount[sampleIndex] + genotypeIndex;
+    }
+
+    /**
+     * @return the index in numbers(field) and frequencies(field) of the first value of a count.
+     */
+    public int start(CountField field, int countIndex) {
+        return starts(field)[countIndex];
+    }
+
+    /**
+     * @return the index in numbers(field) and frequencies(field) past the last value of a count.
+     */
+    public int end(CountField field, int countIndex) {
+        return starts(field)[countIndex + 1];
+    }
+
+    /**
+     * @return the numbers of the field, for all counts of all samples.
+     */
+    public int[] numbers(CountField field) {
+        flatten(field);
+        return numbers[field.ordinal()];
+    }
+
+    /**
+     * @return the frequencies of the field, for all counts of all samples.
+     */
+    public int[] frequencies(CountField field) {
+        flatten(field);
+        return frequencies[field.ordinal()];
+    }
+
+    private int[] starts(CountField field) {
+        flatten(field);
+        return starts[field.ordinal()];
+    }
+
+    private void flatten(CountField field) {
+        final int f = field.ordinal();
+        if (starts[f] != null) {
+            return;
+        }
+        final int numCounts = firstCount[firstCount.length - 1];
+        int[] fieldStarts = new int[numCounts + 1];
+        int countIndex = 0;
+        for (int sampleIndex = 0; sampleIndex < numSamples(); sampleIndex++) {
+            for (BaseInformationRecords.CountInfo count : record.getSamples(sampleIndex).getCountsList()) {
+                fieldStarts[countIndex + 1] = fieldStarts[countIndex] + field.get(count).size();
+                countIndex++;
+            }
+        }
+        int[] fieldNumbers = new int[fieldStarts[numCounts]];
+        int[] fieldFrequencies = new int[fieldStarts[numCounts]];
+        int index = 0;
+        for (int sampleIndex = 0; sampleIndex < numSamples(); sampleIndex++) {
+            for (BaseInformationRecords.CountInfo count : record.getSamples(sampleIndex).getCountsList()) {
+                List<BaseInformationRecords.NumberWithFrequency> values = field.get(count);
+                for (int i = 0; i < values.size(); i++) {
+                    BaseInformationRecords.NumberWithFrequency value = values.get(i);
+                    fieldNumbers[index] = value.getNumber();
+                    fieldFrequencies[index] = value.getFrequency();
+                    index++;
+                }
+            }
+        }
+        numbers[f] = fieldNumbers;
+        frequencies[f] = fieldFrequencies;
+        starts[f] = fieldStarts;
+    }
+}
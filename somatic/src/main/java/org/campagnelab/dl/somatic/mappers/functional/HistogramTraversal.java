@@ -0,0 +1,21 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+/**
+ * Reduces the flat view of a record to a sequence of (number, frequency) values, in the same order as the lists
+ * produced by the methods of TraversalHelper that take a CountInfo function.
+ *
+ * @author Fabien Campagne
+ */
+@FunctionalInterface
+public interface HistogramTraversal {
+
+    void traverse(FlatRecord record, Values values);
+
+    /**
+     * Receives the values of a traversal.
+     */
+    @FunctionalInterface
+    interface Values {
+        void accept(int number, int frequency);
+    }
+}
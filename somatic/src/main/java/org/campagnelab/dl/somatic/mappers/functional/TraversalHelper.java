@@ -105,4 +105,58 @@ public class TraversalHelper {
         }
         return list;
     }
+
+
+    /**
+     * Visit the values of a field found across all samples and counts of these samples, in the order of
+     * forAllSampleCounts.
+     * @param record flat view of the record.
+     * @param field the histogram to visit.
+     * @param values receives the number and frequency of each value.
+     */
+    public static void forAllSampleCounts(FlatRecord record, CountField field, HistogramTraversal.Values values) {
+        visit(record, field, 0, record.numbers(field).length, values);
+    }
+
+    /**
+     * Visit the values of a field of one count of a sample, in the order of forOneSampleGenotype.
+     * @param record flat view of the record.
+     * @param field the histogram to visit.
+     * @param values receives the number and frequency of each value.
+     */
+    public static void forOneSampleGenotype(int sampleIndex,
+                                            int genotypeIndex,
+                                            FlatRecord record,
+                                            CountField field,
+                                            HistogramTraversal.Values values) {
+        final int countIndex = record.countIndex(sampleIndex, genotypeIndex);
+        visit(record, field, record.start(field, countIndex), record.end(field, countIndex), values);
+    }
+
+    /**
+     * Visit the values of the forward and then the reverse strand field of one count of a sample, in the order of
+     * forOneSampleGenotypeBothStrands.
+     * @param record flat view of the record.
+     * @param forwardField the histogram of the forward strand.
+     * @param reverseField the histogram of the reverse strand.
+     * @param values receives the number and frequency of each value.
+     */
+    public static void forOneSampleGenotypeBothStrands(int sampleIndex,
+                                                       int genotypeIndex,
+                                                       FlatRecord record,
+                                                       CountField forwardField,
+                                                       CountField reverseField,
+                                                       HistogramTraversal.Values values) {
+        final int countIndex = record.countIndex(sampleIndex, genotypeIndex);
+        visit(record, forwardField, record.start(forwardField, countIndex), record.end(forwardField, countIndex), values);
+        visit(record, reverseField, record.start(reverseField, countIndex), record.end(reverseField, countIndex), values);
+    }
+
+    private static void visit(FlatRecord record, CountField field, int start, int end, HistogramTraversal.Values values) {
+        final int[] numbers = record.numbers(field);
+        final int[] frequencies = record.frequencies(field);
+        for (int i = start; i < end; i++) {
+            values.accept(numbers[i], frequencies[i]);
+        }
+    }
 }
@@ -0,0 +1,109 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.dl.somatic.util.OrderedTaskWindow;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Iterates over the records of an .sbi file in file order, while the next ranges of its chunk index (see
+ * SBIChunkIndex) are decoded ahead by several threads. Single-pass tools whose per-record work must stay sequential
+ * (e.g., because it draws from one random generator) use this iterator to decode the file on all the cores without
+ * changing their output. The number of records decoded ahead is bounded by maxBufferedRecords, using the exact
+ * number of records of each range.
+ *
+ * @author Fabien Campagne
+ */
+public class ReadAheadRecordIterator implements Iterator<BaseInformationRecords.BaseInformation>, Closeable {
+    private final String sbiPath;
+    private final SBIChunkIndex index;
+    private final ExecutorService executor;
+    private final OrderedTaskWindow<ObjectArrayList<BaseInformationRecords.BaseInformation>> window;
+    private int nextRange;
+    private int rangesTaken;
+    private ObjectArrayList<BaseInformationRecords.BaseInformation> current = new ObjectArrayList<>();
+    private int positionInCurrent;
+
+    /**
+     * @param filepath           path to the .sbi file or its basename.
+     * @param numThreads         number of threads that decode ranges.
+     * @param maxBufferedRecords maximum number of records decoded ahead of the caller.
+     * @throws IOException if the chunk index cannot be loaded or built.
+     */
+    public ReadAheadRecordIterator(String filepath, int numThreads, long maxBufferedRecords) throws IOException {
+        this(filepath, SBIChunkIndex.load(filepath), numThreads, maxBufferedRecords);
+    }
+
+    public ReadAheadRecordIterator(String filepath, SBIChunkIndex index, int numThreads, long maxBufferedRecords) {
+        this.sbiPath = BasenameUtils.getBasename(filepath, ".sbi", ".sbip") + ".sbi";
+        this.index = index;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        this.window = new OrderedTaskWindow<>(executor, maxBufferedRecords);
+    }
+
+    /**
+     * @return the number of records of the file.
+     */
+    public long numRecords() {
+        return index.numRecords(0, index.numRanges());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (positionInCurrent >= current.size()) {
+            if (rangesTaken == index.numRanges()) {
+                return false;
+            }
+            while (nextRange < index.numRanges() && window.hasRoom(index.numRecords(nextRange))) {
+                final int rangeIndex = nextRange++;
+                window.submit(() -> decode(rangeIndex), index.numRecords(rangeIndex));
+            }
+            try {
+                current = window.take();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read records from " + sbiPath, e);
+            }
+            rangesTaken++;
+            positionInCurrent = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public BaseInformationRecords.BaseInformation next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        BaseInformationRecords.BaseInformation record = current.get(positionInCurrent);
+        // release records as they are returned:
+        current.set(positionInCurrent++, null);
+        return record;
+    }
+
+    private ObjectArrayList<BaseInformationRecords.BaseInformation> decode(int rangeIndex) throws IOException {
+        ObjectArrayList<BaseInformationRecords.BaseInformation> records =
+                new ObjectArrayList<>((int) index.numRecords(rangeIndex));
+        try (RecordReader reader = new RecordReader(sbiPath, index.start(rangeIndex), index.end(rangeIndex))) {
+            for (BaseInformationRecords.BaseInformation rec = reader.nextRecord(); rec != null; rec = reader.nextRecord()) {
+                records.add(rec);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Stop the threads that decode ranges.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -123,28 +123,16 @@ public class RecordReader implements Closeable, RecordIterable<BaseInformationRe
     }
 
     /**
-     * Creates a {@link Spliterator} over the elements described by this
-     * {@code Iterable}.
+     * Creates a {@link Spliterator} over the records of the source .sbi file. The spliterator reports its exact size.
+     * When it is split (e.g., by a parallel stream), it splits the file on the ranges of its chunk index (built and
+     * saved next to the .sbip file the first time, see SBIChunkIndex); sequential traversals do not load the index.
+     * The spliterator opens its own readers, so it is independent from this reader.
      *
-     * @return a {@code Spliterator} over the elements described by this
-     * {@code Iterable}.
-     * @implSpec The default implementation creates an
-     * <em><a href="Spliterator.html#binding">early-binding</a></em>
-     * spliterator from the iterable's {@code Iterator}.  The spliterator
-     * inherits the <em>fail-fast</em> properties of the iterable's iterator.
-     * @implNote The default implementation should usually be overridden.  The
-     * spliterator returned by the default implementation has poor splitting
-     * capabilities, is unsized, and does not report any spliterator
-     * characteristics. Implementing classes can nearly always provide a
-     * better implementation.
-     * @since 1.8
+     * @return a {@code Spliterator} over the records of the file.
      */
     @Override
     public Spliterator<BaseInformationRecords.BaseInformation> spliterator() {
-        long length = new File(this.reader.getSourceSbiPath()).length();
-        int maxSplits = Runtime.getRuntime().availableProcessors() -1;
-        System.out.println("Max number of spliterator: " + maxSplits);
-        return new RecordSpliterator(reader.getSourceSbiPath(), 0, length, length, maxSplits);
+        return new RecordSpliterator(reader.getSourceSbiPath(), getTotalRecords());
     }
 
     public Properties getProperties() {
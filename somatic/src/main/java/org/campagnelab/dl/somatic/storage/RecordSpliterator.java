@@ -1,39 +1,54 @@
 package org.campagnelab.dl.somatic.storage;
 
+import org.apache.commons.io.IOUtils;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Spliterator;
 import java.util.function.Consumer;
 
 /**
- * Spliterator for {@link BaseInformationRecords.BaseInformation}
+ * Spliterator for {@link BaseInformationRecords.BaseInformation}. The records of an .sbi file are split on the
+ * ranges of its chunk index (see SBIChunkIndex), so that each record belongs to exactly one split and the size of
+ * each split is known exactly. Each split opens its own RecordReader when it is first traversed. A spliterator over
+ * a whole file can be created without an index, in which case the index is only loaded (and built, the first time)
+ * when the spliterator is split, so that sequential traversals never need it.
  *
  * @author manuele
  */
 public class RecordSpliterator implements Spliterator<BaseInformationRecords.BaseInformation> {
 
-    private final RecordReader reader;
-    private final long startIndex; // the index of the first byte to read
     private final String sourceSBI;
-    private int maxSplits;
-    private long endIndex; // the index of the last byte to read
-    private final long maxLength; //length in bytes of the input SBI
-    private final long minLength; // minimun number of bytes assigned to a single spliterator
+    private SBIChunkIndex index; // null until the spliterator over a whole file is first split
+    private int fromRange; // index of the first range covered by this spliterator
+    private int toRange; // index past the last range covered by this spliterator
+    private final long totalRecords; // number of records of the file, used until the index is loaded
+    private RecordReader reader;
+    private long numRecordsRead;
+    private boolean done;
 
-    public RecordSpliterator(String sourceSBI, long startIndex, long endIndex, long maxLength, int maxSplits) {
+    public RecordSpliterator(String sourceSBI, SBIChunkIndex index) {
+        this(sourceSBI, index, 0, index.numRanges());
+    }
+
+    public RecordSpliterator(String sourceSBI, SBIChunkIndex index, int fromRange, int toRange) {
         this.sourceSBI = sourceSBI;
-        try {
-            this.reader = new RecordReader(sourceSBI, startIndex, endIndex);
-            System.out.println(Thread.currentThread().getId() +  " - New Record Reader");
-        } catch (IOException e) {
-            throw new RuntimeException("unable to open the source sbi " + sourceSBI);
-        }
-        this.maxLength = maxLength;
-        this.minLength = (maxLength / 10);
-        this.startIndex = startIndex;
-        this.endIndex = endIndex;
-        this.maxSplits = maxSplits;
+        this.index = index;
+        this.fromRange = fromRange;
+        this.toRange = toRange;
+        this.totalRecords = index.numRecords(fromRange, toRange);
+    }
+
+    /**
+     * Create a spliterator over all the records of a file, without loading its chunk index until it is split.
+     *
+     * @param sourceSBI    path to the .sbi file.
+     * @param totalRecords number of records of the file.
+     */
+    public RecordSpliterator(String sourceSBI, long totalRecords) {
+        this.sourceSBI = sourceSBI;
+        this.totalRecords = totalRecords;
     }
 
     /**
@@ -52,130 +67,85 @@ public class RecordSpliterator implements Spliterator<BaseInformationRecords.Bas
     public boolean tryAdvance(Consumer<? super BaseInformationRecords.BaseInformation> action) {
         if (action == null)
             throw new NullPointerException();
-
-        BaseInformationRecords.BaseInformation record = null;
-        record = reader.nextRecord();
+        if (done) {
+            return false;
+        }
+        if (reader == null) {
+            if (index != null && fromRange == toRange) {
+                done = true;
+                return false;
+            }
+            try {
+                reader = index == null ? new RecordReader(sourceSBI) :
+                        new RecordReader(sourceSBI, index.start(fromRange), index.end(toRange - 1));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open the source sbi " + sourceSBI, e);
+            }
+        }
+        BaseInformationRecords.BaseInformation record = reader.nextRecord();
         if (record != null) {
+            numRecordsRead++;
             action.accept(record);
             return true;
         }
+        done = true;
+        IOUtils.closeQuietly(reader);
         return false;
-
     }
 
     /**
-     * If this spliterator can be partitioned, returns a Spliterator
-     * covering elements, that will, upon return from this method, not
-     * be covered by this Spliterator.
-     * <p>
-     * <p>If this Spliterator is {@link #ORDERED}, the returned Spliterator
-     * must cover a strict prefix of the elements.
-     * <p>
-     * <p>Unless this Spliterator covers an infinite number of elements,
-     * repeated calls to {@code trySplit()} must eventually return {@code null}.
-     * Upon non-null return:
-     * <ul>
-     * <li>the value reported for {@code estimateSize()} before splitting,
-     * must, after splitting, be greater than or equal to {@code estimateSize()}
-     * for this and the returned Spliterator; and</li>
-     * <li>if this Spliterator is {@code SUBSIZED}, then {@code estimateSize()}
-     * for this spliterator before splitting must be equal to the sum of
-     * {@code estimateSize()} for this and the returned Spliterator after
-     * splitting.</li>
-     * </ul>
-     * <p>
-     * <p>This method may return {@code null} for any reason,
-     * including emptiness, inability to split after traversal has
-     * commenced, data structure constraints, and efficiency
-     * considerations.
+     * Split the ranges that have not been traversed in two parts of about the same number of records. The returned
+     * spliterator covers the first part (a prefix, since this spliterator is ORDERED) and this spliterator keeps the
+     * second part.
      *
-     * @return a {@code Spliterator} covering some portion of the
-     * elements, or {@code null} if this spliterator cannot be split
-     * @apiNote An ideal {@code trySplit} method efficiently (without
-     * traversal) divides its elements exactly in half, allowing
-     * balanced parallel computation.  Many departures from this ideal
-     * remain highly effective; for example, only approximately
-     * splitting an approximately balanced tree, or for a tree in
-     * which leaf nodes may contain either one or two elements,
-     * failing to further split these nodes.  However, large
-     * deviations in balance and/or overly inefficient {@code
-     * trySplit} mechanics typically result in poor parallel
-     * performance.
+     * @return a {@code Spliterator} covering the first part of the ranges, or {@code null} when traversal has
+     * started or a single range remains.
      */
     @Override
     public Spliterator<BaseInformationRecords.BaseInformation> trySplit() {
-        if (maxSplits == 0 ) {
-          return null;
-        }
-        if (((endIndex - startIndex < 0) || (endIndex - startIndex < 100000000)))
+        if (reader != null || done) {
             return null;
-        long splitPosition = ((endIndex - startIndex) / 2) + this.startIndex; //we try to split halfway
-        long readPosition = this.reader.getCurrentReadPosition();
-        if (splitPosition < readPosition) {
-            //if we passed the current position of the reader, we don't further split
+        }
+        if (index == null) {
+            try {
+                index = SBIChunkIndex.load(sourceSBI);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to load the chunk index of " + sourceSBI, e);
+            }
+            fromRange = 0;
+            toRange = index.numRanges();
+        }
+        if (toRange - fromRange < 2) {
             return null;
         }
-        Spliterator<BaseInformationRecords.BaseInformation> newSp = new RecordSpliterator(sourceSBI, splitPosition, endIndex, maxLength, (maxSplits -1)/2);
-        this.maxSplits = (maxSplits -1)/2;
-        this.endIndex = splitPosition - 1;
-        this.reader.readUpTo(endIndex);
-        return newSp;
-    }
-
-    private void recalculateEndIndex() {
-        this.endIndex = startIndex + Math.round(this.endIndex / 2);
+        final long half = index.numRecords(fromRange, toRange) / 2;
+        int splitRange = fromRange + 1;
+        long prefixRecords = index.numRecords(fromRange);
+        while (splitRange < toRange - 1 && prefixRecords + index.numRecords(splitRange) <= half) {
+            prefixRecords += index.numRecords(splitRange);
+            splitRange++;
+        }
+        RecordSpliterator prefix = new RecordSpliterator(sourceSBI, index, fromRange, splitRange);
+        fromRange = splitRange;
+        return prefix;
     }
 
     /**
-     * Returns an estimate of the number of elements that would be
-     * encountered by a {@link #forEachRemaining} traversal, or returns {@link
-     * Long#MAX_VALUE} if infinite, unknown, or too expensive to compute.
-     * <p>
-     * <p>If this Spliterator is {@link #SIZED} and has not yet been partially
-     * traversed or split, or this Spliterator is {@link #SUBSIZED} and has
-     * not yet been partially traversed, this estimate must be an accurate
-     * count of elements that would be encountered by a complete traversal.
-     * Otherwise, this estimate may be arbitrarily inaccurate, but must decrease
-     * as specified across invocations of {@link #trySplit}.
+     * Returns the exact number of records that a {@link #forEachRemaining} traversal would encounter.
      *
-     * @return the estimated size, or {@code Long.MAX_VALUE} if infinite,
-     * unknown, or too expensive to compute.
-     * @apiNote Even an inexact estimate is often useful and inexpensive to compute.
-     * For example, a sub-spliterator of an approximately balanced binary tree
-     * may return a value that estimates the number of elements to be half of
-     * that of its parent; if the root Spliterator does not maintain an
-     * accurate count, it could estimate size to be the power of two
-     * corresponding to its maximum depth.
+     * @return the number of remaining records.
      */
     @Override
     public long estimateSize() {
-        //how many bytes we would read
-        long est = (this.endIndex - this.startIndex) * this.reader.getTotalRecords();
-        return est > 0 ? est : 0L;
+        if (done) {
+            return 0;
+        }
+        final long numRecords = index == null ? totalRecords : index.numRecords(fromRange, toRange);
+        return Math.max(0, numRecords - numRecordsRead);
     }
 
-    /**
-     * Returns a set of characteristics of this Spliterator and its
-     * elements. The result is represented as ORed values from {@link
-     * #ORDERED}, {@link #DISTINCT}, {@link #SORTED}, {@link #SIZED},
-     * {@link #NONNULL}, {@link #IMMUTABLE}, {@link #CONCURRENT},
-     * {@link #SUBSIZED}.  Repeated calls to {@code characteristics()} on
-     * a given spliterator, prior to or in-between calls to {@code trySplit},
-     * should always return the same result.
-     * <p>
-     * <p>If a Spliterator reports an inconsistent set of
-     * characteristics (either those returned from a single invocation
-     * or across multiple invocations), no guarantees can be made
-     * about any computation using this Spliterator.
-     *
-     * @return a representation of characteristics
-     * @apiNote The characteristics of a given spliterator before splitting
-     * may differ from the characteristics after splitting.  For specific
-     * examples see the characteristic values {@link #SIZED}, {@link #SUBSIZED}
-     * and {@link #CONCURRENT}.
-     */
     @Override
     public int characteristics() {
-        return ORDERED | IMMUTABLE | NONNULL;
+        return ORDERED | IMMUTABLE | NONNULL | SIZED | SUBSIZED;
     }
 }
@@ -0,0 +1,227 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * An index of the compressed chunks of an .sbi file, stored next to its .sbip properties file (basename.sbic).
+ * A reader created for a byte range of an .sbi file (see RecordReader(String, long, long)) returns the records of
+ * the chunks that start in the range. The index divides the file into consecutive ranges that each contain at
+ * least one chunk start, and records the exact number of records in each range. Splitting the file at range
+ * boundaries is therefore the same as splitting it at chunk boundaries: every record belongs to exactly one split,
+ * and the size of each split is known without reading it.
+ * <p>
+ * The index is built once, by counting the records of each range in parallel, and is rebuilt when the .sbi file
+ * changes (its length and modification time are recorded in the index).
+ *
+ * @author Fabien Campagne
+ */
+public class SBIChunkIndex {
+    static private Logger LOG = LoggerFactory.getLogger(SBIChunkIndex.class);
+    public static final String EXTENSION = ".sbic";
+    private static final int VERSION = 1;
+    /**
+     * Size of the ranges probed when the index is built. Ranges that contain no chunk start are merged with the next
+     * range.
+     */
+    private static final long RANGE_SIZE = 16 * 1024 * 1024;
+
+    private final long[] offsets;
+    private final long[] numRecords;
+    private final long sbiLength;
+    private final long sbiLastModified;
+
+    private SBIChunkIndex(long[] offsets, long[] numRecords, long sbiLength, long sbiLastModified) {
+        this.offsets = offsets;
+        this.numRecords = numRecords;
+        this.sbiLength = sbiLength;
+        this.sbiLastModified = sbiLastModified;
+    }
+
+    /**
+     * Load the index of an .sbi file, building and saving it first if it does not exist or is out of date.
+     *
+     * @param filepath path to the .sbi file or its basename.
+     * @return the index.
+     * @throws IOException
+     */
+    public static SBIChunkIndex load(String filepath) throws IOException {
+        final String basename = BasenameUtils.getBasename(filepath, ".sbi", ".sbip");
+        final File sbiFile = new File(basename + ".sbi");
+        final File indexFile = new File(basename + EXTENSION);
+        if (indexFile.exists()) {
+            SBIChunkIndex index = read(indexFile);
+            if (index != null && index.sbiLength == sbiFile.length() && index.sbiLastModified == sbiFile.lastModified()) {
+                return index;
+            }
+        }
+        SBIChunkIndex index = build(basename, RANGE_SIZE, Runtime.getRuntime().availableProcessors());
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            // the directory may be read-only, the index will be built again next time:
+            LOG.warn("Unable to save the chunk index " + indexFile, e);
+        }
+        return index;
+    }
+
+    /**
+     * Build the index of an .sbi file.
+     *
+     * @param basename   basename of the .sbi file.
+     * @param rangeSize  size in bytes of the ranges probed.
+     * @param numThreads number of threads used to count records.
+     * @return the index.
+     * @throws IOException
+     */
+    public static SBIChunkIndex build(String basename, long rangeSize, int numThreads) throws IOException {
+        final File sbiFile = new File(basename + ".sbi");
+        final long lastModified = sbiFile.lastModified();
+        final long length = sbiFile.length();
+        final int numRanges = (int) Math.max(1, (length + rangeSize - 1) / rangeSize);
+        LOG.info(String.format("Building the chunk index of %s with %d ranges", basename, numRanges));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numRanges)));
+        try {
+            List<Future<Long>> counts = new ArrayList<>(numRanges);
+            for (int r = 0; r < numRanges; r++) {
+                final long start = r * rangeSize;
+                final long end = Math.min(length, start + rangeSize);
+                counts.add(executor.submit(() -> countRecords(basename, start, end)));
+            }
+            LongArrayList offsets = new LongArrayList();
+            LongArrayList numRecords = new LongArrayList();
+            offsets.add(0);
+            for (int r = 0; r < numRanges; r++) {
+                final long count = counts.get(r).get();
+                final long end = Math.min(length, (r + 1) * rangeSize);
+                if (count == 0 && r < numRanges - 1) {
+                    // no chunk starts in this range, merge it with the next one:
+                    continue;
+                }
+                if (count == 0 && numRecords.size() > 0) {
+                    // extend the last range to the end of the file:
+                    offsets.set(offsets.size() - 1, end);
+                    continue;
+                }
+                offsets.add(end);
+                numRecords.add(count);
+            }
+            return new SBIChunkIndex(offsets.toLongArray(), numRecords.toLongArray(), length, lastModified);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building the chunk index of " + basename, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to build the chunk index of " + basename, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long countRecords(String basename, long start, long end) throws IOException {
+        long count = 0;
+        try (RecordReader reader = new RecordReader(basename + ".sbi", start, end)) {
+            while (reader.nextRecord() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static SBIChunkIndex read(File indexFile) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != VERSION) {
+                return null;
+            }
+            final long sbiLength = input.readLong();
+            final long sbiLastModified = input.readLong();
+            final int numRanges = input.readInt();
+            long[] offsets = new long[numRanges + 1];
+            long[] numRecords = new long[numRanges];
+            offsets[0] = input.readLong();
+            for (int r = 0; r < numRanges; r++) {
+                offsets[r + 1] = input.readLong();
+                numRecords[r] = input.readLong();
+            }
+            return new SBIChunkIndex(offsets, numRecords, sbiLength, sbiLastModified);
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable chunk index " + indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the index next to the .sbip file of an .sbi file, where load will find it.
+     *
+     * @param filepath path to the .sbi file or its basename.
+     * @throws IOException
+     */
+    public void save(String filepath) throws IOException {
+        write(new File(BasenameUtils.getBasename(filepath, ".sbi", ".sbip") + EXTENSION));
+    }
+
+    private void write(File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + "-tmp-" + Long.toHexString(System.nanoTime()));
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            output.writeInt(VERSION);
+            output.writeLong(sbiLength);
+            output.writeLong(sbiLastModified);
+            output.writeInt(numRanges());
+            output.writeLong(offsets[0]);
+            for (int r = 0; r < numRanges(); r++) {
+                output.writeLong(offsets[r + 1]);
+                output.writeLong(numRecords[r]);
+            }
+        }
+        // readers in other processes must never see a partial index:
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the number of ranges in the index.
+     */
+    public int numRanges() {
+        return numRecords.length;
+    }
+
+    /**
+     * @return the offset of the first byte of a range.
+     */
+    public long start(int rangeIndex) {
+        return offsets[rangeIndex];
+    }
+
+    /**
+     * @return the offset past the last byte of a range.
+     */
+    public long end(int rangeIndex) {
+        return offsets[rangeIndex + 1];
+    }
+
+    /**
+     * @return the number of records in a range.
+     */
+    public long numRecords(int rangeIndex) {
+        return numRecords[rangeIndex];
+    }
+
+    /**
+     * @return the number of records in ranges [fromRange, toRange[.
+     */
+    public long numRecords(int fromRange, int toRange) {
+        long sum = 0;
+        for (int r = fromRange; r < toRange; r++) {
+            sum += numRecords[r];
+        }
+        return sum;
+    }
+}
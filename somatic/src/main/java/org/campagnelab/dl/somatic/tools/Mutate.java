@@ -5,6 +5,7 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.somatic.intermediaries.SimulationCharacteristics;
 import org.campagnelab.dl.somatic.intermediaries.SimulationStrategy;
+import org.campagnelab.dl.somatic.storage.ReadAheadRecordIterator;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
@@ -75,6 +76,7 @@ public class Mutate extends AbstractTool<MutateArguments> {
 
 
     public void execute() {
+        ReadAheadRecordIterator readAhead = null;
         try {
             RecordReader reader = new RecordReader(args().inputFile);
             RecordWriter writer = new RecordWriter(args().outputFile);
@@ -88,7 +90,14 @@ public class Mutate extends AbstractTool<MutateArguments> {
             SimulationCharacteristics sim = new SimulationCharacteristics();
             int maxProcess = Integer.MAX_VALUE;
             int iteration = 0;
-            for (BaseInformationRecords.BaseInformation base : reader) {
+            // records are mutated in file order, so decoding ahead on several threads does not change the output:
+            Iterator<BaseInformationRecords.BaseInformation> records = reader.iterator();
+            if (args().numThreads > 1) {
+                readAhead = new ReadAheadRecordIterator(args().inputFile, args().numThreads, args().maxBufferedRecords);
+                records = readAhead;
+            }
+            while (records.hasNext()) {
+                BaseInformationRecords.BaseInformation base = records.next();
                 iteration++;
                 sim.observe(base);
                 if (sim.size() >= CHUNK_SIZE) {
@@ -110,6 +119,10 @@ public class Mutate extends AbstractTool<MutateArguments> {
             System.out.println("Fraction of non-canonical:" + ((float) 1 - ((float) numCanonical / (float) numRecordsTotal)));
         } catch (IOException e) {
             System.err.println("Unable to load or write files. Check command line arguments.");
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
         }
     }
 
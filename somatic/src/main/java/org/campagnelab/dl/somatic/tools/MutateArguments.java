@@ -33,4 +33,10 @@ public class MutateArguments implements ToolArguments {
 
     @Parameter( names = { "--random-seed"}, description = "Random seed.")
     public long seed= 2398823;
+
+    @Parameter(required=false, names = {"--num-threads"}, description = "Number of threads used to decode the input file ahead of the mutation. The output does not depend on the number of threads.")
+    public int numThreads = 1;
+
+    @Parameter(required=false, names = {"--max-buffered-records"}, description = "Maximum number of records decoded ahead when --num-threads is larger than one.")
+    public long maxBufferedRecords = 1000000;
 }
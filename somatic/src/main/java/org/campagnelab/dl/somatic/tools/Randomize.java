@@ -1,6 +1,7 @@
 package org.campagnelab.dl.somatic.tools;
 
 
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
@@ -8,6 +9,8 @@ import org.apache.commons.io.FileUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.somatic.storage.SBIChunkIndex;
+import org.campagnelab.dl.somatic.util.OrderedTaskWindow;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,10 +20,24 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The randomizer object iterates over a parquet file and randomizes the order of records in batches.
  * <p>
+ * Records are first scattered into temporary bucket files, then each bucket is shuffled in memory and appended to
+ * the output. Input files are read on the ranges of their chunk index (see SBIChunkIndex), which split the files on
+ * chunk boundaries and give the exact number of records of each range. Ranges are read and assigned to buckets by
+ * several threads, while the records of ranges already read are appended to the buckets by a separate pool of
+ * threads, so that reading ahead never delays writing. Buckets are then shuffled in parallel. The random generators
+ * used for a range and for a bucket are derived from the random seed and the range or bucket index, and records are
+ * appended to buckets in range order, so the output only depends on the seed, not on the number of threads. The
+ * number of records held in memory by ranges read ahead, or by buckets shuffled ahead, is bounded by
+ * --max-buffered-records, whatever the number of threads.
+ * <p>
  * Created by rct66 on 5/18/16.
  *
  * @author rct66
@@ -43,14 +60,21 @@ public class Randomize extends AbstractTool<RandomizerArguments> {
         if (workingDir == null) {
             workingDir = ".";
         }
+        final int numThreads = Math.max(1, args().numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        // appends run on their own threads, so that they never wait behind the ranges queued for reading:
+        ExecutorService appendExecutor = Executors.newFixedThreadPool(numThreads);
         try {
             long totalRecords = 0;
-            for (String filename : args().inputFiles) {
-                RecordReader source = new RecordReader(filename);
-                totalRecords += source.getTotalRecords();
-                source.close();
+            List<long[]> ranges = new ObjectArrayList<>();
+            for (int fileIndex = 0; fileIndex < args().inputFiles.size(); fileIndex++) {
+                SBIChunkIndex index = SBIChunkIndex.load(args().inputFiles.get(fileIndex));
+                for (int r = 0; r < index.numRanges(); r++) {
+                    ranges.add(new long[]{fileIndex, index.start(r), index.end(r), index.numRecords(r)});
+                    totalRecords += index.numRecords(r);
+                }
             }
-            int numBuckets = (int) (totalRecords / arguments.recordsPerBucket) + 1;
+            final int numBuckets = (int) (totalRecords / arguments.recordsPerBucket) + 1;
             Random r = new Random();
             String tmpDir = workingDir + "/tmp" + r.nextInt();
             new File(tmpDir).mkdir();
@@ -58,8 +82,8 @@ public class Randomize extends AbstractTool<RandomizerArguments> {
             for (int i = 0; i < numBuckets; i++) {
                 bucketWriters.add(new RecordWriter(tmpDir+"/bucket" + i, arguments.chunkSizePerWriter));
             }
+            long[] bucketSizes = new long[numBuckets];
             RecordWriter allWriter = new RecordWriter(args().outputFile);
-            Random rand = new XoRoShiRo128PlusRandom(args().randomSeed);
 
             //set up logger
             ProgressLogger pgRead = new ProgressLogger(LOG);
@@ -70,15 +94,40 @@ public class Randomize extends AbstractTool<RandomizerArguments> {
 
             //fill buckets randomly
             System.out.println("Filling " + numBuckets + " temp buckets randomly");
-            for (String filename : args().inputFiles) {
-                RecordReader source = new RecordReader(filename);
-                for (BaseInformationRecords.BaseInformation rec : source) {
-                    int bucket = rand.nextInt(numBuckets);
-                    bucketWriters.get(bucket).writeRecord(rec);
-                    pgRead.lightUpdate();
+            OrderedTaskWindow<ObjectArrayList<BaseInformationRecords.BaseInformation>[]> scattered =
+                    new OrderedTaskWindow<>(executor, args().maxBufferedRecords);
+            int nextRange = 0;
+            for (int rangeIndex = 0; rangeIndex < ranges.size(); rangeIndex++) {
+                while (nextRange < ranges.size() && scattered.hasRoom(ranges.get(nextRange)[3])) {
+                    final int index = nextRange++;
+                    scattered.submit(() -> scatter(ranges.get(index), index, numBuckets), ranges.get(index)[3]);
+                }
+                ObjectArrayList<BaseInformationRecords.BaseInformation>[] byBucket = scattered.take();
+                // each writer task appends to its own subset of the buckets:
+                List<Future<Long>> appended = new ObjectArrayList<>(numThreads);
+                for (int thread = 0; thread < numThreads; thread++) {
+                    final int firstBucket = thread;
+                    appended.add(appendExecutor.submit(() -> {
+                        long numWritten = 0;
+                        for (int bucket = firstBucket; bucket < numBuckets; bucket += numThreads) {
+                            if (byBucket[bucket] != null) {
+                                for (BaseInformationRecords.BaseInformation rec : byBucket[bucket]) {
+                                    bucketWriters.get(bucket).writeRecord(rec);
+                                }
+                                numWritten += byBucket[bucket].size();
+                            }
+                        }
+                        return numWritten;
+                    }));
+                }
+                for (Future<Long> numWritten : appended) {
+                    pgRead.update(waitFor(numWritten));
+                }
+                for (int bucket = 0; bucket < numBuckets; bucket++) {
+                    if (byBucket[bucket] != null) {
+                        bucketSizes[bucket] += byBucket[bucket].size();
+                    }
                 }
-                source.close();
-                System.gc();
             }
 
             pgRead.stop();
@@ -91,26 +140,20 @@ public class Randomize extends AbstractTool<RandomizerArguments> {
             pgTempBucket.expectedUpdates = numBuckets;
             pgTempBucket.displayFreeMemory = true;
             pgTempBucket.start();
-            int i = 0;
-            for (RecordWriter bucketWriter : bucketWriters) {
-                bucketWriter.close();
-
-                //put contents of bucket in a list
-                RecordReader bucketReader = new RecordReader(tmpDir + "/bucket" + i);
-                List<BaseInformationRecords.BaseInformation> records = new ObjectArrayList<>(arguments.recordsPerBucket);
-                for (BaseInformationRecords.BaseInformation rec : bucketReader) {
-                    records.add(rec);
+            final String bucketDir = tmpDir;
+            OrderedTaskWindow<List<BaseInformationRecords.BaseInformation>> shuffled =
+                    new OrderedTaskWindow<>(executor, args().maxBufferedRecords);
+            int nextBucket = 0;
+            for (int i = 0; i < numBuckets; i++) {
+                while (nextBucket < numBuckets && shuffled.hasRoom(bucketSizes[nextBucket])) {
+                    final int bucket = nextBucket++;
+                    shuffled.submit(() -> shuffle(bucketWriters.get(bucket), bucketDir + "/bucket" + bucket, bucket),
+                            bucketSizes[bucket]);
                 }
-                bucketReader.close();
-
-                //shuffle list
-                Collections.shuffle(records, rand);
-
                 //write list to final file
-                for (BaseInformationRecords.BaseInformation rec : records) {
+                for (BaseInformationRecords.BaseInformation rec : shuffled.take()) {
                     allWriter.writeRecord(rec);
                 }
-                i++;
                 pgTempBucket.update();
             }
             pgTempBucket.stop();
@@ -121,6 +164,72 @@ public class Randomize extends AbstractTool<RandomizerArguments> {
 
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+            appendExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the records of a range and assign each record to a random bucket.
+     *
+     * @param range      file index, start and end offsets, and number of records of the range.
+     * @param rangeIndex index of the range among all the ranges of the input files.
+     * @return the records of the range, by bucket (null for buckets that received no record).
+     */
+    private ObjectArrayList<BaseInformationRecords.BaseInformation>[] scatter(long[] range, int rangeIndex,
+                                                                             int numBuckets) throws IOException {
+        @SuppressWarnings("unchecked")
+        ObjectArrayList<BaseInformationRecords.BaseInformation>[] byBucket = new ObjectArrayList[numBuckets];
+        Random rand = random(2L * rangeIndex);
+        try (RecordReader source = new RecordReader(args().inputFiles.get((int) range[0]), range[1], range[2])) {
+            for (BaseInformationRecords.BaseInformation rec = source.nextRecord(); rec != null; rec = source.nextRecord()) {
+                int bucket = rand.nextInt(numBuckets);
+                if (byBucket[bucket] == null) {
+                    byBucket[bucket] = new ObjectArrayList<>();
+                }
+                byBucket[bucket].add(rec);
+            }
+        }
+        return byBucket;
+    }
+
+    /**
+     * Close a bucket, load its records and shuffle them.
+     */
+    private List<BaseInformationRecords.BaseInformation> shuffle(RecordWriter bucketWriter, String bucketPath,
+                                                                  int bucket) throws IOException {
+        bucketWriter.close();
+        //put contents of bucket in a list
+        List<BaseInformationRecords.BaseInformation> records = new ObjectArrayList<>(arguments.recordsPerBucket);
+        try (RecordReader bucketReader = new RecordReader(bucketPath)) {
+            for (BaseInformationRecords.BaseInformation rec : bucketReader) {
+                records.add(rec);
+            }
+        }
+        //shuffle list
+        Collections.shuffle(records, random(2L * bucket + 1));
+        return records;
+    }
+
+    /**
+     * Create the random generator of a range (even streams) or of a bucket (odd streams), derived from the seed.
+     */
+    private Random random(long stream) {
+        return new XoRoShiRo128PlusRandom(args().randomSeed ^ HashCommon.murmurHash3(stream + 1));
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while randomizing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -27,5 +27,11 @@ public class RandomizerArguments implements ToolArguments {
 
     @Parameter(required=false, names = { "--random-seed"}, description = "Seed for random generator used to randomizing entries.")
     long randomSeed=232323;
+
+    @Parameter(required = false, names = {"--num-threads"}, description = "Number of threads used to read, write and shuffle buckets. The output does not depend on the number of threads.")
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(required = false, names = {"--max-buffered-records"}, description = "Maximum number of records read ahead of the bucket writers, or shuffled ahead of the output writer, whatever the number of threads.")
+    long maxBufferedRecords = 1000000;
 }
 
@@ -7,6 +7,7 @@ import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.logging.ProgressLogger;
 import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.somatic.storage.ReadAheadRecordIterator;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
@@ -14,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Random;
 
 /**
@@ -73,6 +75,7 @@ public class Split extends AbstractTool<SplitArguments> {
         }
         RecordWriter outputWriters[] = new RecordWriter[numOutputs];
 
+        ReadAheadRecordIterator readAhead = null;
         try (RecordReader reader = new RecordReader(args().inputFile)) {
             fractions = new double[numOutputs];
             double sumFractions = 0;
@@ -94,7 +97,14 @@ public class Split extends AbstractTool<SplitArguments> {
             pgRead.displayFreeMemory = true;
             pgRead.start();
             long numWritten = 0;
-            for (BaseInformationRecords.BaseInformation record : reader) {
+            // records are assigned in file order, so decoding ahead on several threads does not change the output:
+            Iterator<BaseInformationRecords.BaseInformation> records = reader.iterator();
+            if (args().numThreads > 1) {
+                readAhead = new ReadAheadRecordIterator(args().inputFile, args().numThreads, args().maxBufferedRecords);
+                records = readAhead;
+            }
+            while (records.hasNext()) {
+                BaseInformationRecords.BaseInformation record = records.next();
                 int index = recorgBelongsTo(record);
 
                 outputWriters[index].writeRecord(record);
@@ -111,6 +121,10 @@ public class Split extends AbstractTool<SplitArguments> {
             reader.close();
         } catch (IOException e) {
             System.err.println("Unable to load or write files. Check command line arguments.");
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
         }
     }
 
@@ -34,5 +34,11 @@ public class SplitArguments implements ToolArguments {
     @Parameter(required=false, names = { "--random-seed"}, description = "Seed for random generator used to determine in which file to output a site.")
     long randomSeed=232323;
 
+    @Parameter(required=false, names = {"--num-threads"}, description = "Number of threads used to decode the input file ahead of the split. The output does not depend on the number of threads.")
+    public int numThreads = 1;
+
+    @Parameter(required=false, names = {"--max-buffered-records"}, description = "Maximum number of records decoded ahead when --num-threads is larger than one.")
+    public long maxBufferedRecords = 1000000;
+
 }
 
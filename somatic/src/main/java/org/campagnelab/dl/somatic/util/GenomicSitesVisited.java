@@ -1,22 +1,175 @@
 package org.campagnelab.dl.somatic.util;
 
-import it.unimi.dsi.fastutil.longs.Long2BooleanAVLTreeMap;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * A data structure to remember which genomic sites have already been visited.
+ * A data structure to remember which genomic sites have already been visited. Sites are stored as one bit per
+ * position, in bitsets allocated per reference index in pages of 2^20 positions (128KB), so that only the regions of
+ * the genome that contain visited sites use memory. Membership tests are O(1) and sites can be visited by several
+ * threads concurrently. The visited sites can be saved to a file and loaded back (only non-empty pages are written).
+ * Reference indices must be at least -1, and positions are treated as unsigned, so that any position can be visited.
  */
 
 public class GenomicSitesVisited {
-    Long2BooleanAVLTreeMap visitedSites = new Long2BooleanAVLTreeMap();
+    private static final int PAGE_SHIFT = 20;
+    private static final int WORDS_PER_PAGE = (1 << PAGE_SHIFT) / Long.SIZE;
+    /**
+     * Version 2 stores pages by slot (reference index + 1), version 1 by reference index.
+     */
+    private static final int SNAPSHOT_VERSION = 2;
 
-    public void visit(int referenceIndex, int position) {
-        long value = (((long)(referenceIndex+1))| (((long)(position+1)) << 32));
-        visitedSites.put(value, true);
+    /**
+     * Pages indexed by slot (see slot), then by page index. Arrays are copied when they grow, and published through
+     * the volatile field, so that readers never need to lock.
+     */
+    private volatile AtomicLongArray[][] pages = new AtomicLongArray[0][];
 
+    /**
+     * Mark a site as visited.
+     *
+     * @return true when the site had not been visited before.
+     */
+    public boolean visit(int referenceIndex, int position) {
+        final int slot = slot(referenceIndex);
+        AtomicLongArray page = page(slot, position >>> PAGE_SHIFT);
+        if (page == null) {
+            page = allocatePage(slot, position >>> PAGE_SHIFT);
+        }
+        final int wordIndex = wordIndex(position);
+        final long mask = 1L << position;
+        long word;
+        do {
+            word = page.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!page.compareAndSet(wordIndex, word, word | mask));
+        return true;
     }
 
     public boolean wasVisited(int referenceIndex, int position) {
-        long value = ((long)(referenceIndex+1)) | ((long)(position+1) << 32);
-        return visitedSites.containsKey(value);
+        AtomicLongArray page = page(slot(referenceIndex), position >>> PAGE_SHIFT);
+        return page != null && (page.get(wordIndex(position)) & (1L << position)) != 0;
+    }
+
+    /**
+     * Pages are stored by reference index + 1, so that sites of reference index -1 can be visited.
+     *
+     * @throws IllegalArgumentException when the reference index is smaller than -1.
+     */
+    private static int slot(int referenceIndex) {
+        if (referenceIndex < -1 || referenceIndex == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Reference index out of range [-1, Integer.MAX_VALUE[: " + referenceIndex);
+        }
+        return referenceIndex + 1;
+    }
+
+    private static int wordIndex(int position) {
+        return (position & ((1 << PAGE_SHIFT) - 1)) >>> 6;
+    }
+
+    private AtomicLongArray page(int slot, int pageIndex) {
+        final AtomicLongArray[][] pages = this.pages;
+        if (slot >= pages.length) {
+            return null;
+        }
+        final AtomicLongArray[] referencePages = pages[slot];
+        return referencePages == null || pageIndex >= referencePages.length ? null : referencePages[pageIndex];
+    }
+
+    private synchronized AtomicLongArray allocatePage(int slot, int pageIndex) {
+        AtomicLongArray page = page(slot, pageIndex);
+        if (page != null) {
+            // allocated by another thread:
+            return page;
+        }
+        page = new AtomicLongArray(WORDS_PER_PAGE);
+        setPage(slot, pageIndex, page);
+        return page;
+    }
+
+    private synchronized void setPage(int slot, int pageIndex, AtomicLongArray page) {
+        AtomicLongArray[][] pages = Arrays.copyOf(this.pages, Math.max(this.pages.length, slot + 1));
+        AtomicLongArray[] referencePages = pages[slot] == null ? new AtomicLongArray[pageIndex + 1] :
+                Arrays.copyOf(pages[slot], Math.max(pages[slot].length, pageIndex + 1));
+        referencePages[pageIndex] = page;
+        pages[slot] = referencePages;
+        this.pages = pages;
+    }
+
+    /**
+     * Save the visited sites to a file.
+     *
+     * @param filename name of the file to write.
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        final AtomicLongArray[][] pages = this.pages;
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            output.writeInt(SNAPSHOT_VERSION);
+            for (int slot = 0; slot < pages.length; slot++) {
+                if (pages[slot] == null) {
+                    continue;
+                }
+                for (int pageIndex = 0; pageIndex < pages[slot].length; pageIndex++) {
+                    final AtomicLongArray page = pages[slot][pageIndex];
+                    if (page == null) {
+                        continue;
+                    }
+                    // only the range of non-zero words of a page is written:
+                    int from = 0;
+                    int to = WORDS_PER_PAGE;
+                    while (from < to && page.get(from) == 0) {
+                        from++;
+                    }
+                    while (to > from && page.get(to - 1) == 0) {
+                        to--;
+                    }
+                    if (from == to) {
+                        continue;
+                    }
+                    output.writeInt(slot);
+                    output.writeInt(pageIndex);
+                    output.writeInt(from);
+                    output.writeInt(to);
+                    for (int wordIndex = from; wordIndex < to; wordIndex++) {
+                        output.writeLong(page.get(wordIndex));
+                    }
+                }
+            }
+            // end of pages:
+            output.writeInt(-1);
+        }
+    }
+
+    /**
+     * Load visited sites saved with {@link #save(String)}.
+     *
+     * @param filename name of the file to read.
+     * @return the visited sites.
+     * @throws IOException
+     */
+    public static GenomicSitesVisited load(String filename) throws IOException {
+        GenomicSitesVisited visited = new GenomicSitesVisited();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            final int version = input.readInt();
+            if (version != SNAPSHOT_VERSION && version != 1) {
+                throw new IOException("Unsupported version of visited sites: " + version);
+            }
+            final int slotOffset = version == 1 ? 1 : 0;
+            for (int stored = input.readInt(); stored != -1; stored = input.readInt()) {
+                final int pageIndex = input.readInt();
+                final int from = input.readInt();
+                final int to = input.readInt();
+                AtomicLongArray page = new AtomicLongArray(WORDS_PER_PAGE);
+                for (int wordIndex = from; wordIndex < to; wordIndex++) {
+                    page.set(wordIndex, input.readLong());
+                }
+                visited.setPage(stored + slotOffset, pageIndex, page);
+            }
+        }
+        return visited;
     }
 }
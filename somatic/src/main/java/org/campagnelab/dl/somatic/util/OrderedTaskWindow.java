@@ -0,0 +1,80 @@
+package org.campagnelab.dl.somatic.util;
+
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on an executor and returns their results in the order the tasks were submitted. Each task has a size
+ * (e.g., the number of records it decodes), and the total size of the tasks submitted but not yet taken is bounded,
+ * so that the memory held by results does not depend on the number of threads of the executor. A single task larger
+ * than the bound is accepted when no other task is pending.
+ *
+ * @param <T> type of the results.
+ */
+public class OrderedTaskWindow<T> {
+    private final ExecutorService executor;
+    private final long maxSizeAhead;
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+    private final LongArrayFIFOQueue sizes = new LongArrayFIFOQueue();
+    private long sizeAhead;
+
+    /**
+     * @param executor     executor that runs the tasks.
+     * @param maxSizeAhead maximum total size of the tasks submitted but not yet taken.
+     */
+    public OrderedTaskWindow(ExecutorService executor, long maxSizeAhead) {
+        this.executor = executor;
+        this.maxSizeAhead = maxSizeAhead;
+    }
+
+    /**
+     * @return true when a task of this size can be submitted without exceeding the bound.
+     */
+    public boolean hasRoom(long size) {
+        return pending.isEmpty() || sizeAhead + size <= maxSizeAhead;
+    }
+
+    public void submit(Callable<T> task, long size) {
+        pending.add(executor.submit(task));
+        sizes.enqueue(size);
+        sizeAhead += size;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return the total size of the tasks submitted but not yet taken.
+     */
+    public long sizeAhead() {
+        return sizeAhead;
+    }
+
+    /**
+     * Wait for the oldest task and return its result.
+     *
+     * @throws IOException if the task failed with an IOException, or the wait was interrupted.
+     */
+    public T take() throws IOException {
+        Future<T> future = pending.poll();
+        sizeAhead -= sizes.dequeueLong();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a task", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
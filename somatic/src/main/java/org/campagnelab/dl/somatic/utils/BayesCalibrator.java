@@ -15,10 +15,10 @@ public class BayesCalibrator extends CalcCalibrator {
 
     @Override
     public float calibrateProb(float prob) {
-        double mutGreater = plantedMutSet.subSet(prob,1.1f).size() + 1;
-        double unMutGreater = unMutSet.subSet(prob,1.1f).size() + 1;
-        double  pMGreater = mutGreater/plantedMutSet.size();
-        double  pUGreater = unMutGreater/ unMutSet.size();
+        double mutGreater = numPlantedMut(prob,1.1f) + 1;
+        double unMutGreater = numUnMut(prob,1.1f) + 1;
+        double  pMGreater = mutGreater/plantedMutProbs.size();
+        double  pUGreater = unMutGreater/ unMutProbs.size();
         double bayes = pMGreater* priorMutRate /pUGreater;
         return (float) bayes;
     }
@@ -1,10 +1,15 @@
 package org.campagnelab.dl.somatic.utils;
 
-import it.unimi.dsi.fastutil.floats.FloatAVLTreeSet;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.floats.FloatSortedSet;
 import it.unimi.dsi.fastutil.io.BinIO;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.ObjectStreamConstants;
 
 /**
  * Created by rct66 on 7/19/16.
@@ -13,11 +18,13 @@ import java.io.IOException;
  */
 public abstract class CalcCalibrator {
     /**
-     * These are two sorted sets containing the model probabilities encountered in PredictMutations (mutated and unmutated examples seperate).
-     * They structured for easy access to the number of model probabilities greater than x, (or less than), for any given x.
+     * These are two lists containing the model probabilities encountered in PredictMutations (mutated and unmutated examples seperate).
+     * They are sorted once, before the calibrator is used or saved, so that the number of model probabilities greater than x
+     * (or less than) can be found by binary search for any given x. Each observation takes four bytes.
      */
-    FloatAVLTreeSet plantedMutSet = new FloatAVLTreeSet();
-    FloatAVLTreeSet unMutSet = new FloatAVLTreeSet();
+    FloatArrayList plantedMutProbs = new FloatArrayList();
+    FloatArrayList unMutProbs = new FloatArrayList();
+    private boolean sorted = true;
     int totalExamples;
     String modelPath;
     String prefix;
@@ -25,28 +32,60 @@ public abstract class CalcCalibrator {
     public void observe(float modelProb, boolean isMut){
         totalExamples++;
         if (isMut) {
-            plantedMutSet.add(modelProb);
+            plantedMutProbs.add(modelProb);
         } else {
-            unMutSet.add(modelProb);
+            unMutProbs.add(modelProb);
         }
+        sorted = false;
+    }
+
+    /**
+     * Add the observations of another calibrator to this one. Calibrators can be filled by several threads, each
+     * with its own calibrator, and merged at the end.
+     */
+    public void merge(CalcCalibrator other) {
+        totalExamples += other.totalExamples;
+        plantedMutProbs.addAll(other.plantedMutProbs);
+        unMutProbs.addAll(other.unMutProbs);
+        sorted = false;
     }
 
     //call to save stats to disk
     public void save() throws IOException {
+        sort();
         File mutFile =  new File(modelPath + "/" + prefix + "mutSet");
         File unMutFile = new File(modelPath + "/" + prefix + "unMutSet");
-        mutFile.createNewFile();
-        unMutFile.createNewFile();
-        BinIO.storeObject(plantedMutSet,mutFile);
-        BinIO.storeObject(unMutSet,unMutFile);
+        BinIO.storeFloats(plantedMutProbs.elements(), 0, plantedMutProbs.size(), mutFile);
+        BinIO.storeFloats(unMutProbs.elements(), 0, unMutProbs.size(), unMutFile);
     }
 
     //call to load stats from disk
     public void load() throws IOException, ClassNotFoundException {
         File mutFile =  new File(modelPath + "/" + prefix + "mutSet");
         File unMutFile = new File(modelPath + "/" + prefix + "unMutSet");
-        plantedMutSet = (FloatAVLTreeSet)BinIO.loadObject(mutFile);
-        unMutSet = (FloatAVLTreeSet)BinIO.loadObject(unMutFile);
+        plantedMutProbs = loadProbs(mutFile);
+        unMutProbs = loadProbs(unMutFile);
+        sorted = false;
+        sort();
+    }
+
+    /**
+     * Load model probabilities saved as an array of floats, or as a serialized sorted set by previous versions.
+     */
+    private static FloatArrayList loadProbs(File file) throws IOException, ClassNotFoundException {
+        if (isSerializedObject(file)) {
+            return new FloatArrayList((FloatSortedSet) BinIO.loadObject(file));
+        }
+        return FloatArrayList.wrap(BinIO.loadFloats(file));
+    }
+
+    private static boolean isSerializedObject(File file) throws IOException {
+        if (file.length() < 2) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        }
     }
 
     public CalcCalibrator(String modelPath, String prefix, boolean loadStats) throws IOException, ClassNotFoundException {
@@ -59,6 +98,50 @@ public abstract class CalcCalibrator {
 
     public abstract float calibrateProb(float modelProb);
 
+    /**
+     * @return the number of model probabilities of mutated examples in [from, to[.
+     */
+    protected int numPlantedMut(float from, float to) {
+        sort();
+        return count(plantedMutProbs, from, to);
+    }
+
+    /**
+     * @return the number of model probabilities of unmutated examples in [from, to[.
+     */
+    protected int numUnMut(float from, float to) {
+        sort();
+        return count(unMutProbs, from, to);
+    }
+
+    private synchronized void sort() {
+        if (!sorted) {
+            FloatArrays.parallelQuickSort(plantedMutProbs.elements(), 0, plantedMutProbs.size());
+            FloatArrays.parallelQuickSort(unMutProbs.elements(), 0, unMutProbs.size());
+            sorted = true;
+        }
+    }
+
+    private static int count(FloatArrayList sortedProbs, float from, float to) {
+        return Math.max(0, lowerBound(sortedProbs, to) - lowerBound(sortedProbs, from));
+    }
 
+    /**
+     * @return the index of the first probability that is not less than value (in the order of Float.compare).
+     */
+    private static int lowerBound(FloatArrayList sortedProbs, float value) {
+        final float[] probs = sortedProbs.elements();
+        int low = 0;
+        int high = sortedProbs.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (Float.compare(probs[middle], value) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
 
 }
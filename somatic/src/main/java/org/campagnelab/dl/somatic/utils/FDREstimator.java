@@ -13,8 +13,8 @@ public class FDREstimator extends CalcCalibrator {
 
     @Override
     public float calibrateProb(float prob) {
-        double unMutGreater = unMutSet.subSet(prob,1.1f).size();
-        double unMutTotal = unMutSet.size();
+        double unMutGreater = numUnMut(prob,1.1f);
+        double unMutTotal = unMutProbs.size();
         double FDR = unMutGreater/(unMutTotal);
         return (float) FDR;
     }
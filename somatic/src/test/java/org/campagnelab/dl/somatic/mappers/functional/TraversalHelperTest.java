@@ -0,0 +1,95 @@
+package org.campagnelab.dl.somatic.mappers.functional;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Check that traversals of the flat view of a record visit the same values, in the same order, as the lists of
+ * NumberWithFrequency.
+ */
+public class TraversalHelperTest {
+
+    @Test
+    public void sameValuesAsLists() {
+        BaseInformationRecords.BaseInformation record = BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(0).setPosition(12).setReferenceBase("A").setMutated(false)
+                .addSamples(sample(1, 3)).addSamples(sample(100, 2)).build();
+        FlatRecord flat = FlatRecord.of(record);
+        assertSame(flat, FlatRecord.of(record));
+
+        assertEquals(flatten(TraversalHelper.forAllSampleCounts(record, BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList)),
+                visit((r, values) -> TraversalHelper.forAllSampleCounts(r, CountField.QUALITY_SCORES_FORWARD_STRAND, values), flat));
+        for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+            for (int genotypeIndex = 0; genotypeIndex < record.getSamples(sampleIndex).getCountsCount(); genotypeIndex++) {
+                final int s = sampleIndex;
+                final int g = genotypeIndex;
+                assertEquals(flatten(TraversalHelper.forOneSampleGenotype(s, g, record,
+                        BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList)),
+                        visit((r, values) -> TraversalHelper.forOneSampleGenotype(s, g, r,
+                                CountField.QUALITY_SCORES_FORWARD_STRAND, values), flat));
+                assertEquals(flatten(TraversalHelper.forOneSampleGenotypeBothStrands(s, g, record,
+                        BaseInformationRecords.CountInfo::getQualityScoresForwardStrandList,
+                        BaseInformationRecords.CountInfo::getQualityScoresReverseStrandList)),
+                        visit((r, values) -> TraversalHelper.forOneSampleGenotypeBothStrands(s, g, r,
+                                CountField.QUALITY_SCORES_FORWARD_STRAND, CountField.QUALITY_SCORES_REVERSE_STRAND, values), flat));
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void missingCount() {
+        BaseInformationRecords.BaseInformation record = BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(0).setPosition(12).setReferenceBase("A").setMutated(false)
+                .addSamples(sample(1, 2)).addSamples(sample(100, 2)).build();
+        // the first count of the second sample must not be returned for the third count of the first sample:
+        TraversalHelper.forOneSampleGenotype(0, 2, FlatRecord.of(record), CountField.QUALITY_SCORES_FORWARD_STRAND, (number, frequency) -> {
+        });
+    }
+
+    private IntArrayList visit(HistogramTraversal traversal, FlatRecord record) {
+        IntArrayList result = new IntArrayList();
+        traversal.traverse(record, (number, frequency) -> {
+            result.add(number);
+            result.add(frequency);
+        });
+        return result;
+    }
+
+    private IntArrayList flatten(List<BaseInformationRecords.NumberWithFrequency> values) {
+        IntArrayList result = new IntArrayList();
+        for (BaseInformationRecords.NumberWithFrequency value : values) {
+            result.add(value.getNumber());
+            result.add(value.getFrequency());
+        }
+        return result;
+    }
+
+    private BaseInformationRecords.SampleInfo sample(int firstNumber, int numCounts) {
+        BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+        for (int i = 0; i < numCounts; i++) {
+            BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+            count.setFromSequence("A");
+            count.setToSequence(Character.toString((char) ('A' + i)));
+            count.setMatchesReference(i == 0);
+            count.setGenotypeCountForwardStrand(10);
+            count.setGenotypeCountReverseStrand(5);
+            // counts have histograms of different lengths, the second one is empty:
+            for (int j = 0; j < (i == 1 ? 0 : i + 2); j++) {
+                count.addQualityScoresForwardStrand(value(firstNumber + i * 10 + j, j + 1));
+                count.addQualityScoresReverseStrand(value(firstNumber + i * 20 + j, 2 * j + 1));
+            }
+            sample.addCounts(count);
+        }
+        return sample.build();
+    }
+
+    private BaseInformationRecords.NumberWithFrequency value(int number, int frequency) {
+        return BaseInformationRecords.NumberWithFrequency.newBuilder().setNumber(number).setFrequency(frequency).build();
+    }
+}
@@ -7,8 +7,11 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.stream.StreamSupport;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -52,12 +55,35 @@ public class RecordReaderTest {
 
     @Test
     public void readRecordsWithSpliterator() throws Exception {
+        File indexFile = new File(filename + SBIChunkIndex.EXTENSION);
+        indexFile.delete();
         final int[] numRecordsRead = {0};
         this.reader.spliterator().forEachRemaining(record -> {
             assertNotNull(record);
             numRecordsRead[0]++;
         });
         assertEquals("Records read", 12185, numRecordsRead[0]);
+        // sequential traversals do not need the chunk index:
+        assertFalse("Index built", indexFile.exists());
+        // parallel traversals split the file on the ranges of the index:
+        assertEquals("Records read", 12185, StreamSupport.stream(this.reader.spliterator(), true)
+                .filter(record -> record.getPosition() >= 0).count());
+        assertTrue("Index built", indexFile.exists());
+    }
+
+    @Test
+    public void readRecordsWithParallelStream() throws Exception {
+        // small ranges, so that the file is split in several parts:
+        SBIChunkIndex index = SBIChunkIndex.build(filename, 64 * 1024, 4);
+        assertEquals("Records indexed", 12185, index.numRecords(0, index.numRanges()));
+        RecordSpliterator spliterator = new RecordSpliterator(filename + ".sbi", index);
+        assertEquals("Exact size", 12185, spliterator.estimateSize());
+        assertEquals("Records read", 12185, StreamSupport.stream(spliterator, true).count());
+        long[] positions = StreamSupport.stream(new RecordSpliterator(filename + ".sbi", index), true)
+                .mapToLong(record -> ((long) record.getReferenceIndex() << 32) | record.getPosition()).toArray();
+        long[] sequential = StreamSupport.stream(new RecordSpliterator(filename + ".sbi", index), false)
+                .mapToLong(record -> ((long) record.getReferenceIndex() << 32) | record.getPosition()).toArray();
+        assertArrayEquals("Encounter order", sequential, positions);
     }
 
     @Test
@@ -92,4 +118,23 @@ public class RecordReaderTest {
         assertEquals("Expected records", 12185, reader.getTotalRecords() );
     }
 
+    @Test
+    public void readAheadKeepsFileOrder() throws Exception {
+        // small ranges and a small buffer, so that several ranges are decoded ahead:
+        SBIChunkIndex index = SBIChunkIndex.build(filename, 64 * 1024, 4);
+        try (ReadAheadRecordIterator readAhead = new ReadAheadRecordIterator(filename, index, 4, 2000)) {
+            assertEquals("Records indexed", 12185, readAhead.numRecords());
+            int numRecordsRead = 0;
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                assertTrue(readAhead.hasNext());
+                BaseInformationRecords.BaseInformation decoded = readAhead.next();
+                assertEquals(record.getReferenceIndex(), decoded.getReferenceIndex());
+                assertEquals(record.getPosition(), decoded.getPosition());
+                numRecordsRead++;
+            }
+            assertFalse(readAhead.hasNext());
+            assertEquals("Records read", 12185, numRecordsRead);
+        }
+    }
+
 }
\ No newline at end of file
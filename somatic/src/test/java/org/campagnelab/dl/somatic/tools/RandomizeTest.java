@@ -0,0 +1,86 @@
+package org.campagnelab.dl.somatic.tools;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.somatic.storage.SBIChunkIndex;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the output of Randomize only depends on the random seed, not on the number of threads.
+ */
+public class RandomizeTest {
+    private static final String DIRECTORY = "test-results/randomize";
+    private static final String INPUT = DIRECTORY + "/input.sbi";
+    private static final int NUM_RECORDS = 1000;
+
+    @BeforeClass
+    public static void writeInput() throws IOException {
+        FileUtils.deleteQuietly(new File(DIRECTORY));
+        FileUtils.forceMkdir(new File(DIRECTORY));
+        try (RecordWriter writer = new RecordWriter(INPUT, 10)) {
+            for (int position = 0; position < NUM_RECORDS; position++) {
+                writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                        .setReferenceIndex(0).setPosition(position).setReferenceBase("A").setMutated(false)
+                        .build());
+            }
+        }
+        // small ranges, so that the input is read in many ranges:
+        SBIChunkIndex index = SBIChunkIndex.build(DIRECTORY + "/input", 256, 2);
+        assertEquals(NUM_RECORDS, index.numRecords(0, index.numRanges()));
+        assertTrue(index.numRanges() > 1);
+        index.save(INPUT);
+    }
+
+    @Test
+    public void sameSeedSameOutputWithAnyNumberOfThreads() throws IOException {
+        IntArrayList singleThreaded = randomize(1, 232323);
+        IntArrayList multiThreaded = randomize(4, 232323);
+        assertEquals(singleThreaded, multiThreaded);
+        assertNotEquals(singleThreaded, randomize(4, 12));
+
+        // the output is a permutation of the input:
+        int[] sorted = singleThreaded.toIntArray();
+        Arrays.sort(sorted);
+        assertEquals(NUM_RECORDS, sorted.length);
+        for (int position = 0; position < NUM_RECORDS; position++) {
+            assertEquals(position, sorted[position]);
+        }
+    }
+
+    /**
+     * Randomize the input with small ranges, buckets and buffers, and return the positions of the output records.
+     */
+    private static IntArrayList randomize(int numThreads, long seed) throws IOException {
+        String output = String.format("%s/randomized-%d-%d.sbi", DIRECTORY, numThreads, seed);
+        Randomize tool = new Randomize();
+        tool.arguments = new RandomizerArguments();
+        tool.arguments.inputFiles.add(INPUT);
+        tool.arguments.outputFile = output;
+        tool.arguments.recordsPerBucket = 100;
+        tool.arguments.chunkSizePerWriter = 10;
+        tool.arguments.randomSeed = seed;
+        tool.arguments.numThreads = numThreads;
+        tool.arguments.maxBufferedRecords = 150;
+        tool.execute();
+
+        IntArrayList positions = new IntArrayList();
+        try (RecordReader reader = new RecordReader(output)) {
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                positions.add(record.getPosition());
+            }
+        }
+        return positions;
+    }
+}
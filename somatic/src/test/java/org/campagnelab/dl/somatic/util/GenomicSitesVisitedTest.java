@@ -2,6 +2,8 @@ package org.campagnelab.dl.somatic.util;
 
 import org.junit.Test;
 
+import java.io.File;
+
 import static org.junit.Assert.*;
 
 public class GenomicSitesVisitedTest {
@@ -18,4 +20,56 @@ public class GenomicSitesVisitedTest {
         assertFalse(vis.wasVisited(0, 0xFFFF));
         assertTrue(vis.wasVisited(0xFFFF, 0));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUnmappedSites() throws Exception {
+        GenomicSitesVisited vis = new GenomicSitesVisited();
+        assertFalse(vis.wasVisited(-1, 12));
+        assertTrue(vis.visit(-1, 12));
+        assertFalse(vis.visit(-1, 12));
+        assertTrue(vis.wasVisited(-1, 12));
+        assertFalse(vis.wasVisited(0, 12));
+        assertTrue(vis.visit(-1, -1));
+        assertFalse(vis.wasVisited(-1, Integer.MAX_VALUE));
+        new File("test-results").mkdirs();
+        vis.save("test-results/visited-unmapped-sites");
+        GenomicSitesVisited loaded = GenomicSitesVisited.load("test-results/visited-unmapped-sites");
+        assertTrue(loaded.wasVisited(-1, 12));
+        assertTrue(loaded.wasVisited(-1, -1));
+        assertFalse(loaded.wasVisited(0, 12));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeReferenceIndex() {
+        new GenomicSitesVisited().visit(-2, 0);
+    }
+
+    @Test
+    public void testConcurrentVisitAndSnapshot() throws Exception {
+        GenomicSitesVisited vis = new GenomicSitesVisited();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int position = offset; position < 3_000_000; position += 3 * threads.length) {
+                    vis.visit(position % 3, position);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse("already visited", vis.visit(0, 0));
+        assertTrue(vis.visit(1, Integer.MAX_VALUE));
+        new File("test-results").mkdirs();
+        vis.save("test-results/visited-sites");
+        GenomicSitesVisited loaded = GenomicSitesVisited.load("test-results/visited-sites");
+        for (int position = 0; position < 3_000_000; position++) {
+            boolean expected = position % (3 * threads.length) < threads.length;
+            assertEquals(expected, loaded.wasVisited(position % 3, position));
+        }
+        assertTrue(loaded.wasVisited(1, Integer.MAX_VALUE));
+        assertFalse(loaded.wasVisited(1, Integer.MAX_VALUE - 1));
+    }
+}
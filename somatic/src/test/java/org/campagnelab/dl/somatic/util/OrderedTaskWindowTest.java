@@ -0,0 +1,89 @@
+package org.campagnelab.dl.somatic.util;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedTaskWindowTest {
+    private static final int NUM_TASKS = 50;
+    private static final long MAX_SIZE_AHEAD = 20;
+
+    @Test
+    public void multiThreadedOutputEqualsSingleThreadedOutput() throws IOException {
+        assertEquals(run(1), run(8));
+    }
+
+    @Test
+    public void sizeAheadDoesNotDependOnThreads() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            OrderedTaskWindow<Integer> window = new OrderedTaskWindow<>(executor, MAX_SIZE_AHEAD);
+            window.submit(() -> 0, MAX_SIZE_AHEAD + 5);
+            // a single task larger than the bound is accepted, but nothing else until it is taken:
+            assertFalse(window.hasRoom(1));
+            assertEquals(0, (int) window.take());
+            assertTrue(window.isEmpty());
+            for (int task = 0; task < NUM_TASKS; task++) {
+                if (window.hasRoom(size(task))) {
+                    window.submit(() -> 0, size(task));
+                }
+                assertTrue(window.sizeAhead() <= MAX_SIZE_AHEAD);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failuresAreReported() throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            OrderedTaskWindow<Integer> window = new OrderedTaskWindow<>(executor, MAX_SIZE_AHEAD);
+            window.submit(() -> {
+                throw new IOException("unreadable range");
+            }, 1);
+            window.take();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Submit tasks that finish in an order different from their submission order, and collect their results.
+     */
+    private static IntArrayList run(int numThreads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            OrderedTaskWindow<Integer> window = new OrderedTaskWindow<>(executor, MAX_SIZE_AHEAD);
+            IntArrayList results = new IntArrayList();
+            int numSubmitted = 0;
+            for (int task = 0; task < NUM_TASKS; task++) {
+                while (numSubmitted < NUM_TASKS && window.hasRoom(size(numSubmitted))) {
+                    final int value = numSubmitted;
+                    window.submit(() -> {
+                        Thread.sleep((NUM_TASKS - value) % 4);
+                        return value * value;
+                    }, size(numSubmitted));
+                    numSubmitted++;
+                }
+                assertTrue(window.sizeAhead() <= MAX_SIZE_AHEAD);
+                results.add((int) window.take());
+            }
+            assertTrue(window.isEmpty());
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long size(int task) {
+        return 1 + task % 7;
+    }
+}
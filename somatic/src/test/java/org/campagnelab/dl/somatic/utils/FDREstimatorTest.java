@@ -0,0 +1,56 @@
+package org.campagnelab.dl.somatic.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test counting of model probabilities in FDREstimator.
+ */
+public class FDREstimatorTest {
+
+    @Test
+    public void mergedObservationsAreCounted() throws Exception {
+        String modelDir = "test-results/testModel";
+        new File(modelDir).mkdirs();
+        FDREstimator first = new FDREstimator(modelDir, "merged", false);
+        FDREstimator second = new FDREstimator(modelDir, "merged", false);
+        first.observe(0.9f, false);
+        first.observe(0.1f, false);
+        second.observe(0.9f, false);
+        second.observe(0.5f, false);
+        second.observe(0.7f, true);
+        first.merge(second);
+        // repeated probabilities count as many times as they were observed:
+        assertEquals(0.5f, first.calibrateProb(0.6f), 0.000001f);
+        first.save();
+        FDREstimator loaded = new FDREstimator(modelDir, "merged", true);
+        assertEquals(0.75f, loaded.calibrateProb(0.5f), 0.000001f);
+    }
+
+    @Test
+    public void tiedProbabilitiesAtRangeBoundaries() throws Exception {
+        FDREstimator calc = new FDREstimator("test-results/testModel", "ties", false);
+        calc.observe(0.2f, false);
+        calc.observe(0.5f, false);
+        calc.observe(0.5f, false);
+        calc.observe(0.5f, false);
+        calc.observe(0.8f, false);
+        calc.observe(0.5f, true);
+        calc.observe(0.5f, true);
+        calc.observe(1.0f, true);
+        // ranges are [from, to[: ties at from are counted, ties at to are not:
+        assertEquals(3, calc.numUnMut(0.5f, 0.8f));
+        assertEquals(1, calc.numUnMut(0.2f, 0.5f));
+        assertEquals(0, calc.numUnMut(0.5f, 0.5f));
+        assertEquals(1, calc.numUnMut(0.8f, 1.1f));
+        assertEquals(5, calc.numUnMut(0f, 1.1f));
+        assertEquals(2, calc.numPlantedMut(0.5f, 1.0f));
+        assertEquals(0, calc.numPlantedMut(0f, 0.5f));
+        assertEquals(1, calc.numPlantedMut(1.0f, 1.1f));
+        // all unmutated probabilities tied with 0.5 are counted as greater than or equal to 0.5:
+        assertEquals(4f / 5f, calc.calibrateProb(0.5f), 0.000001f);
+    }
+}